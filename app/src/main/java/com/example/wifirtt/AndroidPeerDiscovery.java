@@ -0,0 +1,108 @@
+package com.example.wifirtt;
+
+import android.annotation.SuppressLint;
+import android.net.wifi.aware.DiscoverySessionCallback;
+import android.net.wifi.aware.PeerHandle;
+import android.net.wifi.aware.SubscribeConfig;
+import android.net.wifi.aware.SubscribeDiscoverySession;
+import android.net.wifi.aware.WifiAwareSession;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.example.wifirtt.ranging.PeerDiscovery;
+import com.example.wifirtt.ranging.PeerRegistry;
+
+import java.util.List;
+
+/**
+ * {@link PeerDiscovery} on top of a {@link WifiAwareSession} subscription. Every discovery
+ * goes through the {@link PeerRegistry}, which assigns the peer ids; the listener only hears
+ * about new peers and changed service-specific info, so repeated discoveries stay cheap.
+ * Callbacks run on the given handler.
+ */
+class AndroidPeerDiscovery implements PeerDiscovery {
+
+    private final WifiAwareSession mWifiAwareSession;
+    private final SubscribeConfig mSubscribeConfig;
+    private final Handler mHandler;
+    private final PeerRegistry<PeerHandle> mPeerRegistry;
+    private volatile SubscribeDiscoverySession mSession;
+    private volatile boolean mStopped;
+
+    AndroidPeerDiscovery(WifiAwareSession wifiAwareSession, SubscribeConfig subscribeConfig,
+                         Handler handler, PeerRegistry<PeerHandle> peerRegistry) {
+        mWifiAwareSession = wifiAwareSession;
+        mSubscribeConfig = subscribeConfig;
+        mHandler = handler;
+        mPeerRegistry = peerRegistry;
+    }
+
+    @SuppressLint("MissingPermission") // Caller checks the permissions before subscribing
+    @Override
+    public void startDiscovery(final Listener listener) {
+        mWifiAwareSession.subscribe(mSubscribeConfig, new DiscoverySessionCallback() {
+            @Override
+            public void onSubscribeStarted(@NonNull SubscribeDiscoverySession session) {
+                if (mStopped) {
+                    session.close(); // Stopped before the subscription came up
+                    return;
+                }
+                mSession = session;
+                listener.onDiscoveryStarted();
+            }
+
+            @Override
+            public void onServiceDiscovered(@NonNull PeerHandle peerHandle, byte[] serviceSpecificInfo, List<byte[]> matchFilter) {
+                onDiscovered(listener, peerHandle, serviceSpecificInfo, -1);
+            }
+
+            @Override
+            public void onServiceDiscoveredWithinRange(@NonNull PeerHandle peerHandle, byte[] serviceSpecificInfo, List<byte[]> matchFilter, int distanceMm) {
+                onDiscovered(listener, peerHandle, serviceSpecificInfo, distanceMm);
+            }
+
+            @Override
+            public void onSessionTerminated() {
+                mSession = null;
+                listener.onDiscoveryTerminated();
+            }
+        }, mHandler);
+    }
+
+    private void onDiscovered(Listener listener, PeerHandle peerHandle, byte[] serviceSpecificInfo, int distanceMm) {
+        if (mPeerRegistry.discover(peerHandle, serviceSpecificInfo, distanceMm, SystemClock.elapsedRealtime())) {
+            listener.onPeerDiscovered(mPeerRegistry.get(peerHandle).getPeerId(), serviceSpecificInfo, distanceMm);
+        }
+    }
+
+    /**
+     * Sends {@code message} to a discovered peer over the subscription. Returns false if the
+     * subscription is not up or the peer is unknown; delivery itself is not confirmed.
+     */
+    boolean sendMessage(int peerId, int messageId, byte[] message) {
+        SubscribeDiscoverySession session = mSession;
+        PeerHandle peerHandle = mPeerRegistry.getKey(peerId);
+        if (session == null || peerHandle == null) {
+            return false;
+        }
+        session.sendMessage(peerHandle, messageId, message);
+        return true;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mSession != null;
+    }
+
+    @Override
+    public void stopDiscovery() {
+        mStopped = true;
+        SubscribeDiscoverySession session = mSession;
+        mSession = null;
+        if (session != null) {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.wifirtt;
+
+import android.annotation.SuppressLint;
+import android.net.wifi.aware.PeerHandle;
+import android.net.wifi.rtt.RangingRequest;
+import android.net.wifi.rtt.RangingResult;
+import android.net.wifi.rtt.RangingResultCallback;
+import android.net.wifi.rtt.WifiRttManager;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.example.wifirtt.ranging.RangingBackend;
+import com.example.wifirtt.ranging.PeerRegistry;
+import com.example.wifirtt.ranging.RangingBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link RangingBackend} on top of {@link WifiRttManager}. Peer ids are resolved to
+ * {@link PeerHandle}s through the {@link PeerRegistry}, and the framework results are
+ * converted into a reused {@link RangingBatch}. Callbacks are delivered on the given
+ * executor, which must be serial and run on the thread that starts and expires requests.
+ */
+class AndroidRangingBackend implements RangingBackend {
+
+    private final WifiRttManager mWifiRttManager;
+    private final Executor mExecutor;
+    private final PeerRegistry<PeerHandle> mPeerRegistry;
+    private final RangingBatch mBatch = new RangingBatch(RangingRequest.getMaxPeers());
+    // 応答待ちの要求。期限切れにしたものは外して、遅れて届いた結果を捨てる
+    private final List<PendingCallback> mPending = new ArrayList<>();
+
+    AndroidRangingBackend(WifiRttManager wifiRttManager, Executor executor, PeerRegistry<PeerHandle> peerRegistry) {
+        mWifiRttManager = wifiRttManager;
+        mExecutor = executor;
+        mPeerRegistry = peerRegistry;
+    }
+
+    @Override
+    public int getMaxPeers() {
+        return RangingRequest.getMaxPeers();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return mWifiRttManager != null && mWifiRttManager.isAvailable();
+    }
+
+    @SuppressLint("MissingPermission") // Caller checks ACCESS_FINE_LOCATION before ranging
+    @Override
+    public void startRanging(int[] peerIds, int count, Callback callback) {
+        RangingRequest.Builder builder = new RangingRequest.Builder();
+        int added = 0;
+        for (int i = 0; i < count; i++) {
+            PeerHandle peerHandle = mPeerRegistry.getKey(peerIds[i]);
+            if (peerHandle != null) {
+                builder.addWifiAwarePeer(peerHandle);
+                added++;
+            }
+        }
+        if (added == 0) {
+            callback.onRangingFailure(RangingBatch.CODE_FAIL); // Every peer was evicted; still complete the request
+            return;
+        }
+
+        PendingCallback pending = new PendingCallback(callback);
+        mPending.add(pending);
+        mWifiRttManager.startRanging(builder.build(), mExecutor, pending);
+    }
+
+    @Override
+    public void expireRanging(Callback callback) {
+        for (int i = 0; i < mPending.size(); i++) {
+            if (mPending.get(i).mCallback == callback) {
+                mPending.remove(i);
+                callback.onRangingFailure(RangingBatch.CODE_TIMEOUT);
+                return;
+            }
+        }
+    }
+
+    /** Forwards one framework callback unless the request has expired. Runs on the executor. */
+    private final class PendingCallback extends RangingResultCallback {
+        final Callback mCallback;
+
+        PendingCallback(Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void onRangingResults(@NonNull List<RangingResult> results) {
+            if (!mPending.remove(this)) {
+                return; // Expired; the callback has already been failed
+            }
+            mBatch.clear();
+            for (int i = 0, n = Math.min(results.size(), mBatch.capacity()); i < n; i++) {
+                RangingResult result = results.get(i);
+                PeerRegistry.Peer<PeerHandle> peer = mPeerRegistry.get(result.getPeerHandle());
+                if (peer == null) {
+                    continue; // Peer was evicted or cleared while the request was in flight
+                }
+                int peerId = peer.getPeerId();
+                // getDistanceMm() などは STATUS_SUCCESS 以外では例外を投げる
+                if (result.getStatus() == RangingResult.STATUS_SUCCESS) {
+                    mBatch.addSuccess(peerId, result.getDistanceMm(), result.getDistanceStdDevMm(),
+                            result.getRssi(), result.getRangingTimestampMillis(),
+                            result.getNumAttemptedMeasurements(), result.getNumSuccessfulMeasurements());
+                } else {
+                    mBatch.addFailure(peerId, result.getStatus(), SystemClock.elapsedRealtime());
+                }
+            }
+            mCallback.onRangingResults(mBatch);
+        }
+
+        @Override
+        public void onRangingFailure(int code) {
+            if (mPending.remove(this)) {
+                mCallback.onRangingFailure(code);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.wifirtt;
+
+import android.view.Choreographer;
+
+import com.example.wifirtt.ranging.CoalescingPublisher;
+
+/**
+ * Runs frames on the next vsync of the thread that created it (the main thread).
+ */
+class ChoreographerFrameScheduler implements CoalescingPublisher.FrameScheduler {
+
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private Runnable mFrame;
+    private Choreographer.FrameCallback mFrameCallback;
+
+    @Override
+    public synchronized void scheduleFrame(final Runnable frame) {
+        if (frame != mFrame) {
+            // 同じ Runnable が渡される前提なので、コールバックは一度だけ作る
+            mFrame = frame;
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    frame.run();
+                }
+            };
+        }
+        mChoreographer.postFrameCallback(mFrameCallback);
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.wifirtt;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.example.wifirtt.chart.DistanceChartFrame;
+import com.example.wifirtt.chart.DistanceTraceBuffer;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Live distance traces of every ranged peer, each with a band of its filter uncertainty,
+ * drawn from a {@link DistanceTraceBuffer}. The right edge is the newest sample, so the
+ * chart only scrolls while results arrive.
+ *
+ * <p>{@link #onTracesChanged} may be called from any thread and redraws the view at most
+ * once per vsync. Drawing does not allocate: paints, the band path and the point arrays
+ * are created up front, and label strings only when the scale or a trace's peer changes.
+ */
+public class DistanceChartView extends View {
+
+    private static final int[] TRACE_COLORS = {
+            0xff1e88e5, 0xffe53935, 0xff43a047, 0xfffb8c00, 0xff8e24aa,
+            0xff00acc1, 0xff6d4c41, 0xffd81b60, 0xff7cb342, 0xff3949ab,
+    };
+    private static final int BAND_ALPHA = 0x40;
+    private static final int MAX_GRID_LABELS = 16;
+
+    private final Paint[] mTracePaints = new Paint[TRACE_COLORS.length];
+    private final Paint[] mBandPaints = new Paint[TRACE_COLORS.length];
+    private final Paint mGridPaint = new Paint();
+    private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path mBandPath = new Path();
+    private final float mLabelSizePx;
+    private final AtomicBoolean mInvalidatePending = new AtomicBoolean();
+
+    private DistanceTraceBuffer mBuffer;
+    private DistanceChartFrame mFrame;
+    private boolean mLayoutValid;
+    // ラベルの文字列は目盛りやピアが変わったときだけ作り直す
+    private final String[] mGridLabels = new String[MAX_GRID_LABELS];
+    private int mGridLabelsStepMm;
+    private String[] mPeerLabels = new String[0];
+    private int[] mPeerLabelIds = new int[0];
+
+    public DistanceChartView(Context context) {
+        this(context, null);
+    }
+
+    public DistanceChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        mLabelSizePx = 10 * density;
+        for (int i = 0; i < TRACE_COLORS.length; i++) {
+            mTracePaints[i] = new Paint(Paint.ANTI_ALIAS_FLAG);
+            mTracePaints[i].setColor(TRACE_COLORS[i]);
+            mTracePaints[i].setStyle(Paint.Style.STROKE);
+            mTracePaints[i].setStrokeWidth(2 * density);
+            mTracePaints[i].setStrokeCap(Paint.Cap.ROUND);
+            mBandPaints[i] = new Paint(Paint.ANTI_ALIAS_FLAG);
+            mBandPaints[i].setColor(TRACE_COLORS[i] & 0x00ffffff | BAND_ALPHA << 24);
+            mBandPaints[i].setStyle(Paint.Style.FILL);
+        }
+        mGridPaint.setColor(Color.LTGRAY);
+        mGridPaint.setStrokeWidth(density);
+        mLabelPaint.setColor(Color.DKGRAY);
+        mLabelPaint.setTextSize(mLabelSizePx);
+    }
+
+    /** Shows the last {@code windowMillis} of {@code buffer}. Main thread only. */
+    public void setTraceBuffer(DistanceTraceBuffer buffer, long windowMillis) {
+        mBuffer = buffer;
+        mFrame = new DistanceChartFrame(buffer, windowMillis);
+        mPeerLabels = new String[buffer.getMaxPeers()];
+        mPeerLabelIds = new int[buffer.getMaxPeers()];
+        mLayoutValid = false;
+        invalidate();
+    }
+
+    /** Redraws on the next vsync unless a redraw is already pending. Any thread. */
+    public void onTracesChanged() {
+        if (mInvalidatePending.compareAndSet(false, true)) {
+            postInvalidateOnAnimation();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mLayoutValid = false;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        // 描画を始める前に下ろしておけば、描画中に届いたデータは次のフレームで拾える
+        mInvalidatePending.set(false);
+        if (mFrame == null) {
+            return;
+        }
+        float left = getPaddingLeft();
+        float top = getPaddingTop() + mLabelSizePx;
+        float right = getWidth() - getPaddingRight() - 3 * mLabelSizePx;
+        float bottom = getHeight() - getPaddingBottom();
+        if (right <= left || bottom <= top) {
+            return;
+        }
+        if (mFrame.load(mBuffer) || !mLayoutValid) {
+            mFrame.layout(left, top, right, bottom);
+            mLayoutValid = true;
+        }
+        drawGrid(canvas, left, top, right, bottom);
+        for (int t = 0; t < mFrame.getTraceCount(); t++) {
+            drawTrace(canvas, t, right);
+        }
+    }
+
+    private void drawGrid(Canvas canvas, float left, float top, float right, float bottom) {
+        int stepMm = mFrame.getGridStepMm();
+        int lines = Math.min(MAX_GRID_LABELS, mFrame.getScaleMm() / stepMm + 1);
+        if (stepMm != mGridLabelsStepMm) {
+            mGridLabelsStepMm = stepMm;
+            for (int i = 0; i < MAX_GRID_LABELS; i++) {
+                int mm = i * stepMm;
+                mGridLabels[i] = mm % 1000 == 0 ? mm / 1000 + " m"
+                        : String.format(Locale.US, "%.2f m", mm / 1000.0);
+            }
+        }
+        float yPerMm = (bottom - top) / mFrame.getScaleMm();
+        for (int i = 0; i < lines; i++) {
+            float y = bottom - i * stepMm * yPerMm;
+            canvas.drawLine(left, y, right, y, mGridPaint);
+            canvas.drawText(mGridLabels[i], left, y - mLabelSizePx / 4, mLabelPaint);
+        }
+    }
+
+    private void drawTrace(Canvas canvas, int t, float right) {
+        int n = mFrame.getPointCount(t);
+        int offset = mFrame.getOffset(t);
+        float[] xs = mFrame.getXs();
+        float[] ys = mFrame.getYs();
+        int peerId = mFrame.getPeerId(t);
+        int color = Math.floorMod(peerId, TRACE_COLORS.length);
+
+        // 不確かさの帯: 上側を左から右へ、下側を右から左へたどって閉じる
+        float[] upper = mFrame.getUpperYs();
+        float[] lower = mFrame.getLowerYs();
+        mBandPath.rewind();
+        mBandPath.moveTo(xs[offset], upper[offset]);
+        for (int i = offset + 1; i < offset + n; i++) {
+            mBandPath.lineTo(xs[i], upper[i]);
+        }
+        for (int i = offset + n - 1; i >= offset; i--) {
+            mBandPath.lineTo(xs[i], lower[i]);
+        }
+        mBandPath.close();
+        canvas.drawPath(mBandPath, mBandPaints[color]);
+
+        Paint tracePaint = mTracePaints[color];
+        if (n > 1) {
+            canvas.drawLines(mFrame.getSegments(), mFrame.getSegmentOffset(t), 4 * (n - 1), tracePaint);
+        } else {
+            canvas.drawPoint(xs[offset], ys[offset], tracePaint);
+        }
+
+        if (mPeerLabels[t] == null || mPeerLabelIds[t] != peerId) {
+            mPeerLabelIds[t] = peerId;
+            mPeerLabels[t] = "#" + peerId;
+        }
+        float y = ys[offset + n - 1] + mLabelSizePx / 3;
+        canvas.drawText(mPeerLabels[t], Math.min(xs[offset + n - 1], right) + mLabelSizePx / 4, y, mLabelPaint);
+    }
+}
@@ -5,23 +5,24 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.net.wifi.aware.AttachCallback;
+import android.net.wifi.aware.Characteristics;
 import android.net.wifi.aware.DiscoverySessionCallback;
+import android.net.wifi.aware.PeerHandle;
 import android.net.wifi.aware.WifiAwareManager;
 import android.net.wifi.aware.WifiAwareSession;
 import android.net.wifi.aware.PublishConfig;
 import android.net.wifi.aware.SubscribeConfig;
-import android.net.wifi.aware.PeerHandle;
 import android.net.wifi.aware.PublishDiscoverySession;
-import android.net.wifi.aware.SubscribeDiscoverySession;
-import android.net.wifi.rtt.RangingRequest;
-import android.net.wifi.rtt.RangingResult;
-import android.net.wifi.rtt.RangingResultCallback;
 import android.net.wifi.rtt.WifiRttManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.Settings;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -33,35 +34,156 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
+import androidx.core.os.ExecutorCompat;
 
-import java.util.List;
+import com.example.wifirtt.calibration.CalibrationTable;
+import com.example.wifirtt.calibration.DistanceCorrector;
+import com.example.wifirtt.chart.DistanceTraceBuffer;
+import com.example.wifirtt.filter.DistanceFilterBank;
+import com.example.wifirtt.history.RangingHistory;
+import com.example.wifirtt.metrics.InstrumentedRangingBackend;
+import com.example.wifirtt.metrics.RangingMetrics;
+import com.example.wifirtt.metrics.RangingMetricsSnapshot;
+import com.example.wifirtt.position.AnchorConfig;
+import com.example.wifirtt.protocol.DistanceReport;
+import com.example.wifirtt.protocol.DistanceReportQueue;
+import com.example.wifirtt.protocol.PeerInfo;
+import com.example.wifirtt.protocol.WireProtocol;
+import com.example.wifirtt.position.AnchorTable;
+import com.example.wifirtt.position.MultilaterationSolver;
+import com.example.wifirtt.ranging.BatchedRangingScheduler;
+import com.example.wifirtt.ranging.CoalescingPublisher;
+import com.example.wifirtt.ranging.LatestRangingState;
+import com.example.wifirtt.ranging.MeshSlotPlan;
+import com.example.wifirtt.ranging.PeerDiscovery;
+import com.example.wifirtt.ranging.PeerRegistry;
+import com.example.wifirtt.ranging.RangingBackend;
+import com.example.wifirtt.ranging.RangingBatch;
+import com.example.wifirtt.ranging.RangingClock;
+import com.example.wifirtt.ranging.RangingFailurePolicy;
+import com.example.wifirtt.ranging.RangingRateController;
+import com.example.wifirtt.ranging.RangingSnapshot;
+import com.example.wifirtt.record.RangingRecorder;
+import com.example.wifirtt.record.RangingStreamServer;
+import com.example.wifirtt.zone.ProximityZoneEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = "WifiRttApp";
     private static final String SERVICE_NAME = "My_Rtt_Service";
     private static final int REQUEST_CODE_PERMISSIONS = 100;
-    private static final long RANGING_INTERVAL_MS = 2000; // 2秒ごとに距離を計測
+    private static final int MAX_TRACKED_PEERS = 64;
+    // ピアごとの計測間隔は動きに応じて 100ms〜2秒の間で調整する
+    private static final long MIN_RANGING_INTERVAL_MS = 100;
+    private static final long MAX_RANGING_INTERVAL_MS = 2000;
+    // フレームワークは要求を順番に処理するので、重ねて投げてもキューに溜まるだけ
+    private static final int MAX_RANGING_REQUESTS_IN_FLIGHT = 1;
+    private static final long RANGING_REQUEST_TIMEOUT_MS = 3000;
+    private static final String ANCHOR_CONFIG_ASSET = "anchors.txt";
+    private static final String CALIBRATION_TABLE_ASSET = "calibration.txt";
+    // これより古い距離は測位に使わない
+    private static final long MAX_POSITION_RANGE_AGE_MS = 1000;
+    private static final long METRICS_OVERLAY_INTERVAL_MS = 1000;
+    // 発見も計測成功もないまま 30 秒経ったピアは忘れる
+    private static final long PEER_TTL_MS = 30000;
+    private static final long PEER_EVICTION_INTERVAL_MS = PEER_TTL_MS / 4;
+    // 測った距離は 1 秒分ずつまとめて相手に送り返す
+    private static final long DISTANCE_REPORT_MAX_DELAY_MS = 1000;
+    // この端末の距離の系統誤差。パブリッシャーとして広告し、相手側で差し引かれる
+    private static final int DEVICE_CALIBRATION_OFFSET_MM = 0;
+    // 近距離ゾーンの外縁 (mm)
+    private static final int ZONE_NEAR_MM = 1500;
+    private static final int ZONE_MID_MM = 4000;
+    private static final int ZONE_FAR_MM = 10000;
+    private static final int ZONE_HYSTERESIS_MM = 300;
+    private static final long ZONE_DWELL_MS = 5000;
+    // 発見範囲の上限。起動インテントでこのフラグを立てると、最も外側のゾーンより遠いピアは
+    // そもそも発見せず、計測もしない
+    // adb shell am start -n com.example.wifirtt/.MainActivity --ez com.example.wifirtt.LIMIT_DISCOVERY_TO_ZONES true
+    private static final int MAX_DISCOVERY_DISTANCE_MM = 100000;
+    public static final String EXTRA_LIMIT_DISCOVERY_TO_ZONES = "com.example.wifirtt.LIMIT_DISCOVERY_TO_ZONES";
+    // ピアごとに直近の結果を残し、10 秒の窓で集計する
+    private static final int HISTORY_CAPACITY = 256;
+    private static final long HISTORY_WINDOW_MS = 10000;
+    // デバッグビルドでは adb forward tcp:7878 tcp:7878 で計測結果をそのまま受け取れる
+    private static final int STREAM_EXPORT_PORT = RangingStreamServer.DEFAULT_PORT;
+    // メッシュでは担当側の共有が 3 サイクル途絶えたらペアを引き取る
+    private static final int MESH_TAKEOVER_CYCLES = 3;
+    // グラフには直近 20 秒を描く。最短間隔の 100ms で計測し続けても収まるだけ残す
+    private static final long CHART_WINDOW_MS = 20000;
+    private static final int CHART_TRACE_CAPACITY = (int) (CHART_WINDOW_MS / MIN_RANGING_INTERVAL_MS) + 1;
 
     private WifiAwareManager mWifiAwareManager;
-    private WifiAwareSession mWifiAwareSession;
+    private volatile WifiAwareSession mWifiAwareSession;
     private WifiRttManager mWifiRttManager;
     private TextView mStatusTextView;
     private TextView mPeerInfoTextView;
     private TextView mRttResultTextView;
+    private TextView mMetricsTextView;
+    private DistanceChartView mDistanceChartView;
     private RadioGroup mRoleRadioGroup;
     private RadioButton mRadioPublisher;
     private RadioButton mRadioSubscriber;
+    private RadioButton mRadioMesh;
     private Button mStartButton;
     private Handler mHandler = new Handler(Looper.getMainLooper());
 
-    private PeerHandle mPeerHandle;
-    private boolean isPublisher = false;
-    private boolean isSubscriber = false;
+    // 計測・結果処理・ピア発見はすべて mRangingThread 上で行い、UI にはスナップショットだけを渡す
+    private PeerRegistry<PeerHandle> mPeerRegistry; // Updated on the ranging thread, readable anywhere
+    private AndroidRangingBackend mRangingBackend;
+    private RangingRateController mRateController;
+    private RangingFailurePolicy mFailurePolicy; // Open count readable anywhere
+    private BatchedRangingScheduler mRangingScheduler;
+    private DistanceFilterBank mDistanceFilter;
+    private LatestRangingState mLatestRangingState;
+    private AnchorConfig mAnchorConfig;
+    private CalibrationTable mCalibrationTable;
+    private String mLocalDeviceName;
+    private AnchorTable mAnchorTable;
+    private MultilaterationSolver mPositionSolver;
+    private RangingRecorder mRecorder; // Only touched on the ranging thread
+    private volatile RangingStreamServer mStreamServer; // Written on the ranging thread
+    private boolean mStreamFlushPending; // Only touched on the ranging thread
+    private CoalescingPublisher<RangingSnapshot> mSnapshotPublisher;
+    private RangingMetrics mRangingMetrics; // Written on the ranging thread, read from the main thread
+    private RangingMetricsSnapshot mLastMetricsSnapshot; // Only touched on the main thread
+    private volatile boolean isPublisher = false;
+    private volatile boolean isSubscriber = false;
+    private volatile boolean isMesh = false; // Publishes and subscribes at the same time
+    private int mNodeId;
 
-    private Handler mRangingHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mRangingThread;
+    private Handler mRangingHandler;
     private Runnable mRangingRunnable;
-    private SubscribeDiscoverySession mCurrentSubscribeSession;
+    private boolean mRangingLoopRunning; // Only touched on the ranging thread
+    private long mLastEvictionMillis; // Only touched on the ranging thread
+    private int mMaxMessageLength;
+    // Only touched on the ranging thread
+    private final PeerInfo mPeerInfo = new PeerInfo();
+    private DistanceCorrector mDistanceCorrector;
+    private DistanceReportQueue mDistanceReports;
+    private ProximityZoneEngine mZoneEngine;
+    private boolean mLimitDiscoveryToZones;
+    private RangingHistory mRangingHistory;
+    private DistanceTraceBuffer mDistanceTraces; // Appended on the ranging thread, drawn on the main thread
+    private DistanceReport mReceivedReport; // Only touched on the main thread
+    // Only touched on the ranging thread
+    private MeshSlotPlan mMeshPlan;
+    private final int[] mTakenOverPeers = new int[MAX_TRACKED_PEERS];
+    private DistanceReport mSharedReport;
+    private RangingBatch mSharedBatch;
+    private volatile AndroidPeerDiscovery mPeerDiscovery;
     private PublishDiscoverySession mCurrentPublishSession;
 
 
@@ -85,9 +207,9 @@ public class MainActivity extends AppCompatActivity {
                         mCurrentPublishSession.close();
                         mCurrentPublishSession = null;
                     }
-                    if (mCurrentSubscribeSession != null) {
-                        mCurrentSubscribeSession.close();
-                        mCurrentSubscribeSession = null;
+                    if (mPeerDiscovery != null) {
+                        mPeerDiscovery.stopDiscovery();
+                        mPeerDiscovery = null;
                     }
                 }
             }
@@ -102,13 +224,87 @@ public class MainActivity extends AppCompatActivity {
         mStatusTextView = findViewById(R.id.statusTextView);
         mPeerInfoTextView = findViewById(R.id.peerInfoTextView);
         mRttResultTextView = findViewById(R.id.rttResultTextView);
+        mMetricsTextView = findViewById(R.id.metricsTextView);
+        mDistanceChartView = findViewById(R.id.distanceChartView);
         mRoleRadioGroup = findViewById(R.id.roleRadioGroup);
         mRadioPublisher = findViewById(R.id.radioPublisher);
         mRadioSubscriber = findViewById(R.id.radioSubscriber);
+        mRadioMesh = findViewById(R.id.radioMesh);
         mStartButton = findViewById(R.id.startButton);
 
         mWifiAwareManager = (WifiAwareManager) getSystemService(Context.WIFI_AWARE_SERVICE);
         mWifiRttManager = (WifiRttManager) getSystemService(Context.WIFI_RTT_RANGING_SERVICE);
+        mRangingThread = new HandlerThread("RangingThread");
+        mRangingThread.start();
+        mRangingHandler = new Handler(mRangingThread.getLooper());
+        mPeerRegistry = new PeerRegistry<>(PEER_TTL_MS);
+        mRangingBackend = new AndroidRangingBackend(mWifiRttManager, ExecutorCompat.create(mRangingHandler), mPeerRegistry);
+        mRateController = new RangingRateController(MAX_TRACKED_PEERS,
+                MIN_RANGING_INTERVAL_MS, MAX_RANGING_INTERVAL_MS, RangingRateController.DEFAULT_TARGET_STEP_MM);
+        RangingClock clock = new RangingClock() {
+            @Override
+            public long elapsedRealtimeMillis() {
+                return SystemClock.elapsedRealtime();
+            }
+        };
+        mRangingMetrics = new RangingMetrics(MAX_TRACKED_PEERS);
+        // 失敗し続けるピアは回路を開いて外し、健全なピアに要求の枠を回す
+        mFailurePolicy = new RangingFailurePolicy.Builder(MAX_TRACKED_PEERS)
+                .setListener(mCircuitListener)
+                .build();
+        // 要求からコールバックまでの時間と結果をすべて計測する
+        // 結果が届いたらすぐ次の要求を出し、届かない要求は期限で打ち切る
+        mRangingScheduler = new BatchedRangingScheduler.Builder(
+                new InstrumentedRangingBackend(mRangingBackend, mRangingMetrics, clock),
+                mRateController, clock, mRangingCallback)
+                .setMaxInFlight(MAX_RANGING_REQUESTS_IN_FLIGHT)
+                .setRequestTimeoutMillis(RANGING_REQUEST_TIMEOUT_MS)
+                .setBackToBack(true)
+                .setFailurePolicy(mFailurePolicy)
+                .build();
+        mDistanceFilter = new DistanceFilterBank.Builder(MAX_TRACKED_PEERS)
+                .setMode(DistanceFilterBank.Mode.KALMAN)
+                .build();
+        mLatestRangingState = new LatestRangingState(MAX_TRACKED_PEERS);
+        mRangingHistory = new RangingHistory.Builder(MAX_TRACKED_PEERS)
+                .setCapacity(HISTORY_CAPACITY)
+                .setWindowMillis(HISTORY_WINDOW_MS)
+                .build();
+        mDistanceTraces = new DistanceTraceBuffer(MAX_TRACKED_PEERS, CHART_TRACE_CAPACITY);
+        mDistanceChartView.setTraceBuffer(mDistanceTraces, CHART_WINDOW_MS);
+        mMaxMessageLength = getMaxMessageLength();
+        mDistanceReports = new DistanceReportQueue(MAX_TRACKED_PEERS, mMaxMessageLength,
+                DISTANCE_REPORT_MAX_DELAY_MS, mDistanceReportSender);
+        mReceivedReport = new DistanceReport(DistanceReport.capacityFor(mMaxMessageLength));
+        // メッシュのノード ID は起動ごとに選び直す。0 は「ID なし」なので使わない
+        Random random = new Random();
+        do {
+            mNodeId = random.nextInt();
+        } while (mNodeId == MeshSlotPlan.NO_NODE_ID);
+        mMeshPlan = new MeshSlotPlan(MAX_TRACKED_PEERS, mNodeId);
+        mDistanceReports.setSenderNodeId(mNodeId);
+        mSharedReport = new DistanceReport(DistanceReport.capacityFor(mMaxMessageLength));
+        mSharedBatch = new RangingBatch(mSharedReport.capacity());
+        mZoneEngine = new ProximityZoneEngine.Builder(MAX_TRACKED_PEERS)
+                .addZone("near", ZONE_NEAR_MM)
+                .addZone("mid", ZONE_MID_MM)
+                .addZone("far", ZONE_FAR_MM)
+                .setHysteresisMm(ZONE_HYSTERESIS_MM)
+                .setDwellMillis(ZONE_DWELL_MS)
+                .build();
+        mZoneEngine.addListener(mZoneListener);
+        mLimitDiscoveryToZones = getIntent().getBooleanExtra(EXTRA_LIMIT_DISCOVERY_TO_ZONES, false);
+        loadAnchorConfig();
+        loadCalibrationTable();
+        mLocalDeviceName = getAnchorName();
+        mDistanceCorrector = new DistanceCorrector(MAX_TRACKED_PEERS);
+        mSnapshotPublisher = new CoalescingPublisher<>(new ChoreographerFrameScheduler(),
+                new CoalescingPublisher.Consumer<RangingSnapshot>() {
+                    @Override
+                    public void apply(RangingSnapshot snapshot) {
+                        showSnapshot(snapshot);
+                    }
+                });
 
         IntentFilter filter = new IntentFilter(WifiAwareManager.ACTION_WIFI_AWARE_STATE_CHANGED);
         registerReceiver(mWifiAwareStateReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
@@ -122,9 +318,9 @@ public class MainActivity extends AppCompatActivity {
                     mCurrentPublishSession.close();
                     mCurrentPublishSession = null;
                 }
-                if (mCurrentSubscribeSession != null) {
-                    mCurrentSubscribeSession.close();
-                    mCurrentSubscribeSession = null;
+                if (mPeerDiscovery != null) {
+                    mPeerDiscovery.stopDiscovery();
+                    mPeerDiscovery = null;
                 }
                 stopPeriodicRanging();
                 mRttResultTextView.setText("");
@@ -132,18 +328,29 @@ public class MainActivity extends AppCompatActivity {
 
                 int selectedId = mRoleRadioGroup.getCheckedRadioButtonId();
                 if (selectedId == -1) {
-                    Toast.makeText(MainActivity.this, "Please select a role (Publisher or Subscriber)", Toast.LENGTH_SHORT).show();
+                    Toast.makeText(MainActivity.this, "Please select a role (Publisher, Subscriber or Mesh)", Toast.LENGTH_SHORT).show();
                     return;
                 }
 
                 if (selectedId == mRadioPublisher.getId()) {
                     isPublisher = true;
                     isSubscriber = false;
+                    isMesh = false;
                     mStatusTextView.setText("Role: Publisher. Initializing Wi-Fi Aware...");
                 } else if (selectedId == mRadioSubscriber.getId()) {
                     isPublisher = false;
                     isSubscriber = true;
+                    isMesh = false;
                     mStatusTextView.setText("Role: Subscriber. Initializing Wi-Fi Aware...");
+                    mRangingHandler.post(mStartRecordingRunnable); // 計測結果をすべてファイルに残す
+                } else if (selectedId == mRadioMesh.getId()) {
+                    // 同じセッションで公開と購読を両方行い、見つけた全員と距離を測る
+                    isPublisher = true;
+                    isSubscriber = true;
+                    isMesh = true;
+                    mStatusTextView.setText("Role: Mesh (node " + Integer.toHexString(mNodeId)
+                            + "). Initializing Wi-Fi Aware...");
+                    mRangingHandler.post(mStartRecordingRunnable);
                 }
                 checkPermissionsAndStartWifiAware();
             }
@@ -152,14 +359,27 @@ public class MainActivity extends AppCompatActivity {
         mRangingRunnable = new Runnable() {
             @Override
             public void run() {
-                if (mPeerHandle != null && mWifiAwareSession != null && isSubscriber && mCurrentSubscribeSession != null) {
-                    startRanging(mPeerHandle);
-                    // Reschedule the runnable
-                    mRangingHandler.postDelayed(this, RANGING_INTERVAL_MS);
+                evictStalePeers();
+                takeOverSilentMeshPeers();
+                boolean active = mWifiAwareSession != null && isSubscriber && isDiscoveryStarted();
+                if (active && mRangingScheduler.getPeerCount() > 0) {
+                    startRanging();
+                    // Reschedule the runnable for when the next peer becomes due, without spinning
+                    mRangingHandler.postDelayed(this, Math.max(MIN_RANGING_INTERVAL_MS / 2, mRangingScheduler.getNextDelayMillis()));
+                } else if (active && isMesh) {
+                    // 担当するペアがなくても、共有が途絶えたペアを引き取れるように回し続ける
+                    mRangingHandler.postDelayed(this, mMeshPlan.getCycleMillis());
+                } else {
+                    mRangingLoopRunning = false;
                 }
             }
         };
 
+        mHandler.post(mMetricsOverlayRunnable);
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            mRangingHandler.post(mStartStreamRunnable);
+        }
+
         // Initial check for Wi-Fi Aware availability
         if (mWifiAwareManager != null && mWifiAwareManager.isAvailable()) {
             mStatusTextView.setText("Wi-Fi Aware is available. Select role and start.");
@@ -172,19 +392,22 @@ public class MainActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         unregisterReceiver(mWifiAwareStateReceiver);
+        mHandler.removeCallbacks(mMetricsOverlayRunnable);
         stopPeriodicRanging(); // Stop ranging when activity is destroyed
         if (mCurrentPublishSession != null) {
             mCurrentPublishSession.close();
             mCurrentPublishSession = null;
         }
-        if (mCurrentSubscribeSession != null) {
-            mCurrentSubscribeSession.close();
-            mCurrentSubscribeSession = null;
+        if (mPeerDiscovery != null) {
+            mPeerDiscovery.stopDiscovery();
+            mPeerDiscovery = null;
         }
         if (mWifiAwareSession != null) {
             mWifiAwareSession.close();
             mWifiAwareSession = null;
         }
+        mRangingHandler.post(mStopStreamRunnable);
+        mRangingThread.quitSafely();
     }
 
     private void checkPermissionsAndStartWifiAware() {
@@ -265,9 +488,9 @@ public class MainActivity extends AppCompatActivity {
                     mCurrentPublishSession.close();
                     mCurrentPublishSession = null;
                 }
-                if (mCurrentSubscribeSession != null) {
-                    mCurrentSubscribeSession.close();
-                    mCurrentSubscribeSession = null;
+                if (mPeerDiscovery != null) {
+                    mPeerDiscovery.stopDiscovery();
+                    mPeerDiscovery = null;
                 }
             }
         }, mHandler);
@@ -287,6 +510,7 @@ public class MainActivity extends AppCompatActivity {
 
         PublishConfig publishConfig = new PublishConfig.Builder()
                 .setServiceName(SERVICE_NAME)
+                .setServiceSpecificInfo(buildPeerInfo().encode(mMaxMessageLength))
                 .setRangingEnabled(true)
                 .build();
 
@@ -303,6 +527,25 @@ public class MainActivity extends AppCompatActivity {
                 mCurrentPublishSession = session;
             }
 
+            @Override
+            public void onMessageReceived(PeerHandle peerHandle, final byte[] message) {
+                if (isMesh) { // 相手が担当するペアの結果として取り込む
+                    mRangingHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onSharedReport(message);
+                        }
+                    });
+                    return;
+                }
+                if (mReceivedReport.decode(message, message.length) && mReceivedReport.size() > 0) {
+                    int last = mReceivedReport.size() - 1;
+                    mRttResultTextView.setText("Measured by subscriber: " + mReceivedReport.getDistanceMm(last)
+                            + "mm ±" + mReceivedReport.getDistanceStdDevMm(last) + "mm (report #"
+                            + mReceivedReport.getSequence() + ")");
+                }
+            }
+
             @Override
             public void onSessionTerminated() {
                 Log.d(TAG, "Publish session terminated.");
@@ -325,7 +568,7 @@ public class MainActivity extends AppCompatActivity {
             Log.e(TAG, "subscribeService: Wi-Fi Aware session is null");
             return;
         }
-         if (mCurrentSubscribeSession != null) {
+         if (mPeerDiscovery != null) {
             Log.d(TAG,"Subscriber: Already subscribing.");
             mStatusTextView.setText("Subscriber: Already subscribing.");
             return;
@@ -334,7 +577,7 @@ public class MainActivity extends AppCompatActivity {
         SubscribeConfig subscribeConfig = new SubscribeConfig.Builder()
                 .setServiceName(SERVICE_NAME)
                 .setMinDistanceMm(0)
-                .setMaxDistanceMm(100000)
+                .setMaxDistanceMm(mLimitDiscoveryToZones ? mZoneEngine.getMaxDistanceMm() : MAX_DISCOVERY_DISTANCE_MM)
                 .build();
 
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED || ActivityCompat.checkSelfPermission(this, Manifest.permission.NEARBY_WIFI_DEVICES) != PackageManager.PERMISSION_GRANTED) {
@@ -342,140 +585,618 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
         mStatusTextView.setText("Subscriber: Subscribing to service...");
-        mWifiAwareSession.subscribe(subscribeConfig, new DiscoverySessionCallback() {
+        mPeerDiscovery = new AndroidPeerDiscovery(mWifiAwareSession, subscribeConfig, mRangingHandler, mPeerRegistry);
+        mPeerDiscovery.startDiscovery(new PeerDiscovery.Listener() { // Discovery callbacks run on the ranging thread
             @Override
-            public void onSubscribeStarted(@NonNull SubscribeDiscoverySession session) {
+            public void onDiscoveryStarted() {
                 Log.d(TAG, "Subscribe service started.");
-                mStatusTextView.setText("Subscriber: Service subscription started. Discovering peers...");
-                mCurrentSubscribeSession = session;
+                showStatus("Subscriber: Service subscription started. Discovering peers...");
             }
 
             @Override
-            public void onServiceDiscovered(@NonNull PeerHandle peerHandle, byte[] serviceSpecificInfo, List<byte[]> matchFilter) {
-                Log.d(TAG, "Service discovered from peer: " + peerHandle.toString());
-                mStatusTextView.setText("Subscriber: Service discovered. Starting periodic ranging...");
-                if (mCurrentSubscribeSession != null) { // Ensure session is active
-                    startPeriodicRanging(peerHandle);
+            public void onPeerDiscovered(int peerId, byte[] serviceSpecificInfo, int distanceMm) {
+                if (distanceMm >= 0) {
+                    Log.d(TAG, "Service discovered within range: peer " + peerId + ", distance: " + distanceMm + "mm");
+                    showStatus("Subscriber: Service discovered within range. Starting periodic ranging...");
+                } else {
+                    Log.d(TAG, "Service discovered from peer: " + peerId);
+                    showStatus("Subscriber: Service discovered. Starting periodic ranging...");
                 }
-            }
-
-            @Override
-            public void onServiceDiscoveredWithinRange(@NonNull PeerHandle peerHandle, byte[] serviceSpecificInfo, List<byte[]> matchFilter, int distanceMm) {
-                Log.d(TAG, "Service discovered within range: " + peerHandle.toString() + ", distance: " + distanceMm + "mm");
-                mStatusTextView.setText("Subscriber: Service discovered within range. Starting periodic ranging...");
-                 if (mCurrentSubscribeSession != null) { // Ensure session is active
-                    startPeriodicRanging(peerHandle);
+                if (isDiscoveryStarted()) { // Ensure session is active
+                    startPeriodicRanging(peerId, serviceSpecificInfo);
                 }
             }
 
             @Override
-            public void onSessionTerminated() {
+            public void onDiscoveryTerminated() {
                 Log.d(TAG, "Subscribe session terminated.");
-                mStatusTextView.setText("Subscriber: Subscribe session terminated.");
+                showStatus("Subscriber: Subscribe session terminated.");
                 stopPeriodicRanging();
-                mCurrentSubscribeSession = null;
+                mPeerDiscovery = null;
             }
+        });
+    }
 
-            //@Override
-            //public void onSessionConfigFailed(int reason) {
-              //  Log.e(TAG, "Subscriber: Session config failed: " + reason);
-                //mStatusTextView.setText("Subscriber: Subscribe config failed: " + reason);
-                //stopPeriodicRanging();
-                //mCurrentSubscribeSession = null;
-            //}
-        }, mHandler);
+    private boolean isDiscoveryStarted() {
+        AndroidPeerDiscovery discovery = mPeerDiscovery;
+        return discovery != null && discovery.isStarted();
     }
 
-    private void startPeriodicRanging(PeerHandle peerHandle) {
-        if (!isSubscriber || mCurrentSubscribeSession == null) { // Only start if still subscriber and session active
+    private void startPeriodicRanging(int peerId, byte[] serviceSpecificInfo) {
+        if (!isSubscriber || !isDiscoveryStarted()) { // Only start if still subscriber and session active
             Log.d(TAG, "Not starting periodic ranging: Not in subscriber mode or session is not active.");
             return;
         }
-        mPeerHandle = peerHandle; // Store the peer handle
-        mRangingHandler.removeCallbacks(mRangingRunnable); // Remove any existing callbacks
-        mRangingHandler.post(mRangingRunnable); // Start immediately and then periodically
-        mStatusTextView.setText("Subscriber: Periodic ranging started.");
+        int nodeId = bindPeerInfo(peerId, serviceSpecificInfo);
+        // メッシュでは各ペアを片側だけが測り、もう片側は共有された結果を使う
+        if (!isMesh || mMeshPlan.addPeer(peerId, nodeId, SystemClock.elapsedRealtime())) {
+            addRangedPeer(peerId); // 既知のピアに追加
+        } else {
+            mRangingScheduler.removePeer(peerId);
+        }
+        if (!mRangingLoopRunning) { // A running loop picks the new peer up on its next tick
+            mRangingLoopRunning = true;
+            mRangingHandler.post(mRangingRunnable);
+            showStatus("Subscriber: Periodic ranging started.");
+        }
+    }
+
+    // Runs on the ranging thread
+    private void addRangedPeer(int peerId) {
+        mRangingScheduler.addPeer(peerId);
+        if (isMesh) { // ペアごとに決まったスロットでだけ測る
+            mRateController.setSlot(peerId, mMeshPlan.getCycleMillis(), mMeshPlan.getSlotOffsetMillis(peerId),
+                    SystemClock.elapsedRealtime());
+        }
+    }
+
+    // Runs on the ranging thread
+    private void takeOverSilentMeshPeers() {
+        if (!isMesh) {
+            return;
+        }
+        int count = mMeshPlan.takeOverSilentPeers(SystemClock.elapsedRealtime(),
+                MESH_TAKEOVER_CYCLES * mMeshPlan.getCycleMillis(), mTakenOverPeers);
+        for (int i = 0; i < count; i++) {
+            Log.d(TAG, "Peer " + mTakenOverPeers[i] + " stopped sharing results, ranging it ourselves");
+            addRangedPeer(mTakenOverPeers[i]);
+        }
     }
 
+    // Runs on the ranging thread
+    private void evictStalePeers() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - mLastEvictionMillis < PEER_EVICTION_INTERVAL_MS) {
+            return;
+        }
+        mLastEvictionMillis = now;
+        int evicted = mPeerRegistry.evictStale(now, mPeerRetention, mPeerEvictionListener);
+        if (evicted > 0) {
+            Log.d(TAG, "Evicted " + evicted + " stale peers");
+        }
+    }
+
+    // 回路が開いている間に追い出すと、戻ってきたピアがバックオフなしで試され直してしまう。
+    // 開いている時間の上限を過ぎたら、圏外に消えたピアとみなして追い出す
+    private final PeerRegistry.RetentionPolicy<PeerHandle> mPeerRetention =
+            new PeerRegistry.RetentionPolicy<PeerHandle>() {
+                @Override
+                public boolean shouldRetain(PeerRegistry.Peer<PeerHandle> peer, long nowMillis) {
+                    return mFailurePolicy.getCircuit(peer.getPeerId()) != RangingFailurePolicy.CIRCUIT_CLOSED
+                            && nowMillis - peer.getLastSeenMillis() <= PEER_TTL_MS + RangingFailurePolicy.DEFAULT_OPEN_MAX_MS;
+                }
+            };
+
+    private final PeerRegistry.EvictionListener<PeerHandle> mPeerEvictionListener =
+            new PeerRegistry.EvictionListener<PeerHandle>() {
+                @Override
+                public void onPeerEvicted(PeerRegistry.Peer<PeerHandle> peer) {
+                    int peerId = peer.getPeerId();
+                    mRangingScheduler.removePeer(peerId);
+                    mDistanceFilter.removePeer(peerId);
+                    mLatestRangingState.removePeer(peerId);
+                    mAnchorTable.removeAnchor(peerId);
+                    mRangingMetrics.removePeer(peerId);
+                    mDistanceReports.removePeer(peerId);
+                    mDistanceCorrector.removePeer(peerId);
+                    mMeshPlan.removePeer(peerId);
+                    mZoneEngine.removePeer(peerId, SystemClock.elapsedRealtime());
+                    mRangingHistory.removePeer(peerId);
+                    mDistanceTraces.removePeer(peerId);
+                    mDistanceChartView.onTracesChanged();
+                }
+            };
+
     private void stopPeriodicRanging() {
         mRangingHandler.removeCallbacks(mRangingRunnable);
-        mPeerHandle = null; // Clear the peer handle
+        // The scheduler and backend are confined to the ranging thread
+        mRangingHandler.post(mClearPeersRunnable);
         if (isSubscriber) { // Only update text if it was subscribing
             Log.d(TAG, "Periodic ranging stopped.");
            // mStatusTextView.setText("Subscriber: Periodic ranging stopped."); // Avoid overwriting other status
         }
     }
 
-    private void startRanging(PeerHandle peerHandle) {
-        if (mWifiRttManager == null || !mWifiRttManager.isAvailable()) {
+    private final Runnable mClearPeersRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mRangingLoopRunning = false;
+            mRangingScheduler.clear(); // Forget all known peers
+            mPeerRegistry.clear();
+            mDistanceFilter.clear();
+            mLatestRangingState.clear();
+            mAnchorTable.clear();
+            mDistanceReports.clear();
+            mDistanceCorrector.clear();
+            mMeshPlan.clear();
+            mZoneEngine.clear();
+            mRangingHistory.clear();
+            mDistanceTraces.clear();
+            mDistanceChartView.onTracesChanged();
+            stopRecording();
+            if (mStreamServer != null) {
+                mStreamServer.flush(); // 計測を止めるので、残っている結果をここで送る
+            }
+            dumpMetrics();
+            mRangingMetrics.clear();
+        }
+    };
+
+    private final Runnable mMetricsOverlayRunnable = new Runnable() {
+        @Override
+        public void run() {
+            RangingMetricsSnapshot snapshot = mRangingMetrics.snapshot(SystemClock.elapsedRealtime());
+            if (snapshot.getRequestCount() > 0) {
+                int healthy = 0;
+                for (PeerRegistry.Peer<PeerHandle> peer : mPeerRegistry.peers()) {
+                    if (peer.isHealthy()) {
+                        healthy++;
+                    }
+                }
+                String text = snapshot.formatSummary(mLastMetricsSnapshot) + "\npeers "
+                        + mPeerRegistry.size() + " (healthy " + healthy + ", circuit open "
+                        + mFailurePolicy.getOpenCount() + ")";
+                RangingStreamServer streamServer = mStreamServer;
+                if (streamServer != null && streamServer.getClientCount() > 0) {
+                    text += "\nstream clients " + streamServer.getClientCount() + ", skipped frames "
+                            + streamServer.getSkippedFrameCount() + ", aggregated "
+                            + streamServer.getAggregatedCount() + ", dropped " + streamServer.getDroppedCount();
+                }
+                mMetricsTextView.setText(text);
+            }
+            mLastMetricsSnapshot = snapshot;
+            mHandler.postDelayed(this, METRICS_OVERLAY_INTERVAL_MS);
+        }
+    };
+
+    private void dumpMetrics() {
+        RangingMetricsSnapshot snapshot = mRangingMetrics.snapshot(SystemClock.elapsedRealtime());
+        if (snapshot.getRequestCount() > 0) {
+            Log.i(TAG, "Ranging metrics:\n" + snapshot.dump());
+        }
+    }
+
+    private final Runnable mStartRecordingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stopRecording();
+            File directory = getExternalFilesDir("captures");
+            if (directory == null) {
+                directory = new File(getFilesDir(), "captures");
+            }
+            String session = "rtt-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+            try {
+                mRecorder = new RangingRecorder(directory, session);
+                Log.d(TAG, "Recording ranging results to " + directory + "/" + session);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to start recording: " + e.getMessage());
+            }
+        }
+    };
+
+    private void stopRecording() {
+        if (mRecorder == null) {
+            return;
+        }
+        try {
+            mRecorder.close();
+            Log.d(TAG, "Recorded " + mRecorder.getRecordCount() + " results, dropped " + mRecorder.getDroppedCount());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close recorder: " + e.getMessage());
+        }
+        mRecorder = null;
+    }
+
+    private final Runnable mStartStreamRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mStreamServer = new RangingStreamServer.Builder(STREAM_EXPORT_PORT).start();
+                Log.d(TAG, "Streaming ranging results on 127.0.0.1:" + mStreamServer.getPort());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to start the stream export: " + e.getMessage());
+            }
+        }
+    };
+
+    private final Runnable mFlushStreamRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mStreamFlushPending = false;
+            if (mStreamServer != null) {
+                mStreamServer.flush();
+            }
+        }
+    };
+
+    private final Runnable mStopStreamRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mRangingHandler.removeCallbacks(mFlushStreamRunnable);
+            mStreamFlushPending = false;
+            if (mStreamServer != null) {
+                mStreamServer.flush();
+                mStreamServer.close();
+                mStreamServer = null;
+            }
+        }
+    };
+
+    private void showStatus(final String status) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mStatusTextView.setText(status);
+            }
+        });
+    }
+
+    private void showRttMessage(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mRttResultTextView.setText(message);
+            }
+        });
+    }
+
+    private void startRanging() {
+        if (!mRangingBackend.isAvailable()) {
             Log.e(TAG, "Wi-Fi RTT is not available.");
-            mRttResultTextView.setText("Wi-Fi RTT is not available.");
+            showRttMessage("Wi-Fi RTT is not available.");
             stopPeriodicRanging(); // Stop if RTT is not available
             return;
         }
 
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
             Log.e(TAG, "ACCESS_FINE_LOCATION permission not granted for RTT.");
-            mRttResultTextView.setText("RTT: Location permission needed.");
+            showRttMessage("RTT: Location permission needed.");
             stopPeriodicRanging(); // Stop if permission is missing
             return;
         }
-        if (peerHandle == null){
-            Log.e(TAG, "PeerHandle is null, cannot start ranging.");
-            mRttResultTextView.setText("RTT: No peer to range.");
+        if (mRangingScheduler.getPeerCount() == 0) {
+            Log.e(TAG, "No peers known, cannot start ranging.");
+            showRttMessage("RTT: No peer to range.");
             stopPeriodicRanging();
             return;
         }
+        mRangingScheduler.rangeNext(); // 期限が来たピアだけを計測する
+    }
 
-        RangingRequest request = new RangingRequest.Builder()
-                .addWifiAwarePeer(peerHandle)
-                .build();
+    // Runs on the ranging thread
+    private final RangingBackend.Callback mRangingCallback = new RangingBackend.Callback() {
+        @Override
+        public void onRangingResults(RangingBatch batch) {
+            if (batch.size() == 0) {
+                Log.d(TAG, "No RTT results.");
+                return;
+            }
+            processResults(batch, true);
+        }
 
-        mWifiRttManager.startRanging(request, getMainExecutor(), new RangingResultCallback() {
-            @Override
-            public void onRangingResults(@NonNull List<RangingResult> results) {
-                if (results.isEmpty()) {
-                    Log.d(TAG, "No RTT results.");
-                    // mRttResultTextView.setText("No RTT results."); // Keep previous result if no new one
-                    return;
-                }
+        @Override
+        public void onRangingFailure(int code) {
+            Log.e(TAG, "RTT Ranging failed entirely: " + code);
+            mLatestRangingState.onRangingFailure(code);
+            publishSnapshot();
+            // Periodic ranging keeps going: the failure policy has already backed off the
+            // peers of this request, or paused all ranging if RTT is unavailable
+            if (RangingFailurePolicy.classifyCode(code) == RangingFailurePolicy.FAILURE_UNAVAILABLE) {
+                showRttMessage("RTT unavailable, retrying in "
+                        + (mFailurePolicy.getPausedUntilMillis() - SystemClock.elapsedRealtime()) + "ms");
+            }
+        }
+    };
 
-                RangingResult firstValidResult = null;
-                for (RangingResult result : results) {
-                    if (result.getStatus() == RangingResult.STATUS_SUCCESS) {
-                        firstValidResult = result;
-                        break;
-                    }
-                }
+    // Runs on the ranging thread
+    private final RangingFailurePolicy.Listener mCircuitListener = new RangingFailurePolicy.Listener() {
+        @Override
+        public void onCircuitOpened(int peerId, int failure, long openMillis) {
+            Log.d(TAG, "Peer " + peerId + (failure == RangingFailurePolicy.FAILURE_UNSUPPORTED
+                    ? " does not support 802.11mc" : " keeps failing") + ", not ranging it for " + openMillis + "ms");
+        }
 
-                if (firstValidResult != null) {
-                    String rttResult = "Distance: " + firstValidResult.getDistanceMm() + "mm, RSSI: " + firstValidResult.getRssi() + "dBm";
-                    Log.d(TAG, "RTT Success: " + rttResult);
-                    mRttResultTextView.setText(rttResult);
-
-                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q) {
-                        android.net.MacAddress mac = firstValidResult.getMacAddress();
-                        if (mac != null) {
-                            mPeerInfoTextView.setText("Peer MAC: " + mac.toString());
-                        } else {
-                            mPeerInfoTextView.setText("Peer MAC: NULL");
-                        }
-                    } else {
-                        mPeerInfoTextView.setText("Peer MAC: NULL (API < Q)");
-                    }
-                } else {
-                     Log.e(TAG, "RTT Failed: No successful result. Last status: " + results.get(results.size() -1).getStatus());
-                    // mRttResultTextView.setText("RTT Failed: No success. Status: " + results.get(results.size() -1).getStatus());
+        @Override
+        public void onCircuitClosed(int peerId) {
+            Log.d(TAG, "Peer " + peerId + " answered the probe, ranging it again");
+        }
+    };
+
+    // Runs on the ranging thread. Results shared by a mesh peer are already corrected by
+    // the device that measured them, and are neither recorded nor reported back
+    private void processResults(RangingBatch batch, boolean measuredLocally) {
+        long now = SystemClock.elapsedRealtime();
+        if (measuredLocally && mRecorder != null) {
+            mRecorder.record(batch);
+        }
+        if (measuredLocally && mStreamServer != null) {
+            mStreamServer.publish(batch, now); // 接続がなければ何もしない
+            // 次の結果が来なくても、半端な枠は最大遅延のうちに送り出す
+            if (!mStreamFlushPending) {
+                mStreamFlushPending = true;
+                mRangingHandler.postDelayed(mFlushStreamRunnable, RangingStreamServer.DEFAULT_MAX_FRAME_DELAY_MS);
+            }
+        }
+        mPeerRegistry.onRangingResults(batch);
+        mRangingHistory.append(batch);
+        int successCount = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            int peerId = batch.getPeerId(i);
+            if (batch.isSuccess(i)) {
+                int correctedMm = batch.getDistanceMm(i);
+                if (measuredLocally) {
+                    // 端末の組ごとの補正 (なければ相手が広告した補正値) をかけてから、相手への報告とフィルタに回す
+                    correctedMm = mDistanceCorrector.correct(peerId, correctedMm);
+                    mDistanceReports.add(peerId, batch.getTimestampMillis(i), correctedMm,
+                            batch.getDistanceStdDevMm(i), batch.getRssi(i));
+                }
+                // 生の距離ではなくフィルタ後の値を表示する (ごく近いピアでは負の距離もありうる)
+                if (mDistanceFilter.update(peerId, correctedMm,
+                        batch.getDistanceStdDevMm(i), batch.getRssi(i), batch.getTimestampMillis(i))) {
+                    int distanceMm = mDistanceFilter.getDistanceMm(peerId);
+                    mZoneEngine.update(peerId, distanceMm, batch.getTimestampMillis(i));
+                    mLatestRangingState.onSample(peerId, distanceMm, mDistanceFilter.getUncertaintyMm(peerId),
+                            batch.getRssi(i), batch.getTimestampMillis(i));
+                    mDistanceTraces.append(peerId, batch.getTimestampMillis(i), distanceMm,
+                            mDistanceFilter.getUncertaintyMm(peerId));
                 }
+                successCount++;
+            } else {
+                Log.e(TAG, "RTT Failed: peer " + peerId + ", status: " + batch.getStatus(i));
             }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            int peerId = batch.getPeerId(i);
+            int medianMm = mRangingHistory.getPercentileMm(peerId, now, 50);
+            mLatestRangingState.onWindowStats(peerId,
+                    medianMm != RangingHistory.NO_DISTANCE ? medianMm : RangingSnapshot.NO_DISTANCE,
+                    mRangingHistory.getSuccessRatio(peerId, now));
+        }
+        mLatestRangingState.onBatchComplete(batch.size(), successCount);
+        if (successCount > 0) {
+            mDistanceChartView.onTracesChanged(); // 次の vsync でまとめて描き直す
+        }
+        mDistanceReports.flush(now);
+        mZoneEngine.poll(now);
+        updatePosition();
+        publishSnapshot();
+    }
 
-            @Override
-            public void onRangingFailure(int code) {
-                Log.e(TAG, "RTT Ranging failed entirely: " + code);
-                mRttResultTextView.setText("RTT Ranging failed: " + code);
-                // Consider if periodic ranging should stop on full failure
-                // stopPeriodicRanging(); // Or let it retry
+    // Runs on the ranging thread. A mesh peer that owns our pair sends its distances to us
+    // as a DistanceReport carrying its node id
+    private void onSharedReport(byte[] message) {
+        if (!mSharedReport.decode(message, message.length) || mSharedReport.size() == 0) {
+            return;
+        }
+        int peerId = mMeshPlan.findPeer(mSharedReport.getSenderNodeId());
+        if (peerId < 0) {
+            return; // 送り主をまだ発見していないか、メッシュ以外の端末
+        }
+        long now = SystemClock.elapsedRealtime();
+        mMeshPlan.onShared(peerId, now);
+        // 時刻は送り主の時計なので、最後のエントリを受信時刻とみなして相対的にずらす
+        long senderLatest = mSharedReport.getTimestampMillis(mSharedReport.size() - 1);
+        mSharedBatch.clear();
+        for (int i = 0; i < mSharedReport.size(); i++) {
+            mSharedBatch.addSuccess(peerId, mSharedReport.getDistanceMm(i), mSharedReport.getDistanceStdDevMm(i),
+                    mSharedReport.getRssi(i), now - (senderLatest - mSharedReport.getTimestampMillis(i)), 0, 0);
+        }
+        processResults(mSharedBatch, false);
+    }
+
+    private void loadAnchorConfig() {
+        try (InputStreamReader reader = new InputStreamReader(getAssets().open(ANCHOR_CONFIG_ASSET),
+                StandardCharsets.UTF_8)) {
+            mAnchorConfig = AnchorConfig.parse(reader);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load anchor config: " + e.getMessage());
+            mAnchorConfig = new AnchorConfig(Collections.<AnchorConfig.Anchor>emptyList(), 2);
+        }
+        // 座標はパブリッシャーからも届くので、設定ファイルが空でも測位できるようにしておく
+        mAnchorTable = new AnchorTable(MAX_TRACKED_PEERS);
+        mPositionSolver = new MultilaterationSolver(MAX_TRACKED_PEERS, mAnchorConfig.getDimensions());
+        Log.d(TAG, "Loaded " + mAnchorConfig.getAnchors().size() + " anchors ("
+                + mAnchorConfig.getDimensions() + "D)");
+    }
+
+    private void loadCalibrationTable() {
+        try (InputStreamReader reader = new InputStreamReader(getAssets().open(CALIBRATION_TABLE_ASSET),
+                StandardCharsets.UTF_8)) {
+            mCalibrationTable = CalibrationTable.parse(reader);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load calibration table: " + e.getMessage());
+            mCalibrationTable = new CalibrationTable(Collections.<CalibrationTable.Entry>emptyList());
+        }
+        Log.d(TAG, "Loaded " + mCalibrationTable.getEntries().size() + " distance corrections");
+    }
+
+    // A correction fitted for this device pair wins over the offset the peer advertises,
+    // which the calibration captures already contain
+    private void bindCalibration(int peerId, String remoteName, int advertisedOffsetMm) {
+        CalibrationTable.Entry entry = mCalibrationTable.find(mLocalDeviceName, remoteName);
+        if (entry != null) {
+            mDistanceCorrector.setCorrection(peerId, entry);
+            Log.d(TAG, "Peer " + peerId + " uses the correction for " + entry.getLocalDevice()
+                    + " -> " + entry.getRemoteDevice());
+        } else if (advertisedOffsetMm != 0) {
+            mDistanceCorrector.setCorrection(peerId, advertisedOffsetMm, 1);
+        } else {
+            mDistanceCorrector.removePeer(peerId);
+        }
+    }
+
+    // Publishers advertise a PeerInfo: their anchor position if the anchor config lists
+    // their device name, the name itself, and their calibration offset
+    private String getAnchorName() {
+        String name = Settings.Global.getString(getContentResolver(), Settings.Global.DEVICE_NAME);
+        return name != null ? name : android.os.Build.MODEL;
+    }
+
+    private PeerInfo buildPeerInfo() {
+        String name = getAnchorName();
+        PeerInfo info = new PeerInfo()
+                .setCapabilities(PeerInfo.CAP_RTT_RESPONDER | PeerInfo.CAP_DISTANCE_REPORTS)
+                .setCalibrationOffsetMm(DEVICE_CALIBRATION_OFFSET_MM)
+                .setName(name);
+        if (isMesh) { // 相手はノード ID からペアの担当とスロットを決める
+            info.setCapabilities(info.getCapabilities() | PeerInfo.CAP_MESH).setNodeId(mNodeId);
+        }
+        AnchorConfig.Anchor anchor = mAnchorConfig.find(name);
+        if (anchor != null && mAnchorConfig.getDimensions() == 3) {
+            info.setPosition(anchor.getX(), anchor.getY(), anchor.getZ());
+        } else if (anchor != null) {
+            info.setPosition(anchor.getX(), anchor.getY());
+        }
+        return info;
+    }
+
+    private int getMaxMessageLength() {
+        Characteristics characteristics = mWifiAwareManager != null ? mWifiAwareManager.getCharacteristics() : null;
+        return characteristics != null
+                ? characteristics.getMaxServiceSpecificInfoLength() : WireProtocol.DEFAULT_MAX_MESSAGE_LENGTH;
+    }
+
+    // Runs on the ranging thread. Returns the mesh node id the peer advertised, or
+    // MeshSlotPlan.NO_NODE_ID if it is not in mesh mode
+    private int bindPeerInfo(int peerId, byte[] serviceSpecificInfo) {
+        if (serviceSpecificInfo == null || serviceSpecificInfo.length == 0) {
+            bindCalibration(peerId, null, 0);
+            return MeshSlotPlan.NO_NODE_ID;
+        }
+        String anchorName;
+        int nodeId = MeshSlotPlan.NO_NODE_ID;
+        if (mPeerInfo.decode(serviceSpecificInfo, serviceSpecificInfo.length)) {
+            bindCalibration(peerId, mPeerInfo.getName(), mPeerInfo.getCalibrationOffsetMm());
+            if (mPeerInfo.hasCapability(PeerInfo.CAP_DISTANCE_REPORTS)) {
+                mDistanceReports.addPeer(peerId);
             }
-        });
+            if (mPeerInfo.hasCapability(PeerInfo.CAP_MESH)) {
+                nodeId = mPeerInfo.getNodeId();
+            }
+            if (mPeerInfo.hasPosition()) { // 広告された座標を設定ファイルより優先する
+                mAnchorTable.setAnchor(peerId, mPeerInfo.getXM(), mPeerInfo.getYM(), mPeerInfo.getZM());
+                Log.d(TAG, "Peer " + peerId + " advertised anchor position");
+                return nodeId;
+            }
+            anchorName = mPeerInfo.getName();
+        } else {
+            anchorName = new String(serviceSpecificInfo, StandardCharsets.UTF_8); // Older builds advertise only the name
+            bindCalibration(peerId, anchorName, 0);
+        }
+        AnchorConfig.Anchor anchor = anchorName != null ? mAnchorConfig.find(anchorName) : null;
+        if (anchor != null && !mAnchorTable.isAnchor(peerId)) {
+            mAnchorTable.setAnchor(peerId, anchor.getX(), anchor.getY(), anchor.getZ());
+            Log.d(TAG, "Peer " + peerId + " is anchor " + anchor.getName());
+        }
+        return nodeId;
+    }
+
+    // Runs on the ranging thread; only transitions reach the UI
+    private final ProximityZoneEngine.Listener mZoneListener = new ProximityZoneEngine.Listener() {
+        @Override
+        public void onEnter(int peerId, int zone, long timestampMillis) {
+            Log.d(TAG, "Peer " + peerId + " entered " + mZoneEngine.getZoneName(zone));
+            showStatus("Peer " + peerId + " entered " + mZoneEngine.getZoneName(zone));
+        }
+
+        @Override
+        public void onExit(int peerId, int zone, long timestampMillis) {
+            Log.d(TAG, "Peer " + peerId + " left " + mZoneEngine.getZoneName(zone));
+        }
+
+        @Override
+        public void onDwell(int peerId, int zone, long dwellMillis, long timestampMillis) {
+            Log.d(TAG, "Peer " + peerId + " has been " + mZoneEngine.getZoneName(zone) + " for " + dwellMillis + "ms");
+        }
+    };
+
+    private final DistanceReportQueue.Sender mDistanceReportSender = new DistanceReportQueue.Sender() {
+        @Override
+        public void send(int peerId, int sequence, byte[] message, int length) {
+            AndroidPeerDiscovery discovery = mPeerDiscovery;
+            if (discovery != null) {
+                discovery.sendMessage(peerId, sequence, Arrays.copyOf(message, length));
+            }
+        }
+    };
+
+    // Runs on the ranging thread after every batch
+    private void updatePosition() {
+        if (mPositionSolver == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        mPositionSolver.reset();
+        for (int slot = 0; slot < mAnchorTable.capacity(); slot++) {
+            int peerId = mAnchorTable.peerIdAt(slot);
+            if (peerId < 0 || !mDistanceFilter.hasEstimate(peerId)
+                    || now - mDistanceFilter.getTimestampMillis(peerId) > MAX_POSITION_RANGE_AGE_MS) {
+                continue;
+            }
+            mPositionSolver.addRange(mAnchorTable.getX(slot), mAnchorTable.getY(slot), mAnchorTable.getZ(slot),
+                    mDistanceFilter.getDistanceMm(peerId) / 1000.0, mDistanceFilter.getUncertaintyMm(peerId) / 1000.0);
+        }
+        if (mPositionSolver.getRangeCount() >= mPositionSolver.getMinAnchors() && mPositionSolver.solve()) {
+            mLatestRangingState.onPosition(mPositionSolver.getX(), mPositionSolver.getY(), mPositionSolver.getZ(),
+                    mPositionSolver.getErrorEstimate());
+        } else {
+            mLatestRangingState.clearPosition();
+        }
+    }
+
+    private void publishSnapshot() {
+        mSnapshotPublisher.publish(mLatestRangingState.snapshot(SystemClock.elapsedRealtime(),
+                mRangingScheduler.getPeerCount()));
+    }
+
+    // Runs on the main thread, at most once per frame
+    private void showSnapshot(RangingSnapshot snapshot) {
+        if (snapshot.getLastFailureCode() != 0) {
+            mRttResultTextView.setText("RTT Ranging failed: " + snapshot.getLastFailureCode());
+        } else if (snapshot.size() > 0) {
+            StringBuilder rttResult = new StringBuilder();
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (i > 0) {
+                    rttResult.append('\n');
+                }
+                rttResult.append("Peer ").append(snapshot.getPeerId(i))
+                        .append(": ").append(snapshot.getDistanceMm(i)).append("mm ±")
+                        .append(snapshot.getUncertaintyMm(i)).append("mm, RSSI: ")
+                        .append(snapshot.getRssi(i)).append("dBm");
+                if (snapshot.getWindowMedianMm(i) != RangingSnapshot.NO_DISTANCE) {
+                    rttResult.append(" (").append(HISTORY_WINDOW_MS / 1000).append("s median ")
+                            .append(snapshot.getWindowMedianMm(i)).append("mm, ")
+                            .append(Math.round(snapshot.getWindowSuccessRatio(i) * 100)).append("% ok)");
+                }
+            }
+            mRttResultTextView.setText(rttResult);
+        }
+        if (snapshot.hasPosition()) {
+            mStatusTextView.setText(String.format(Locale.US, "Position: (%.2f, %.2f, %.2f) ±%.2fm",
+                    snapshot.getPositionX(), snapshot.getPositionY(), snapshot.getPositionZ(),
+                    snapshot.getPositionErrorM()));
+        }
+        mPeerInfoTextView.setText("Peers ranged: " + snapshot.getLastBatchSuccessCount() + "/"
+                + snapshot.getLastBatchSize() + " (known: " + snapshot.getKnownPeerCount() + ")");
     }
 }
@@ -0,0 +1,133 @@
+package com.example.wifirtt.calibration;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Per-device-pair distance corrections, written by {@code CalibrationTool} (tools module)
+ * and loaded by the app. Each non-empty line that does not start with {@code #} has four tab-separated
+ * fields:
+ * <pre>
+ * &lt;local device&gt;  &lt;remote device&gt;  &lt;offsetMm&gt;  &lt;scale&gt;
+ * </pre>
+ * Device names are the names the app advertises (device name, or model if unset); either
+ * may be {@value #ANY} to match every device. The fitted model is
+ * {@code measured = scale * true + offsetMm}, so a measurement is corrected with
+ * {@code (measured - offsetMm) / scale}.
+ */
+public final class CalibrationTable {
+
+    public static final String ANY = "*";
+
+    public static final class Entry {
+        private final String mLocalDevice;
+        private final String mRemoteDevice;
+        private final double mOffsetMm;
+        private final double mScale;
+
+        public Entry(String localDevice, String remoteDevice, double offsetMm, double scale) {
+            if (!(scale > 0)) {
+                throw new IllegalArgumentException("scale must be positive: " + scale);
+            }
+            mLocalDevice = localDevice;
+            mRemoteDevice = remoteDevice;
+            mOffsetMm = offsetMm;
+            mScale = scale;
+        }
+
+        public String getLocalDevice() {
+            return mLocalDevice;
+        }
+
+        public String getRemoteDevice() {
+            return mRemoteDevice;
+        }
+
+        public double getOffsetMm() {
+            return mOffsetMm;
+        }
+
+        public double getScale() {
+            return mScale;
+        }
+
+        /** Applies the correction to one measurement. */
+        public double correct(double measuredMm) {
+            return (measuredMm - mOffsetMm) / mScale;
+        }
+    }
+
+    private final List<Entry> mEntries;
+
+    public CalibrationTable(List<Entry> entries) {
+        mEntries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    public static CalibrationTable parse(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        List<Entry> entries = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t+");
+            if (fields.length != 4) {
+                throw new IOException("Line " + lineNumber
+                        + ": expected <local>\\t<remote>\\t<offsetMm>\\t<scale>: " + line);
+            }
+            try {
+                entries.add(new Entry(fields[0].trim(), fields[1].trim(),
+                        Double.parseDouble(fields[2].trim()), Double.parseDouble(fields[3].trim())));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + lineNumber + ": invalid correction: " + line, e);
+            }
+        }
+        return new CalibrationTable(entries);
+    }
+
+    public void write(Writer writer) throws IOException {
+        writer.write("# <local device>\t<remote device>\t<offsetMm>\t<scale>\n");
+        for (Entry entry : mEntries) {
+            writer.write(String.format(Locale.US, "%s\t%s\t%.1f\t%.5f\n", entry.getLocalDevice(),
+                    entry.getRemoteDevice(), entry.getOffsetMm(), entry.getScale()));
+        }
+        writer.flush();
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Returns the correction for ranging from {@code localDevice} to {@code remoteDevice},
+     * preferring an exact pair over {@code local *}, {@code * remote} and {@code * *}, or
+     * null if none applies. {@code remoteDevice} may be null when the peer is anonymous.
+     */
+    public Entry find(String localDevice, String remoteDevice) {
+        Entry best = null;
+        int bestRank = Integer.MAX_VALUE;
+        for (Entry entry : mEntries) {
+            boolean localExact = entry.getLocalDevice().equals(localDevice);
+            boolean remoteExact = remoteDevice != null && entry.getRemoteDevice().equals(remoteDevice);
+            if ((!localExact && !ANY.equals(entry.getLocalDevice()))
+                    || (!remoteExact && !ANY.equals(entry.getRemoteDevice()))) {
+                continue;
+            }
+            int rank = (localExact ? 0 : 2) + (remoteExact ? 0 : 1);
+            if (rank < bestRank) {
+                best = entry;
+                bestRank = rank;
+            }
+        }
+        return best;
+    }
+}
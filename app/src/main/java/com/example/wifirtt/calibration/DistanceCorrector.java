@@ -0,0 +1,64 @@
+package com.example.wifirtt.calibration;
+
+import com.example.wifirtt.ranging.PeerSlots;
+
+/**
+ * Applies a per-peer linear correction to raw distances in the result path. The
+ * correction is looked up once when a peer is identified (see
+ * {@link CalibrationTable#find}); {@link #correct} is then one slot lookup and a
+ * multiply, and peers without a correction pass through unchanged.
+ *
+ * <p>All state lives in preallocated arrays indexed by {@link PeerSlots}; no method
+ * allocates. Not thread-safe.
+ */
+public final class DistanceCorrector {
+
+    private final PeerSlots mSlots;
+    private final double[] mOffsetsMm;
+    private final double[] mInverseScales;
+
+    public DistanceCorrector(int maxPeers) {
+        mSlots = new PeerSlots(maxPeers);
+        mOffsetsMm = new double[maxPeers];
+        mInverseScales = new double[maxPeers];
+    }
+
+    /** Sets the correction of {@code peerId}; returns false if there is no room. */
+    public boolean setCorrection(int peerId, double offsetMm, double scale) {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("scale must be positive: " + scale);
+        }
+        int slot = mSlots.acquire(peerId);
+        if (slot < 0) {
+            return false;
+        }
+        mOffsetsMm[slot] = offsetMm;
+        mInverseScales[slot] = 1.0 / scale;
+        return true;
+    }
+
+    public boolean setCorrection(int peerId, CalibrationTable.Entry entry) {
+        return setCorrection(peerId, entry.getOffsetMm(), entry.getScale());
+    }
+
+    public boolean hasCorrection(int peerId) {
+        return mSlots.slotOf(peerId) >= 0;
+    }
+
+    public void removePeer(int peerId) {
+        mSlots.release(peerId);
+    }
+
+    public void clear() {
+        mSlots.clear();
+    }
+
+    /** Returns {@code distanceMm} corrected for {@code peerId}, or unchanged if it has no correction. */
+    public int correct(int peerId, int distanceMm) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            return distanceMm;
+        }
+        return (int) Math.round((distanceMm - mOffsetsMm[slot]) * mInverseScales[slot]);
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.wifirtt.chart;
+
+/**
+ * The chart's own copy of the visible part of a {@link DistanceTraceBuffer}, and its
+ * geometry in pixels. {@link #load} copies the samples of the time window and
+ * {@link #layout} maps them onto a plot area: time runs from the left edge to the newest
+ * sample at the right edge, distance from 0 at the bottom to {@link #getScaleMm()} at the
+ * top. The scale is rounded to whole grid steps and only shrinks once the traces use less
+ * than half of it, so it does not jump with every sample.
+ *
+ * <p>Trace {@code t} occupies {@code [getOffset(t), getOffset(t) + getPointCount(t))} of
+ * the point arrays and {@code [getSegmentOffset(t), getSegmentOffset(t) + 4 * (getPointCount(t) - 1))}
+ * of {@link #getSegments()}, laid out for {@code Canvas.drawLines}. All arrays are
+ * preallocated; nothing allocates after construction. Not thread-safe.
+ */
+public final class DistanceChartFrame {
+
+    // 目盛りの候補 (mm)。線が 6 本以下になる最小のものを使う
+    private static final int[] GRID_STEPS_MM = {250, 500, 1000, 2000, 5000, 10000, 20000, 50000};
+    private static final int MAX_GRID_LINES = 6;
+    private static final int MIN_SCALE_MM = 1000;
+
+    private final int mMaxPeers;
+    private final int mCapacity;
+    private final long mWindowMillis;
+
+    private final int[] mPeerIds;
+    private final int[] mPointCounts;
+    private final long[] mTimestamps;
+    private final int[] mDistancesMm;
+    private final int[] mUncertaintiesMm;
+    private int mTraceCount;
+    private long mNewestMillis;
+    private long mVersion = -1;
+
+    private final float[] mXs;
+    private final float[] mYs;
+    private final float[] mUpperYs;
+    private final float[] mLowerYs;
+    private final float[] mSegments;
+    private int mScaleMm = MIN_SCALE_MM;
+    private int mGridStepMm = GRID_STEPS_MM[1];
+
+    public DistanceChartFrame(int maxPeers, int capacity, long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive: " + windowMillis);
+        }
+        mMaxPeers = maxPeers;
+        mCapacity = capacity;
+        mWindowMillis = windowMillis;
+        mPeerIds = new int[maxPeers];
+        mPointCounts = new int[maxPeers];
+        mTimestamps = new long[maxPeers * capacity];
+        mDistancesMm = new int[maxPeers * capacity];
+        mUncertaintiesMm = new int[maxPeers * capacity];
+        mXs = new float[maxPeers * capacity];
+        mYs = new float[maxPeers * capacity];
+        mUpperYs = new float[maxPeers * capacity];
+        mLowerYs = new float[maxPeers * capacity];
+        mSegments = new float[maxPeers * (capacity - 1) * 4];
+    }
+
+    /** A frame sized for {@code buffer}. */
+    public DistanceChartFrame(DistanceTraceBuffer buffer, long windowMillis) {
+        this(buffer.getMaxPeers(), buffer.getCapacity(), windowMillis);
+    }
+
+    /**
+     * Copies the visible samples of {@code buffer} unless nothing changed since the last
+     * call. Returns true if it copied, in which case {@link #layout} has to run again.
+     */
+    public boolean load(DistanceTraceBuffer buffer) {
+        if (buffer.getMaxPeers() > mMaxPeers || buffer.getCapacity() > mCapacity) {
+            throw new IllegalArgumentException("Buffer does not fit this frame");
+        }
+        if (buffer.getVersion() == mVersion) {
+            return false;
+        }
+        mVersion = buffer.copyTo(this, mWindowMillis);
+        return true;
+    }
+
+    void beginCopy(long newestMillis) {
+        mTraceCount = 0;
+        mNewestMillis = newestMillis;
+    }
+
+    int beginTrace(int peerId) {
+        int trace = mTraceCount++;
+        mPeerIds[trace] = peerId;
+        mPointCounts[trace] = 0;
+        return trace;
+    }
+
+    void copySamples(int trace, int at, long[] timestamps, int[] distancesMm, int[] uncertaintiesMm,
+                     int from, int count) {
+        int to = trace * mCapacity + at;
+        System.arraycopy(timestamps, from, mTimestamps, to, count);
+        System.arraycopy(distancesMm, from, mDistancesMm, to, count);
+        System.arraycopy(uncertaintiesMm, from, mUncertaintiesMm, to, count);
+        mPointCounts[trace] = at + count;
+    }
+
+    /** Maps the loaded samples onto the plot area {@code [left, right] x [top, bottom]}. */
+    public void layout(float left, float top, float right, float bottom) {
+        int neededMm = 0;
+        for (int t = 0; t < mTraceCount; t++) {
+            int base = t * mCapacity;
+            for (int i = base; i < base + mPointCounts[t]; i++) {
+                neededMm = Math.max(neededMm, mDistancesMm[i] + mUncertaintiesMm[i]);
+            }
+        }
+        updateScale(neededMm);
+
+        float xPerMs = (right - left) / mWindowMillis;
+        float yPerMm = (bottom - top) / mScaleMm;
+        for (int t = 0; t < mTraceCount; t++) {
+            int base = t * mCapacity;
+            int n = mPointCounts[t];
+            for (int i = base; i < base + n; i++) {
+                mXs[i] = right - (mNewestMillis - mTimestamps[i]) * xPerMs;
+                mYs[i] = toY(mDistancesMm[i], top, bottom, yPerMm);
+                mUpperYs[i] = toY(mDistancesMm[i] + mUncertaintiesMm[i], top, bottom, yPerMm);
+                mLowerYs[i] = toY(mDistancesMm[i] - mUncertaintiesMm[i], top, bottom, yPerMm);
+            }
+            int s = getSegmentOffset(t);
+            for (int i = base + 1; i < base + n; i++) {
+                mSegments[s++] = mXs[i - 1];
+                mSegments[s++] = mYs[i - 1];
+                mSegments[s++] = mXs[i];
+                mSegments[s++] = mYs[i];
+            }
+        }
+    }
+
+    private static float toY(int mm, float top, float bottom, float yPerMm) {
+        // 帯が描画範囲からはみ出さないように上下を切る
+        return Math.max(top, Math.min(bottom, bottom - mm * yPerMm));
+    }
+
+    private void updateScale(int neededMm) {
+        neededMm = Math.max(neededMm, MIN_SCALE_MM);
+        if (neededMm <= mScaleMm && neededMm > mScaleMm / 2) {
+            return;
+        }
+        int step = GRID_STEPS_MM[GRID_STEPS_MM.length - 1];
+        for (int candidate : GRID_STEPS_MM) {
+            if ((neededMm + candidate - 1) / candidate <= MAX_GRID_LINES) {
+                step = candidate;
+                break;
+            }
+        }
+        mGridStepMm = step;
+        mScaleMm = (neededMm + step - 1) / step * step;
+    }
+
+    public long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    /** Timestamp at the right edge, or {@link Long#MIN_VALUE} if there are no samples. */
+    public long getNewestMillis() {
+        return mNewestMillis;
+    }
+
+    public int getScaleMm() {
+        return mScaleMm;
+    }
+
+    public int getGridStepMm() {
+        return mGridStepMm;
+    }
+
+    public int getTraceCount() {
+        return mTraceCount;
+    }
+
+    public int getPeerId(int trace) {
+        return mPeerIds[trace];
+    }
+
+    public int getPointCount(int trace) {
+        return mPointCounts[trace];
+    }
+
+    public int getOffset(int trace) {
+        return trace * mCapacity;
+    }
+
+    public int getSegmentOffset(int trace) {
+        return trace * (mCapacity - 1) * 4;
+    }
+
+    public float[] getXs() {
+        return mXs;
+    }
+
+    public float[] getYs() {
+        return mYs;
+    }
+
+    public float[] getUpperYs() {
+        return mUpperYs;
+    }
+
+    public float[] getLowerYs() {
+        return mLowerYs;
+    }
+
+    public float[] getSegments() {
+        return mSegments;
+    }
+}
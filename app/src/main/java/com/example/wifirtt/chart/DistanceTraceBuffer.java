@@ -0,0 +1,130 @@
+package com.example.wifirtt.chart;
+
+import com.example.wifirtt.ranging.PeerSlots;
+
+/**
+ * The recent filtered distances of every peer, for drawing as live traces. The ranging
+ * thread appends samples; the chart copies the ones inside its time window into a
+ * {@link DistanceChartFrame} once per frame. Both hold the lock only for the copy, so
+ * drawing never blocks ranging for long.
+ *
+ * <p>Each peer has a ring of {@code capacity} samples in preallocated arrays indexed by
+ * {@link PeerSlots}; the oldest sample is overwritten when it is full. No method
+ * allocates. Thread-safe.
+ */
+public final class DistanceTraceBuffer {
+
+    private final int mCapacity;
+    private final PeerSlots mSlots;
+    // ピアごとのリング。要素 i は slot * capacity + i に置く
+    private final long[] mTimestamps;
+    private final int[] mDistancesMm;
+    private final int[] mUncertaintiesMm;
+    private final int[] mHeads;
+    private final int[] mCounts;
+    private long mVersion;
+
+    public DistanceTraceBuffer(int maxPeers, int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+        }
+        mCapacity = capacity;
+        mSlots = new PeerSlots(maxPeers);
+        mTimestamps = new long[maxPeers * capacity];
+        mDistancesMm = new int[maxPeers * capacity];
+        mUncertaintiesMm = new int[maxPeers * capacity];
+        mHeads = new int[maxPeers];
+        mCounts = new int[maxPeers];
+    }
+
+    public int getMaxPeers() {
+        return mSlots.capacity();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** Appends one sample; {@code uncertaintyMm} is -1 if unknown. Returns false if there is no room for the peer. */
+    public synchronized boolean append(int peerId, long timestampMillis, int distanceMm, int uncertaintyMm) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            slot = mSlots.acquire(peerId);
+            if (slot < 0) {
+                return false;
+            }
+            mHeads[slot] = 0;
+            mCounts[slot] = 0;
+        }
+        int i = slot * mCapacity + mHeads[slot];
+        mTimestamps[i] = timestampMillis;
+        mDistancesMm[i] = distanceMm;
+        mUncertaintiesMm[i] = Math.max(0, uncertaintyMm);
+        mHeads[slot] = mHeads[slot] + 1 == mCapacity ? 0 : mHeads[slot] + 1;
+        if (mCounts[slot] < mCapacity) {
+            mCounts[slot]++;
+        }
+        mVersion++;
+        return true;
+    }
+
+    public synchronized void removePeer(int peerId) {
+        if (mSlots.slotOf(peerId) >= 0) {
+            mSlots.release(peerId);
+            mVersion++;
+        }
+    }
+
+    public synchronized void clear() {
+        mSlots.clear();
+        mVersion++;
+    }
+
+    /** Changes with every append, removal and clear. */
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Copies, oldest first, every peer's samples no older than {@code windowMillis} before
+     * the newest sample of any peer. Returns the version that was copied.
+     */
+    synchronized long copyTo(DistanceChartFrame frame, long windowMillis) {
+        long newest = Long.MIN_VALUE;
+        for (int slot = 0; slot < mSlots.capacity(); slot++) {
+            if (mSlots.peerIdAt(slot) >= 0 && mCounts[slot] > 0) {
+                int last = mHeads[slot] == 0 ? mCapacity - 1 : mHeads[slot] - 1;
+                newest = Math.max(newest, mTimestamps[slot * mCapacity + last]);
+            }
+        }
+        frame.beginCopy(newest);
+        long cutoff = newest - windowMillis;
+        for (int slot = 0; slot < mSlots.capacity(); slot++) {
+            int peerId = mSlots.peerIdAt(slot);
+            int count = mCounts[slot];
+            if (peerId < 0 || count == 0) {
+                continue;
+            }
+            // 窓の外にある古いサンプルを飛ばして、残りを古い順に渡す
+            int base = slot * mCapacity;
+            int start = mHeads[slot] - count;
+            if (start < 0) {
+                start += mCapacity;
+            }
+            int skip = 0;
+            while (skip < count && mTimestamps[base + (start + skip) % mCapacity] < cutoff) {
+                skip++;
+            }
+            int first = (start + skip) % mCapacity;
+            int n = count - skip;
+            if (n == 0) {
+                continue;
+            }
+            int tail = Math.min(n, mCapacity - first);
+            int trace = frame.beginTrace(peerId);
+            frame.copySamples(trace, 0, mTimestamps, mDistancesMm, mUncertaintiesMm, base + first, tail);
+            frame.copySamples(trace, tail, mTimestamps, mDistancesMm, mUncertaintiesMm, base, n - tail);
+        }
+        return mVersion;
+    }
+}
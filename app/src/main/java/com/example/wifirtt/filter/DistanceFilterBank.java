@@ -0,0 +1,264 @@
+package com.example.wifirtt.filter;
+
+import com.example.wifirtt.ranging.PeerSlots;
+import com.example.wifirtt.ranging.RangingBatch;
+
+/**
+ * Smooths the distance stream of every peer with a median, EWMA or 1-D Kalman filter.
+ * Per-peer state lives in preallocated primitive arrays indexed by {@link PeerSlots}, so
+ * {@link #update} and {@link #process} never allocate.
+ *
+ * <p>Besides the smoothed distance each peer has an uncertainty: the 1-sigma error of the
+ * estimate in millimetres, which callers can use as a confidence measure. Distances can be
+ * negative (RTT reports them for devices very close together), so whether a peer has an
+ * estimate is asked with {@link #hasEstimate} rather than encoded in the distance.
+ *
+ * <p>Not thread-safe.
+ */
+public final class DistanceFilterBank {
+
+    public enum Mode {
+        MEDIAN,
+        EWMA,
+        KALMAN
+    }
+
+    // 報告される stddev が 0 のときでも最低限見込むノイズ
+    private static final double MIN_SIGMA_MM = 50;
+    // この RSSI より弱い結果は 10dB ごとに測定ノイズを 1 倍ずつ上乗せする
+    private static final int WEAK_RSSI_DBM = -75;
+
+    private final Mode mMode;
+    private final int mWindow;
+    private final double mEwmaAlpha;
+    private final double mProcessNoise;
+    private final PeerSlots mSlots;
+
+    // MEDIAN: ピアごとに mWindow 個ずつのリングバッファ
+    private final int[] mRing;
+    private final int[] mRingHeads;
+    private final int[] mRingCounts;
+    private final int[] mScratch;
+
+    private final double[] mEstimates;
+    private final double[] mVariances;
+    private final long[] mTimestamps;
+    private final long[] mSampleCounts;
+
+    private DistanceFilterBank(Builder builder) {
+        mMode = builder.mMode;
+        mWindow = builder.mMedianWindow;
+        mEwmaAlpha = builder.mEwmaAlpha;
+        mProcessNoise = builder.mProcessNoise;
+        int maxPeers = builder.mMaxPeers;
+        mSlots = new PeerSlots(maxPeers);
+        mRing = new int[mMode == Mode.MEDIAN ? maxPeers * mWindow : 0];
+        mRingHeads = new int[maxPeers];
+        mRingCounts = new int[maxPeers];
+        mScratch = new int[mWindow];
+        mEstimates = new double[maxPeers];
+        mVariances = new double[maxPeers];
+        mTimestamps = new long[maxPeers];
+        mSampleCounts = new long[maxPeers];
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /** Feeds every successful result of {@code batch} through the filter. */
+    public void process(RangingBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.isSuccess(i)) {
+                update(batch.getPeerId(i), batch.getDistanceMm(i), batch.getDistanceStdDevMm(i),
+                        batch.getRssi(i), batch.getTimestampMillis(i));
+            }
+        }
+    }
+
+    /**
+     * Adds one sample; {@link #getDistanceMm} returns the new smoothed distance. Returns
+     * false if there is no room for the peer.
+     */
+    public boolean update(int peerId, int distanceMm, int distanceStdDevMm, int rssi, long timestampMillis) {
+        int slot = mSlots.acquire(peerId);
+        if (slot < 0) {
+            return false;
+        }
+        double sigma = Math.max(MIN_SIGMA_MM, distanceStdDevMm);
+        if (rssi < WEAK_RSSI_DBM) {
+            sigma *= 1 + (WEAK_RSSI_DBM - rssi) / 10.0;
+        }
+        double r = sigma * sigma;
+
+        long count = mSampleCounts[slot]++;
+        if (count == 0) {
+            mEstimates[slot] = distanceMm;
+            mVariances[slot] = r;
+            mTimestamps[slot] = timestampMillis;
+            if (mMode == Mode.MEDIAN) {
+                mRingHeads[slot] = 0;
+                mRingCounts[slot] = 0;
+                pushMedian(slot, distanceMm);
+            }
+            return true;
+        }
+
+        switch (mMode) {
+            case MEDIAN:
+                updateMedian(slot, distanceMm, r);
+                break;
+            case EWMA:
+                updateEwma(slot, distanceMm);
+                break;
+            case KALMAN:
+            default:
+                updateKalman(slot, distanceMm, r, timestampMillis);
+                break;
+        }
+        mTimestamps[slot] = timestampMillis;
+        return true;
+    }
+
+    private void updateMedian(int slot, int distanceMm, double r) {
+        pushMedian(slot, distanceMm);
+        int n = mRingCounts[slot];
+        System.arraycopy(mRing, slot * mWindow, mScratch, 0, n);
+        // 窓は小さいので挿入ソートで十分
+        for (int i = 1; i < n; i++) {
+            int v = mScratch[i];
+            int j = i - 1;
+            while (j >= 0 && mScratch[j] > v) {
+                mScratch[j + 1] = mScratch[j];
+                j--;
+            }
+            mScratch[j + 1] = v;
+        }
+        double median = (n & 1) == 1 ? mScratch[n / 2] : (mScratch[n / 2 - 1] + mScratch[n / 2]) / 2.0;
+        // 中央値の標準誤差 ≒ 1.2533 * sigma / sqrt(n)
+        mEstimates[slot] = median;
+        mVariances[slot] = 1.5708 * r / n;
+    }
+
+    private void pushMedian(int slot, int distanceMm) {
+        int base = slot * mWindow;
+        mRing[base + mRingHeads[slot]] = distanceMm;
+        mRingHeads[slot] = (mRingHeads[slot] + 1) % mWindow;
+        if (mRingCounts[slot] < mWindow) {
+            mRingCounts[slot]++;
+        }
+    }
+
+    private void updateEwma(int slot, int distanceMm) {
+        double diff = distanceMm - mEstimates[slot];
+        mEstimates[slot] += mEwmaAlpha * diff;
+        // 指数加重分散 (West の漸化式)
+        mVariances[slot] = (1 - mEwmaAlpha) * (mVariances[slot] + mEwmaAlpha * diff * diff);
+    }
+
+    private void updateKalman(int slot, int distanceMm, double r, long timestampMillis) {
+        long dt = Math.max(0, timestampMillis - mTimestamps[slot]);
+        // 予測: 位置はランダムウォークとして dt に比例して不確かさが増える
+        double p = mVariances[slot] + mProcessNoise * dt;
+        double k = p / (p + r);
+        mEstimates[slot] += k * (distanceMm - mEstimates[slot]);
+        mVariances[slot] = (1 - k) * p;
+    }
+
+    /** Returns true if at least one sample has been seen for {@code peerId}. */
+    public boolean hasEstimate(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        return slot >= 0 && mSampleCounts[slot] > 0;
+    }
+
+    /** Smoothed distance in millimetres, possibly negative; 0 if the peer has no {@link #hasEstimate estimate}. */
+    public int getDistanceMm(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        return slot >= 0 && mSampleCounts[slot] > 0 ? (int) Math.round(mEstimates[slot]) : 0;
+    }
+
+    /** 1-sigma uncertainty of the smoothed distance in millimetres, or -1 if unknown. */
+    public int getUncertaintyMm(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        return slot >= 0 && mSampleCounts[slot] > 0 ? (int) Math.round(Math.sqrt(mVariances[slot])) : -1;
+    }
+
+    /** Timestamp of the last sample of {@code peerId}, or {@link Long#MIN_VALUE} if none. */
+    public long getTimestampMillis(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        return slot >= 0 && mSampleCounts[slot] > 0 ? mTimestamps[slot] : Long.MIN_VALUE;
+    }
+
+    public long getSampleCount(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        return slot >= 0 ? mSampleCounts[slot] : 0;
+    }
+
+    public void removePeer(int peerId) {
+        int slot = mSlots.release(peerId);
+        if (slot >= 0) {
+            mSampleCounts[slot] = 0;
+        }
+    }
+
+    public void clear() {
+        mSlots.clear();
+        for (int i = 0; i < mSampleCounts.length; i++) {
+            mSampleCounts[i] = 0;
+        }
+    }
+
+    public static final class Builder {
+        private final int mMaxPeers;
+        private Mode mMode = Mode.KALMAN;
+        private int mMedianWindow = 7;
+        private double mEwmaAlpha = 0.3;
+        private double mProcessNoise = 100.0;
+
+        public Builder(int maxPeers) {
+            if (maxPeers <= 0) {
+                throw new IllegalArgumentException("maxPeers must be positive: " + maxPeers);
+            }
+            mMaxPeers = maxPeers;
+        }
+
+        public Builder setMode(Mode mode) {
+            if (mode == null) {
+                throw new NullPointerException("mode");
+            }
+            mMode = mode;
+            return this;
+        }
+
+        /** Number of samples the median is taken over. */
+        public Builder setMedianWindow(int window) {
+            if (window <= 0) {
+                throw new IllegalArgumentException("window must be positive: " + window);
+            }
+            mMedianWindow = window;
+            return this;
+        }
+
+        /** Weight of the newest sample, in (0, 1]. */
+        public Builder setEwmaAlpha(double alpha) {
+            if (!(alpha > 0 && alpha <= 1)) {
+                throw new IllegalArgumentException("alpha must be in (0, 1]: " + alpha);
+            }
+            mEwmaAlpha = alpha;
+            return this;
+        }
+
+        /** Kalman process noise in mm² per millisecond; larger values track motion faster. */
+        public Builder setProcessNoise(double mm2PerMs) {
+            if (!(mm2PerMs >= 0)) {
+                throw new IllegalArgumentException("process noise must not be negative: " + mm2PerMs);
+            }
+            mProcessNoise = mm2PerMs;
+            return this;
+        }
+
+        public DistanceFilterBank build() {
+            return new DistanceFilterBank(this);
+        }
+    }
+}
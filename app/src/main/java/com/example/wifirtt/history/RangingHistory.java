@@ -0,0 +1,376 @@
+package com.example.wifirtt.history;
+
+import com.example.wifirtt.ranging.PeerSlots;
+import com.example.wifirtt.ranging.RangingBatch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Recent ranging results of every peer, stored column by column (timestamp, distance,
+ * stddev, RSSI, status) in fixed-capacity ring buffers, on the heap or in direct
+ * {@link ByteBuffer}s. Memory is allocated once at construction.
+ *
+ * <p>Besides the raw samples, each peer keeps running aggregates over a sliding window of
+ * the last {@code windowMillis}: a sum for the mean, monotonic queues for min and max, a
+ * sorted copy for percentiles, and success counts. Appending and expiring a sample updates
+ * them in place, so queries cost O(1) (or one array shift for percentiles on append) no
+ * matter how often they run, and never allocate. Samples that fall out of the ring before
+ * leaving the window also leave the window, so the window is bounded by the capacity.
+ *
+ * <p>Not thread-safe; queries expire old samples and so count as writes.
+ */
+public final class RangingHistory {
+
+    /**
+     * Returned by the distance aggregates when the window holds no successful sample. Any
+     * other value is a distance, negative ones included.
+     */
+    public static final int NO_DISTANCE = Integer.MIN_VALUE;
+
+    private final int mCapacity;
+    private final long mWindowMillis;
+    private final PeerSlots mSlots;
+
+    // 列ごとに全ピア分をまとめて持つ。ピア s の i 番目は s * capacity + i
+    private final LongBuffer mTimestamps;
+    private final IntBuffer mDistances;
+    private final IntBuffer mStdDevs;
+    private final ShortBuffer mRssis;
+    private final ByteBuffer mStatuses;
+
+    // 各ピアの通し番号。リングには [written - size, written) が、窓には [windowStart, written) が入っている
+    private final long[] mWritten;
+    private final int[] mSizes;
+    private final long[] mWindowStart;
+
+    private final int[] mWindowCounts;
+    private final int[] mWindowSuccesses;
+    private final long[] mWindowSums;
+    private final int[] mSorted; // 窓内の成功した距離を昇順に並べたもの
+    private final long[] mMinQueue; // 距離が単調増加になる通し番号の列
+    private final long[] mMaxQueue; // 距離が単調減少になる通し番号の列
+    private final int[] mMinHead;
+    private final int[] mMinCount;
+    private final int[] mMaxHead;
+    private final int[] mMaxCount;
+
+    private RangingHistory(Builder builder) {
+        mCapacity = builder.mCapacity;
+        mWindowMillis = builder.mWindowMillis;
+        int maxPeers = builder.mMaxPeers;
+        mSlots = new PeerSlots(maxPeers);
+        int cells = maxPeers * mCapacity;
+        mTimestamps = allocate(cells * 8, builder.mDirect).asLongBuffer();
+        mDistances = allocate(cells * 4, builder.mDirect).asIntBuffer();
+        mStdDevs = allocate(cells * 4, builder.mDirect).asIntBuffer();
+        mRssis = allocate(cells * 2, builder.mDirect).asShortBuffer();
+        mStatuses = allocate(cells, builder.mDirect);
+        mWritten = new long[maxPeers];
+        mSizes = new int[maxPeers];
+        mWindowStart = new long[maxPeers];
+        mWindowCounts = new int[maxPeers];
+        mWindowSuccesses = new int[maxPeers];
+        mWindowSums = new long[maxPeers];
+        mSorted = new int[cells];
+        mMinQueue = new long[cells];
+        mMaxQueue = new long[cells];
+        mMinHead = new int[maxPeers];
+        mMinCount = new int[maxPeers];
+        mMaxHead = new int[maxPeers];
+        mMaxCount = new int[maxPeers];
+    }
+
+    private static ByteBuffer allocate(int bytes, boolean direct) {
+        return (direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes)).order(ByteOrder.nativeOrder());
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    /** Appends every entry of the batch; peers beyond {@code maxPeers} are skipped. */
+    public void append(RangingBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            append(batch.getPeerId(i), batch.getTimestampMillis(i), batch.getStatus(i), batch.getDistanceMm(i),
+                    batch.getDistanceStdDevMm(i), batch.getRssi(i));
+        }
+    }
+
+    /**
+     * Appends one result. Timestamps of a peer are expected to be non-decreasing. Returns
+     * false if the peer is new and there is no room for it.
+     */
+    public boolean append(int peerId, long timestampMillis, int status, int distanceMm,
+                          int distanceStdDevMm, int rssi) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            slot = mSlots.acquire(peerId);
+            if (slot < 0) {
+                return false;
+            }
+            reset(slot);
+        }
+        long seq = mWritten[slot];
+        if (mSizes[slot] == mCapacity) {
+            if (mWindowStart[slot] == seq - mCapacity) {
+                leaveWindow(slot); // リングから押し出される古いサンプルは窓からも外す
+            }
+        } else {
+            mSizes[slot]++;
+        }
+        int cell = cell(slot, seq);
+        boolean success = status == RangingBatch.STATUS_SUCCESS;
+        mTimestamps.put(cell, timestampMillis);
+        mDistances.put(cell, success ? distanceMm : 0);
+        mStdDevs.put(cell, success ? distanceStdDevMm : 0);
+        mRssis.put(cell, (short) (success ? rssi : 0));
+        mStatuses.put(cell, (byte) status);
+        mWritten[slot] = seq + 1;
+        enterWindow(slot, seq);
+        expire(slot, timestampMillis);
+        return true;
+    }
+
+    public void removePeer(int peerId) {
+        mSlots.release(peerId);
+    }
+
+    public void clear() {
+        mSlots.clear();
+    }
+
+    /** Number of samples of the peer still in its ring buffer, or 0 if it is unknown. */
+    public int size(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        return slot < 0 ? 0 : mSizes[slot];
+    }
+
+    // i = 0 が最も古いサンプル
+    public long getTimestampMillis(int peerId, int i) {
+        return mTimestamps.get(sampleCell(peerId, i));
+    }
+
+    public int getStatus(int peerId, int i) {
+        return mStatuses.get(sampleCell(peerId, i));
+    }
+
+    /** 0 for failed samples. */
+    public int getDistanceMm(int peerId, int i) {
+        return mDistances.get(sampleCell(peerId, i));
+    }
+
+    public int getDistanceStdDevMm(int peerId, int i) {
+        return mStdDevs.get(sampleCell(peerId, i));
+    }
+
+    public int getRssi(int peerId, int i) {
+        return mRssis.get(sampleCell(peerId, i));
+    }
+
+    /** Samples, successful or not, within the window ending at {@code nowMillis}. */
+    public int getWindowCount(int peerId, long nowMillis) {
+        int slot = windowSlot(peerId, nowMillis);
+        return slot < 0 ? 0 : mWindowCounts[slot];
+    }
+
+    /** Successful samples within the window. */
+    public int getWindowSuccessCount(int peerId, long nowMillis) {
+        int slot = windowSlot(peerId, nowMillis);
+        return slot < 0 ? 0 : mWindowSuccesses[slot];
+    }
+
+    /** Share of successful samples within the window, or 0 if it is empty. */
+    public double getSuccessRatio(int peerId, long nowMillis) {
+        int slot = windowSlot(peerId, nowMillis);
+        return slot < 0 || mWindowCounts[slot] == 0 ? 0 : (double) mWindowSuccesses[slot] / mWindowCounts[slot];
+    }
+
+    /** Mean distance of the successful samples within the window, or NaN if there are none. */
+    public double getMeanMm(int peerId, long nowMillis) {
+        int slot = windowSlot(peerId, nowMillis);
+        return slot < 0 || mWindowSuccesses[slot] == 0 ? Double.NaN : (double) mWindowSums[slot] / mWindowSuccesses[slot];
+    }
+
+    /** Smallest successful distance within the window, or {@link #NO_DISTANCE} if there are none. */
+    public int getMinMm(int peerId, long nowMillis) {
+        int slot = windowSlot(peerId, nowMillis);
+        return slot < 0 || mMinCount[slot] == 0 ? NO_DISTANCE : mDistances.get(cell(slot, mMinQueue[queueCell(slot, mMinHead[slot])]));
+    }
+
+    /** Largest successful distance within the window, or {@link #NO_DISTANCE} if there are none. */
+    public int getMaxMm(int peerId, long nowMillis) {
+        int slot = windowSlot(peerId, nowMillis);
+        return slot < 0 || mMaxCount[slot] == 0 ? NO_DISTANCE : mDistances.get(cell(slot, mMaxQueue[queueCell(slot, mMaxHead[slot])]));
+    }
+
+    /**
+     * Nearest-rank percentile (0..100) of the successful distances within the window, or
+     * {@link #NO_DISTANCE} if there are none.
+     */
+    public int getPercentileMm(int peerId, long nowMillis, double percentile) {
+        int slot = windowSlot(peerId, nowMillis);
+        if (slot < 0 || mWindowSuccesses[slot] == 0) {
+            return NO_DISTANCE;
+        }
+        int n = mWindowSuccesses[slot];
+        int rank = (int) Math.ceil(percentile / 100 * n);
+        return mSorted[slot * mCapacity + Math.max(0, Math.min(n - 1, rank - 1))];
+    }
+
+    private void reset(int slot) {
+        mWritten[slot] = 0;
+        mSizes[slot] = 0;
+        mWindowStart[slot] = 0;
+        mWindowCounts[slot] = 0;
+        mWindowSuccesses[slot] = 0;
+        mWindowSums[slot] = 0;
+        mMinHead[slot] = 0;
+        mMinCount[slot] = 0;
+        mMaxHead[slot] = 0;
+        mMaxCount[slot] = 0;
+    }
+
+    private int windowSlot(int peerId, long nowMillis) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot >= 0) {
+            expire(slot, nowMillis);
+        }
+        return slot;
+    }
+
+    private void expire(int slot, long nowMillis) {
+        long oldest = nowMillis - mWindowMillis;
+        while (mWindowStart[slot] < mWritten[slot] && mTimestamps.get(cell(slot, mWindowStart[slot])) <= oldest) {
+            leaveWindow(slot);
+        }
+    }
+
+    private void enterWindow(int slot, long seq) {
+        mWindowCounts[slot]++;
+        int cell = cell(slot, seq);
+        if (mStatuses.get(cell) != RangingBatch.STATUS_SUCCESS) {
+            return;
+        }
+        int distanceMm = mDistances.get(cell);
+        mWindowSuccesses[slot]++;
+        mWindowSums[slot] += distanceMm;
+        insertSorted(slot, distanceMm);
+        // 新しい値より大きい (小さい) ものは今後最小 (最大) になり得ないので捨てる
+        while (mMinCount[slot] > 0 && distanceAt(slot, mMinQueue[queueCell(slot, mMinHead[slot] + mMinCount[slot] - 1)]) >= distanceMm) {
+            mMinCount[slot]--;
+        }
+        mMinQueue[queueCell(slot, mMinHead[slot] + mMinCount[slot]++)] = seq;
+        while (mMaxCount[slot] > 0 && distanceAt(slot, mMaxQueue[queueCell(slot, mMaxHead[slot] + mMaxCount[slot] - 1)]) <= distanceMm) {
+            mMaxCount[slot]--;
+        }
+        mMaxQueue[queueCell(slot, mMaxHead[slot] + mMaxCount[slot]++)] = seq;
+    }
+
+    private void leaveWindow(int slot) {
+        long seq = mWindowStart[slot]++;
+        mWindowCounts[slot]--;
+        int cell = cell(slot, seq);
+        if (mStatuses.get(cell) != RangingBatch.STATUS_SUCCESS) {
+            return;
+        }
+        int distanceMm = mDistances.get(cell);
+        mWindowSuccesses[slot]--;
+        mWindowSums[slot] -= distanceMm;
+        removeSorted(slot, distanceMm);
+        if (mMinCount[slot] > 0 && mMinQueue[queueCell(slot, mMinHead[slot])] == seq) {
+            mMinHead[slot] = (mMinHead[slot] + 1) % mCapacity;
+            mMinCount[slot]--;
+        }
+        if (mMaxCount[slot] > 0 && mMaxQueue[queueCell(slot, mMaxHead[slot])] == seq) {
+            mMaxHead[slot] = (mMaxHead[slot] + 1) % mCapacity;
+            mMaxCount[slot]--;
+        }
+    }
+
+    private void insertSorted(int slot, int value) {
+        int base = slot * mCapacity;
+        int n = mWindowSuccesses[slot] - 1; // 呼び出し時点ですでに数えてある
+        int index = Arrays.binarySearch(mSorted, base, base + n, value);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        System.arraycopy(mSorted, index, mSorted, index + 1, base + n - index);
+        mSorted[index] = value;
+    }
+
+    private void removeSorted(int slot, int value) {
+        int base = slot * mCapacity;
+        int n = mWindowSuccesses[slot] + 1; // 呼び出し時点ですでに減らしてある
+        int index = Arrays.binarySearch(mSorted, base, base + n, value);
+        if (index >= 0) {
+            System.arraycopy(mSorted, index + 1, mSorted, index, base + n - index - 1);
+        }
+    }
+
+    private int distanceAt(int slot, long seq) {
+        return mDistances.get(cell(slot, seq));
+    }
+
+    private int cell(int slot, long seq) {
+        return slot * mCapacity + (int) (seq % mCapacity);
+    }
+
+    private int queueCell(int slot, int index) {
+        return slot * mCapacity + index % mCapacity;
+    }
+
+    private int sampleCell(int peerId, int i) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0 || i < 0 || i >= mSizes[slot]) {
+            throw new IndexOutOfBoundsException("No sample " + i + " for peer " + peerId);
+        }
+        return cell(slot, mWritten[slot] - mSizes[slot] + i);
+    }
+
+    public static final class Builder {
+        private final int mMaxPeers;
+        private int mCapacity = 256;
+        private long mWindowMillis = 10000;
+        private boolean mDirect;
+
+        public Builder(int maxPeers) {
+            mMaxPeers = maxPeers;
+        }
+
+        /** Samples kept per peer; also the most a window can hold. */
+        public Builder setCapacity(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("capacity must be positive");
+            }
+            mCapacity = capacity;
+            return this;
+        }
+
+        public Builder setWindowMillis(long windowMillis) {
+            if (windowMillis <= 0) {
+                throw new IllegalArgumentException("windowMillis must be positive");
+            }
+            mWindowMillis = windowMillis;
+            return this;
+        }
+
+        /** Keeps the sample columns in direct buffers, outside the Java heap. */
+        public Builder setDirect(boolean direct) {
+            mDirect = direct;
+            return this;
+        }
+
+        public RangingHistory build() {
+            return new RangingHistory(this);
+        }
+    }
+}
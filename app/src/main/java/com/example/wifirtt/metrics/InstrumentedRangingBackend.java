@@ -0,0 +1,117 @@
+package com.example.wifirtt.metrics;
+
+import com.example.wifirtt.ranging.RangingBackend;
+import com.example.wifirtt.ranging.RangingBatch;
+import com.example.wifirtt.ranging.RangingClock;
+
+import java.util.Arrays;
+
+/**
+ * Decorates a {@link RangingBackend} so every request and its callback are counted in a
+ * {@link RangingMetrics}. Each request gets its own callback from a small pool so the
+ * latency is measured from the matching {@code startRanging} call even when several
+ * requests are in flight. Requests expired by the caller reach the metrics as
+ * {@link RangingBatch#CODE_TIMEOUT} failures through the same callback.
+ *
+ * <p>Not thread-safe, like the scheduler it sits under: {@code startRanging} and the
+ * callbacks must come from the same thread.
+ */
+public final class InstrumentedRangingBackend implements RangingBackend {
+
+    private static final int DEFAULT_POOL_SIZE = 32;
+
+    private final RangingBackend mDelegate;
+    private final RangingMetrics mMetrics;
+    private final RangingClock mClock;
+    private final PendingRequest[] mFree;
+    private int mFreeCount;
+    private PendingRequest[] mPending;
+    private int mPendingCount;
+
+    public InstrumentedRangingBackend(RangingBackend delegate, RangingMetrics metrics, RangingClock clock) {
+        this(delegate, metrics, clock, DEFAULT_POOL_SIZE);
+    }
+
+    public InstrumentedRangingBackend(RangingBackend delegate, RangingMetrics metrics,
+                                      RangingClock clock, int poolSize) {
+        mDelegate = delegate;
+        mMetrics = metrics;
+        mClock = clock;
+        mFree = new PendingRequest[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            mFree[i] = new PendingRequest();
+        }
+        mFreeCount = poolSize;
+        mPending = new PendingRequest[poolSize];
+    }
+
+    @Override
+    public int getMaxPeers() {
+        return mDelegate.getMaxPeers();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return mDelegate.isAvailable();
+    }
+
+    @Override
+    public void startRanging(int[] peerIds, int count, Callback callback) {
+        mMetrics.onRequestStarted(count);
+        // プールが尽きたら計測用のラッパーを作る。通常は起きない
+        PendingRequest request = mFreeCount > 0 ? mFree[--mFreeCount] : new PendingRequest();
+        request.mCallback = callback;
+        request.mStartMillis = mClock.elapsedRealtimeMillis();
+        if (mPendingCount == mPending.length) {
+            mPending = Arrays.copyOf(mPending, mPending.length * 2);
+        }
+        mPending[mPendingCount++] = request;
+        mDelegate.startRanging(peerIds, count, request);
+    }
+
+    @Override
+    public void expireRanging(Callback callback) {
+        for (int i = 0; i < mPendingCount; i++) {
+            if (mPending[i].mCallback == callback) {
+                // 委譲先が PendingRequest 経由で失敗を返すので、計測と回収はそちらで行われる
+                mDelegate.expireRanging(mPending[i]);
+                return;
+            }
+        }
+    }
+
+    private void recycle(PendingRequest request) {
+        request.mCallback = null;
+        for (int i = 0; i < mPendingCount; i++) {
+            if (mPending[i] == request) {
+                mPending[i] = mPending[--mPendingCount];
+                mPending[mPendingCount] = null;
+                break;
+            }
+        }
+        if (mFreeCount < mFree.length) {
+            mFree[mFreeCount++] = request;
+        }
+    }
+
+    private final class PendingRequest implements Callback {
+        Callback mCallback;
+        long mStartMillis;
+
+        @Override
+        public void onRangingResults(RangingBatch batch) {
+            Callback callback = mCallback;
+            mMetrics.onRangingResults(batch, mClock.elapsedRealtimeMillis() - mStartMillis);
+            recycle(this);
+            callback.onRangingResults(batch);
+        }
+
+        @Override
+        public void onRangingFailure(int code) {
+            Callback callback = mCallback;
+            mMetrics.onRangingFailure(code, mClock.elapsedRealtimeMillis() - mStartMillis);
+            recycle(this);
+            callback.onRangingFailure(code);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.wifirtt.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values with logarithmic buckets: exact below 8,
+ * then 8 buckets per power of two, so every bucket is within 12.5% of its values.
+ * {@link #record} is wait-free and safe from any thread; {@link #snapshot} copies the
+ * counts without stopping writers, so a snapshot taken during recording may be off by
+ * the few values recorded while it was being copied.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 2^31 以上はすべて最後のバケットに入れる
+    private static final int MAX_EXPONENT = 31;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long value) {
+        mCounts.incrementAndGet(bucketOf(value));
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return value <= 0 ? 0 : (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /** Immutable copy of the bucket counts. */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mTotal;
+
+        Snapshot(long[] counts, long total) {
+            mCounts = counts;
+            mTotal = total;
+        }
+
+        public long getCount() {
+            return mTotal;
+        }
+
+        /**
+         * Value at {@code percentile} (0..100), reported as the upper bound of its bucket,
+         * or 0 if the histogram is empty.
+         */
+        public long getPercentile(double percentile) {
+            if (mTotal == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * mTotal);
+            rank = Math.max(1, Math.min(mTotal, rank));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return i + 1 < mCounts.length ? lowerBoundOf(i + 1) - 1 : lowerBoundOf(i);
+                }
+            }
+            return lowerBoundOf(mCounts.length - 1);
+        }
+
+        /** Mean using each bucket's midpoint. */
+        public double getMean() {
+            if (mTotal == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                if (mCounts[i] != 0) {
+                    long low = lowerBoundOf(i);
+                    long high = i + 1 < mCounts.length ? lowerBoundOf(i + 1) - 1 : low;
+                    sum += mCounts[i] * (low + high) / 2.0;
+                }
+            }
+            return sum / mTotal;
+        }
+
+        public long getMax() {
+            for (int i = mCounts.length - 1; i >= 0; i--) {
+                if (mCounts[i] != 0) {
+                    return i + 1 < mCounts.length ? lowerBoundOf(i + 1) - 1 : lowerBoundOf(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
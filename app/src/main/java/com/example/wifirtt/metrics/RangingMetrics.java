@@ -0,0 +1,172 @@
+package com.example.wifirtt.metrics;
+
+import com.example.wifirtt.ranging.PeerSlots;
+import com.example.wifirtt.ranging.RangingBatch;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the ranging loop: request-to-callback latency overall
+ * and per peer, success ratio, result statuses and request failure codes.
+ *
+ * <p>The {@code on*} methods are called from the single thread that drives ranging and never
+ * allocate. {@link #snapshot} may be called from any thread at the same time; it reads the
+ * atomics without blocking the writer, so a snapshot is consistent per counter but not
+ * across counters.
+ */
+public final class RangingMetrics {
+
+    /** Statuses and failure codes at or above this value share the last counter. */
+    public static final int MAX_TRACKED_CODE = 7;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mRequestedPeerCount = new AtomicLong();
+    private final AtomicLong mResultCallbackCount = new AtomicLong();
+    private final AtomicLong mFailureCallbackCount = new AtomicLong();
+    private final AtomicLong mResultCount = new AtomicLong();
+    private final AtomicLong mSuccessCount = new AtomicLong();
+    private final AtomicLong mAttemptedMeasurementCount = new AtomicLong();
+    private final AtomicLong mSuccessfulMeasurementCount = new AtomicLong();
+    private final AtomicLongArray mStatusCounts = new AtomicLongArray(MAX_TRACKED_CODE + 1);
+    private final AtomicLongArray mFailureCodeCounts = new AtomicLongArray(MAX_TRACKED_CODE + 1);
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+
+    // ピアごとの値はスロット単位で持つ。mSlots は書き込みスレッドだけが触り、
+    // 読み手には mSlotPeerIds で公開する
+    private final PeerSlots mSlots;
+    private final AtomicIntegerArray mSlotPeerIds;
+    private final AtomicLongArray mPeerResultCounts;
+    private final AtomicLongArray mPeerSuccessCounts;
+    private final LatencyHistogram[] mPeerLatency;
+
+    public RangingMetrics(int maxPeers) {
+        mSlots = new PeerSlots(maxPeers);
+        mSlotPeerIds = new AtomicIntegerArray(maxPeers);
+        mPeerResultCounts = new AtomicLongArray(maxPeers);
+        mPeerSuccessCounts = new AtomicLongArray(maxPeers);
+        mPeerLatency = new LatencyHistogram[maxPeers];
+        for (int i = 0; i < maxPeers; i++) {
+            mSlotPeerIds.set(i, -1);
+            mPeerLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    public void onRequestStarted(int peerCount) {
+        mRequestCount.incrementAndGet();
+        mRequestedPeerCount.addAndGet(peerCount);
+    }
+
+    public void onRangingResults(RangingBatch batch, long latencyMillis) {
+        mResultCallbackCount.incrementAndGet();
+        mLatency.record(latencyMillis);
+        int successes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            boolean success = batch.isSuccess(i);
+            mStatusCounts.incrementAndGet(codeIndex(batch.getStatus(i)));
+            if (success) {
+                successes++;
+                mAttemptedMeasurementCount.addAndGet(batch.getNumAttemptedMeasurements(i));
+                mSuccessfulMeasurementCount.addAndGet(batch.getNumSuccessfulMeasurements(i));
+            }
+            int slot = slotFor(batch.getPeerId(i));
+            if (slot >= 0) {
+                mPeerResultCounts.incrementAndGet(slot);
+                if (success) {
+                    mPeerSuccessCounts.incrementAndGet(slot);
+                }
+                mPeerLatency[slot].record(latencyMillis);
+            }
+        }
+        mResultCount.addAndGet(batch.size());
+        mSuccessCount.addAndGet(successes);
+    }
+
+    public void onRangingFailure(int code, long latencyMillis) {
+        mFailureCallbackCount.incrementAndGet();
+        mFailureCodeCounts.incrementAndGet(codeIndex(code));
+        mLatency.record(latencyMillis);
+    }
+
+    /** Forgets the per-peer counters of a peer; the totals keep its history. */
+    public void removePeer(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            return;
+        }
+        mSlotPeerIds.set(slot, -1);
+        mPeerResultCounts.set(slot, 0);
+        mPeerSuccessCounts.set(slot, 0);
+        mPeerLatency[slot].reset();
+        mSlots.release(peerId);
+    }
+
+    public void clear() {
+        for (int slot = 0; slot < mSlots.capacity(); slot++) {
+            int peerId = mSlots.peerIdAt(slot);
+            if (peerId >= 0) {
+                removePeer(peerId);
+            }
+        }
+        mRequestCount.set(0);
+        mRequestedPeerCount.set(0);
+        mResultCallbackCount.set(0);
+        mFailureCallbackCount.set(0);
+        mResultCount.set(0);
+        mSuccessCount.set(0);
+        mAttemptedMeasurementCount.set(0);
+        mSuccessfulMeasurementCount.set(0);
+        for (int i = 0; i <= MAX_TRACKED_CODE; i++) {
+            mStatusCounts.set(i, 0);
+            mFailureCodeCounts.set(i, 0);
+        }
+        mLatency.reset();
+    }
+
+    public RangingMetricsSnapshot snapshot(long nowMillis) {
+        long[] statusCounts = new long[MAX_TRACKED_CODE + 1];
+        long[] failureCodeCounts = new long[MAX_TRACKED_CODE + 1];
+        for (int i = 0; i <= MAX_TRACKED_CODE; i++) {
+            statusCounts[i] = mStatusCounts.get(i);
+            failureCodeCounts[i] = mFailureCodeCounts.get(i);
+        }
+        int capacity = mSlotPeerIds.length();
+        int peerCount = 0;
+        int[] peerIds = new int[capacity];
+        long[] peerResults = new long[capacity];
+        long[] peerSuccesses = new long[capacity];
+        LatencyHistogram.Snapshot[] peerLatency = new LatencyHistogram.Snapshot[capacity];
+        for (int slot = 0; slot < capacity; slot++) {
+            int peerId = mSlotPeerIds.get(slot);
+            if (peerId < 0) {
+                continue;
+            }
+            peerIds[peerCount] = peerId;
+            peerResults[peerCount] = mPeerResultCounts.get(slot);
+            peerSuccesses[peerCount] = mPeerSuccessCounts.get(slot);
+            peerLatency[peerCount] = mPeerLatency[slot].snapshot();
+            peerCount++;
+        }
+        return new RangingMetricsSnapshot(nowMillis, mRequestCount.get(), mRequestedPeerCount.get(),
+                mResultCallbackCount.get(), mFailureCallbackCount.get(), mResultCount.get(),
+                mSuccessCount.get(), mAttemptedMeasurementCount.get(),
+                mSuccessfulMeasurementCount.get(), statusCounts, failureCodeCounts,
+                mLatency.snapshot(), peerCount, peerIds, peerResults, peerSuccesses, peerLatency);
+    }
+
+    private int slotFor(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            slot = mSlots.acquire(peerId);
+            if (slot >= 0) {
+                mSlotPeerIds.set(slot, peerId);
+            }
+        }
+        return slot;
+    }
+
+    private static int codeIndex(int code) {
+        return code < 0 || code > MAX_TRACKED_CODE ? MAX_TRACKED_CODE : code;
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.wifirtt.metrics;
+
+import java.util.Locale;
+
+/** Immutable copy of {@link RangingMetrics}, cheap enough to take a few times per second. */
+public final class RangingMetricsSnapshot {
+
+    private final long mTimestampMillis;
+    private final long mRequestCount;
+    private final long mRequestedPeerCount;
+    private final long mResultCallbackCount;
+    private final long mFailureCallbackCount;
+    private final long mResultCount;
+    private final long mSuccessCount;
+    private final long mAttemptedMeasurementCount;
+    private final long mSuccessfulMeasurementCount;
+    private final long[] mStatusCounts;
+    private final long[] mFailureCodeCounts;
+    private final LatencyHistogram.Snapshot mLatency;
+    private final int mPeerCount;
+    private final int[] mPeerIds;
+    private final long[] mPeerResultCounts;
+    private final long[] mPeerSuccessCounts;
+    private final LatencyHistogram.Snapshot[] mPeerLatency;
+
+    RangingMetricsSnapshot(long timestampMillis, long requestCount, long requestedPeerCount,
+                           long resultCallbackCount, long failureCallbackCount, long resultCount,
+                           long successCount, long attemptedMeasurementCount,
+                           long successfulMeasurementCount, long[] statusCounts,
+                           long[] failureCodeCounts, LatencyHistogram.Snapshot latency,
+                           int peerCount, int[] peerIds, long[] peerResultCounts,
+                           long[] peerSuccessCounts, LatencyHistogram.Snapshot[] peerLatency) {
+        mTimestampMillis = timestampMillis;
+        mRequestCount = requestCount;
+        mRequestedPeerCount = requestedPeerCount;
+        mResultCallbackCount = resultCallbackCount;
+        mFailureCallbackCount = failureCallbackCount;
+        mResultCount = resultCount;
+        mSuccessCount = successCount;
+        mAttemptedMeasurementCount = attemptedMeasurementCount;
+        mSuccessfulMeasurementCount = successfulMeasurementCount;
+        mStatusCounts = statusCounts;
+        mFailureCodeCounts = failureCodeCounts;
+        mLatency = latency;
+        mPeerCount = peerCount;
+        mPeerIds = peerIds;
+        mPeerResultCounts = peerResultCounts;
+        mPeerSuccessCounts = peerSuccessCounts;
+        mPeerLatency = peerLatency;
+    }
+
+    public long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    public long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public long getRequestedPeerCount() {
+        return mRequestedPeerCount;
+    }
+
+    public long getResultCallbackCount() {
+        return mResultCallbackCount;
+    }
+
+    public long getFailureCallbackCount() {
+        return mFailureCallbackCount;
+    }
+
+    public long getResultCount() {
+        return mResultCount;
+    }
+
+    public long getSuccessCount() {
+        return mSuccessCount;
+    }
+
+    /** Share of per-peer results that succeeded, or 0 before the first result. */
+    public double getSuccessRatio() {
+        return mResultCount == 0 ? 0 : (double) mSuccessCount / mResultCount;
+    }
+
+    /** Share of the individual FTM measurements inside successful results that succeeded. */
+    public double getMeasurementSuccessRatio() {
+        return mAttemptedMeasurementCount == 0
+                ? 0 : (double) mSuccessfulMeasurementCount / mAttemptedMeasurementCount;
+    }
+
+    /** Results with {@code status}; statuses above {@link RangingMetrics#MAX_TRACKED_CODE} are lumped together. */
+    public long getStatusCount(int status) {
+        return mStatusCounts[Math.min(status, RangingMetrics.MAX_TRACKED_CODE)];
+    }
+
+    /** Whole-request failures with {@code code}, lumped the same way as statuses. */
+    public long getFailureCodeCount(int code) {
+        return mFailureCodeCounts[Math.min(code, RangingMetrics.MAX_TRACKED_CODE)];
+    }
+
+    /** Request-to-callback latency in milliseconds over all requests. */
+    public LatencyHistogram.Snapshot getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * Successful samples per second between {@code previous} and this snapshot, or 0 if
+     * {@code previous} is null or not older.
+     */
+    public double getSamplesPerSecond(RangingMetricsSnapshot previous) {
+        if (previous == null || previous.mTimestampMillis >= mTimestampMillis) {
+            return 0;
+        }
+        return (mSuccessCount - previous.mSuccessCount) * 1000.0
+                / (mTimestampMillis - previous.mTimestampMillis);
+    }
+
+    public int getPeerCount() {
+        return mPeerCount;
+    }
+
+    public int getPeerId(int index) {
+        return mPeerIds[index];
+    }
+
+    public long getPeerResultCount(int index) {
+        return mPeerResultCounts[index];
+    }
+
+    public long getPeerSuccessCount(int index) {
+        return mPeerSuccessCounts[index];
+    }
+
+    public LatencyHistogram.Snapshot getPeerLatency(int index) {
+        return mPeerLatency[index];
+    }
+
+    /** A few lines for an on-screen overlay. */
+    public String formatSummary(RangingMetricsSnapshot previous) {
+        return String.format(Locale.US,
+                "req %d (fail %d)  ok %.1f%%  %.1f/s\nlatency p50 %dms p90 %dms p99 %dms max %dms",
+                mRequestCount, mFailureCallbackCount, getSuccessRatio() * 100,
+                getSamplesPerSecond(previous), mLatency.getPercentile(50),
+                mLatency.getPercentile(90), mLatency.getPercentile(99), mLatency.getMax());
+    }
+
+    /** Everything, one line per counter and per peer, for logs and bug reports. */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "requests=%d peers/request=%.2f results=%d failures=%d%n",
+                mRequestCount, mRequestCount == 0 ? 0 : (double) mRequestedPeerCount / mRequestCount,
+                mResultCallbackCount, mFailureCallbackCount));
+        sb.append(String.format(Locale.US, "samples=%d successes=%d ratio=%.3f measurements=%.3f%n",
+                mResultCount, mSuccessCount, getSuccessRatio(), getMeasurementSuccessRatio()));
+        appendCounts(sb, "status", mStatusCounts);
+        appendCounts(sb, "failureCode", mFailureCodeCounts);
+        appendLatency(sb, "latencyMs", mLatency);
+        sb.append(String.format(Locale.US, "%n"));
+        for (int i = 0; i < mPeerCount; i++) {
+            sb.append(String.format(Locale.US, "peer %d results=%d ok=%.3f ", mPeerIds[i],
+                    mPeerResultCounts[i], mPeerResultCounts[i] == 0
+                            ? 0 : (double) mPeerSuccessCounts[i] / mPeerResultCounts[i]));
+            appendLatency(sb, "latencyMs", mPeerLatency[i]);
+            sb.append(String.format(Locale.US, "%n"));
+        }
+        return sb.toString();
+    }
+
+    private static void appendCounts(StringBuilder sb, String name, long[] counts) {
+        sb.append(name).append(':');
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                sb.append(' ').append(i == counts.length - 1 ? i + "+" : String.valueOf(i))
+                        .append('=').append(counts[i]);
+            }
+        }
+        sb.append(String.format(Locale.US, "%n"));
+    }
+
+    private static void appendLatency(StringBuilder sb, String name, LatencyHistogram.Snapshot latency) {
+        sb.append(String.format(Locale.US, "%s n=%d mean=%.1f p50=%d p90=%d p99=%d max=%d", name,
+                latency.getCount(), latency.getMean(), latency.getPercentile(50),
+                latency.getPercentile(90), latency.getPercentile(99), latency.getMax()));
+    }
+}
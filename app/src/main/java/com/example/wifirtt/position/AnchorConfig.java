@@ -0,0 +1,101 @@
+package com.example.wifirtt.position;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fixed anchor coordinates loaded from a text file. Each non-empty line that does not
+ * start with {@code #} has the form {@code <name> <x> <y> [<z>]}, with coordinates in
+ * metres. The name is what the anchor's publisher advertises as its identity.
+ */
+public final class AnchorConfig {
+
+    public static final class Anchor {
+        private final String mName;
+        private final double mX;
+        private final double mY;
+        private final double mZ;
+
+        public Anchor(String name, double x, double y, double z) {
+            mName = name;
+            mX = x;
+            mY = y;
+            mZ = z;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public double getX() {
+            return mX;
+        }
+
+        public double getY() {
+            return mY;
+        }
+
+        public double getZ() {
+            return mZ;
+        }
+    }
+
+    private final List<Anchor> mAnchors;
+    private final int mDimensions;
+
+    public AnchorConfig(List<Anchor> anchors, int dimensions) {
+        mAnchors = Collections.unmodifiableList(new ArrayList<>(anchors));
+        mDimensions = dimensions;
+    }
+
+    public static AnchorConfig parse(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        List<Anchor> anchors = new ArrayList<>();
+        boolean hasZ = false;
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length != 3 && fields.length != 4) {
+                throw new IOException("Line " + lineNumber + ": expected <name> <x> <y> [<z>]: " + line);
+            }
+            try {
+                double x = Double.parseDouble(fields[1]);
+                double y = Double.parseDouble(fields[2]);
+                double z = fields.length == 4 ? Double.parseDouble(fields[3]) : 0;
+                hasZ |= fields.length == 4;
+                anchors.add(new Anchor(fields[0], x, y, z));
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + lineNumber + ": invalid coordinate: " + line, e);
+            }
+        }
+        return new AnchorConfig(anchors, hasZ ? 3 : 2);
+    }
+
+    /** 3 if any anchor has a z coordinate, otherwise 2. */
+    public int getDimensions() {
+        return mDimensions;
+    }
+
+    public List<Anchor> getAnchors() {
+        return mAnchors;
+    }
+
+    public Anchor find(String name) {
+        for (Anchor anchor : mAnchors) {
+            if (anchor.getName().equals(name)) {
+                return anchor;
+            }
+        }
+        return null;
+    }
+}
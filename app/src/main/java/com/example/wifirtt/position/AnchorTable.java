@@ -0,0 +1,73 @@
+package com.example.wifirtt.position;
+
+import com.example.wifirtt.ranging.PeerSlots;
+
+/**
+ * Coordinates of the discovered peers that are anchors, indexed by peer id. Iterate with
+ * {@code for (slot = 0; slot < capacity(); slot++) if (peerIdAt(slot) >= 0) ...}.
+ *
+ * <p>Not thread-safe.
+ */
+public final class AnchorTable {
+
+    private final PeerSlots mSlots;
+    private final double[] mX;
+    private final double[] mY;
+    private final double[] mZ;
+
+    public AnchorTable(int maxAnchors) {
+        mSlots = new PeerSlots(maxAnchors);
+        mX = new double[maxAnchors];
+        mY = new double[maxAnchors];
+        mZ = new double[maxAnchors];
+    }
+
+    /** Returns false if the table is full. */
+    public boolean setAnchor(int peerId, double x, double y, double z) {
+        int slot = mSlots.acquire(peerId);
+        if (slot < 0) {
+            return false;
+        }
+        mX[slot] = x;
+        mY[slot] = y;
+        mZ[slot] = z;
+        return true;
+    }
+
+    public void removeAnchor(int peerId) {
+        mSlots.release(peerId);
+    }
+
+    public boolean isAnchor(int peerId) {
+        return mSlots.slotOf(peerId) >= 0;
+    }
+
+    public void clear() {
+        mSlots.clear();
+    }
+
+    public int size() {
+        return mSlots.size();
+    }
+
+    public int capacity() {
+        return mSlots.capacity();
+    }
+
+    /** Peer id in {@code slot}, or -1 if the slot is empty. */
+    public int peerIdAt(int slot) {
+        return mSlots.peerIdAt(slot);
+    }
+
+    public double getX(int slot) {
+        return mX[slot];
+    }
+
+    public double getY(int slot) {
+        return mY[slot];
+    }
+
+    public double getZ(int slot) {
+        return mZ[slot];
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.wifirtt.position;
+
+/**
+ * Estimates a 2D or 3D position from distances to anchors with known coordinates, using
+ * iteratively weighted Gauss-Newton least squares. Each range is weighted by the inverse
+ * of its variance. All working storage is allocated up front; {@link #addRange} and
+ * {@link #solve} never allocate.
+ *
+ * <p>Usage per fix: {@link #reset()}, one {@link #addRange} per anchor, {@link #solve()}.
+ * Each solve starts from the previous fix, so a stream of fixes converges in a few
+ * iterations. Not thread-safe.
+ */
+public final class MultilaterationSolver {
+
+    private static final int MAX_ITERATIONS = 20;
+    private static final double CONVERGENCE_M = 1e-4;
+    // 分母が 0 にならないよう、アンカーに極端に近い推定点ではこの距離で打ち切る
+    private static final double MIN_RANGE_M = 1e-6;
+    private static final double MIN_SIGMA_M = 0.01;
+
+    private final int mDimensions;
+    private final double[] mAnchorX;
+    private final double[] mAnchorY;
+    private final double[] mAnchorZ;
+    private final double[] mRanges;
+    private final double[] mWeights;
+    private int mCount;
+
+    // 正規方程式 (J^T W J) dp = -J^T W r の作業領域
+    private final double[] mNormal = new double[9];
+    private final double[] mGradient = new double[3];
+    private final double[] mPosition = new double[3];
+    private final double[] mStep = new double[3];
+
+    private boolean mHasInitialGuess;
+    private double mResidualRms;
+    private double mErrorEstimate;
+    private int mIterations;
+
+    public MultilaterationSolver(int maxAnchors, int dimensions) {
+        if (dimensions != 2 && dimensions != 3) {
+            throw new IllegalArgumentException("dimensions must be 2 or 3: " + dimensions);
+        }
+        if (maxAnchors < dimensions + 1) {
+            throw new IllegalArgumentException("maxAnchors must be at least " + (dimensions + 1)
+                    + ": " + maxAnchors);
+        }
+        mDimensions = dimensions;
+        mAnchorX = new double[maxAnchors];
+        mAnchorY = new double[maxAnchors];
+        mAnchorZ = new double[maxAnchors];
+        mRanges = new double[maxAnchors];
+        mWeights = new double[maxAnchors];
+    }
+
+    public int getDimensions() {
+        return mDimensions;
+    }
+
+    /** Minimum number of ranges {@link #solve()} needs. */
+    public int getMinAnchors() {
+        return mDimensions + 1;
+    }
+
+    /** Drops the ranges of the previous fix but keeps its position as the next starting point. */
+    public void reset() {
+        mCount = 0;
+    }
+
+    /** Makes the next {@link #solve()} start from the anchors' weighted centroid. */
+    public void clearInitialGuess() {
+        mHasInitialGuess = false;
+    }
+
+    /**
+     * Adds the distance to one anchor. Coordinates and distances are in metres; {@code sigma}
+     * is the 1-sigma error of the distance. Returns false if the solver is full.
+     */
+    public boolean addRange(double x, double y, double z, double range, double sigma) {
+        if (mCount == mRanges.length) {
+            return false;
+        }
+        double s = Math.max(MIN_SIGMA_M, sigma);
+        mAnchorX[mCount] = x;
+        mAnchorY[mCount] = y;
+        mAnchorZ[mCount] = mDimensions == 3 ? z : 0;
+        mRanges[mCount] = Math.max(0, range);
+        mWeights[mCount] = 1 / (s * s);
+        mCount++;
+        return true;
+    }
+
+    /** Starts the next {@link #solve()} from this point instead of the anchors' centroid. */
+    public void setInitialGuess(double x, double y, double z) {
+        mPosition[0] = x;
+        mPosition[1] = y;
+        mPosition[2] = mDimensions == 3 ? z : 0;
+        mHasInitialGuess = true;
+    }
+
+    public int getRangeCount() {
+        return mCount;
+    }
+
+    /** Returns true if a position was found; read it with {@link #getX()} and friends. */
+    public boolean solve() {
+        int n = mCount;
+        int d = mDimensions;
+        if (n < d + 1) {
+            return false;
+        }
+        if (!mHasInitialGuess) {
+            // 重み付き重心から始める
+            double sw = 0;
+            double cx = 0;
+            double cy = 0;
+            double cz = 0;
+            for (int i = 0; i < n; i++) {
+                double w = mWeights[i];
+                sw += w;
+                cx += w * mAnchorX[i];
+                cy += w * mAnchorY[i];
+                cz += w * mAnchorZ[i];
+            }
+            mPosition[0] = cx / sw;
+            mPosition[1] = cy / sw;
+            mPosition[2] = cz / sw;
+        }
+
+        mIterations = 0;
+        boolean converged = false;
+        while (mIterations < MAX_ITERATIONS) {
+            mIterations++;
+            buildNormalEquations();
+            if (!solveNormalEquations()) {
+                mHasInitialGuess = false;
+                return false;
+            }
+            double stepNorm = 0;
+            for (int k = 0; k < d; k++) {
+                mPosition[k] += mStep[k];
+                stepNorm += mStep[k] * mStep[k];
+            }
+            if (stepNorm < CONVERGENCE_M * CONVERGENCE_M) {
+                converged = true;
+                break;
+            }
+        }
+        if (!converged || Double.isNaN(mPosition[0])) {
+            mHasInitialGuess = false;
+            return false;
+        }
+
+        // 収束点での残差と、(J^T W J)^-1 の対角和から誤差の目安を求める
+        buildNormalEquations();
+        double ss = 0;
+        for (int i = 0; i < n; i++) {
+            double r = range(i) - mRanges[i];
+            ss += r * r;
+        }
+        mResidualRms = Math.sqrt(ss / n);
+        mErrorEstimate = Math.sqrt(traceOfInverse());
+        mHasInitialGuess = true; // 次の解はここから探索する
+        return true;
+    }
+
+    private double range(int i) {
+        double dx = mPosition[0] - mAnchorX[i];
+        double dy = mPosition[1] - mAnchorY[i];
+        double dz = mPosition[2] - mAnchorZ[i];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    private void buildNormalEquations() {
+        int d = mDimensions;
+        for (int k = 0; k < 9; k++) {
+            mNormal[k] = 0;
+        }
+        mGradient[0] = 0;
+        mGradient[1] = 0;
+        mGradient[2] = 0;
+        for (int i = 0; i < mCount; i++) {
+            double dx = mPosition[0] - mAnchorX[i];
+            double dy = mPosition[1] - mAnchorY[i];
+            double dz = mPosition[2] - mAnchorZ[i];
+            double dist = Math.max(MIN_RANGE_M, Math.sqrt(dx * dx + dy * dy + dz * dz));
+            double jx = dx / dist;
+            double jy = dy / dist;
+            double jz = d == 3 ? dz / dist : 0;
+            double w = mWeights[i];
+            double r = dist - mRanges[i];
+            mNormal[0] += w * jx * jx;
+            mNormal[1] += w * jx * jy;
+            mNormal[2] += w * jx * jz;
+            mNormal[4] += w * jy * jy;
+            mNormal[5] += w * jy * jz;
+            mNormal[8] += w * jz * jz;
+            mGradient[0] -= w * jx * r;
+            mGradient[1] -= w * jy * r;
+            mGradient[2] -= w * jz * r;
+        }
+        mNormal[3] = mNormal[1];
+        mNormal[6] = mNormal[2];
+        mNormal[7] = mNormal[5];
+        if (d == 2) {
+            mNormal[8] = 1; // z は固定
+        }
+    }
+
+    /** Solves mNormal * mStep = mGradient with Cramer's rule; false if singular. */
+    private boolean solveNormalEquations() {
+        double[] a = mNormal;
+        double det = determinant();
+        double scale = Math.abs(a[0]) + Math.abs(a[4]) + Math.abs(a[8]);
+        if (Math.abs(det) <= 1e-12 * scale * scale * scale) {
+            return false; // アンカーが一直線上に並んでいるなど、位置が決まらない配置
+        }
+        double b0 = mGradient[0];
+        double b1 = mGradient[1];
+        double b2 = mGradient[2];
+        mStep[0] = (b0 * (a[4] * a[8] - a[5] * a[7])
+                - a[1] * (b1 * a[8] - a[5] * b2)
+                + a[2] * (b1 * a[7] - a[4] * b2)) / det;
+        mStep[1] = (a[0] * (b1 * a[8] - a[5] * b2)
+                - b0 * (a[3] * a[8] - a[5] * a[6])
+                + a[2] * (a[3] * b2 - b1 * a[6])) / det;
+        mStep[2] = (a[0] * (a[4] * b2 - b1 * a[7])
+                - a[1] * (a[3] * b2 - b1 * a[6])
+                + b0 * (a[3] * a[7] - a[4] * a[6])) / det;
+        return true;
+    }
+
+    private double determinant() {
+        double[] a = mNormal;
+        return a[0] * (a[4] * a[8] - a[5] * a[7])
+                - a[1] * (a[3] * a[8] - a[5] * a[6])
+                + a[2] * (a[3] * a[7] - a[4] * a[6]);
+    }
+
+    private double traceOfInverse() {
+        double[] a = mNormal;
+        double det = determinant();
+        double trace = (a[4] * a[8] - a[5] * a[7]) + (a[0] * a[8] - a[2] * a[6]);
+        if (mDimensions == 3) {
+            trace += a[0] * a[4] - a[1] * a[3];
+        }
+        return trace / det;
+    }
+
+    public double getX() {
+        return mPosition[0];
+    }
+
+    public double getY() {
+        return mPosition[1];
+    }
+
+    public double getZ() {
+        return mPosition[2];
+    }
+
+    /** Root-mean-square range residual of the last fix, in metres. */
+    public double getResidualRms() {
+        return mResidualRms;
+    }
+
+    /** 1-sigma position error implied by the range weights and geometry, in metres. */
+    public double getErrorEstimate() {
+        return mErrorEstimate;
+    }
+
+    public int getIterations() {
+        return mIterations;
+    }
+}
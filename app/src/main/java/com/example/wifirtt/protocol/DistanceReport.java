@@ -0,0 +1,163 @@
+package com.example.wifirtt.protocol;
+
+/**
+ * A batch of distances measured by the sender to the receiver, so a publisher learns how
+ * far away its subscribers are. Timestamps are in the sender's clock and only meaningful
+ * relative to each other. Instances are mutable and meant to be reused.
+ *
+ * <pre>
+ * byte version, byte type, short sequence, int baseTimestampMillis, byte count,
+ * count x (short offsetMillis, int distanceMm, short distanceStdDevMm, byte rssi),
+ * [int senderNodeId]
+ * </pre>
+ * The sequence number wraps at 16 bits and lets the receiver spot lost or reordered
+ * reports. An entry's time is {@code baseTimestampMillis + offsetMillis}. The sender's
+ * mesh node id (see {@link PeerInfo#getNodeId()}) follows the entries unless it is 0.
+ */
+public final class DistanceReport {
+
+    static final int SEQUENCE_OFFSET = 2;
+    static final int BASE_TIMESTAMP_OFFSET = 4;
+    static final int COUNT_OFFSET = 8;
+    public static final int HEADER_SIZE = 9;
+    public static final int ENTRY_SIZE = 9;
+    static final int NODE_ID_SIZE = 4;
+    static final int MAX_ENTRIES = 255;
+
+    private final long[] mTimestampsMillis;
+    private final int[] mDistancesMm;
+    private final int[] mDistanceStdDevsMm;
+    private final int[] mRssis;
+    private int mSequence;
+    private int mCount;
+    private int mSenderNodeId;
+
+    public DistanceReport(int capacity) {
+        capacity = Math.min(capacity, MAX_ENTRIES);
+        mTimestampsMillis = new long[capacity];
+        mDistancesMm = new int[capacity];
+        mDistanceStdDevsMm = new int[capacity];
+        mRssis = new int[capacity];
+    }
+
+    /** Number of entries that fit in a message of {@code maxLength} bytes, with the node id. */
+    public static int capacityFor(int maxLength) {
+        return Math.max(0, Math.min(MAX_ENTRIES, (maxLength - HEADER_SIZE - NODE_ID_SIZE) / ENTRY_SIZE));
+    }
+
+    public void clear(int sequence) {
+        mSequence = sequence & 0xffff;
+        mCount = 0;
+    }
+
+    /**
+     * Appends one distance. Returns false if the report is full or the entry is too far
+     * in time from the first one to be encoded; the caller should send the report first.
+     */
+    public boolean add(long timestampMillis, int distanceMm, int distanceStdDevMm, int rssi) {
+        if (mCount == mTimestampsMillis.length
+                || mCount > 0 && (timestampMillis < mTimestampsMillis[0] || timestampMillis - mTimestampsMillis[0] > 0xffff)) {
+            return false;
+        }
+        mTimestampsMillis[mCount] = timestampMillis;
+        mDistancesMm[mCount] = distanceMm;
+        mDistanceStdDevsMm[mCount] = distanceStdDevMm;
+        mRssis[mCount] = rssi;
+        mCount++;
+        return true;
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /** 0 for none; kept across {@link #clear(int)}. */
+    public void setSenderNodeId(int senderNodeId) {
+        mSenderNodeId = senderNodeId;
+    }
+
+    /** The sender's mesh node id, or 0 if the report did not carry one. */
+    public int getSenderNodeId() {
+        return mSenderNodeId;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int capacity() {
+        return mTimestampsMillis.length;
+    }
+
+    public long getTimestampMillis(int i) {
+        return mTimestampsMillis[i];
+    }
+
+    public int getDistanceMm(int i) {
+        return mDistancesMm[i];
+    }
+
+    public int getDistanceStdDevMm(int i) {
+        return mDistanceStdDevsMm[i];
+    }
+
+    public int getRssi(int i) {
+        return mRssis[i];
+    }
+
+    /** Returns the encoded length; writes only as many entries as fit in {@code maxLength}. */
+    public int encode(byte[] out, int maxLength) {
+        int count = Math.min(mCount, capacityFor(Math.min(maxLength, out.length)));
+        WireProtocol.writePrefix(out, WireProtocol.TYPE_DISTANCE_REPORT);
+        WireProtocol.putShort(out, SEQUENCE_OFFSET, mSequence);
+        WireProtocol.putInt(out, BASE_TIMESTAMP_OFFSET, count > 0 ? (int) mTimestampsMillis[0] : 0);
+        out[COUNT_OFFSET] = (byte) count;
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            WireProtocol.putShort(out, offset, (int) (mTimestampsMillis[i] - mTimestampsMillis[0]));
+            WireProtocol.putInt(out, offset + 2, mDistancesMm[i]);
+            WireProtocol.putShort(out, offset + 6, WireProtocol.saturate(mDistanceStdDevsMm[i], 0, 0xffff));
+            out[offset + 8] = (byte) WireProtocol.saturate(mRssis[i], Byte.MIN_VALUE, Byte.MAX_VALUE);
+            offset += ENTRY_SIZE;
+        }
+        if (mSenderNodeId != 0 && offset + NODE_ID_SIZE <= Math.min(maxLength, out.length)) {
+            WireProtocol.putInt(out, offset, mSenderNodeId);
+            offset += NODE_ID_SIZE;
+        }
+        return offset;
+    }
+
+    /**
+     * Replaces the contents with the report in the first {@code length} bytes of
+     * {@code data}, keeping at most {@link #capacity()} entries. Returns false, leaving
+     * this empty, if they are not a valid report.
+     */
+    public boolean decode(byte[] data, int length) {
+        mCount = 0;
+        mSenderNodeId = 0;
+        if (WireProtocol.typeOf(data, length) != WireProtocol.TYPE_DISTANCE_REPORT || length < HEADER_SIZE) {
+            return false;
+        }
+        int count = data[COUNT_OFFSET] & 0xff;
+        if (length < HEADER_SIZE + count * ENTRY_SIZE) {
+            return false;
+        }
+        mSequence = WireProtocol.getUnsignedShort(data, SEQUENCE_OFFSET);
+        // 送信側の時刻の下位 32 ビットなので、符号なしとして扱う
+        long base = WireProtocol.getInt(data, BASE_TIMESTAMP_OFFSET) & 0xffffffffL;
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < count && i < mTimestampsMillis.length; i++) {
+            mTimestampsMillis[i] = base + WireProtocol.getUnsignedShort(data, offset);
+            mDistancesMm[i] = WireProtocol.getInt(data, offset + 2);
+            mDistanceStdDevsMm[i] = WireProtocol.getUnsignedShort(data, offset + 6);
+            mRssis[i] = data[offset + 8];
+            offset += ENTRY_SIZE;
+            mCount++;
+        }
+        int nodeIdOffset = HEADER_SIZE + count * ENTRY_SIZE;
+        if (length >= nodeIdOffset + NODE_ID_SIZE) {
+            mSenderNodeId = WireProtocol.getInt(data, nodeIdOffset);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.wifirtt.protocol;
+
+import com.example.wifirtt.ranging.PeerSlots;
+
+/**
+ * Collects the distances measured to each peer that asked for them and hands them to a
+ * {@link Sender} as {@link DistanceReport} messages, one per peer, when a report is full
+ * or its oldest entry has waited {@code maxDelayMillis}. Every peer has its own sequence
+ * numbers. Reports and the message buffer are preallocated; not thread-safe.
+ */
+public final class DistanceReportQueue {
+
+    private final PeerSlots mSlots;
+    private final DistanceReport[] mReports;
+    private final int[] mNextSequence;
+    private final byte[] mMessage;
+    private final int mMaxMessageLength;
+    private final long mMaxDelayMillis;
+    private final Sender mSender;
+    private int mSenderNodeId;
+
+    public DistanceReportQueue(int maxPeers, int maxMessageLength, long maxDelayMillis, Sender sender) {
+        int capacity = DistanceReport.capacityFor(maxMessageLength);
+        if (capacity == 0) {
+            throw new IllegalArgumentException("Message length " + maxMessageLength + " cannot hold a report");
+        }
+        mSlots = new PeerSlots(maxPeers);
+        mReports = new DistanceReport[maxPeers];
+        for (int i = 0; i < maxPeers; i++) {
+            mReports[i] = new DistanceReport(capacity);
+        }
+        mNextSequence = new int[maxPeers];
+        mMessage = new byte[maxMessageLength];
+        mMaxMessageLength = maxMessageLength;
+        mMaxDelayMillis = maxDelayMillis;
+        mSender = sender;
+    }
+
+    /** Mesh node id to put in every report, or 0 for none. */
+    public void setSenderNodeId(int senderNodeId) {
+        mSenderNodeId = senderNodeId;
+    }
+
+    /** Starts collecting distances for {@code peerId}; returns false if there is no room. */
+    public boolean addPeer(int peerId) {
+        if (mSlots.slotOf(peerId) >= 0) {
+            return true;
+        }
+        int slot = mSlots.acquire(peerId);
+        if (slot < 0) {
+            return false;
+        }
+        mNextSequence[slot] = 0;
+        mReports[slot].clear(0);
+        return true;
+    }
+
+    public boolean contains(int peerId) {
+        return mSlots.slotOf(peerId) >= 0;
+    }
+
+    /** Drops the peer and anything not sent to it yet. */
+    public void removePeer(int peerId) {
+        mSlots.release(peerId);
+    }
+
+    public void clear() {
+        mSlots.clear();
+    }
+
+    /** Queues one distance for {@code peerId}; ignored unless the peer was added. */
+    public void add(int peerId, long timestampMillis, int distanceMm, int distanceStdDevMm, int rssi) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            return;
+        }
+        DistanceReport report = mReports[slot];
+        if (!report.add(timestampMillis, distanceMm, distanceStdDevMm, rssi)) {
+            send(slot);
+            report.add(timestampMillis, distanceMm, distanceStdDevMm, rssi);
+        }
+        if (report.size() == report.capacity()) {
+            send(slot);
+        }
+    }
+
+    /** Sends every report whose oldest entry is at least {@code maxDelayMillis} old. */
+    public void flush(long nowMillis) {
+        for (int slot = 0; slot < mSlots.capacity(); slot++) {
+            int peerId = mSlots.peerIdAt(slot);
+            DistanceReport report = mReports[slot];
+            if (peerId >= 0 && report.size() > 0 && nowMillis - report.getTimestampMillis(0) >= mMaxDelayMillis) {
+                send(slot);
+            }
+        }
+    }
+
+    private void send(int slot) {
+        DistanceReport report = mReports[slot];
+        if (report.size() > 0) {
+            report.setSenderNodeId(mSenderNodeId);
+            int length = report.encode(mMessage, mMaxMessageLength);
+            mSender.send(mSlots.peerIdAt(slot), report.getSequence(), mMessage, length);
+            mNextSequence[slot] = (report.getSequence() + 1) & 0xffff;
+        }
+        report.clear(mNextSequence[slot]);
+    }
+
+    public interface Sender {
+        /** {@code message} is reused after this returns; copy what must be kept. */
+        void send(int peerId, int sequence, byte[] message, int length);
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.wifirtt.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * What a publisher advertises about itself in its service-specific info: capabilities, a
+ * calibration offset to subtract from distances measured against it, and optionally its
+ * anchor position, name and mesh node id. Instances are mutable and meant to be reused.
+ *
+ * <pre>
+ * byte version, byte type, byte flags, byte capabilities, short calibrationOffsetMm,
+ * [int xMm, int yMm, [int zMm]]   if FLAG_POSITION (z if FLAG_Z)
+ * [byte nameLength, name UTF-8]   if FLAG_NAME
+ * [int nodeId]                    if FLAG_NODE_ID
+ * </pre>
+ */
+public final class PeerInfo {
+
+    /** The peer answers FTM ranging requests. */
+    public static final int CAP_RTT_RESPONDER = 1;
+    /** The peer wants {@link DistanceReport}s with the distances measured to it. */
+    public static final int CAP_DISTANCE_REPORTS = 1 << 1;
+    /** The peer ranges in mesh mode and shares the results of the pairs it owns. */
+    public static final int CAP_MESH = 1 << 2;
+
+    static final int FLAG_POSITION = 1;
+    static final int FLAG_Z = 1 << 1;
+    static final int FLAG_NAME = 1 << 2;
+    static final int FLAG_NODE_ID = 1 << 3;
+
+    static final int FLAGS_OFFSET = 2;
+    static final int CAPABILITIES_OFFSET = 3;
+    static final int CALIBRATION_OFFSET = 4;
+    static final int FIXED_SIZE = 6;
+    static final int MAX_NAME_LENGTH = 255;
+
+    private int mCapabilities;
+    private int mCalibrationOffsetMm;
+    private boolean mHasPosition;
+    private boolean mHasZ;
+    private int mXMm;
+    private int mYMm;
+    private int mZMm;
+    private final byte[] mName = new byte[MAX_NAME_LENGTH];
+    private int mNameLength = -1;
+    private int mNodeId;
+
+    public void clear() {
+        mCapabilities = 0;
+        mCalibrationOffsetMm = 0;
+        mHasPosition = false;
+        mHasZ = false;
+        mNameLength = -1;
+        mNodeId = 0;
+    }
+
+    public PeerInfo setCapabilities(int capabilities) {
+        mCapabilities = capabilities & 0xff;
+        return this;
+    }
+
+    /** Saturated to the range of a signed 16-bit value. */
+    public PeerInfo setCalibrationOffsetMm(int calibrationOffsetMm) {
+        mCalibrationOffsetMm = WireProtocol.saturate(calibrationOffsetMm, Short.MIN_VALUE, Short.MAX_VALUE);
+        return this;
+    }
+
+    public PeerInfo setPosition(double xM, double yM) {
+        mHasPosition = true;
+        mHasZ = false;
+        mXMm = (int) Math.round(xM * 1000);
+        mYMm = (int) Math.round(yM * 1000);
+        return this;
+    }
+
+    public PeerInfo setPosition(double xM, double yM, double zM) {
+        setPosition(xM, yM);
+        mHasZ = true;
+        mZMm = (int) Math.round(zM * 1000);
+        return this;
+    }
+
+    /** The name is cut to fit the message if needed, never in the middle of a character. */
+    public PeerInfo setName(String name) {
+        if (name == null) {
+            mNameLength = -1;
+            return this;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        mNameLength = utf8Prefix(bytes, bytes.length, MAX_NAME_LENGTH);
+        System.arraycopy(bytes, 0, mName, 0, mNameLength);
+        return this;
+    }
+
+    /** 0 for none. */
+    public PeerInfo setNodeId(int nodeId) {
+        mNodeId = nodeId;
+        return this;
+    }
+
+    public int getCapabilities() {
+        return mCapabilities;
+    }
+
+    public boolean hasCapability(int capability) {
+        return (mCapabilities & capability) == capability;
+    }
+
+    public int getCalibrationOffsetMm() {
+        return mCalibrationOffsetMm;
+    }
+
+    public boolean hasPosition() {
+        return mHasPosition;
+    }
+
+    public boolean hasZ() {
+        return mHasZ;
+    }
+
+    public double getXM() {
+        return mXMm / 1000.0;
+    }
+
+    public double getYM() {
+        return mYMm / 1000.0;
+    }
+
+    /** 0 unless {@link #hasZ()}. */
+    public double getZM() {
+        return mHasZ ? mZMm / 1000.0 : 0;
+    }
+
+    public boolean hasName() {
+        return mNameLength >= 0;
+    }
+
+    /** Allocates; call only when the name is actually needed. */
+    public String getName() {
+        return mNameLength >= 0 ? new String(mName, 0, mNameLength, StandardCharsets.UTF_8) : null;
+    }
+
+    /** The random id the peer identifies itself with in mesh mode, or 0 if it sent none. */
+    public int getNodeId() {
+        return mNodeId;
+    }
+
+    /**
+     * Encodes into {@code out} and returns the length used, dropping as much of the name as
+     * needed to stay within {@code maxLength}.
+     *
+     * @throws IllegalArgumentException if even the fields without the name do not fit
+     */
+    public int encode(byte[] out, int maxLength) {
+        maxLength = Math.min(maxLength, out.length);
+        int positionSize = mHasPosition ? (mHasZ ? 12 : 8) : 0;
+        int nodeIdSize = mNodeId != 0 ? 4 : 0;
+        int length = FIXED_SIZE + positionSize + nodeIdSize;
+        if (length > maxLength) {
+            throw new IllegalArgumentException("Peer info needs " + length + " bytes, limit is " + maxLength);
+        }
+        int nameLength = mNameLength >= 0 && maxLength - length >= 1
+                ? utf8Prefix(mName, mNameLength, maxLength - length - 1) : -1;
+        int flags = (mHasPosition ? FLAG_POSITION : 0) | (mHasPosition && mHasZ ? FLAG_Z : 0)
+                | (nameLength >= 0 ? FLAG_NAME : 0) | (mNodeId != 0 ? FLAG_NODE_ID : 0);
+        WireProtocol.writePrefix(out, WireProtocol.TYPE_PEER_INFO);
+        out[FLAGS_OFFSET] = (byte) flags;
+        out[CAPABILITIES_OFFSET] = (byte) mCapabilities;
+        WireProtocol.putShort(out, CALIBRATION_OFFSET, mCalibrationOffsetMm);
+        int offset = FIXED_SIZE;
+        if (mHasPosition) {
+            WireProtocol.putInt(out, offset, mXMm);
+            WireProtocol.putInt(out, offset + 4, mYMm);
+            offset += 8;
+            if (mHasZ) {
+                WireProtocol.putInt(out, offset, mZMm);
+                offset += 4;
+            }
+        }
+        if (nameLength >= 0) {
+            out[offset++] = (byte) nameLength;
+            System.arraycopy(mName, 0, out, offset, nameLength);
+            offset += nameLength;
+        }
+        if (mNodeId != 0) {
+            WireProtocol.putInt(out, offset, mNodeId);
+            offset += 4;
+        }
+        return offset;
+    }
+
+    /** Convenience for {@code PublishConfig}, which needs an array of the exact length. */
+    public byte[] encode(int maxLength) {
+        byte[] out = new byte[maxLength];
+        return Arrays.copyOf(out, encode(out, maxLength));
+    }
+
+    /**
+     * Replaces the contents with the peer info in the first {@code length} bytes of
+     * {@code data}. Returns false, leaving this cleared, if they are not a valid peer info.
+     */
+    public boolean decode(byte[] data, int length) {
+        clear();
+        if (WireProtocol.typeOf(data, length) != WireProtocol.TYPE_PEER_INFO || length < FIXED_SIZE) {
+            return false;
+        }
+        int flags = data[FLAGS_OFFSET] & 0xff;
+        mCapabilities = data[CAPABILITIES_OFFSET] & 0xff;
+        mCalibrationOffsetMm = WireProtocol.getShort(data, CALIBRATION_OFFSET);
+        int offset = FIXED_SIZE;
+        if ((flags & FLAG_POSITION) != 0) {
+            boolean hasZ = (flags & FLAG_Z) != 0;
+            if (length < offset + (hasZ ? 12 : 8)) {
+                clear();
+                return false;
+            }
+            mHasPosition = true;
+            mXMm = WireProtocol.getInt(data, offset);
+            mYMm = WireProtocol.getInt(data, offset + 4);
+            offset += 8;
+            if (hasZ) {
+                mHasZ = true;
+                mZMm = WireProtocol.getInt(data, offset);
+                offset += 4;
+            }
+        }
+        if ((flags & FLAG_NAME) != 0) {
+            int nameLength = offset < length ? data[offset] & 0xff : -1;
+            if (nameLength < 0 || length < offset + 1 + nameLength) {
+                clear();
+                return false;
+            }
+            System.arraycopy(data, offset + 1, mName, 0, nameLength);
+            mNameLength = nameLength;
+            offset += 1 + nameLength;
+        }
+        if ((flags & FLAG_NODE_ID) != 0) {
+            if (length < offset + 4) {
+                clear();
+                return false;
+            }
+            mNodeId = WireProtocol.getInt(data, offset);
+        }
+        return true;
+    }
+
+    // UTF-8 の継続バイト (10xxxxxx) の途中で切らないようにする
+    private static int utf8Prefix(byte[] bytes, int length, int maxLength) {
+        if (length <= maxLength) {
+            return length;
+        }
+        int end = maxLength;
+        while (end > 0 && (bytes[end] & 0xc0) == 0x80) {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.wifirtt.protocol;
+
+/**
+ * Constants and byte helpers shared by the messages exchanged over Wi-Fi Aware discovery:
+ * {@link PeerInfo} in the publisher's service-specific info and {@link DistanceReport}s
+ * sent back with {@code DiscoverySession.sendMessage}. All values are little-endian, like
+ * the capture format.
+ *
+ * <p>Every message starts with {@code byte version, byte type}. A decoder rejects other
+ * versions; within a version, fields are only ever appended and unknown flag bits are
+ * ignored, so older decoders keep reading newer messages.
+ */
+public final class WireProtocol {
+
+    public static final int VERSION = 1;
+
+    public static final int TYPE_PEER_INFO = 1;
+    public static final int TYPE_DISTANCE_REPORT = 2;
+
+    /** Service-specific info and messages may be this long on every device. */
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 255;
+
+    public static final int VERSION_OFFSET = 0;
+    public static final int TYPE_OFFSET = 1;
+    public static final int PREFIX_SIZE = 2;
+
+    private WireProtocol() {
+    }
+
+    /**
+     * Returns the message type of the first {@code length} bytes of {@code data}, or -1 if
+     * they are not a message of a supported version.
+     */
+    public static int typeOf(byte[] data, int length) {
+        if (data == null || length < PREFIX_SIZE || data[VERSION_OFFSET] != VERSION) {
+            return -1;
+        }
+        return data[TYPE_OFFSET] & 0xff;
+    }
+
+    static void writePrefix(byte[] out, int type) {
+        out[VERSION_OFFSET] = VERSION;
+        out[TYPE_OFFSET] = (byte) type;
+    }
+
+    static void putShort(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+    }
+
+    static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) (value >>> 16);
+        out[offset + 3] = (byte) (value >>> 24);
+    }
+
+    static int getUnsignedShort(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+    }
+
+    static int getShort(byte[] data, int offset) {
+        return (short) getUnsignedShort(data, offset);
+    }
+
+    static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+
+    static int saturate(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
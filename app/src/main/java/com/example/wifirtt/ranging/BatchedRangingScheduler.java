@@ -0,0 +1,387 @@
+package com.example.wifirtt.ranging;
+
+import java.util.Arrays;
+
+/**
+ * Packs the peers that are due according to a {@link RangingRateController} into ranging
+ * requests of up to {@link RangingBackend#getMaxPeers()} entries. When more peers are due
+ * than one request can hold, successive requests rotate through them in round-robin order
+ * so every peer gets the same share of slots.
+ *
+ * <p>At most {@link Builder#setMaxInFlight maxInFlight} requests are outstanding at a time.
+ * A request whose callback has not arrived within the timeout is expired through
+ * {@link RangingBackend#expireRanging}, which fails it with {@link RangingBatch#CODE_TIMEOUT}
+ * and drops its late callback, if any. In
+ * back-to-back mode the next request goes out from the callback of the previous one
+ * instead of waiting for the next {@link #rangeNext()} tick.
+ *
+ * <p>With a {@link RangingFailurePolicy}, failed peers are retried when the policy says so
+ * instead of after the rate controller's own backoff, and no request goes out while the
+ * policy has paused ranging because RTT is unavailable. A failed request with several
+ * peers is only charged to those the policy already sees failing.
+ *
+ * <p>Not thread-safe: all calls, including the backend callbacks, must come from the
+ * thread that drives the ranging loop.
+ */
+public final class BatchedRangingScheduler {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+    public static final long DEFAULT_REQUEST_TIMEOUT_MS = 3000;
+
+    private final RangingBackend mBackend;
+    private final RangingRateController mRateController;
+    private final RangingClock mClock;
+    private final RangingBackend.Callback mCallback;
+    private final RangingFailurePolicy mFailurePolicy;
+    private final int mMaxPeersPerRequest;
+    private final long mRequestTimeoutMillis;
+    private final boolean mBackToBack;
+    private final InFlightRequest[] mRequests;
+    private int mInFlightCount;
+    private boolean mSending;
+
+    private int[] mPeers = new int[16];
+    private int mPeerCount;
+    private int mCursor;
+
+    public BatchedRangingScheduler(RangingBackend backend, RangingRateController rateController,
+                                   RangingClock clock, RangingBackend.Callback callback) {
+        this(new Builder(backend, rateController, clock, callback));
+    }
+
+    private BatchedRangingScheduler(Builder builder) {
+        mBackend = builder.mBackend;
+        mRateController = builder.mRateController;
+        mClock = builder.mClock;
+        mCallback = builder.mCallback;
+        mFailurePolicy = builder.mFailurePolicy;
+        mMaxPeersPerRequest = Math.max(1, mBackend.getMaxPeers());
+        mRequestTimeoutMillis = builder.mRequestTimeoutMillis;
+        mBackToBack = builder.mBackToBack;
+        mRequests = new InFlightRequest[builder.mMaxInFlight];
+        for (int i = 0; i < mRequests.length; i++) {
+            mRequests[i] = new InFlightRequest(mMaxPeersPerRequest);
+        }
+    }
+
+    /** Returns false if the peer was already scheduled or there is no room for it. */
+    public boolean addPeer(int peerId) {
+        if (indexOf(peerId) >= 0 || !mRateController.addPeer(peerId, mClock.elapsedRealtimeMillis())) {
+            return false;
+        }
+        if (mPeerCount == mPeers.length) {
+            mPeers = Arrays.copyOf(mPeers, mPeers.length * 2);
+        }
+        mPeers[mPeerCount++] = peerId;
+        return true;
+    }
+
+    public boolean removePeer(int peerId) {
+        int index = indexOf(peerId);
+        if (index < 0) {
+            return false;
+        }
+        mRateController.removePeer(peerId);
+        if (mFailurePolicy != null) {
+            mFailurePolicy.removePeer(peerId);
+        }
+        // 順番を保ったまま詰めて、ラウンドロビンの位置がずれないようにする
+        System.arraycopy(mPeers, index + 1, mPeers, index, mPeerCount - index - 1);
+        mPeerCount--;
+        if (index < mCursor) {
+            mCursor--;
+        }
+        if (mCursor >= mPeerCount) {
+            mCursor = 0;
+        }
+        return true;
+    }
+
+    /** Forgets all peers and outstanding requests; callbacks still on their way are dropped. */
+    public void clear() {
+        for (InFlightRequest request : mRequests) {
+            if (request.mActive) {
+                // 先に無効にしておけば、expireRanging からの失敗通知は無視される
+                request.mActive = false;
+                mBackend.expireRanging(request);
+            }
+        }
+        mInFlightCount = 0;
+        mRateController.clear();
+        if (mFailurePolicy != null) {
+            mFailurePolicy.clear();
+        }
+        mPeerCount = 0;
+        mCursor = 0;
+    }
+
+    public int getPeerCount() {
+        return mPeerCount;
+    }
+
+    public boolean contains(int peerId) {
+        return indexOf(peerId) >= 0;
+    }
+
+    /**
+     * Fails requests that are past their deadline, then sends requests for the peers that
+     * are due until {@code maxInFlight} requests are outstanding or no peer is due. Returns
+     * how many peers were requested.
+     */
+    public int rangeNext() {
+        long now = mClock.elapsedRealtimeMillis();
+        expireRequests(now);
+        if (mSending) {
+            return 0; // 同期的に応答するバックエンドのコールバックから呼ばれた
+        }
+        if (mFailurePolicy != null && mFailurePolicy.isPaused(now)) {
+            return 0;
+        }
+        mSending = true;
+        int total = 0;
+        try {
+            while (mInFlightCount < mRequests.length) {
+                InFlightRequest request = freeRequest();
+                int count = fillNextBatch(request.mPeers, now);
+                if (count == 0) {
+                    break;
+                }
+                request.mCount = count;
+                request.mDeadlineMillis = now + mRequestTimeoutMillis;
+                request.mActive = true;
+                request.mSentCount++;
+                mInFlightCount++;
+                for (int i = 0; i < count; i++) {
+                    mRateController.onRequested(request.mPeers[i], now, mRequestTimeoutMillis);
+                    if (mFailurePolicy != null) {
+                        mFailurePolicy.onRequested(request.mPeers[i], now);
+                    }
+                }
+                total += count;
+                mBackend.startRanging(request.mPeers, count, request);
+            }
+        } finally {
+            mSending = false;
+        }
+        return total;
+    }
+
+    /**
+     * Expires every in-flight request whose deadline has passed, so the backend fails it
+     * with {@link RangingBatch#CODE_TIMEOUT}. Returns how many requests timed out.
+     */
+    public int expireRequests(long nowMillis) {
+        int expired = 0;
+        for (InFlightRequest request : mRequests) {
+            if (request.mActive && request.mDeadlineMillis <= nowMillis) {
+                // バックエンドが遅れた応答を捨てるので、このオブジェクトはそのまま次の要求に使える。
+                // 連続モードでは失敗通知の中で次の要求に使われていることがある
+                int sent = request.mSentCount;
+                mBackend.expireRanging(request);
+                if (request.mActive && request.mSentCount == sent) {
+                    request.onRangingFailure(RangingBatch.CODE_TIMEOUT); // バックエンドが要求を知らなかった
+                }
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    public int getInFlightCount() {
+        return mInFlightCount;
+    }
+
+    public int getMaxInFlight() {
+        return mRequests.length;
+    }
+
+    /**
+     * Milliseconds until the next peer becomes due or the next in-flight request times out,
+     * bounded by the controller's maximum interval. While the failure policy has paused
+     * ranging, no earlier than the end of the pause.
+     */
+    public long getNextDelayMillis() {
+        long next = mRateController.getEarliestDeadline();
+        if (mFailurePolicy != null) {
+            next = Math.max(next, mFailurePolicy.getPausedUntilMillis());
+        }
+        for (InFlightRequest request : mRequests) {
+            if (request.mActive) {
+                next = Math.min(next, request.mDeadlineMillis);
+            }
+        }
+        long delay = next - mClock.elapsedRealtimeMillis();
+        return Math.max(0, Math.min(mRateController.getMaxIntervalMillis(), delay));
+    }
+
+    /**
+     * Copies the next round-robin window of due peers into {@code out} and advances the
+     * cursor past the last peer taken.
+     */
+    public int fillNextBatch(int[] out, long nowMillis) {
+        int limit = Math.min(out.length, mMaxPeersPerRequest);
+        int count = 0;
+        int index = mCursor;
+        for (int scanned = 0; scanned < mPeerCount && count < limit; scanned++) {
+            int peerId = mPeers[index];
+            index = index + 1 == mPeerCount ? 0 : index + 1;
+            if (mRateController.isDue(peerId, nowMillis)) {
+                out[count++] = peerId;
+                mCursor = index;
+            }
+        }
+        return count;
+    }
+
+    private int indexOf(int peerId) {
+        for (int i = 0; i < mPeerCount; i++) {
+            if (mPeers[i] == peerId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private InFlightRequest freeRequest() {
+        for (InFlightRequest request : mRequests) {
+            if (!request.mActive) {
+                return request;
+            }
+        }
+        throw new IllegalStateException("No free request slot");
+    }
+
+    private void finish(InFlightRequest request) {
+        request.mActive = false;
+        mInFlightCount--;
+        if (mBackToBack) {
+            rangeNext(); // 無線を遊ばせないように、すぐ次の要求を出す
+        }
+    }
+
+    private void onPeerFailure(int peerId, int failure, long nowMillis) {
+        retryAfter(peerId, mFailurePolicy != null ? mFailurePolicy.onFailure(peerId, failure, nowMillis) : -1,
+                nowMillis);
+    }
+
+    // retryDelay が負なら、レートコントローラ自身のバックオフに任せる
+    private void retryAfter(int peerId, long retryDelay, long nowMillis) {
+        if (retryDelay >= 0) {
+            mRateController.onFailure(peerId, nowMillis, retryDelay);
+        } else {
+            mRateController.onFailure(peerId, nowMillis);
+        }
+    }
+
+    /** One outstanding request and the callback the backend answers it through. */
+    private final class InFlightRequest implements RangingBackend.Callback {
+        final int[] mPeers;
+        int mCount;
+        long mDeadlineMillis;
+        boolean mActive;
+        int mSentCount;
+
+        InFlightRequest(int maxPeers) {
+            mPeers = new int[maxPeers];
+        }
+
+        @Override
+        public void onRangingResults(RangingBatch batch) {
+            if (!mActive) {
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                int peerId = batch.getPeerId(i);
+                if (batch.isSuccess(i)) {
+                    mRateController.onSuccess(peerId, batch.getTimestampMillis(i),
+                            batch.getDistanceMm(i), batch.getDistanceStdDevMm(i));
+                    if (mFailurePolicy != null) {
+                        mFailurePolicy.onSuccess(peerId);
+                    }
+                } else {
+                    onPeerFailure(peerId, RangingFailurePolicy.classifyStatus(batch.getStatus(i)),
+                            batch.getTimestampMillis(i));
+                }
+            }
+            mCallback.onRangingResults(batch);
+            finish(this);
+        }
+
+        @Override
+        public void onRangingFailure(int code) {
+            if (!mActive) {
+                return;
+            }
+            long now = mClock.elapsedRealtimeMillis();
+            int failure = RangingFailurePolicy.classifyCode(code);
+            if (failure == RangingFailurePolicy.FAILURE_UNAVAILABLE && mFailurePolicy != null) {
+                // どのピアのせいでもないので失敗とは数えず、全体を止めて待たせる
+                long pauseMillis = mFailurePolicy.onUnavailable(now);
+                for (int i = 0; i < mCount; i++) {
+                    mRateController.onRequested(mPeers[i], now, pauseMillis);
+                }
+            } else {
+                // どのピアが原因か分からないので、すでに失敗しているピアにだけ数える
+                for (int i = 0; i < mCount; i++) {
+                    retryAfter(mPeers[i], mFailurePolicy != null
+                            ? mFailurePolicy.onRequestFailure(mPeers[i], mCount, now) : -1, now);
+                }
+            }
+            mCallback.onRangingFailure(code);
+            finish(this);
+        }
+    }
+
+    public static final class Builder {
+        private final RangingBackend mBackend;
+        private final RangingRateController mRateController;
+        private final RangingClock mClock;
+        private final RangingBackend.Callback mCallback;
+        private int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        private long mRequestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MS;
+        private boolean mBackToBack;
+        private RangingFailurePolicy mFailurePolicy;
+
+        public Builder(RangingBackend backend, RangingRateController rateController,
+                       RangingClock clock, RangingBackend.Callback callback) {
+            mBackend = backend;
+            mRateController = rateController;
+            mClock = clock;
+            mCallback = callback;
+        }
+
+        /** Maximum number of requests waiting for their callback at the same time. */
+        public Builder setMaxInFlight(int maxInFlight) {
+            if (maxInFlight < 1) {
+                throw new IllegalArgumentException("maxInFlight must be at least 1");
+            }
+            mMaxInFlight = maxInFlight;
+            return this;
+        }
+
+        /** How long to wait for a callback before failing the request with {@link RangingBatch#CODE_TIMEOUT}. */
+        public Builder setRequestTimeoutMillis(long requestTimeoutMillis) {
+            if (requestTimeoutMillis <= 0) {
+                throw new IllegalArgumentException("requestTimeoutMillis must be positive");
+            }
+            mRequestTimeoutMillis = requestTimeoutMillis;
+            return this;
+        }
+
+        /** Sends the next request from the callback of the previous one. */
+        public Builder setBackToBack(boolean backToBack) {
+            mBackToBack = backToBack;
+            return this;
+        }
+
+        /** Lets {@code failurePolicy} decide when failed peers are retried; null for the controller's backoff. */
+        public Builder setFailurePolicy(RangingFailurePolicy failurePolicy) {
+            mFailurePolicy = failurePolicy;
+            return this;
+        }
+
+        public BatchedRangingScheduler build() {
+            return new BatchedRangingScheduler(this);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.wifirtt.ranging;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands values from a producer thread to a consumer that runs at most once per frame.
+ * Values published between two frames replace each other; only the newest is applied.
+ * {@link #publish} never blocks and may be called from any thread.
+ */
+public final class CoalescingPublisher<T> {
+
+    public interface FrameScheduler {
+        /** Runs {@code frame} once on the consumer thread at the next frame. Always the same runnable. */
+        void scheduleFrame(Runnable frame);
+    }
+
+    public interface Consumer<T> {
+        void apply(T value);
+    }
+
+    private final FrameScheduler mFrameScheduler;
+    private final Consumer<T> mConsumer;
+    private final AtomicReference<T> mLatest = new AtomicReference<>();
+    private final AtomicBoolean mFrameScheduled = new AtomicBoolean();
+    private final AtomicLong mPublishedCount = new AtomicLong();
+    private final AtomicLong mAppliedCount = new AtomicLong();
+
+    private final Runnable mFrame = new Runnable() {
+        @Override
+        public void run() {
+            // 先にフラグを戻してから取り出すことで、取りこぼしなく次のフレームを予約できる
+            mFrameScheduled.set(false);
+            T value = mLatest.getAndSet(null);
+            if (value != null) {
+                mAppliedCount.incrementAndGet();
+                mConsumer.apply(value);
+            }
+        }
+    };
+
+    public CoalescingPublisher(FrameScheduler frameScheduler, Consumer<T> consumer) {
+        mFrameScheduler = frameScheduler;
+        mConsumer = consumer;
+    }
+
+    public void publish(T value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        mPublishedCount.incrementAndGet();
+        mLatest.set(value);
+        if (mFrameScheduled.compareAndSet(false, true)) {
+            mFrameScheduler.scheduleFrame(mFrame);
+        }
+    }
+
+    public long getPublishedCount() {
+        return mPublishedCount.get();
+    }
+
+    /** Number of values handed to the consumer; the rest were replaced before their frame. */
+    public long getAppliedCount() {
+        return mAppliedCount.get();
+    }
+}
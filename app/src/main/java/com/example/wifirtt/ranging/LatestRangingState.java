@@ -0,0 +1,138 @@
+package com.example.wifirtt.ranging;
+
+/**
+ * Keeps the latest distance estimate of every peer and turns it into
+ * {@link RangingSnapshot}s. Lives on the ranging thread; not thread-safe.
+ */
+public final class LatestRangingState {
+
+    private final PeerSlots mSlots;
+    private final boolean[] mValid;
+    private final int[] mDistancesMm;
+    private final int[] mUncertaintiesMm;
+    private final int[] mRssis;
+    private final long[] mUpdatedMillis;
+    private final int[] mWindowMedianMm;
+    private final double[] mWindowSuccessRatio;
+    private int mValidCount;
+    private int mLastBatchSize;
+    private int mLastBatchSuccessCount;
+    private int mLastFailureCode;
+    private boolean mHasPosition;
+    private double mPositionX;
+    private double mPositionY;
+    private double mPositionZ;
+    private double mPositionErrorM;
+
+    public LatestRangingState(int maxPeers) {
+        mSlots = new PeerSlots(maxPeers);
+        mValid = new boolean[maxPeers];
+        mDistancesMm = new int[maxPeers];
+        mUncertaintiesMm = new int[maxPeers];
+        mRssis = new int[maxPeers];
+        mUpdatedMillis = new long[maxPeers];
+        mWindowMedianMm = new int[maxPeers];
+        mWindowSuccessRatio = new double[maxPeers];
+    }
+
+    /** Records the current estimate for one peer; {@code uncertaintyMm} is -1 if unknown. */
+    public void onSample(int peerId, int distanceMm, int uncertaintyMm, int rssi, long timestampMillis) {
+        int slot = mSlots.acquire(peerId);
+        if (slot < 0) {
+            return; // 表示できるピア数を超えた分は捨てる
+        }
+        if (!mValid[slot]) {
+            mValid[slot] = true;
+            mValidCount++;
+            mWindowMedianMm[slot] = RangingSnapshot.NO_DISTANCE;
+            mWindowSuccessRatio[slot] = 0;
+        }
+        mDistancesMm[slot] = distanceMm;
+        mUncertaintiesMm[slot] = uncertaintyMm;
+        mRssis[slot] = rssi;
+        mUpdatedMillis[slot] = timestampMillis;
+    }
+
+    /**
+     * Records recent-history statistics for a peer that already has a sample;
+     * {@code medianMm} is {@link RangingSnapshot#NO_DISTANCE} if there is none.
+     */
+    public void onWindowStats(int peerId, int medianMm, double successRatio) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot >= 0 && mValid[slot]) {
+            mWindowMedianMm[slot] = medianMm;
+            mWindowSuccessRatio[slot] = successRatio;
+        }
+    }
+
+    public void onBatchComplete(int batchSize, int successCount) {
+        mLastBatchSize = batchSize;
+        mLastBatchSuccessCount = successCount;
+        mLastFailureCode = 0;
+    }
+
+    /** Records the latest position fix, in metres. */
+    public void onPosition(double x, double y, double z, double errorM) {
+        mHasPosition = true;
+        mPositionX = x;
+        mPositionY = y;
+        mPositionZ = z;
+        mPositionErrorM = errorM;
+    }
+
+    public void clearPosition() {
+        mHasPosition = false;
+    }
+
+    public void onRangingFailure(int code) {
+        mLastBatchSize = 0;
+        mLastBatchSuccessCount = 0;
+        mLastFailureCode = code;
+    }
+
+    public void removePeer(int peerId) {
+        int slot = mSlots.release(peerId);
+        if (slot >= 0 && mValid[slot]) {
+            mValid[slot] = false;
+            mValidCount--;
+        }
+    }
+
+    public void clear() {
+        mSlots.clear();
+        for (int i = 0; i < mValid.length; i++) {
+            mValid[i] = false;
+        }
+        mValidCount = 0;
+        mLastBatchSize = 0;
+        mLastBatchSuccessCount = 0;
+        mLastFailureCode = 0;
+        mHasPosition = false;
+    }
+
+    public RangingSnapshot snapshot(long nowMillis, int knownPeerCount) {
+        int[] peerIds = new int[mValidCount];
+        int[] distancesMm = new int[mValidCount];
+        int[] uncertaintiesMm = new int[mValidCount];
+        int[] rssis = new int[mValidCount];
+        long[] updatedMillis = new long[mValidCount];
+        int[] windowMediansMm = new int[mValidCount];
+        double[] windowSuccessRatios = new double[mValidCount];
+        int n = 0;
+        for (int slot = 0; slot < mValid.length && n < mValidCount; slot++) {
+            if (mValid[slot]) {
+                peerIds[n] = mSlots.peerIdAt(slot);
+                distancesMm[n] = mDistancesMm[slot];
+                uncertaintiesMm[n] = mUncertaintiesMm[slot];
+                rssis[n] = mRssis[slot];
+                updatedMillis[n] = mUpdatedMillis[slot];
+                windowMediansMm[n] = mWindowMedianMm[slot];
+                windowSuccessRatios[n] = mWindowSuccessRatio[slot];
+                n++;
+            }
+        }
+        return new RangingSnapshot(nowMillis, knownPeerCount, mLastBatchSize, mLastBatchSuccessCount,
+                mLastFailureCode, peerIds, distancesMm, uncertaintiesMm, rssis, updatedMillis,
+                windowMediansMm, windowSuccessRatios, mHasPosition, mPositionX, mPositionY, mPositionZ, mPositionErrorM);
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.wifirtt.ranging;
+
+/**
+ * Decides, in mesh mode, which side of each pair of devices ranges the pair and in which
+ * slot of the ranging cycle. Both decisions are pure functions of the two node ids, so
+ * both devices reach the same answer without talking to each other: the owner ranges the
+ * pair once per cycle and shares the result, and the other side only listens. That halves
+ * the requests needed for full pairwise coverage.
+ *
+ * <p>Pairs are spread evenly over the slots, so the requests of one device are spread over
+ * its cycle and pairs that share a slot go out as one request. Each device counts slots in
+ * its own clock; without a common clock the slots of different devices are not aligned.
+ *
+ * <p>Peers without a node id (devices not in mesh mode) are always owned locally. An
+ * unowned peer whose owner has not shared anything for a while can be taken over with
+ * {@link #takeOverSilentPeers}. Not thread-safe.
+ */
+public final class MeshSlotPlan {
+
+    public static final int DEFAULT_SLOT_COUNT = 10;
+    public static final long DEFAULT_SLOT_MILLIS = 100;
+
+    /** Node id of a peer that did not advertise one. */
+    public static final int NO_NODE_ID = 0;
+
+    private final int mLocalNodeId;
+    private final int mSlotCount;
+    private final long mSlotMillis;
+    private final PeerSlots mSlots;
+    private final int[] mNodeIds;
+    private final boolean[] mOwned;
+    private final long[] mLastSharedMillis;
+
+    public MeshSlotPlan(int maxPeers, int localNodeId) {
+        this(maxPeers, localNodeId, DEFAULT_SLOT_COUNT, DEFAULT_SLOT_MILLIS);
+    }
+
+    public MeshSlotPlan(int maxPeers, int localNodeId, int slotCount, long slotMillis) {
+        if (localNodeId == NO_NODE_ID) {
+            throw new IllegalArgumentException("localNodeId must not be " + NO_NODE_ID);
+        }
+        if (slotCount <= 0 || slotMillis <= 0) {
+            throw new IllegalArgumentException("Invalid slots: " + slotCount + " x " + slotMillis + "ms");
+        }
+        mLocalNodeId = localNodeId;
+        mSlotCount = slotCount;
+        mSlotMillis = slotMillis;
+        mSlots = new PeerSlots(maxPeers);
+        mNodeIds = new int[maxPeers];
+        mOwned = new boolean[maxPeers];
+        mLastSharedMillis = new long[maxPeers];
+    }
+
+    public int getLocalNodeId() {
+        return mLocalNodeId;
+    }
+
+    public long getCycleMillis() {
+        return mSlotCount * mSlotMillis;
+    }
+
+    /** Mixes the two ids of a pair, independent of their order. */
+    static int pairHash(int nodeA, int nodeB) {
+        long low = Math.min(nodeA, nodeB) & 0xffffffffL;
+        long high = Math.max(nodeA, nodeB) & 0xffffffffL;
+        long h = (low << 32 | high) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29) ^ (h >>> 47));
+    }
+
+    /**
+     * True if {@code localNodeId} ranges the pair it forms with {@code remoteNodeId}.
+     * Exactly one of the two devices owns a pair, except that both own it if the ids are
+     * equal or the remote has none.
+     */
+    public static boolean ownsPair(int localNodeId, int remoteNodeId) {
+        if (remoteNodeId == NO_NODE_ID || remoteNodeId == localNodeId) {
+            return true;
+        }
+        // 小さい方と大きい方のどちらが担当するかをハッシュで決め、負荷を偏らせない
+        boolean lowerOwns = (pairHash(localNodeId, remoteNodeId) & 1) == 0;
+        return lowerOwns == (localNodeId < remoteNodeId);
+    }
+
+    /** Slot of the pair in {@code [0, slotCount)}. */
+    public static int pairSlot(int localNodeId, int remoteNodeId, int slotCount) {
+        return (pairHash(localNodeId, remoteNodeId) >>> 1) % slotCount;
+    }
+
+    /**
+     * Registers a peer and its node id ({@link #NO_NODE_ID} if it has none) and returns
+     * whether this device owns the pair. Returns false as well if there is no room. A peer
+     * that is already registered with the same node id keeps its state, including a takeover.
+     */
+    public boolean addPeer(int peerId, int nodeId, long nowMillis) {
+        int existing = mSlots.slotOf(peerId);
+        if (existing >= 0 && mNodeIds[existing] == nodeId) {
+            return mOwned[existing];
+        }
+        int slot = mSlots.acquire(peerId);
+        if (slot < 0) {
+            return false;
+        }
+        mNodeIds[slot] = nodeId;
+        mOwned[slot] = ownsPair(mLocalNodeId, nodeId);
+        mLastSharedMillis[slot] = nowMillis;
+        return mOwned[slot];
+    }
+
+    public void removePeer(int peerId) {
+        mSlots.release(peerId);
+    }
+
+    public void clear() {
+        mSlots.clear();
+    }
+
+    public boolean contains(int peerId) {
+        return mSlots.slotOf(peerId) >= 0;
+    }
+
+    public boolean isOwned(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        return slot >= 0 && mOwned[slot];
+    }
+
+    /** Offset of the peer's slot from the start of the cycle, for {@link RangingRateController#setSlot}. */
+    public long getSlotOffsetMillis(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            return 0;
+        }
+        int nodeId = mNodeIds[slot];
+        // ノード ID のないピアはピア ID からスロットを決める
+        int pairSlot = nodeId != NO_NODE_ID ? pairSlot(mLocalNodeId, nodeId, mSlotCount)
+                : Math.floorMod(peerId, mSlotCount);
+        return pairSlot * mSlotMillis;
+    }
+
+    /** Returns the peer with node id {@code nodeId}, or -1 if it is not known. */
+    public int findPeer(int nodeId) {
+        if (nodeId == NO_NODE_ID) {
+            return -1;
+        }
+        for (int slot = 0; slot < mSlots.capacity(); slot++) {
+            int peerId = mSlots.peerIdAt(slot);
+            if (peerId >= 0 && mNodeIds[slot] == nodeId) {
+                return peerId;
+            }
+        }
+        return -1;
+    }
+
+    /** Notes that the owner of {@code peerId} shared a result at {@code nowMillis}. */
+    public void onShared(int peerId, long nowMillis) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot >= 0) {
+            mLastSharedMillis[slot] = nowMillis;
+        }
+    }
+
+    /**
+     * Takes over every unowned peer that has not shared a result for {@code timeoutMillis},
+     * for example because it cannot discover this device. Copies their ids into {@code out}
+     * and returns how many there were.
+     */
+    public int takeOverSilentPeers(long nowMillis, long timeoutMillis, int[] out) {
+        int count = 0;
+        for (int slot = 0; slot < mSlots.capacity() && count < out.length; slot++) {
+            int peerId = mSlots.peerIdAt(slot);
+            if (peerId >= 0 && !mOwned[slot] && nowMillis - mLastSharedMillis[slot] >= timeoutMillis) {
+                mOwned[slot] = true;
+                out[count++] = peerId;
+            }
+        }
+        return count;
+    }
+
+    /** Number of registered peers this device owns. */
+    public int getOwnedCount() {
+        int count = 0;
+        for (int slot = 0; slot < mSlots.capacity(); slot++) {
+            if (mSlots.peerIdAt(slot) >= 0 && mOwned[slot]) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
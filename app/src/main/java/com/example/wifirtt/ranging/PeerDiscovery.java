@@ -0,0 +1,28 @@
+package com.example.wifirtt.ranging;
+
+/**
+ * The subscribe side of Wi-Fi Aware discovery as seen by the ranging logic. Peers are
+ * reported with the same integer ids the matching {@link RangingBackend} accepts.
+ */
+public interface PeerDiscovery {
+
+    void startDiscovery(Listener listener);
+
+    /** True between {@link Listener#onDiscoveryStarted()} and the end of the session. */
+    boolean isStarted();
+
+    void stopDiscovery();
+
+    interface Listener {
+        void onDiscoveryStarted();
+
+        /**
+         * Called when a peer is discovered. Implementations backed by a {@link PeerRegistry}
+         * report only new peers and changed service-specific info, but callers must still
+         * tolerate repeats. {@code distanceMm} is -1 if the framework did not report a distance.
+         */
+        void onPeerDiscovered(int peerId, byte[] serviceSpecificInfo, int distanceMm);
+
+        void onDiscoveryTerminated();
+    }
+}
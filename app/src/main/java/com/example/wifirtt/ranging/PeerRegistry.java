@@ -0,0 +1,265 @@
+package com.example.wifirtt.ranging;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every peer seen by discovery, keyed by the framework's peer handle and assigned a stable
+ * small integer id. Repeated discoveries of a known peer only refresh its entry, and peers
+ * that have been neither discovered nor ranged successfully for the TTL are evicted.
+ *
+ * <p>Updates come from the thread that handles discovery and ranging callbacks. Any other
+ * thread may look peers up or iterate {@link #peers()} at the same time without locking;
+ * iteration is weakly consistent and each {@link Peer} field is read individually.
+ *
+ * @param <K> the discovery handle type, {@code PeerHandle} on a device
+ */
+public final class PeerRegistry<K> {
+
+    /** Consecutive ranging failures after which a peer is reported as unhealthy. */
+    public static final int DEFAULT_UNHEALTHY_FAILURES = 3;
+
+    private final ConcurrentHashMap<K, Peer<K>> mByKey = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Peer<K>> mById = new ConcurrentHashMap<>();
+    private final Collection<Peer<K>> mPeers = Collections.unmodifiableCollection(mById.values());
+    private final AtomicInteger mNextPeerId = new AtomicInteger(1);
+    private final long mTtlMillis;
+    private final int mUnhealthyFailures;
+
+    public PeerRegistry(long ttlMillis) {
+        this(ttlMillis, DEFAULT_UNHEALTHY_FAILURES);
+    }
+
+    public PeerRegistry(long ttlMillis, int unhealthyFailures) {
+        mTtlMillis = ttlMillis;
+        mUnhealthyFailures = unhealthyFailures;
+    }
+
+    /**
+     * Records a discovery of {@code key}. Returns true if the peer is new or advertises
+     * different service-specific info than before, i.e. when the caller has something to
+     * act on; a plain repeat only refreshes the last-seen time.
+     *
+     * @param distanceMm distance reported by discovery, or -1 if unknown
+     */
+    public boolean discover(K key, byte[] serviceSpecificInfo, int distanceMm, long nowMillis) {
+        Peer<K> peer = mByKey.get(key);
+        if (peer == null) {
+            peer = new Peer<>(key, mNextPeerId.getAndIncrement(), nowMillis, serviceSpecificInfo,
+                    mUnhealthyFailures);
+            Peer<K> existing = mByKey.putIfAbsent(key, peer);
+            if (existing == null) {
+                mById.put(peer.mPeerId, peer);
+                peer.onDiscovered(distanceMm, nowMillis);
+                return true;
+            }
+            peer = existing;
+        }
+        peer.onDiscovered(distanceMm, nowMillis);
+        // 同じ内容の再発見は時刻の更新だけで済ませる
+        if (!Arrays.equals(peer.mServiceSpecificInfo, serviceSpecificInfo)) {
+            peer.mServiceSpecificInfo = serviceSpecificInfo;
+            return true;
+        }
+        return false;
+    }
+
+    /** Updates last-good distances and health from one batch. */
+    public void onRangingResults(RangingBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            Peer<K> peer = mById.get(batch.getPeerId(i));
+            if (peer == null) {
+                continue; // 結果が届く前に追い出されたピア
+            }
+            if (batch.isSuccess(i)) {
+                peer.onRangingSuccess(batch.getDistanceMm(i), batch.getTimestampMillis(i));
+            } else {
+                peer.onRangingFailure();
+            }
+        }
+    }
+
+    /**
+     * Removes every peer that has been neither discovered nor ranged successfully within
+     * the TTL, reporting each one to {@code listener}. Returns how many were removed.
+     */
+    public int evictStale(long nowMillis, EvictionListener<K> listener) {
+        return evictStale(nowMillis, null, listener);
+    }
+
+    /**
+     * Like {@link #evictStale(long, EvictionListener)}, but keeps stale peers that
+     * {@code retention} asks to keep, for example while their ranging circuit is open.
+     */
+    public int evictStale(long nowMillis, RetentionPolicy<K> retention, EvictionListener<K> listener) {
+        int evicted = 0;
+        for (Iterator<Peer<K>> it = mById.values().iterator(); it.hasNext(); ) {
+            Peer<K> peer = it.next();
+            if (nowMillis - peer.mLastSeenMillis > mTtlMillis
+                    && (retention == null || !retention.shouldRetain(peer, nowMillis))) {
+                it.remove();
+                mByKey.remove(peer.mKey, peer);
+                evicted++;
+                if (listener != null) {
+                    listener.onPeerEvicted(peer);
+                }
+            }
+        }
+        return evicted;
+    }
+
+    public Peer<K> get(K key) {
+        return mByKey.get(key);
+    }
+
+    /** Returns the peer with {@code peerId}, or null if it is unknown or was evicted. */
+    public Peer<K> get(int peerId) {
+        return mById.get(peerId);
+    }
+
+    /** Returns the handle of {@code peerId}, or null if it is unknown or was evicted. */
+    public K getKey(int peerId) {
+        Peer<K> peer = mById.get(peerId);
+        return peer != null ? peer.mKey : null;
+    }
+
+    /** Live, read-only view of all peers that is safe to iterate from any thread. */
+    public Collection<Peer<K>> peers() {
+        return mPeers;
+    }
+
+    public int size() {
+        return mById.size();
+    }
+
+    public long getTtlMillis() {
+        return mTtlMillis;
+    }
+
+    /** Forgets all peers. Ids are not reused, so late results for old peers are ignored. */
+    public void clear() {
+        mById.clear();
+        mByKey.clear();
+    }
+
+    public interface EvictionListener<K> {
+        void onPeerEvicted(Peer<K> peer);
+    }
+
+    /** Decides whether a peer past its TTL stays registered for now. */
+    public interface RetentionPolicy<K> {
+        boolean shouldRetain(Peer<K> peer, long nowMillis);
+    }
+
+    /** One registered peer; the mutable fields are written by the registry's update thread. */
+    public static final class Peer<K> {
+        private final K mKey;
+        private final int mPeerId;
+        private final long mFirstSeenMillis;
+        private volatile long mLastSeenMillis;
+        private volatile byte[] mServiceSpecificInfo;
+        private volatile int mDiscoveryDistanceMm = -1;
+        private volatile int mDiscoveryCount;
+        private volatile int mLastDistanceMm = -1;
+        private volatile long mLastDistanceMillis;
+        private volatile int mSuccessCount;
+        private volatile int mFailureCount;
+        private volatile int mConsecutiveFailures;
+        private final int mUnhealthyFailures;
+
+        Peer(K key, int peerId, long firstSeenMillis, byte[] serviceSpecificInfo, int unhealthyFailures) {
+            mKey = key;
+            mPeerId = peerId;
+            mFirstSeenMillis = firstSeenMillis;
+            mLastSeenMillis = firstSeenMillis;
+            mServiceSpecificInfo = serviceSpecificInfo;
+            mUnhealthyFailures = unhealthyFailures;
+        }
+
+        // 書き込みは更新スレッドだけなので、volatile の読み書きで足りる
+        void onDiscovered(int distanceMm, long nowMillis) {
+            mDiscoveryCount++;
+            if (distanceMm >= 0) {
+                mDiscoveryDistanceMm = distanceMm;
+            }
+            if (nowMillis > mLastSeenMillis) {
+                mLastSeenMillis = nowMillis;
+            }
+        }
+
+        void onRangingSuccess(int distanceMm, long timestampMillis) {
+            mLastDistanceMm = distanceMm;
+            mLastDistanceMillis = timestampMillis;
+            mSuccessCount++;
+            mConsecutiveFailures = 0;
+            if (timestampMillis > mLastSeenMillis) {
+                mLastSeenMillis = timestampMillis;
+            }
+        }
+
+        void onRangingFailure() {
+            mFailureCount++;
+            mConsecutiveFailures++;
+        }
+
+        public K getKey() {
+            return mKey;
+        }
+
+        public int getPeerId() {
+            return mPeerId;
+        }
+
+        public long getFirstSeenMillis() {
+            return mFirstSeenMillis;
+        }
+
+        /** Latest discovery or successful ranging. */
+        public long getLastSeenMillis() {
+            return mLastSeenMillis;
+        }
+
+        /** The latest advertised info; callers must not modify the array. */
+        public byte[] getServiceSpecificInfo() {
+            return mServiceSpecificInfo;
+        }
+
+        /** Distance reported by the latest in-range discovery, or -1. */
+        public int getDiscoveryDistanceMm() {
+            return mDiscoveryDistanceMm;
+        }
+
+        public int getDiscoveryCount() {
+            return mDiscoveryCount;
+        }
+
+        /** Raw distance of the latest successful ranging, or -1 before the first one. */
+        public int getLastDistanceMm() {
+            return mLastDistanceMm;
+        }
+
+        public long getLastDistanceMillis() {
+            return mLastDistanceMillis;
+        }
+
+        public int getSuccessCount() {
+            return mSuccessCount;
+        }
+
+        public int getFailureCount() {
+            return mFailureCount;
+        }
+
+        public int getConsecutiveFailures() {
+            return mConsecutiveFailures;
+        }
+
+        public boolean isHealthy() {
+            return mConsecutiveFailures < mUnhealthyFailures;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.wifirtt.ranging;
+
+import java.util.Arrays;
+
+/**
+ * Maps peer ids to dense slot indexes in {@code [0, capacity)} so that per-peer state can
+ * live in preallocated primitive arrays. Lookups, inserts and removals do not allocate.
+ *
+ * <p>Not thread-safe.
+ */
+public final class PeerSlots {
+
+    private static final int EMPTY = -1;
+
+    private final int mCapacity;
+    private final int[] mKeys;
+    private final int[] mValues;
+    private final int mMask;
+    private final int[] mFreeSlots;
+    private final int[] mPeerIdBySlot;
+    private int mFreeCount;
+    private int mSize;
+
+    public PeerSlots(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        mKeys = new int[tableSize];
+        mValues = new int[tableSize];
+        mMask = tableSize - 1;
+        Arrays.fill(mKeys, EMPTY);
+        mFreeSlots = new int[capacity];
+        mPeerIdBySlot = new int[capacity];
+        clear();
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the slot for {@code peerId}, or -1 if it has none. */
+    public int slotOf(int peerId) {
+        checkPeerId(peerId);
+        for (int i = hash(peerId); ; i = (i + 1) & mMask) {
+            int key = mKeys[i];
+            if (key == peerId) {
+                return mValues[i];
+            }
+            if (key == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /** Returns the slot for {@code peerId}, assigning a new one if needed, or -1 if full. */
+    public int acquire(int peerId) {
+        checkPeerId(peerId);
+        int i = hash(peerId);
+        for (; ; i = (i + 1) & mMask) {
+            int key = mKeys[i];
+            if (key == peerId) {
+                return mValues[i];
+            }
+            if (key == EMPTY) {
+                break;
+            }
+        }
+        if (mFreeCount == 0) {
+            return -1;
+        }
+        int slot = mFreeSlots[--mFreeCount];
+        mKeys[i] = peerId;
+        mValues[i] = slot;
+        mPeerIdBySlot[slot] = peerId;
+        mSize++;
+        return slot;
+    }
+
+    /** Frees the slot of {@code peerId} and returns it, or -1 if the peer had none. */
+    public int release(int peerId) {
+        checkPeerId(peerId);
+        int i = hash(peerId);
+        for (; ; i = (i + 1) & mMask) {
+            int key = mKeys[i];
+            if (key == peerId) {
+                break;
+            }
+            if (key == EMPTY) {
+                return -1;
+            }
+        }
+        int slot = mValues[i];
+        // 線形探索の連鎖が切れないよう、後ろのエントリを詰め直す
+        int gap = i;
+        for (int j = (gap + 1) & mMask; mKeys[j] != EMPTY; j = (j + 1) & mMask) {
+            int home = hash(mKeys[j]);
+            if (((j - home) & mMask) >= ((j - gap) & mMask)) {
+                mKeys[gap] = mKeys[j];
+                mValues[gap] = mValues[j];
+                gap = j;
+            }
+        }
+        mKeys[gap] = EMPTY;
+        mPeerIdBySlot[slot] = EMPTY;
+        mFreeSlots[mFreeCount++] = slot;
+        mSize--;
+        return slot;
+    }
+
+    /** Returns the peer id that owns {@code slot}, or -1 if the slot is free. */
+    public int peerIdAt(int slot) {
+        return mPeerIdBySlot[slot];
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        Arrays.fill(mPeerIdBySlot, EMPTY);
+        // 小さいスロット番号から順に払い出す
+        for (int i = 0; i < mCapacity; i++) {
+            mFreeSlots[i] = mCapacity - 1 - i;
+        }
+        mFreeCount = mCapacity;
+        mSize = 0;
+    }
+
+    private int hash(int peerId) {
+        int h = peerId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mMask;
+    }
+
+    private static void checkPeerId(int peerId) {
+        if (peerId < 0) {
+            throw new IllegalArgumentException("peerId must not be negative: " + peerId);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.wifirtt.ranging;
+
+/**
+ * The part of {@code WifiRttManager} that the ranging logic depends on. Peers are
+ * identified by small integer ids instead of {@code PeerHandle} so the scheduling code
+ * can run on a plain JVM against a fake implementation.
+ */
+public interface RangingBackend {
+
+    /** Maximum number of peers a single ranging request may contain. */
+    int getMaxPeers();
+
+    boolean isAvailable();
+
+    /**
+     * Starts one ranging request for the first {@code count} entries of {@code peerIds}.
+     * The array may be reused by the caller as soon as this method returns.
+     */
+    void startRanging(int[] peerIds, int count, Callback callback);
+
+    /**
+     * Gives up on the request answered through {@code callback}: fails it right away with
+     * {@link RangingBatch#CODE_TIMEOUT} through {@code callback} and drops its result if it
+     * still arrives. Does nothing if the request has already been answered.
+     */
+    void expireRanging(Callback callback);
+
+    interface Callback {
+        /** The batch is only valid for the duration of this call. */
+        void onRangingResults(RangingBatch batch);
+
+        void onRangingFailure(int code);
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.wifirtt.ranging;
+
+/**
+ * One batch of ranging results, stored in parallel primitive arrays so that it can be
+ * filled and consumed without allocating. A backend reuses the same instance for every
+ * callback, so consumers must copy anything they want to keep before returning.
+ */
+public final class RangingBatch {
+
+    // RangingResult のステータスと同じ値
+    public static final int STATUS_SUCCESS = 0;
+    public static final int STATUS_FAIL = 1;
+    public static final int STATUS_RESPONDER_DOES_NOT_SUPPORT_IEEE80211MC = 2;
+
+    // RangingResultCallback.onRangingFailure のコードと同じ値
+    public static final int CODE_FAIL = 1;
+    public static final int CODE_FAIL_RTT_NOT_AVAILABLE = 2;
+    /** Not a framework code: the scheduler gave up waiting for the callback. */
+    public static final int CODE_TIMEOUT = 3;
+
+    private final int[] mPeerIds;
+    private final int[] mStatuses;
+    private final int[] mDistancesMm;
+    private final int[] mDistanceStdDevsMm;
+    private final int[] mRssis;
+    private final long[] mTimestampsMillis;
+    private final int[] mAttemptedMeasurements;
+    private final int[] mSuccessfulMeasurements;
+    private int mSize;
+
+    public RangingBatch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mPeerIds = new int[capacity];
+        mStatuses = new int[capacity];
+        mDistancesMm = new int[capacity];
+        mDistanceStdDevsMm = new int[capacity];
+        mRssis = new int[capacity];
+        mTimestampsMillis = new long[capacity];
+        mAttemptedMeasurements = new int[capacity];
+        mSuccessfulMeasurements = new int[capacity];
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public void addSuccess(int peerId, int distanceMm, int distanceStdDevMm, int rssi,
+                           long timestampMillis, int attempted, int successful) {
+        int i = nextIndex();
+        mPeerIds[i] = peerId;
+        mStatuses[i] = STATUS_SUCCESS;
+        mDistancesMm[i] = distanceMm;
+        mDistanceStdDevsMm[i] = distanceStdDevMm;
+        mRssis[i] = rssi;
+        mTimestampsMillis[i] = timestampMillis;
+        mAttemptedMeasurements[i] = attempted;
+        mSuccessfulMeasurements[i] = successful;
+    }
+
+    public void addFailure(int peerId, int status, long timestampMillis) {
+        int i = nextIndex();
+        mPeerIds[i] = peerId;
+        mStatuses[i] = status;
+        mDistancesMm[i] = 0;
+        mDistanceStdDevsMm[i] = 0;
+        mRssis[i] = 0;
+        mTimestampsMillis[i] = timestampMillis;
+        mAttemptedMeasurements[i] = 0;
+        mSuccessfulMeasurements[i] = 0;
+    }
+
+    private int nextIndex() {
+        if (mSize == mPeerIds.length) {
+            throw new IllegalStateException("RangingBatch is full: " + mSize);
+        }
+        return mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mPeerIds.length;
+    }
+
+    public boolean isSuccess(int i) {
+        return mStatuses[i] == STATUS_SUCCESS;
+    }
+
+    public int getPeerId(int i) {
+        return mPeerIds[i];
+    }
+
+    public int getStatus(int i) {
+        return mStatuses[i];
+    }
+
+    public int getDistanceMm(int i) {
+        return mDistancesMm[i];
+    }
+
+    public int getDistanceStdDevMm(int i) {
+        return mDistanceStdDevsMm[i];
+    }
+
+    public int getRssi(int i) {
+        return mRssis[i];
+    }
+
+    public long getTimestampMillis(int i) {
+        return mTimestampsMillis[i];
+    }
+
+    public int getNumAttemptedMeasurements(int i) {
+        return mAttemptedMeasurements[i];
+    }
+
+    public int getNumSuccessfulMeasurements(int i) {
+        return mSuccessfulMeasurements[i];
+    }
+}
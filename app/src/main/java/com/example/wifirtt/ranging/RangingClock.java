@@ -0,0 +1,10 @@
+package com.example.wifirtt.ranging;
+
+/**
+ * Monotonic millisecond clock in the same time base as the ranging timestamps
+ * ({@code SystemClock.elapsedRealtime()} on a device).
+ */
+public interface RangingClock {
+
+    long elapsedRealtimeMillis();
+}
@@ -0,0 +1,337 @@
+package com.example.wifirtt.ranging;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before ranging a peer again after a failure, so peers that are
+ * out of reach or cannot respond stop taking room in requests from healthy ones.
+ *
+ * <p>Failures are classified first (see {@link #classifyStatus} and {@link #classifyCode}):
+ * <ul>
+ * <li>{@link #FAILURE_TRANSIENT}: {@code STATUS_FAIL}, {@code CODE_FAIL} or a timeout.
+ * The peer is retried after an exponential backoff with jitter, and after
+ * {@code failureThreshold} consecutive failures its circuit opens.</li>
+ * <li>{@link #FAILURE_UNSUPPORTED}: the responder does not support 802.11mc. Retrying will
+ * not help, so its circuit opens at once.</li>
+ * <li>{@link #FAILURE_UNAVAILABLE}: RTT itself is unavailable. No peer is to blame; all
+ * ranging pauses with its own backoff instead.</li>
+ * </ul>
+ * A peer with an open circuit is not ranged until the circuit's open time has passed. Its
+ * next request is then a single probe: success closes the circuit, failure opens it again
+ * for twice as long, up to a limit.
+ *
+ * <p>A whole request that fails does not say which of its peers is to blame, so
+ * {@link #onRequestFailure} only counts it against peers that are already failing; the
+ * others get the caller's ordinary backoff.
+ *
+ * <p>All per-peer state lives in preallocated arrays indexed by {@link PeerSlots}, and only
+ * peers that are currently failing take a slot; no method allocates. Not thread-safe,
+ * except {@link #getOpenCount()}.
+ */
+public final class RangingFailurePolicy {
+
+    public static final int FAILURE_NONE = 0;
+    public static final int FAILURE_TRANSIENT = 1;
+    public static final int FAILURE_UNSUPPORTED = 2;
+    public static final int FAILURE_UNAVAILABLE = 3;
+
+    public static final int CIRCUIT_CLOSED = 0;
+    public static final int CIRCUIT_OPEN = 1;
+    /** The open time has passed and one probe request is on its way. */
+    public static final int CIRCUIT_HALF_OPEN = 2;
+
+    public static final long DEFAULT_BACKOFF_BASE_MS = 200;
+    public static final long DEFAULT_BACKOFF_MAX_MS = 10000;
+    public static final double DEFAULT_JITTER = 0.5;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MS = 15000;
+    public static final long DEFAULT_OPEN_MAX_MS = 300000;
+    public static final long DEFAULT_UNSUPPORTED_OPEN_MS = 60000;
+
+    // 2^20 倍で十分に上限へ届くので、それ以上はシフトしない
+    private static final int MAX_SHIFT = 20;
+
+    /** Hears about circuits opening and closing, on the thread that reports results. */
+    public interface Listener {
+        void onCircuitOpened(int peerId, int failure, long openMillis);
+
+        void onCircuitClosed(int peerId);
+    }
+
+    private final long mBackoffBaseMillis;
+    private final long mBackoffMaxMillis;
+    private final double mJitter;
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+    private final long mOpenMaxMillis;
+    private final long mUnsupportedOpenMillis;
+    private final Listener mListener;
+    private final Random mRandom;
+
+    private final PeerSlots mSlots;
+    private final int[] mConsecutiveFailures;
+    private final int[] mCircuits;
+    private final int[] mOpenCounts;
+    private final long[] mOpenUntilMillis;
+    private volatile int mOpenCount;
+
+    private int mUnavailableFailures;
+    private long mPausedUntilMillis = Long.MIN_VALUE;
+
+    private RangingFailurePolicy(Builder builder) {
+        mBackoffBaseMillis = builder.mBackoffBaseMillis;
+        mBackoffMaxMillis = builder.mBackoffMaxMillis;
+        mJitter = builder.mJitter;
+        mFailureThreshold = builder.mFailureThreshold;
+        mOpenMillis = builder.mOpenMillis;
+        mOpenMaxMillis = builder.mOpenMaxMillis;
+        mUnsupportedOpenMillis = builder.mUnsupportedOpenMillis;
+        mListener = builder.mListener;
+        mRandom = new Random(builder.mSeed);
+        mSlots = new PeerSlots(builder.mMaxPeers);
+        mConsecutiveFailures = new int[builder.mMaxPeers];
+        mCircuits = new int[builder.mMaxPeers];
+        mOpenCounts = new int[builder.mMaxPeers];
+        mOpenUntilMillis = new long[builder.mMaxPeers];
+    }
+
+    /** Classifies a per-peer {@code RangingResult} status. */
+    public static int classifyStatus(int status) {
+        switch (status) {
+            case RangingBatch.STATUS_SUCCESS:
+                return FAILURE_NONE;
+            case RangingBatch.STATUS_RESPONDER_DOES_NOT_SUPPORT_IEEE80211MC:
+                return FAILURE_UNSUPPORTED;
+            default:
+                return FAILURE_TRANSIENT;
+        }
+    }
+
+    /** Classifies a whole-request {@code RangingResultCallback} failure code. */
+    public static int classifyCode(int code) {
+        return code == RangingBatch.CODE_FAIL_RTT_NOT_AVAILABLE ? FAILURE_UNAVAILABLE : FAILURE_TRANSIENT;
+    }
+
+    public void removePeer(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot >= 0) {
+            setCircuit(slot, CIRCUIT_CLOSED);
+            mSlots.release(peerId);
+        }
+    }
+
+    public void clear() {
+        mSlots.clear();
+        mOpenCount = 0;
+        mUnavailableFailures = 0;
+        mPausedUntilMillis = Long.MIN_VALUE;
+    }
+
+    /** Called when {@code peerId} goes out in a request; a request past the open time is the probe. */
+    public void onRequested(int peerId, long nowMillis) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot >= 0 && mCircuits[slot] == CIRCUIT_OPEN && nowMillis >= mOpenUntilMillis[slot]) {
+            mCircuits[slot] = CIRCUIT_HALF_OPEN;
+        }
+    }
+
+    public void onSuccess(int peerId) {
+        mUnavailableFailures = 0;
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            return;
+        }
+        boolean wasOpen = mCircuits[slot] != CIRCUIT_CLOSED;
+        setCircuit(slot, CIRCUIT_CLOSED);
+        mSlots.release(peerId);
+        if (wasOpen && mListener != null) {
+            mListener.onCircuitClosed(peerId);
+        }
+    }
+
+    /**
+     * Records a failure of {@code peerId}, classified with {@link #classifyStatus} or
+     * {@link #classifyCode}, and returns how long to wait before ranging it again. Returns
+     * -1 if there is no room to track the peer, in which case the caller's own backoff applies.
+     */
+    public long onFailure(int peerId, int failure, long nowMillis) {
+        if (failure == FAILURE_UNAVAILABLE) {
+            return onUnavailable(nowMillis);
+        }
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            // 失敗中のピアだけを追跡する。枠は成功か removePeer で返す
+            slot = mSlots.acquire(peerId);
+            if (slot < 0) {
+                return -1;
+            }
+            mConsecutiveFailures[slot] = 0;
+            mCircuits[slot] = CIRCUIT_CLOSED;
+            mOpenCounts[slot] = 0;
+        }
+        if (mCircuits[slot] == CIRCUIT_OPEN) {
+            return Math.max(0, mOpenUntilMillis[slot] - nowMillis); // 回路が開く前に出した要求の結果
+        }
+        int failures = ++mConsecutiveFailures[slot];
+        boolean probeFailed = mCircuits[slot] == CIRCUIT_HALF_OPEN;
+        if (probeFailed || failure == FAILURE_UNSUPPORTED || failures >= mFailureThreshold) {
+            long base = failure == FAILURE_UNSUPPORTED ? mUnsupportedOpenMillis : mOpenMillis;
+            int openCount = ++mOpenCounts[slot];
+            long openMillis = jitter(Math.min(mOpenMaxMillis, base << Math.min(openCount - 1, MAX_SHIFT)));
+            mOpenUntilMillis[slot] = nowMillis + openMillis;
+            setCircuit(slot, CIRCUIT_OPEN);
+            if (mListener != null) {
+                mListener.onCircuitOpened(peerId, failure, openMillis);
+            }
+            return openMillis;
+        }
+        return jitter(Math.min(mBackoffMaxMillis, mBackoffBaseMillis << Math.min(failures - 1, MAX_SHIFT)));
+    }
+
+    /**
+     * Records a transient failure of a whole request for one of its {@code requestSize}
+     * peers. A peer ranged alone, or one that is already failing, is charged as in
+     * {@link #onFailure}; any other peer may just have shared the request with the culprit,
+     * so this returns -1 without counting the failure against it.
+     */
+    public long onRequestFailure(int peerId, int requestSize, long nowMillis) {
+        if (requestSize > 1 && mSlots.slotOf(peerId) < 0) {
+            return -1; // 失敗の履歴がないピアは巻き添えとみなす
+        }
+        return onFailure(peerId, FAILURE_TRANSIENT, nowMillis);
+    }
+
+    /**
+     * Records that a whole request failed because RTT is unavailable, pauses all ranging
+     * and returns how long the pause lasts. Consecutive pauses back off like a peer does.
+     */
+    public long onUnavailable(long nowMillis) {
+        int failures = ++mUnavailableFailures;
+        long delay = jitter(Math.min(mBackoffMaxMillis, mBackoffBaseMillis << Math.min(failures - 1, MAX_SHIFT)));
+        mPausedUntilMillis = nowMillis + delay;
+        return delay;
+    }
+
+    // 同時に失敗したピアの再試行が同じ要求に固まらないよう、待ち時間を [1 - jitter, 1] 倍に散らす
+    private long jitter(long delayMillis) {
+        return delayMillis - (long) (delayMillis * mJitter * mRandom.nextDouble());
+    }
+
+    private void setCircuit(int slot, int circuit) {
+        boolean wasOpen = mCircuits[slot] != CIRCUIT_CLOSED;
+        boolean isOpen = circuit != CIRCUIT_CLOSED;
+        mCircuits[slot] = circuit;
+        if (wasOpen != isOpen) {
+            mOpenCount += isOpen ? 1 : -1;
+        }
+        if (!isOpen) {
+            mConsecutiveFailures[slot] = 0;
+            mOpenCounts[slot] = 0;
+        }
+    }
+
+    /** True while RTT is unavailable and no request should be sent. */
+    public boolean isPaused(long nowMillis) {
+        return nowMillis < mPausedUntilMillis;
+    }
+
+    /** End of the current pause, or {@link Long#MIN_VALUE} if ranging was never paused. */
+    public long getPausedUntilMillis() {
+        return mPausedUntilMillis;
+    }
+
+    /** {@link #CIRCUIT_CLOSED}, {@link #CIRCUIT_OPEN} or {@link #CIRCUIT_HALF_OPEN}. */
+    public int getCircuit(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        return slot >= 0 ? mCircuits[slot] : CIRCUIT_CLOSED;
+    }
+
+    public int getConsecutiveFailures(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        return slot >= 0 ? mConsecutiveFailures[slot] : 0;
+    }
+
+    /** Number of peers whose circuit is open or half open; readable from any thread. */
+    public int getOpenCount() {
+        return mOpenCount;
+    }
+
+    public static final class Builder {
+        private final int mMaxPeers;
+        private long mBackoffBaseMillis = DEFAULT_BACKOFF_BASE_MS;
+        private long mBackoffMaxMillis = DEFAULT_BACKOFF_MAX_MS;
+        private double mJitter = DEFAULT_JITTER;
+        private int mFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+        private long mOpenMillis = DEFAULT_OPEN_MS;
+        private long mOpenMaxMillis = DEFAULT_OPEN_MAX_MS;
+        private long mUnsupportedOpenMillis = DEFAULT_UNSUPPORTED_OPEN_MS;
+        private Listener mListener;
+        private long mSeed = System.nanoTime();
+
+        public Builder(int maxPeers) {
+            if (maxPeers <= 0) {
+                throw new IllegalArgumentException("maxPeers must be positive: " + maxPeers);
+            }
+            mMaxPeers = maxPeers;
+        }
+
+        /** The n-th consecutive failure waits {@code baseMillis * 2^(n-1)}, at most {@code maxMillis}. */
+        public Builder setBackoff(long baseMillis, long maxMillis) {
+            if (baseMillis <= 0 || maxMillis < baseMillis) {
+                throw new IllegalArgumentException("Invalid backoff: " + baseMillis + ".." + maxMillis);
+            }
+            mBackoffBaseMillis = baseMillis;
+            mBackoffMaxMillis = maxMillis;
+            return this;
+        }
+
+        /** Fraction by which every wait is randomly shortened, in [0, 1]. */
+        public Builder setJitter(double jitter) {
+            if (!(jitter >= 0 && jitter <= 1)) {
+                throw new IllegalArgumentException("jitter must be in [0, 1]: " + jitter);
+            }
+            mJitter = jitter;
+            return this;
+        }
+
+        /** Consecutive transient failures after which a peer's circuit opens. */
+        public Builder setFailureThreshold(int failureThreshold) {
+            if (failureThreshold < 1) {
+                throw new IllegalArgumentException("failureThreshold must be at least 1");
+            }
+            mFailureThreshold = failureThreshold;
+            return this;
+        }
+
+        /**
+         * How long a circuit stays open the first time, after transient failures and for an
+         * unsupported responder, and the limit it doubles up to with every failed probe.
+         */
+        public Builder setOpenMillis(long openMillis, long unsupportedOpenMillis, long maxOpenMillis) {
+            if (openMillis <= 0 || unsupportedOpenMillis <= 0
+                    || maxOpenMillis < Math.max(openMillis, unsupportedOpenMillis)) {
+                throw new IllegalArgumentException("Invalid open times: " + openMillis + ", "
+                        + unsupportedOpenMillis + ".." + maxOpenMillis);
+            }
+            mOpenMillis = openMillis;
+            mUnsupportedOpenMillis = unsupportedOpenMillis;
+            mOpenMaxMillis = maxOpenMillis;
+            return this;
+        }
+
+        public Builder setListener(Listener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        /** Seed of the jitter, for reproducible simulations. */
+        public Builder setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        public RangingFailurePolicy build() {
+            return new RangingFailurePolicy(this);
+        }
+    }
+}
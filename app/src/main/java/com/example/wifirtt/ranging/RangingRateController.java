@@ -0,0 +1,245 @@
+package com.example.wifirtt.ranging;
+
+/**
+ * Chooses when each peer should be ranged next. The interval shrinks towards
+ * {@code minIntervalMillis} while a peer's distance is changing faster than its
+ * measurement noise, grows towards {@code maxIntervalMillis} while it is idle, and
+ * doubles for every consecutive failure. A peer can be locked to a slot of a repeating
+ * cycle (see {@link #setSlot}); its deadlines are then moved to the next start of its slot.
+ *
+ * <p>All state lives in preallocated arrays indexed by {@link PeerSlots}; no method
+ * allocates. Not thread-safe.
+ */
+public final class RangingRateController {
+
+    public static final long DEFAULT_MIN_INTERVAL_MS = 100;
+    public static final long DEFAULT_MAX_INTERVAL_MS = 2000;
+    /** Distance change that should be visible between two updates of a moving peer. */
+    public static final int DEFAULT_TARGET_STEP_MM = 100;
+
+    // 距離変化がノイズ (stddev) の何倍を超えたら「動いている」とみなすか
+    private static final double NOISE_FACTOR = 2.0;
+    // 速度推定の EWMA 係数
+    private static final double SPEED_ALPHA = 0.5;
+    private static final int MAX_FAILURE_SHIFT = 6;
+
+    private final long mMinIntervalMillis;
+    private final long mMaxIntervalMillis;
+    private final int mTargetStepMm;
+    private final PeerSlots mSlots;
+
+    private final long[] mDeadlines;
+    private final long[] mIntervals;
+    private final long[] mAnchorTimestamps;
+    private final int[] mAnchorDistancesMm;
+    private final double[] mSpeedsMmPerMs;
+    private final int[] mConsecutiveFailures;
+    private final long[] mSlotCycles;
+    private final long[] mSlotOffsets;
+
+    public RangingRateController(int maxPeers) {
+        this(maxPeers, DEFAULT_MIN_INTERVAL_MS, DEFAULT_MAX_INTERVAL_MS, DEFAULT_TARGET_STEP_MM);
+    }
+
+    public RangingRateController(int maxPeers, long minIntervalMillis, long maxIntervalMillis,
+                                 int targetStepMm) {
+        if (minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis) {
+            throw new IllegalArgumentException("Invalid interval range: " + minIntervalMillis
+                    + ".." + maxIntervalMillis);
+        }
+        if (targetStepMm <= 0) {
+            throw new IllegalArgumentException("targetStepMm must be positive: " + targetStepMm);
+        }
+        mMinIntervalMillis = minIntervalMillis;
+        mMaxIntervalMillis = maxIntervalMillis;
+        mTargetStepMm = targetStepMm;
+        mSlots = new PeerSlots(maxPeers);
+        mDeadlines = new long[maxPeers];
+        mIntervals = new long[maxPeers];
+        mAnchorTimestamps = new long[maxPeers];
+        mAnchorDistancesMm = new int[maxPeers];
+        mSpeedsMmPerMs = new double[maxPeers];
+        mConsecutiveFailures = new int[maxPeers];
+        mSlotCycles = new long[maxPeers];
+        mSlotOffsets = new long[maxPeers];
+    }
+
+    public long getMinIntervalMillis() {
+        return mMinIntervalMillis;
+    }
+
+    public long getMaxIntervalMillis() {
+        return mMaxIntervalMillis;
+    }
+
+    /** Starts tracking a peer; it is due immediately. Returns false if there is no room. */
+    public boolean addPeer(int peerId, long nowMillis) {
+        if (mSlots.slotOf(peerId) >= 0) {
+            return true;
+        }
+        int slot = mSlots.acquire(peerId);
+        if (slot < 0) {
+            return false;
+        }
+        mDeadlines[slot] = nowMillis;
+        mIntervals[slot] = mMinIntervalMillis;
+        mAnchorTimestamps[slot] = Long.MIN_VALUE;
+        mAnchorDistancesMm[slot] = 0;
+        // 新しいピアは動いているものとして扱い、静止が確認できたら間隔を伸ばす
+        mSpeedsMmPerMs[slot] = (double) mTargetStepMm / mMinIntervalMillis;
+        mConsecutiveFailures[slot] = 0;
+        mSlotCycles[slot] = 0;
+        return true;
+    }
+
+    /**
+     * Locks {@code peerId} to the slot starting {@code offsetMillis} into every
+     * {@code cycleMillis}: from now on it is only due at such instants, so it is ranged at
+     * most once per cycle. A {@code cycleMillis} of 0 unlocks it.
+     */
+    public void setSlot(int peerId, long cycleMillis, long offsetMillis, long nowMillis) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            return;
+        }
+        if (cycleMillis < 0 || (cycleMillis > 0 && (offsetMillis < 0 || offsetMillis >= cycleMillis))) {
+            throw new IllegalArgumentException("Invalid slot " + offsetMillis + " of " + cycleMillis);
+        }
+        mSlotCycles[slot] = cycleMillis;
+        mSlotOffsets[slot] = offsetMillis;
+        if (cycleMillis > 0) {
+            mDeadlines[slot] = alignToSlot(slot, Math.max(nowMillis, mDeadlines[slot]));
+        }
+    }
+
+    public void removePeer(int peerId) {
+        mSlots.release(peerId);
+    }
+
+    public void clear() {
+        mSlots.clear();
+    }
+
+    /**
+     * Marks a peer as having a request in flight so it is not picked again before its
+     * result arrives; the result reschedules it.
+     */
+    public void onRequested(int peerId, long nowMillis) {
+        onRequested(peerId, nowMillis, mMaxIntervalMillis);
+    }
+
+    /** Like {@link #onRequested(int, long)}, but holds the peer back for {@code holdMillis}. */
+    public void onRequested(int peerId, long nowMillis, long holdMillis) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot >= 0) {
+            mDeadlines[slot] = nowMillis + holdMillis;
+        }
+    }
+
+    public void onSuccess(int peerId, long timestampMillis, int distanceMm, int distanceStdDevMm) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            return;
+        }
+        mConsecutiveFailures[slot] = 0;
+        long anchorTimestamp = mAnchorTimestamps[slot];
+        if (anchorTimestamp == Long.MIN_VALUE) {
+            mAnchorTimestamps[slot] = timestampMillis;
+            mAnchorDistancesMm[slot] = distanceMm;
+        } else if (timestampMillis > anchorTimestamp) {
+            long dt = timestampMillis - anchorTimestamp;
+            int displacement = Math.abs(distanceMm - mAnchorDistancesMm[slot]);
+            double threshold = Math.max(1, NOISE_FACTOR * distanceStdDevMm);
+            if (displacement > threshold) {
+                // ノイズを超えて動いた: アンカーからの平均速度で推定を更新する
+                double speed = (double) displacement / dt;
+                mSpeedsMmPerMs[slot] += SPEED_ALPHA * (speed - mSpeedsMmPerMs[slot]);
+                mAnchorTimestamps[slot] = timestampMillis;
+                mAnchorDistancesMm[slot] = distanceMm;
+            } else {
+                // ノイズ内に収まっている間は、観測と矛盾しない速度まで推定を下げる
+                mSpeedsMmPerMs[slot] = Math.min(mSpeedsMmPerMs[slot], threshold / dt);
+            }
+        }
+
+        double speed = mSpeedsMmPerMs[slot];
+        long interval = speed > 0 ? (long) (mTargetStepMm / speed) : mMaxIntervalMillis;
+        schedule(slot, timestampMillis, interval);
+    }
+
+    public void onFailure(int peerId, long nowMillis) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            return;
+        }
+        int failures = ++mConsecutiveFailures[slot];
+        long interval = mMinIntervalMillis << Math.min(failures, MAX_FAILURE_SHIFT);
+        schedule(slot, nowMillis, interval);
+    }
+
+    /**
+     * Like {@link #onFailure(int, long)}, but retries after {@code retryDelayMillis} as
+     * decided by a {@link RangingFailurePolicy}, which may exceed the maximum interval.
+     */
+    public void onFailure(int peerId, long nowMillis, long retryDelayMillis) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            return;
+        }
+        mConsecutiveFailures[slot]++;
+        mDeadlines[slot] = alignToSlot(slot, nowMillis + Math.max(mMinIntervalMillis, retryDelayMillis));
+    }
+
+    private void schedule(int slot, long nowMillis, long interval) {
+        interval = Math.max(mMinIntervalMillis, Math.min(mMaxIntervalMillis, interval));
+        mIntervals[slot] = interval;
+        long deadline = nowMillis + interval;
+        long cycle = mSlotCycles[slot];
+        if (cycle > 0) {
+            // 結果はスロットの開始より少し後に届くので、切り上げると 1 サイクル余計に待つことになる。
+            // 間隔以前で最後のスロット開始時刻に切り下げ、ただし次のサイクルより早くはしない
+            deadline = alignToSlot(slot, deadline) - cycle;
+            if (deadline <= nowMillis) {
+                deadline += cycle;
+            }
+        }
+        mDeadlines[slot] = deadline;
+    }
+
+    // スロットに固定されたピアは、指定時刻以降で最初のスロット開始時刻まで待たせる
+    private long alignToSlot(int slot, long timeMillis) {
+        long cycle = mSlotCycles[slot];
+        if (cycle == 0) {
+            return timeMillis;
+        }
+        long wait = Math.floorMod(mSlotOffsets[slot] - timeMillis, cycle);
+        return timeMillis + wait;
+    }
+
+    public boolean isDue(int peerId, long nowMillis) {
+        int slot = mSlots.slotOf(peerId);
+        return slot >= 0 && mDeadlines[slot] <= nowMillis;
+    }
+
+    /** Returns the next deadline of {@code peerId}, or {@link Long#MAX_VALUE} if unknown. */
+    public long getDeadline(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        return slot >= 0 ? mDeadlines[slot] : Long.MAX_VALUE;
+    }
+
+    public long getInterval(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        return slot >= 0 ? mIntervals[slot] : mMaxIntervalMillis;
+    }
+
+    /** Returns the earliest deadline over all tracked peers, or {@link Long#MAX_VALUE}. */
+    public long getEarliestDeadline() {
+        long earliest = Long.MAX_VALUE;
+        for (int slot = 0; slot < mSlots.capacity(); slot++) {
+            if (mSlots.peerIdAt(slot) >= 0 && mDeadlines[slot] < earliest) {
+                earliest = mDeadlines[slot];
+            }
+        }
+        return earliest;
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.wifirtt.ranging;
+
+/**
+ * Immutable view of the latest ranging state, built on the ranging thread and handed to
+ * the UI through a {@link CoalescingPublisher}.
+ */
+public final class RangingSnapshot {
+
+    /** Window median of a peer with no successful sample in the window. */
+    public static final int NO_DISTANCE = Integer.MIN_VALUE;
+
+    private final long mTimestampMillis;
+    private final int mKnownPeerCount;
+    private final int mLastBatchSize;
+    private final int mLastBatchSuccessCount;
+    private final int mLastFailureCode;
+    private final int[] mPeerIds;
+    private final int[] mDistancesMm;
+    private final int[] mUncertaintiesMm;
+    private final int[] mRssis;
+    private final long[] mUpdatedMillis;
+    private final int[] mWindowMediansMm;
+    private final double[] mWindowSuccessRatios;
+    private final boolean mHasPosition;
+    private final double mPositionX;
+    private final double mPositionY;
+    private final double mPositionZ;
+    private final double mPositionErrorM;
+
+    RangingSnapshot(long timestampMillis, int knownPeerCount, int lastBatchSize,
+                    int lastBatchSuccessCount, int lastFailureCode, int[] peerIds,
+                    int[] distancesMm, int[] uncertaintiesMm, int[] rssis, long[] updatedMillis,
+                    int[] windowMediansMm, double[] windowSuccessRatios, boolean hasPosition,
+                    double positionX, double positionY, double positionZ, double positionErrorM) {
+        mTimestampMillis = timestampMillis;
+        mKnownPeerCount = knownPeerCount;
+        mLastBatchSize = lastBatchSize;
+        mLastBatchSuccessCount = lastBatchSuccessCount;
+        mLastFailureCode = lastFailureCode;
+        mPeerIds = peerIds;
+        mDistancesMm = distancesMm;
+        mUncertaintiesMm = uncertaintiesMm;
+        mRssis = rssis;
+        mUpdatedMillis = updatedMillis;
+        mWindowMediansMm = windowMediansMm;
+        mWindowSuccessRatios = windowSuccessRatios;
+        mHasPosition = hasPosition;
+        mPositionX = positionX;
+        mPositionY = positionY;
+        mPositionZ = positionZ;
+        mPositionErrorM = positionErrorM;
+    }
+
+    public long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    public int getKnownPeerCount() {
+        return mKnownPeerCount;
+    }
+
+    public int getLastBatchSize() {
+        return mLastBatchSize;
+    }
+
+    public int getLastBatchSuccessCount() {
+        return mLastBatchSuccessCount;
+    }
+
+    /** The code of the last {@code onRangingFailure}, or 0 if the last request succeeded. */
+    public int getLastFailureCode() {
+        return mLastFailureCode;
+    }
+
+    public boolean hasPosition() {
+        return mHasPosition;
+    }
+
+    /** Position of this device in the anchor frame, in metres. */
+    public double getPositionX() {
+        return mPositionX;
+    }
+
+    public double getPositionY() {
+        return mPositionY;
+    }
+
+    public double getPositionZ() {
+        return mPositionZ;
+    }
+
+    /** 1-sigma error estimate of the position, in metres. */
+    public double getPositionErrorM() {
+        return mPositionErrorM;
+    }
+
+    /** Number of peers with at least one successful measurement. */
+    public int size() {
+        return mPeerIds.length;
+    }
+
+    public int getPeerId(int i) {
+        return mPeerIds[i];
+    }
+
+    public int getDistanceMm(int i) {
+        return mDistancesMm[i];
+    }
+
+    /** 1-sigma uncertainty of {@link #getDistanceMm}, or -1 if unknown. */
+    public int getUncertaintyMm(int i) {
+        return mUncertaintiesMm[i];
+    }
+
+    public int getRssi(int i) {
+        return mRssis[i];
+    }
+
+    public long getUpdatedMillis(int i) {
+        return mUpdatedMillis[i];
+    }
+
+    /** Median raw distance over the recent-history window, or {@link #NO_DISTANCE} if unknown. */
+    public int getWindowMedianMm(int i) {
+        return mWindowMediansMm[i];
+    }
+
+    /** Share of successful results over the recent-history window. */
+    public double getWindowSuccessRatio(int i) {
+        return mWindowSuccessRatios[i];
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.wifirtt.record;
+
+import com.example.wifirtt.ranging.RangingBatch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary layout shared by the capture files and any other consumer of raw ranging
+ * samples. All values are little-endian.
+ *
+ * <p>A frame is a {@value #HEADER_SIZE}-byte header followed by {@code count} records of
+ * {@value #RECORD_SIZE} bytes each:
+ * <pre>
+ * header: int magic 'RTTR', short version, short recordSize, int sequence, int count
+ * record: long timestampMillis, int peerId, int distanceMm, int distanceStdDevMm,
+ *         short rssi, byte status, byte reserved, short attempted, short successful,
+ *         int reserved
+ * </pre>
+ * Fields of failed results other than timestamp, peer id and status are zero.
+ */
+public final class RangingRecordFormat {
+
+    public static final int MAGIC = 0x52545452; // ファイル上のバイト列は "RTTR"
+    public static final short VERSION = 1;
+
+    public static final int HEADER_SIZE = 16;
+    public static final int HEADER_MAGIC = 0;
+    public static final int HEADER_VERSION = 4;
+    public static final int HEADER_RECORD_SIZE = 6;
+    public static final int HEADER_SEQUENCE = 8;
+    public static final int HEADER_COUNT = 12;
+
+    public static final int RECORD_SIZE = 32;
+    public static final int TIMESTAMP = 0;
+    public static final int PEER_ID = 8;
+    public static final int DISTANCE_MM = 12;
+    public static final int DISTANCE_STDDEV_MM = 16;
+    public static final int RSSI = 20;
+    public static final int STATUS = 22;
+    public static final int ATTEMPTED = 24;
+    public static final int SUCCESSFUL = 26;
+
+    private RangingRecordFormat() {
+    }
+
+    /** Writes a frame header at {@code offset} using absolute puts. */
+    public static void writeHeader(ByteBuffer buffer, int offset, int sequence, int count) {
+        buffer.putInt(offset + HEADER_MAGIC, MAGIC);
+        buffer.putShort(offset + HEADER_VERSION, VERSION);
+        buffer.putShort(offset + HEADER_RECORD_SIZE, (short) RECORD_SIZE);
+        buffer.putInt(offset + HEADER_SEQUENCE, sequence);
+        buffer.putInt(offset + HEADER_COUNT, count);
+    }
+
+    /**
+     * Checks the frame header at {@code offset} and returns its record count.
+     *
+     * @throws IllegalArgumentException if the header is not a supported frame header
+     */
+    public static int readHeaderCount(ByteBuffer buffer, int offset) {
+        if (buffer.getInt(offset + HEADER_MAGIC) != MAGIC) {
+            throw new IllegalArgumentException("Not a ranging record frame");
+        }
+        short version = buffer.getShort(offset + HEADER_VERSION);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported ranging record version: " + version);
+        }
+        short recordSize = buffer.getShort(offset + HEADER_RECORD_SIZE);
+        if (recordSize != RECORD_SIZE) {
+            throw new IllegalArgumentException("Unexpected record size: " + recordSize);
+        }
+        return buffer.getInt(offset + HEADER_COUNT);
+    }
+
+    /** Writes entry {@code i} of {@code batch} as one record at {@code offset}. */
+    public static void writeRecord(ByteBuffer buffer, int offset, RangingBatch batch, int i) {
+        writeRecord(buffer, offset, batch.getTimestampMillis(i), batch.getPeerId(i), batch.getStatus(i),
+                batch.getDistanceMm(i), batch.getDistanceStdDevMm(i), batch.getRssi(i),
+                batch.getNumAttemptedMeasurements(i), batch.getNumSuccessfulMeasurements(i));
+    }
+
+    public static void writeRecord(ByteBuffer buffer, int offset, long timestampMillis, int peerId,
+                                   int status, int distanceMm, int distanceStdDevMm, int rssi,
+                                   int attempted, int successful) {
+        buffer.putLong(offset + TIMESTAMP, timestampMillis);
+        buffer.putInt(offset + PEER_ID, peerId);
+        buffer.putInt(offset + DISTANCE_MM, distanceMm);
+        buffer.putInt(offset + DISTANCE_STDDEV_MM, distanceStdDevMm);
+        buffer.putShort(offset + RSSI, (short) rssi);
+        buffer.put(offset + STATUS, (byte) status);
+        buffer.put(offset + STATUS + 1, (byte) 0);
+        buffer.putShort(offset + ATTEMPTED, (short) attempted);
+        buffer.putShort(offset + SUCCESSFUL, (short) successful);
+        buffer.putInt(offset + SUCCESSFUL + 2, 0);
+    }
+}
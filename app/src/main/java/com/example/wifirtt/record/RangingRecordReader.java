@@ -0,0 +1,146 @@
+package com.example.wifirtt.record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streams the records of a capture written by {@link RangingRecorder}, one segment at a
+ * time. Call {@link #next()} until it returns false and read the current record with the
+ * getters; iterating does not allocate except when moving to the next segment.
+ *
+ * <pre>
+ * try (RangingRecordReader reader = new RangingRecordReader(dir, session)) {
+ *     while (reader.next()) {
+ *         use(reader.getPeerId(), reader.getDistanceMm());
+ *     }
+ * }
+ * </pre>
+ */
+public final class RangingRecordReader implements Closeable {
+
+    private final File[] mSegments;
+    private int mSegmentIndex = -1;
+    private MappedByteBuffer mSegment;
+    private int mSegmentCount;
+    private int mRecordIndex;
+    private int mOffset;
+
+    public RangingRecordReader(File directory, String session) throws IOException {
+        List<File> segments = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            File file = RangingRecorder.segmentFile(directory, session, i);
+            if (!file.isFile()) {
+                break;
+            }
+            segments.add(file);
+        }
+        if (segments.isEmpty()) {
+            throw new IOException("No capture segments for " + session + " in " + directory);
+        }
+        mSegments = segments.toArray(new File[0]);
+    }
+
+    /** Reads the segment files given, in order. */
+    public RangingRecordReader(File... segments) {
+        mSegments = segments.clone();
+    }
+
+    /** Returns the session names of all captures in {@code directory}, sorted. */
+    public static List<String> listSessions(File directory) {
+        List<String> sessions = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            String firstSuffix = "-000000" + RangingRecorder.FILE_SUFFIX;
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(firstSuffix)) {
+                    sessions.add(name.substring(0, name.length() - firstSuffix.length()));
+                }
+            }
+        }
+        Collections.sort(sessions);
+        return sessions;
+    }
+
+    /** Advances to the next record; returns false at the end of the capture. */
+    public boolean next() throws IOException {
+        while (mSegment == null || mRecordIndex + 1 >= mSegmentCount) {
+            if (!openNextSegment()) {
+                return false;
+            }
+        }
+        mRecordIndex++;
+        mOffset = RangingRecordFormat.HEADER_SIZE + mRecordIndex * RangingRecordFormat.RECORD_SIZE;
+        return true;
+    }
+
+    private boolean openNextSegment() throws IOException {
+        mSegment = null;
+        if (mSegmentIndex + 1 >= mSegments.length) {
+            return false;
+        }
+        mSegmentIndex++;
+        try (RandomAccessFile file = new RandomAccessFile(mSegments[mSegmentIndex], "r")) {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int count;
+            try {
+                count = RangingRecordFormat.readHeaderCount(buffer, 0);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(mSegments[mSegmentIndex] + ": " + e.getMessage(), e);
+            }
+            // 書き込み途中で切れたファイルでも、実際に収まっている分だけ読む
+            long capacity = (file.length() - RangingRecordFormat.HEADER_SIZE) / RangingRecordFormat.RECORD_SIZE;
+            mSegmentCount = (int) Math.min(count, capacity);
+            mSegment = buffer;
+            mRecordIndex = -1;
+        }
+        return true;
+    }
+
+    public long getTimestampMillis() {
+        return mSegment.getLong(mOffset + RangingRecordFormat.TIMESTAMP);
+    }
+
+    public int getPeerId() {
+        return mSegment.getInt(mOffset + RangingRecordFormat.PEER_ID);
+    }
+
+    public int getStatus() {
+        return mSegment.get(mOffset + RangingRecordFormat.STATUS) & 0xff;
+    }
+
+    public int getDistanceMm() {
+        return mSegment.getInt(mOffset + RangingRecordFormat.DISTANCE_MM);
+    }
+
+    public int getDistanceStdDevMm() {
+        return mSegment.getInt(mOffset + RangingRecordFormat.DISTANCE_STDDEV_MM);
+    }
+
+    public int getRssi() {
+        return mSegment.getShort(mOffset + RangingRecordFormat.RSSI);
+    }
+
+    public int getNumAttemptedMeasurements() {
+        return mSegment.getShort(mOffset + RangingRecordFormat.ATTEMPTED);
+    }
+
+    public int getNumSuccessfulMeasurements() {
+        return mSegment.getShort(mOffset + RangingRecordFormat.SUCCESSFUL);
+    }
+
+    @Override
+    public void close() {
+        mSegment = null;
+        mSegmentIndex = mSegments.length;
+    }
+}
@@ -0,0 +1,257 @@
+package com.example.wifirtt.record;
+
+import com.example.wifirtt.ranging.RangingBatch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends every {@link RangingBatch} entry as a fixed-width record (see
+ * {@link RangingRecordFormat}) to a series of memory-mapped segment files named
+ * {@code <session>-<index>.rttrec}. Each segment is one frame whose header count is
+ * updated after every record, so a crash loses at most the record being written.
+ *
+ * <p>{@link #record} only does absolute puts into the mapped buffer and never allocates
+ * or blocks on I/O. A background thread forces dirty pages to disk every flush interval
+ * and maps the next segment ahead of time. If the next segment is not mapped yet when the
+ * current one fills up, records wait in a preallocated backlog, and are dropped once it
+ * is full. {@link #close} truncates the last segment to the records written.
+ *
+ * <p>{@link #record} and {@link #close} must be called from a single thread.
+ */
+public final class RangingRecorder implements Closeable {
+
+    public static final String FILE_SUFFIX = ".rttrec";
+    public static final int DEFAULT_RECORDS_PER_SEGMENT = 64 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    public static final int DEFAULT_BACKLOG_RECORDS = 1024;
+
+    private final File mDirectory;
+    private final String mSession;
+    private final int mRecordsPerSegment;
+    private final ScheduledExecutorService mFlusher;
+
+    private int mSegmentIndex;
+    private MappedByteBuffer mSegment;
+    private int mSegmentCount;
+    private Future<MappedByteBuffer> mNextSegment;
+    private volatile MappedByteBuffer mDirtySegment;
+    // 次のセグメントを待つ間のレコード。次のセグメントに必ず収まる件数に抑える
+    private final ByteBuffer mBacklog;
+    private int mBacklogCount;
+
+    private long mRecordCount;
+    private long mDroppedCount;
+    private boolean mClosed;
+
+    public RangingRecorder(File directory, String session) throws IOException {
+        this(directory, session, DEFAULT_RECORDS_PER_SEGMENT, DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    public RangingRecorder(File directory, String session, int recordsPerSegment,
+                           long flushIntervalMillis) throws IOException {
+        if (recordsPerSegment <= 0) {
+            throw new IllegalArgumentException("recordsPerSegment must be positive: " + recordsPerSegment);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        mDirectory = directory;
+        mSession = session;
+        mRecordsPerSegment = recordsPerSegment;
+        int backlogRecords = Math.min(DEFAULT_BACKLOG_RECORDS, recordsPerSegment);
+        mBacklog = ByteBuffer.allocate(backlogRecords * RangingRecordFormat.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        mFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RangingRecorderFlush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mSegment = mapSegment(0);
+        mNextSegment = prepareSegment(1);
+        mFlusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                force(mDirtySegment);
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        mDirtySegment = mSegment;
+    }
+
+    public static File segmentFile(File directory, String session, int index) {
+        return new File(directory, String.format(Locale.US, "%s-%06d%s", session, index, FILE_SUFFIX));
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public String getSession() {
+        return mSession;
+    }
+
+    /** Appends every entry of {@code batch}. */
+    public void record(RangingBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (mClosed) {
+                mDroppedCount++;
+                continue;
+            }
+            if (mSegmentCount == mRecordsPerSegment) {
+                rollOver();
+            }
+            // バックログだけで次のセグメントが埋まることもあるので、切り替えた後も確かめる
+            if (mSegmentCount == mRecordsPerSegment) {
+                if (mBacklogCount * RangingRecordFormat.RECORD_SIZE == mBacklog.capacity()) {
+                    mDroppedCount++;
+                } else {
+                    RangingRecordFormat.writeRecord(mBacklog, mBacklogCount * RangingRecordFormat.RECORD_SIZE, batch, i);
+                    mBacklogCount++;
+                    mRecordCount++;
+                }
+                continue;
+            }
+            RangingRecordFormat.writeRecord(mSegment,
+                    RangingRecordFormat.HEADER_SIZE + mSegmentCount * RangingRecordFormat.RECORD_SIZE, batch, i);
+            mSegmentCount++;
+            // レコードを書き終えてから件数を更新する
+            mSegment.putInt(RangingRecordFormat.HEADER_COUNT, mSegmentCount);
+            mRecordCount++;
+        }
+    }
+
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /** Records dropped because the next segment was not mapped in time and the backlog was full. */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Switches to the next segment if it is mapped, and moves the backlog into it. Returns
+     * false without waiting if it is not ready yet.
+     */
+    private boolean rollOver() {
+        if (!mNextSegment.isDone()) {
+            return false;
+        }
+        final MappedByteBuffer full = mSegment;
+        MappedByteBuffer next;
+        try {
+            next = mNextSegment.get(); // 完了済みなので待たない
+        } catch (Exception e) {
+            // 割り当てに失敗したらフラッシュスレッドでやり直す。その間はバックログにためる
+            mNextSegment = prepareSegment(mSegmentIndex + 1);
+            return false;
+        }
+        mSegmentIndex++;
+        mSegment = next;
+        mSegmentCount = mBacklogCount;
+        mDirtySegment = next;
+        if (mBacklogCount > 0) {
+            mBacklog.limit(mBacklogCount * RangingRecordFormat.RECORD_SIZE);
+            next.position(RangingRecordFormat.HEADER_SIZE);
+            next.put(mBacklog);
+            next.clear();
+            mBacklog.clear();
+            mBacklogCount = 0;
+            next.putInt(RangingRecordFormat.HEADER_COUNT, mSegmentCount);
+        }
+        mFlusher.execute(new Runnable() {
+            @Override
+            public void run() {
+                force(full);
+            }
+        });
+        mNextSegment = prepareSegment(mSegmentIndex + 1);
+        return true;
+    }
+
+    private Future<MappedByteBuffer> prepareSegment(final int index) {
+        return mFlusher.submit(new Callable<MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer call() throws IOException {
+                return mapSegment(index);
+            }
+        });
+    }
+
+    private MappedByteBuffer mapSegment(int index) throws IOException {
+        long size = RangingRecordFormat.HEADER_SIZE + (long) mRecordsPerSegment * RangingRecordFormat.RECORD_SIZE;
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(mDirectory, mSession, index), "rw")) {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            RangingRecordFormat.writeHeader(buffer, 0, index, 0);
+            return buffer;
+        }
+    }
+
+    private static void force(MappedByteBuffer buffer) {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Writes out the backlog, flushes the current segment and truncates it to its records,
+     * deletes the unused pre-mapped segment and stops the flusher. May block.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        // ここだけは次のセグメントを待ってよい。割り当てに失敗していたら一度だけやり直す
+        for (int attempt = 0; attempt < 2 && mBacklogCount > 0; attempt++) {
+            try {
+                mNextSegment.get(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                // rollOver が割り当てをやり直す
+            }
+            rollOver();
+        }
+        if (mBacklogCount > 0) {
+            mDroppedCount += mBacklogCount;
+            mRecordCount -= mBacklogCount;
+            mBacklogCount = 0;
+        }
+        mNextSegment.cancel(false);
+        mFlusher.shutdown();
+        try {
+            mFlusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        force(mSegment);
+        mSegment = null;
+        mDirtySegment = null;
+        long length = RangingRecordFormat.HEADER_SIZE + (long) mSegmentCount * RangingRecordFormat.RECORD_SIZE;
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(mDirectory, mSession, mSegmentIndex), "rw")) {
+            file.setLength(length);
+        }
+        // 先に作っておいた空のセグメントは残さない
+        File next = segmentFile(mDirectory, mSession, mSegmentIndex + 1);
+        if (next.exists() && !next.delete()) {
+            throw new IOException("Cannot delete " + next);
+        }
+    }
+}
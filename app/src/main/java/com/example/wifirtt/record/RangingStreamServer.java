@@ -0,0 +1,457 @@
+package com.example.wifirtt.record;
+
+import com.example.wifirtt.ranging.RangingBatch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves live ranging results to clients on the loopback interface (for example through
+ * {@code adb forward tcp:7878 tcp:7878}) as a stream of {@link RangingRecordFormat} frames,
+ * the same framing the capture files use. Frame sequence numbers go up by one per frame,
+ * so a client can count the frames it missed. {@code RangingStreamClient} in the tools
+ * module reads the stream.
+ *
+ * <p>{@link #publish} encodes records into a private frame and hands finished frames to
+ * an I/O thread through a fixed ring; it never blocks and does nothing while no client is
+ * connected. The I/O thread copies each frame into every client's send buffer and writes
+ * them with non-blocking NIO. A slow client never holds up the ranging thread:
+ * <ul>
+ * <li>a client whose send buffer has no room for a whole frame skips that frame;</li>
+ * <li>if the I/O thread itself falls behind and the ring is full, the current frame keeps
+ *     filling, and once it is full a new result overwrites the newest record of the same
+ *     peer in it, or is dropped if the peer has none.</li>
+ * </ul>
+ *
+ * <p>{@link #publish}, {@link #flush} and {@link #close} must be called from a single
+ * thread; the getters can be called from any thread.
+ */
+public final class RangingStreamServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 7878;
+    public static final int DEFAULT_RECORDS_PER_FRAME = 64;
+    public static final long DEFAULT_MAX_FRAME_DELAY_MS = 50;
+    public static final int DEFAULT_RING_FRAMES = 16;
+    public static final int DEFAULT_CLIENT_BUFFER_BYTES = 256 * 1024;
+    public static final int DEFAULT_MAX_CLIENTS = 4;
+
+    // 停止要求の取りこぼしに備えて、select は一定時間で戻す
+    private static final long SELECT_TIMEOUT_MS = 500;
+
+    public static final class Builder {
+        private final int mPort;
+        private int mRecordsPerFrame = DEFAULT_RECORDS_PER_FRAME;
+        private long mMaxFrameDelayMillis = DEFAULT_MAX_FRAME_DELAY_MS;
+        private int mRingFrames = DEFAULT_RING_FRAMES;
+        private int mClientBufferBytes = DEFAULT_CLIENT_BUFFER_BYTES;
+        private int mMaxClients = DEFAULT_MAX_CLIENTS;
+
+        /** {@code port} 0 picks a free port; see {@link #getPort()}. */
+        public Builder(int port) {
+            if (port < 0 || port > 0xffff) {
+                throw new IllegalArgumentException("Invalid port: " + port);
+            }
+            mPort = port;
+        }
+
+        public Builder setRecordsPerFrame(int recordsPerFrame) {
+            if (recordsPerFrame <= 0) {
+                throw new IllegalArgumentException("recordsPerFrame must be positive: " + recordsPerFrame);
+            }
+            mRecordsPerFrame = recordsPerFrame;
+            return this;
+        }
+
+        /**
+         * A partly filled frame is sent by the first {@link #publish} after this delay. Call
+         * {@link #flush} after the delay as well, or a frame waits for the next result.
+         */
+        public Builder setMaxFrameDelayMillis(long maxFrameDelayMillis) {
+            if (maxFrameDelayMillis < 0) {
+                throw new IllegalArgumentException("maxFrameDelayMillis must not be negative: " + maxFrameDelayMillis);
+            }
+            mMaxFrameDelayMillis = maxFrameDelayMillis;
+            return this;
+        }
+
+        public Builder setRingFrames(int ringFrames) {
+            if (ringFrames <= 0) {
+                throw new IllegalArgumentException("ringFrames must be positive: " + ringFrames);
+            }
+            mRingFrames = ringFrames;
+            return this;
+        }
+
+        public Builder setClientBufferBytes(int clientBufferBytes) {
+            mClientBufferBytes = clientBufferBytes;
+            return this;
+        }
+
+        public Builder setMaxClients(int maxClients) {
+            if (maxClients <= 0) {
+                throw new IllegalArgumentException("maxClients must be positive: " + maxClients);
+            }
+            mMaxClients = maxClients;
+            return this;
+        }
+
+        /** Binds the loopback port and starts the I/O thread. */
+        public RangingStreamServer start() throws IOException {
+            int frameBytes = RangingRecordFormat.HEADER_SIZE + mRecordsPerFrame * RangingRecordFormat.RECORD_SIZE;
+            if (mClientBufferBytes < frameBytes) {
+                throw new IllegalArgumentException("clientBufferBytes " + mClientBufferBytes
+                        + " cannot hold a frame of " + frameBytes + " bytes");
+            }
+            RangingStreamServer server = new RangingStreamServer(this);
+            server.start(mPort);
+            return server;
+        }
+    }
+
+    private final int mRecordsPerFrame;
+    private final long mMaxFrameDelayMillis;
+    private final int mClientBufferBytes;
+    private final int mMaxClients;
+
+    // Producer side, only touched by the publishing thread
+    private final ByteBuffer mFrame;
+    private int mFrameCount;
+    private long mFrameStartMillis;
+    private int mSequence;
+    private long mHead;
+
+    // 生産側と I/O スレッドの間のリング。mHead まで書き込み済み、mTail まで送り出し済み
+    private final ByteBuffer[] mRing;
+    private final AtomicLong mPublished = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    // I/O side, only touched by the I/O thread
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private final List<Client> mClients = new ArrayList<>();
+    private final ByteBuffer mDiscard = ByteBuffer.allocate(256);
+    private Thread mThread;
+
+    private volatile boolean mClosed;
+    private volatile int mClientCount;
+    private volatile long mRecordCount;
+    private volatile long mAggregatedCount;
+    private volatile long mDroppedCount;
+    private volatile long mSkippedFrameCount;
+
+    private RangingStreamServer(Builder builder) {
+        mRecordsPerFrame = builder.mRecordsPerFrame;
+        mMaxFrameDelayMillis = builder.mMaxFrameDelayMillis;
+        mClientBufferBytes = builder.mClientBufferBytes;
+        mMaxClients = builder.mMaxClients;
+        int frameBytes = RangingRecordFormat.HEADER_SIZE + mRecordsPerFrame * RangingRecordFormat.RECORD_SIZE;
+        mFrame = ByteBuffer.allocate(frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+        mRing = new ByteBuffer[builder.mRingFrames];
+        for (int i = 0; i < mRing.length; i++) {
+            mRing[i] = ByteBuffer.allocate(frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private void start(int port) throws IOException {
+        mSelector = Selector.open();
+        try {
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            mServerChannel.configureBlocking(false);
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly(mServerChannel);
+            closeQuietly(mSelector);
+            throw e;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "RangingStreamServer");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** Returns the bound port. */
+    public int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Adds every entry of {@code batch} to the current frame, and sends the frame once it is
+     * full or {@code maxFrameDelayMillis} old.
+     */
+    public void publish(RangingBatch batch, long nowMillis) {
+        if (mClosed) {
+            return;
+        }
+        if (mClientCount == 0) {
+            mFrameCount = 0; // 誰も聞いていない間の結果は後から来たクライアントに送らない
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (mFrameCount == mRecordsPerFrame && !emit()) {
+                coalesce(batch, i);
+                continue;
+            }
+            if (mFrameCount == 0) {
+                mFrameStartMillis = nowMillis;
+            }
+            RangingRecordFormat.writeRecord(mFrame,
+                    RangingRecordFormat.HEADER_SIZE + mFrameCount * RangingRecordFormat.RECORD_SIZE, batch, i);
+            mFrameCount++;
+            mRecordCount++;
+        }
+        if (mFrameCount > 0 && nowMillis - mFrameStartMillis >= mMaxFrameDelayMillis) {
+            emit();
+        }
+    }
+
+    /** Sends the current frame now if it has any records and the ring has room. */
+    public void flush() {
+        if (!mClosed && mFrameCount > 0) {
+            emit();
+        }
+    }
+
+    private boolean emit() {
+        if (mHead - mTail.get() >= mRing.length) {
+            return false;
+        }
+        int length = RangingRecordFormat.HEADER_SIZE + mFrameCount * RangingRecordFormat.RECORD_SIZE;
+        RangingRecordFormat.writeHeader(mFrame, 0, mSequence++, mFrameCount);
+        ByteBuffer slot = mRing[(int) (mHead % mRing.length)];
+        slot.clear();
+        mFrame.limit(length);
+        slot.put(mFrame);
+        slot.flip();
+        mFrame.clear();
+        mFrameCount = 0;
+        mPublished.lazySet(++mHead);
+        mSelector.wakeup();
+        return true;
+    }
+
+    // 枠が満杯で送り出せない間は、同じピアの最新レコードを上書きして最新値だけを残す
+    private void coalesce(RangingBatch batch, int i) {
+        int peerId = batch.getPeerId(i);
+        for (int r = mFrameCount - 1; r >= 0; r--) {
+            int offset = RangingRecordFormat.HEADER_SIZE + r * RangingRecordFormat.RECORD_SIZE;
+            if (mFrame.getInt(offset + RangingRecordFormat.PEER_ID) == peerId) {
+                RangingRecordFormat.writeRecord(mFrame, offset, batch, i);
+                mAggregatedCount++;
+                return;
+            }
+        }
+        mDroppedCount++;
+    }
+
+    public int getClientCount() {
+        return mClientCount;
+    }
+
+    /** Records written into frames. */
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /** Results that replaced an unsent record of the same peer because the ring was full. */
+    public long getAggregatedCount() {
+        return mAggregatedCount;
+    }
+
+    /** Results dropped because the ring was full and their peer had no record to replace. */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /** Frames handed to the I/O thread. */
+    public long getFrameCount() {
+        return mPublished.get();
+    }
+
+    /** Frame copies not sent to a client because its send buffer was full. */
+    public long getSkippedFrameCount() {
+        return mSkippedFrameCount;
+    }
+
+    private void serve() {
+        try {
+            while (!mClosed) {
+                mSelector.select(SELECT_TIMEOUT_MS);
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client client = (Client) key.attachment();
+                    if (key.isReadable()) {
+                        read(client);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(client);
+                    }
+                }
+                drainRing();
+            }
+        } catch (IOException e) {
+            // セレクタ自体が壊れたら配信をやめる。計測側は publish を続けても構わない
+            mClosed = true;
+        } finally {
+            for (int i = mClients.size() - 1; i >= 0; i--) {
+                closeClient(mClients.get(i));
+            }
+            closeQuietly(mServerChannel);
+            closeQuietly(mSelector);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServerChannel.accept()) != null) {
+            if (mClients.size() >= mMaxClients) {
+                closeQuietly(channel);
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Client client = new Client(channel, mClientBufferBytes);
+                client.mKey = channel.register(mSelector, SelectionKey.OP_READ, client);
+                mClients.add(client);
+                mClientCount = mClients.size();
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    // クライアントからの入力は使わない。切断を検出するためだけに読み捨てる
+    private void read(Client client) {
+        try {
+            int n;
+            do {
+                mDiscard.clear();
+                n = client.mChannel.read(mDiscard);
+            } while (n > 0);
+            if (n < 0) {
+                closeClient(client);
+            }
+        } catch (IOException e) {
+            closeClient(client);
+        }
+    }
+
+    private void drainRing() {
+        long published = mPublished.get();
+        long tail = mTail.get();
+        if (tail == published) {
+            return;
+        }
+        for (; tail < published; tail++) {
+            ByteBuffer frame = mRing[(int) (tail % mRing.length)];
+            for (int c = 0; c < mClients.size(); c++) {
+                ByteBuffer out = mClients.get(c).mOut;
+                if (out.remaining() < frame.limit()) {
+                    mSkippedFrameCount++;
+                    continue;
+                }
+                frame.position(0);
+                out.put(frame);
+            }
+        }
+        mTail.lazySet(tail);
+        for (int c = mClients.size() - 1; c >= 0; c--) {
+            write(mClients.get(c));
+        }
+    }
+
+    private void write(Client client) {
+        ByteBuffer out = client.mOut;
+        if (out.position() == 0) {
+            return;
+        }
+        try {
+            out.flip();
+            client.mChannel.write(out);
+            out.compact();
+        } catch (IOException e) {
+            closeClient(client);
+            return;
+        }
+        // 書き切れなかった分は書き込み可能になった時点で続きを送る
+        client.mKey.interestOps(out.position() > 0
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void closeClient(Client client) {
+        if (client.mKey != null) {
+            client.mKey.cancel();
+        }
+        closeQuietly(client.mChannel);
+        mClients.remove(client);
+        mClientCount = mClients.size();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // 閉じるときのエラーは無視する
+        }
+    }
+
+    /** Stops the I/O thread and disconnects all clients. Frames not yet written are lost. */
+    @Override
+    public void close() {
+        if (mClosed && mThread == null) {
+            return;
+        }
+        mClosed = true;
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            mSelector.wakeup();
+            try {
+                thread.join(SELECT_TIMEOUT_MS * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Client {
+        final SocketChannel mChannel;
+        final ByteBuffer mOut;
+        SelectionKey mKey;
+
+        Client(SocketChannel channel, int bufferBytes) {
+            mChannel = channel;
+            mOut = ByteBuffer.allocateDirect(bufferBytes);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.wifirtt.zone;
+
+import com.example.wifirtt.ranging.PeerSlots;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns per-peer distances into zone transitions. Zones are concentric bands given by
+ * ascending outer radii, e.g. near &lt; 1.5 m &lt;= mid &lt; 4 m &lt;= far &lt; 10 m, with
+ * {@link #OUTSIDE} beyond the last one. A peer only moves inwards once it is
+ * {@code hysteresisMm} inside a boundary and only moves outwards once it is that far
+ * beyond it, so noise around a boundary does not produce a stream of events.
+ *
+ * <p>Listeners hear about enter and exit transitions and, once per visit, about a peer that
+ * has stayed in a zone for {@code dwellMillis}. Updates and listener calls happen on the
+ * thread that feeds distances and never allocate; listeners may be added or removed from
+ * any thread.
+ */
+public final class ProximityZoneEngine {
+
+    /** Zone index of a peer beyond the outermost radius. */
+    public static final int OUTSIDE = -1;
+    // まだ距離が一度も来ていないピア
+    private static final int UNKNOWN = -2;
+
+    private final String[] mZoneNames;
+    private final int[] mOuterRadiiMm;
+    private final int mHysteresisMm;
+    private final long mDwellMillis;
+
+    private final PeerSlots mSlots;
+    private final int[] mZones;
+    private final long[] mEnteredMillis;
+    private final boolean[] mDwellReported;
+    private volatile Listener[] mListeners = new Listener[0];
+
+    private ProximityZoneEngine(Builder builder) {
+        int count = builder.mNames.size();
+        mZoneNames = builder.mNames.toArray(new String[count]);
+        mOuterRadiiMm = new int[count];
+        for (int i = 0; i < count; i++) {
+            mOuterRadiiMm[i] = builder.mRadii.get(i);
+        }
+        mHysteresisMm = builder.mHysteresisMm;
+        mDwellMillis = builder.mDwellMillis;
+        mSlots = new PeerSlots(builder.mMaxPeers);
+        mZones = new int[builder.mMaxPeers];
+        mEnteredMillis = new long[builder.mMaxPeers];
+        mDwellReported = new boolean[builder.mMaxPeers];
+    }
+
+    public synchronized void addListener(Listener listener) {
+        Listener[] listeners = Arrays.copyOf(mListeners, mListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        mListeners = listeners;
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        Listener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                Listener[] copy = new Listener[listeners.length - 1];
+                System.arraycopy(listeners, 0, copy, 0, i);
+                System.arraycopy(listeners, i + 1, copy, i, listeners.length - i - 1);
+                mListeners = copy;
+                return;
+            }
+        }
+    }
+
+    public int getZoneCount() {
+        return mZoneNames.length;
+    }
+
+    public String getZoneName(int zone) {
+        return zone == OUTSIDE ? "outside" : mZoneNames[zone];
+    }
+
+    public int getOuterRadiusMm(int zone) {
+        return mOuterRadiiMm[zone];
+    }
+
+    /**
+     * Distance beyond which a peer can no longer be in any zone, including the hysteresis.
+     * Suitable for {@code SubscribeConfig.Builder.setMaxDistanceMm}.
+     */
+    public int getMaxDistanceMm() {
+        return mOuterRadiiMm[mOuterRadiiMm.length - 1] + mHysteresisMm;
+    }
+
+    /** Current zone of the peer, {@link #OUTSIDE}, or {@link #OUTSIDE} if it has no distance yet. */
+    public int getZone(int peerId) {
+        int slot = mSlots.slotOf(peerId);
+        return slot < 0 || mZones[slot] == UNKNOWN ? OUTSIDE : mZones[slot];
+    }
+
+    /** Feeds one distance for {@code peerId}; returns false if no more peers can be tracked. */
+    public boolean update(int peerId, int distanceMm, long timestampMillis) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            slot = mSlots.acquire(peerId);
+            if (slot < 0) {
+                return false;
+            }
+            mZones[slot] = UNKNOWN;
+        }
+        int current = mZones[slot];
+        int next;
+        if (current == UNKNOWN) {
+            next = zoneOf(distanceMm, 0);
+        } else {
+            // 内側へは境界より hysteresis だけ内側に入ったとき、外側へは外に出たときに移る
+            int inward = zoneOf(distanceMm, -mHysteresisMm);
+            int outward = zoneOf(distanceMm, mHysteresisMm);
+            if (inward != OUTSIDE && (current == OUTSIDE || inward < current)) {
+                next = inward;
+            } else if (current != OUTSIDE && (outward == OUTSIDE || outward > current)) {
+                next = outward;
+            } else {
+                next = current;
+            }
+        }
+        if (next != current) {
+            transition(slot, peerId, current, next, timestampMillis);
+        }
+        checkDwell(slot, peerId, timestampMillis);
+        return true;
+    }
+
+    /** Reports dwell events that became due without a new distance. */
+    public void poll(long nowMillis) {
+        for (int slot = 0; slot < mSlots.capacity(); slot++) {
+            int peerId = mSlots.peerIdAt(slot);
+            if (peerId >= 0) {
+                checkDwell(slot, peerId, nowMillis);
+            }
+        }
+    }
+
+    /** Forgets a peer, reporting an exit if it was in a zone. */
+    public void removePeer(int peerId, long nowMillis) {
+        int slot = mSlots.slotOf(peerId);
+        if (slot < 0) {
+            return;
+        }
+        if (mZones[slot] >= 0) {
+            Listener[] listeners = mListeners;
+            for (Listener listener : listeners) {
+                listener.onExit(peerId, mZones[slot], nowMillis);
+            }
+        }
+        mSlots.release(peerId);
+    }
+
+    /** Forgets all peers without reporting exits. */
+    public void clear() {
+        mSlots.clear();
+    }
+
+    private int zoneOf(int distanceMm, int marginMm) {
+        for (int i = 0; i < mOuterRadiiMm.length; i++) {
+            if (distanceMm < mOuterRadiiMm[i] + marginMm) {
+                return i;
+            }
+        }
+        return OUTSIDE;
+    }
+
+    private void transition(int slot, int peerId, int from, int to, long timestampMillis) {
+        mZones[slot] = to;
+        mEnteredMillis[slot] = timestampMillis;
+        mDwellReported[slot] = false;
+        Listener[] listeners = mListeners;
+        for (Listener listener : listeners) {
+            if (from >= 0) {
+                listener.onExit(peerId, from, timestampMillis);
+            }
+            if (to >= 0) {
+                listener.onEnter(peerId, to, timestampMillis);
+            }
+        }
+    }
+
+    private void checkDwell(int slot, int peerId, long nowMillis) {
+        int zone = mZones[slot];
+        if (zone < 0 || mDwellReported[slot] || nowMillis - mEnteredMillis[slot] < mDwellMillis) {
+            return;
+        }
+        mDwellReported[slot] = true;
+        Listener[] listeners = mListeners;
+        for (Listener listener : listeners) {
+            listener.onDwell(peerId, zone, nowMillis - mEnteredMillis[slot], nowMillis);
+        }
+    }
+
+    public interface Listener {
+        void onEnter(int peerId, int zone, long timestampMillis);
+
+        void onExit(int peerId, int zone, long timestampMillis);
+
+        /** Called once per visit, when the peer has been in {@code zone} for the dwell time. */
+        void onDwell(int peerId, int zone, long dwellMillis, long timestampMillis);
+    }
+
+    public static final class Builder {
+        private final int mMaxPeers;
+        private final List<String> mNames = new ArrayList<>();
+        private final List<Integer> mRadii = new ArrayList<>();
+        private int mHysteresisMm = 300;
+        private long mDwellMillis = 5000;
+
+        public Builder(int maxPeers) {
+            mMaxPeers = maxPeers;
+        }
+
+        /** Adds the next zone outwards; radii must be strictly increasing. */
+        public Builder addZone(String name, int outerRadiusMm) {
+            if (!mRadii.isEmpty() && outerRadiusMm <= mRadii.get(mRadii.size() - 1)) {
+                throw new IllegalArgumentException("Zone radii must increase: " + name);
+            }
+            mNames.add(name);
+            mRadii.add(outerRadiusMm);
+            return this;
+        }
+
+        public Builder setHysteresisMm(int hysteresisMm) {
+            if (hysteresisMm < 0) {
+                throw new IllegalArgumentException("hysteresisMm must not be negative");
+            }
+            mHysteresisMm = hysteresisMm;
+            return this;
+        }
+
+        public Builder setDwellMillis(long dwellMillis) {
+            mDwellMillis = dwellMillis;
+            return this;
+        }
+
+        public ProximityZoneEngine build() {
+            if (mNames.isEmpty()) {
+                throw new IllegalStateException("At least one zone is required");
+            }
+            int inner = mRadii.get(0);
+            for (int i = 1; i < mRadii.size(); i++) {
+                inner = Math.min(inner, mRadii.get(i) - mRadii.get(i - 1));
+            }
+            // 帯の幅がヒステリシスの 2 倍より狭いと、内側にも外側にも移れない帯ができる
+            if (2 * mHysteresisMm >= inner) {
+                throw new IllegalStateException("Hysteresis " + mHysteresisMm + "mm is too wide for the zones");
+            }
+            return new ProximityZoneEngine(this);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.wifirtt.calibration;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CalibrationTableTest {
+
+    private static final CalibrationTable.Entry EXACT = new CalibrationTable.Entry("Pixel 8", "Pixel 7", 300, 1.02);
+    private static final CalibrationTable.Entry LOCAL_ANY = new CalibrationTable.Entry("Pixel 8", "*", 250, 1);
+    private static final CalibrationTable.Entry ANY_REMOTE = new CalibrationTable.Entry("*", "Pixel 7", 200, 1);
+    private static final CalibrationTable.Entry ANY_ANY = new CalibrationTable.Entry("*", "*", 100, 1);
+
+    @Test
+    public void exactPairWinsOverWildcards() {
+        // 記述順に関係なく、完全一致 > local * > * remote > * * の順に選ぶ
+        CalibrationTable table = new CalibrationTable(Arrays.asList(ANY_ANY, ANY_REMOTE, LOCAL_ANY, EXACT));
+        assertSame(EXACT, table.find("Pixel 8", "Pixel 7"));
+        assertSame(LOCAL_ANY, table.find("Pixel 8", "Galaxy S23"));
+        assertSame(ANY_REMOTE, table.find("Pixel 6", "Pixel 7"));
+        assertSame(ANY_ANY, table.find("Pixel 6", "Galaxy S23"));
+        // 相手の名前がわからなければ相手側は * にしか一致しない
+        assertSame(LOCAL_ANY, table.find("Pixel 8", null));
+        assertSame(ANY_ANY, table.find("Pixel 6", null));
+    }
+
+    @Test
+    public void findReturnsNullWithoutAMatch() {
+        CalibrationTable table = new CalibrationTable(Arrays.asList(EXACT, ANY_REMOTE));
+        assertNull(table.find("Pixel 6", "Galaxy S23"));
+        assertNull(table.find("Pixel 8", null));
+        assertNull(new CalibrationTable(Arrays.<CalibrationTable.Entry>asList()).find("Pixel 8", "Pixel 7"));
+    }
+
+    @Test
+    public void correctionInvertsTheFittedModel() {
+        // measured = 1.02 * true + 300
+        assertEquals(5000, EXACT.correct(1.02 * 5000 + 300), 1e-9);
+        assertEquals(-300 / 1.02, EXACT.correct(0), 1e-9);
+    }
+
+    @Test
+    public void writtenTableParsesBack() throws IOException {
+        CalibrationTable table = new CalibrationTable(Arrays.asList(EXACT, ANY_ANY));
+        StringWriter writer = new StringWriter();
+        table.write(writer);
+        CalibrationTable parsed = CalibrationTable.parse(new StringReader(writer.toString()));
+        assertEquals(2, parsed.getEntries().size());
+        CalibrationTable.Entry entry = parsed.find("Pixel 8", "Pixel 7");
+        assertEquals("Pixel 8", entry.getLocalDevice());
+        assertEquals("Pixel 7", entry.getRemoteDevice());
+        assertEquals(300, entry.getOffsetMm(), 0);
+        assertEquals(1.02, entry.getScale(), 0);
+        assertEquals(100, parsed.find("Pixel 6", null).getOffsetMm(), 0);
+    }
+
+    @Test
+    public void parseSkipsCommentsAndRejectsBadLines() throws IOException {
+        CalibrationTable table = CalibrationTable.parse(new StringReader(
+                "# comment\n\n  \nPixel 8\t*\t-120.5\t0.99\n"));
+        assertEquals(-120.5, table.find("Pixel 8", "x").getOffsetMm(), 0);
+        for (String line : new String[]{"Pixel 8\tPixel 7\t300", "Pixel 8\tPixel 7\tabc\t1",
+                "Pixel 8\tPixel 7\t300\t0", "Pixel 8\tPixel 7\t300\t-1"}) {
+            try {
+                CalibrationTable.parse(new StringReader("# header\n" + line + "\n"));
+                fail(line);
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Line 2"));
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.wifirtt.chart;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class DistanceChartFrameTest {
+
+    private static final long WINDOW_MS = 20000;
+    private static final int CAPACITY = 201;
+    private static final int PEERS = 64;
+
+    private final DistanceTraceBuffer mBuffer = new DistanceTraceBuffer(PEERS, CAPACITY);
+    private final DistanceChartFrame mFrame = new DistanceChartFrame(mBuffer, WINDOW_MS);
+    private long mNow;
+
+    /** One sample for each of the first {@code peers} peers, 100ms after the previous ones. */
+    private void appendAll(int peers, int distanceMm) {
+        mNow += 100;
+        for (int peerId = 0; peerId < peers; peerId++) {
+            mBuffer.append(peerId, mNow, distanceMm + peerId, 150);
+        }
+    }
+
+    private void frame(int peers, int distanceMm) {
+        appendAll(peers, distanceMm);
+        mFrame.load(mBuffer);
+        mFrame.layout(0, 0, 1080, 600);
+    }
+
+    @Test
+    public void copiesTheWindowOldestFirstAcrossTheRingWrap() {
+        // 容量の 3 倍流し込んで、リングを何周かさせる
+        for (int i = 0; i < CAPACITY * 3; i++) {
+            appendAll(3, 4000);
+        }
+        assertTrue(mFrame.load(mBuffer));
+        assertFalse(mFrame.load(mBuffer)); // 変化がなければ写し直さない
+        mFrame.layout(0, 0, 1000, 500);
+        assertEquals(3, mFrame.getTraceCount());
+        assertEquals(mNow, mFrame.getNewestMillis());
+        for (int t = 0; t < 3; t++) {
+            // 20 秒の窓に 100ms 間隔なので 201 点
+            int n = mFrame.getPointCount(t);
+            assertEquals(201, n);
+            float[] xs = mFrame.getXs();
+            int offset = mFrame.getOffset(t);
+            assertEquals(0, xs[offset], 0.01f);
+            assertEquals(1000, xs[offset + n - 1], 0.01f);
+            for (int i = offset + 1; i < offset + n; i++) {
+                assertTrue(xs[i] > xs[i - 1]);
+            }
+        }
+    }
+
+    @Test
+    public void scaleCoversTheTracesInWholeGridSteps() {
+        appendAll(2, 4000);
+        mFrame.load(mBuffer);
+        mFrame.layout(0, 0, 1000, 500);
+        // 4001mm + 150 を覆う 1000mm 刻みの目盛り
+        assertEquals(5000, mFrame.getScaleMm());
+        assertEquals(1000, mFrame.getGridStepMm());
+        assertEquals(500 - 4001 * 500f / 5000, mFrame.getYs()[mFrame.getOffset(1)], 0.01f);
+        assertEquals(500 - 4151 * 500f / 5000, mFrame.getUpperYs()[mFrame.getOffset(1)], 0.01f);
+    }
+
+    @Test
+    public void removedPeersDisappear() {
+        frame(4, 3000);
+        mBuffer.removePeer(2);
+        assertTrue(mFrame.load(mBuffer));
+        assertEquals(3, mFrame.getTraceCount());
+        for (int t = 0; t < 3; t++) {
+            assertTrue(mFrame.getPeerId(t) != 2);
+        }
+        mBuffer.clear();
+        mFrame.load(mBuffer);
+        assertEquals(0, mFrame.getTraceCount());
+    }
+
+    @Test
+    public void framesDoNotAllocate() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long thread = Thread.currentThread().getId();
+
+        // 窓が埋まり、JIT がひととおり済むまで回す
+        for (int i = 0; i < 5000; i++) {
+            frame(PEERS, 5000 + i % 300);
+        }
+        threads.getThreadAllocatedBytes(thread);
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 2000; i++) {
+            frame(PEERS, 5000 + i % 300);
+        }
+        long after = threads.getThreadAllocatedBytes(thread);
+        assertEquals(0, after - before);
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.wifirtt.filter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DistanceFilterBankTest {
+
+    private static final int PEER = 3;
+    private static final int TRUE_MM = 5000;
+    private static final int NOISE_MM = 150;
+
+    private static DistanceFilterBank filter(DistanceFilterBank.Mode mode) {
+        return new DistanceFilterBank.Builder(4).setMode(mode).build();
+    }
+
+    /** Feeds 200 noisy samples of a constant distance 100ms apart and checks the last 50 estimates. */
+    private static void assertConverges(DistanceFilterBank.Mode mode) {
+        DistanceFilterBank filter = filter(mode);
+        Random random = new Random(7);
+        long errorSum = 0;
+        for (int i = 0; i < 200; i++) {
+            int distanceMm = TRUE_MM + (int) Math.round(random.nextGaussian() * NOISE_MM);
+            assertTrue(filter.update(PEER, distanceMm, NOISE_MM, -60, i * 100L));
+            if (i >= 150) {
+                int error = filter.getDistanceMm(PEER) - TRUE_MM;
+                assertTrue(mode + " error " + error, Math.abs(error) < 2 * NOISE_MM);
+                errorSum += error;
+            }
+        }
+        assertTrue(mode + " bias " + errorSum / 50, Math.abs(errorSum / 50) < 40);
+        // 平滑化した値の不確かさは 1 回の測定より小さい
+        assertTrue(mode + " uncertainty " + filter.getUncertaintyMm(PEER),
+                filter.getUncertaintyMm(PEER) < NOISE_MM);
+        assertEquals(200, filter.getSampleCount(PEER));
+        assertEquals(199 * 100L, filter.getTimestampMillis(PEER));
+    }
+
+    @Test
+    public void medianConvergesOnAConstantTrace() {
+        assertConverges(DistanceFilterBank.Mode.MEDIAN);
+    }
+
+    @Test
+    public void ewmaConvergesOnAConstantTrace() {
+        assertConverges(DistanceFilterBank.Mode.EWMA);
+    }
+
+    @Test
+    public void kalmanConvergesOnAConstantTrace() {
+        assertConverges(DistanceFilterBank.Mode.KALMAN);
+    }
+
+    @Test
+    public void firstSampleIsTakenAsIs() {
+        for (DistanceFilterBank.Mode mode : DistanceFilterBank.Mode.values()) {
+            DistanceFilterBank filter = filter(mode);
+            assertFalse(filter.hasEstimate(PEER));
+            assertEquals(-1, filter.getUncertaintyMm(PEER));
+            assertEquals(Long.MIN_VALUE, filter.getTimestampMillis(PEER));
+            filter.update(PEER, 4321, 200, -60, 10);
+            assertTrue(filter.hasEstimate(PEER));
+            assertEquals(4321, filter.getDistanceMm(PEER));
+            assertEquals(200, filter.getUncertaintyMm(PEER));
+        }
+    }
+
+    @Test
+    public void medianRejectsOutliers() {
+        DistanceFilterBank filter = new DistanceFilterBank.Builder(4)
+                .setMode(DistanceFilterBank.Mode.MEDIAN).setMedianWindow(7).build();
+        for (int i = 0; i < 7; i++) {
+            filter.update(PEER, TRUE_MM, NOISE_MM, -60, i * 100L);
+        }
+        // 窓 7 なら 3 個までの外れ値は中央値に出てこない
+        filter.update(PEER, 40000, NOISE_MM, -60, 700);
+        filter.update(PEER, 0, NOISE_MM, -60, 800);
+        filter.update(PEER, 40000, NOISE_MM, -60, 900);
+        assertEquals(TRUE_MM, filter.getDistanceMm(PEER));
+        // 外れ値が窓から出ていけば元に戻る
+        for (int i = 0; i < 7; i++) {
+            filter.update(PEER, TRUE_MM + 100, NOISE_MM, -60, 1000 + i * 100L);
+        }
+        assertEquals(TRUE_MM + 100, filter.getDistanceMm(PEER));
+    }
+
+    @Test
+    public void weakRssiInflatesTheMeasurementNoise() {
+        DistanceFilterBank filter = filter(DistanceFilterBank.Mode.KALMAN);
+        int strong = 1;
+        int weak = 2;
+        filter.update(strong, TRUE_MM, NOISE_MM, -60, 0);
+        filter.update(weak, TRUE_MM, NOISE_MM, -95, 0);
+        assertEquals(NOISE_MM, filter.getUncertaintyMm(strong));
+        // -75dBm より 20dB 弱いので sigma は 3 倍
+        assertEquals(3 * NOISE_MM, filter.getUncertaintyMm(weak));
+
+        // 同じ跳びでも弱い結果ほど推定は動かない
+        DistanceFilterBank a = filter(DistanceFilterBank.Mode.KALMAN);
+        DistanceFilterBank b = filter(DistanceFilterBank.Mode.KALMAN);
+        for (int i = 0; i < 20; i++) {
+            a.update(PEER, TRUE_MM, NOISE_MM, -60, i * 100L);
+            b.update(PEER, TRUE_MM, NOISE_MM, -60, i * 100L);
+        }
+        a.update(PEER, TRUE_MM + 1000, NOISE_MM, -60, 2000);
+        b.update(PEER, TRUE_MM + 1000, NOISE_MM, -90, 2000);
+        int strongMove = a.getDistanceMm(PEER) - TRUE_MM;
+        int weakMove = b.getDistanceMm(PEER) - TRUE_MM;
+        assertTrue(strongMove + " vs " + weakMove, weakMove > 0 && weakMove < strongMove / 2);
+    }
+
+    @Test
+    public void removePeerResetsItsState() {
+        for (DistanceFilterBank.Mode mode : DistanceFilterBank.Mode.values()) {
+            DistanceFilterBank filter = filter(mode);
+            for (int i = 0; i < 10; i++) {
+                filter.update(PEER, TRUE_MM, NOISE_MM, -60, i * 100L);
+            }
+            filter.removePeer(PEER);
+            assertFalse(mode.name(), filter.hasEstimate(PEER));
+            assertEquals(0, filter.getSampleCount(PEER));
+            // 以前の値を引きずらずに新しい最初のサンプルから始まる
+            filter.update(PEER, 9000, NOISE_MM, -60, 5000);
+            assertEquals(mode.name(), 9000, filter.getDistanceMm(PEER));
+            assertEquals(1, filter.getSampleCount(PEER));
+            filter.update(PEER, 9000, NOISE_MM, -60, 5100);
+            assertEquals(mode.name(), 9000, filter.getDistanceMm(PEER));
+        }
+    }
+
+    @Test
+    public void negativeDistancesAreEstimates() {
+        for (DistanceFilterBank.Mode mode : DistanceFilterBank.Mode.values()) {
+            DistanceFilterBank filter = filter(mode);
+            for (int i = 0; i < 10; i++) {
+                assertTrue(filter.update(PEER, -300, NOISE_MM, -45, i * 100L));
+            }
+            assertTrue(filter.hasEstimate(PEER));
+            assertEquals(mode.name(), -300, filter.getDistanceMm(PEER));
+        }
+    }
+
+    @Test
+    public void updateFailsWhenThereIsNoRoom() {
+        DistanceFilterBank filter = new DistanceFilterBank.Builder(1).build();
+        assertTrue(filter.update(1, 1000, NOISE_MM, -60, 0));
+        assertFalse(filter.update(2, 1000, NOISE_MM, -60, 0));
+        assertFalse(filter.hasEstimate(2));
+        filter.removePeer(1);
+        assertTrue(filter.update(2, 1000, NOISE_MM, -60, 0));
+    }
+}
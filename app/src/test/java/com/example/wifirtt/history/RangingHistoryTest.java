@@ -0,0 +1,171 @@
+package com.example.wifirtt.history;
+
+import com.example.wifirtt.ranging.RangingBatch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the running window aggregates against a naive recomputation over random
+ * append/query sequences.
+ */
+public class RangingHistoryTest {
+
+    private static final int PEERS = 3;
+
+    /** One peer's samples kept in a plain list; every query scans them. */
+    private static final class NaivePeer {
+        final List<long[]> mSamples = new ArrayList<>(); // {timestamp, status, distance, stddev, rssi}
+        long mNow = Long.MIN_VALUE;
+
+        void append(long timestampMillis, int status, int distanceMm, int stdDevMm, int rssi, int capacity) {
+            boolean success = status == RangingBatch.STATUS_SUCCESS;
+            mSamples.add(new long[]{timestampMillis, status, success ? distanceMm : 0,
+                    success ? stdDevMm : 0, success ? rssi : 0});
+            if (mSamples.size() > capacity) {
+                mSamples.remove(0);
+            }
+            mNow = Math.max(mNow, timestampMillis);
+        }
+
+        /** Distances of the window's successful samples, and the window's total count in [0]. */
+        int[] window(long nowMillis, long windowMillis, int[] count) {
+            mNow = Math.max(mNow, nowMillis);
+            int[] distances = new int[mSamples.size()];
+            int n = 0;
+            count[0] = 0;
+            for (long[] s : mSamples) {
+                if (s[0] > mNow - windowMillis) {
+                    count[0]++;
+                    if (s[1] == RangingBatch.STATUS_SUCCESS) {
+                        distances[n++] = (int) s[2];
+                    }
+                }
+            }
+            return Arrays.copyOf(distances, n);
+        }
+    }
+
+    private static void check(RangingHistory history, NaivePeer naive, int peerId, long now, String step) {
+        int[] count = new int[1];
+        int[] distances = naive.window(now, history.getWindowMillis(), count);
+        int n = distances.length;
+        assertEquals(step, count[0], history.getWindowCount(peerId, now));
+        assertEquals(step, n, history.getWindowSuccessCount(peerId, now));
+        assertEquals(step, count[0] == 0 ? 0 : (double) n / count[0], history.getSuccessRatio(peerId, now), 0);
+        if (n == 0) {
+            assertTrue(step, Double.isNaN(history.getMeanMm(peerId, now)));
+            assertEquals(step, RangingHistory.NO_DISTANCE, history.getMinMm(peerId, now));
+            assertEquals(step, RangingHistory.NO_DISTANCE, history.getMaxMm(peerId, now));
+            assertEquals(step, RangingHistory.NO_DISTANCE, history.getPercentileMm(peerId, now, 50));
+            return;
+        }
+        long sum = 0;
+        for (int d : distances) {
+            sum += d;
+        }
+        Arrays.sort(distances);
+        assertEquals(step, (double) sum / n, history.getMeanMm(peerId, now), 0);
+        assertEquals(step, distances[0], history.getMinMm(peerId, now));
+        assertEquals(step, distances[n - 1], history.getMaxMm(peerId, now));
+        for (double p : new double[]{0, 10, 50, 90, 99, 100}) {
+            int rank = (int) Math.ceil(p / 100 * n);
+            assertEquals(step + " p" + p, distances[Math.max(0, Math.min(n - 1, rank - 1))],
+                    history.getPercentileMm(peerId, now, p));
+        }
+    }
+
+    private static void checkSamples(RangingHistory history, NaivePeer naive, int peerId, String step) {
+        assertEquals(step, naive.mSamples.size(), history.size(peerId));
+        for (int i = 0; i < naive.mSamples.size(); i++) {
+            long[] s = naive.mSamples.get(i);
+            assertEquals(step, s[0], history.getTimestampMillis(peerId, i));
+            assertEquals(step, s[1], history.getStatus(peerId, i));
+            assertEquals(step, s[2], history.getDistanceMm(peerId, i));
+            assertEquals(step, s[3], history.getDistanceStdDevMm(peerId, i));
+            assertEquals(step, s[4], history.getRssi(peerId, i));
+        }
+    }
+
+    private static void fuzz(long seed, int capacity, long windowMillis, boolean direct) {
+        Random random = new Random(seed);
+        RangingHistory history = new RangingHistory.Builder(PEERS)
+                .setCapacity(capacity).setWindowMillis(windowMillis).setDirect(direct).build();
+        NaivePeer[] naive = new NaivePeer[PEERS];
+        for (int p = 0; p < PEERS; p++) {
+            naive[p] = new NaivePeer();
+        }
+        long now = 1000;
+        for (int step = 0; step < 20000; step++) {
+            String name = "seed " + seed + " step " + step;
+            int peerId = random.nextInt(PEERS);
+            // 間隔はばらばらにして、窓の中でリングが一周する場合と窓から抜ける場合の両方を作る
+            now += random.nextInt(10) == 0 ? random.nextInt((int) windowMillis) : random.nextInt(40);
+            int op = random.nextInt(100);
+            if (op < 60) {
+                int status = random.nextInt(5) == 0 ? RangingBatch.STATUS_FAIL : RangingBatch.STATUS_SUCCESS;
+                // 重複する値や負の距離も混ぜる
+                int distanceMm = random.nextBoolean() ? random.nextInt(20) * 50 - 200 : random.nextInt(20000);
+                int stdDevMm = random.nextInt(500);
+                int rssi = -30 - random.nextInt(60);
+                assertTrue(history.append(peerId, now, status, distanceMm, stdDevMm, rssi));
+                naive[peerId].append(now, status, distanceMm, stdDevMm, rssi, capacity);
+            } else if (op < 98) {
+                check(history, naive[peerId], peerId, now, name);
+            } else if (op < 99) {
+                checkSamples(history, naive[peerId], peerId, name);
+            } else {
+                history.removePeer(peerId);
+                naive[peerId] = new NaivePeer();
+                assertEquals(0, history.size(peerId));
+            }
+        }
+    }
+
+    @Test
+    public void matchesNaiveRecomputationWithRingWrapInsideTheWindow() {
+        // 容量 16 に対して窓が長いので、窓の中のサンプルがリングから押し出される
+        for (long seed = 1; seed <= 5; seed++) {
+            fuzz(seed, 16, 5000, false);
+        }
+    }
+
+    @Test
+    public void matchesNaiveRecomputationWithShortWindow() {
+        for (long seed = 1; seed <= 5; seed++) {
+            fuzz(seed, 64, 300, seed % 2 == 0);
+        }
+    }
+
+    @Test
+    public void matchesNaiveRecomputationInDirectBuffers() {
+        fuzz(42, 1, 1000, true);
+        fuzz(43, 7, 200, true);
+    }
+
+    @Test
+    public void emptyWindowHasNoDistance() {
+        RangingHistory history = new RangingHistory.Builder(2).setWindowMillis(1000).build();
+        assertEquals(RangingHistory.NO_DISTANCE, history.getPercentileMm(1, 0, 50));
+        history.append(1, 0, RangingBatch.STATUS_FAIL, 0, 0, 0);
+        assertEquals(1, history.getWindowCount(1, 0));
+        assertEquals(RangingHistory.NO_DISTANCE, history.getMinMm(1, 0));
+        // 負の距離も有効な値として集計される
+        history.append(1, 10, RangingBatch.STATUS_SUCCESS, -120, 30, -40);
+        assertEquals(-120, history.getMinMm(1, 10));
+        assertEquals(-120, history.getPercentileMm(1, 10, 50));
+        assertEquals(-120, history.getMeanMm(1, 10), 0);
+        assertEquals(RangingHistory.NO_DISTANCE, history.getMaxMm(1, 2000));
+        assertTrue(Double.isNaN(history.getMeanMm(1, 2000)));
+        assertTrue(history.append(2, 0, RangingBatch.STATUS_SUCCESS, 100, 30, -40));
+        assertFalse(history.append(3, 0, RangingBatch.STATUS_SUCCESS, 100, 30, -40)); // 満杯
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.wifirtt.metrics;
+
+import com.example.wifirtt.ranging.BatchedRangingScheduler;
+import com.example.wifirtt.ranging.FakeRangingBackend;
+import com.example.wifirtt.ranging.RangingBackend;
+import com.example.wifirtt.ranging.RangingBatch;
+import com.example.wifirtt.ranging.RangingRateController;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InstrumentedRangingBackendTest {
+
+    private FakeRangingBackend mFake;
+    private RangingMetrics mMetrics;
+    private InstrumentedRangingBackend mBackend;
+    private int mFailures;
+
+    private final RangingBackend.Callback mCallback = new RangingBackend.Callback() {
+        @Override
+        public void onRangingResults(RangingBatch batch) {
+        }
+
+        @Override
+        public void onRangingFailure(int code) {
+            mFailures++;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mFake = new FakeRangingBackend(10);
+        mMetrics = new RangingMetrics(16);
+        mBackend = new InstrumentedRangingBackend(mFake, mMetrics, mFake, 4);
+    }
+
+    // ヒストグラムはバケット単位なので、最大値は 1 割ほど大きく出ることがある
+    private static void assertLatencyNear(long expectedMillis, RangingMetricsSnapshot snapshot) {
+        long max = snapshot.getLatency().getMax();
+        assertTrue("latency " + max, max >= expectedMillis && max <= expectedMillis * 11 / 10);
+    }
+
+    @Test
+    public void countsResultsWithTheirLatency() {
+        mBackend.startRanging(new int[]{1, 2}, 2, mCallback);
+        mFake.advance(40);
+        mFake.answerOldest(3000);
+        RangingMetricsSnapshot snapshot = mMetrics.snapshot(mFake.elapsedRealtimeMillis());
+        assertEquals(1, snapshot.getRequestCount());
+        assertEquals(2, snapshot.getSuccessCount());
+        assertLatencyNear(40, snapshot);
+    }
+
+    @Test
+    public void expiredRequestsAreCountedAsTimeouts() {
+        mBackend.startRanging(new int[]{1}, 1, mCallback);
+        mFake.advance(3000);
+        mBackend.expireRanging(mCallback);
+        assertEquals(1, mFailures);
+        assertEquals(0, mFake.getPendingCount());
+        RangingMetricsSnapshot snapshot = mMetrics.snapshot(mFake.elapsedRealtimeMillis());
+        assertEquals(1, snapshot.getFailureCodeCount(RangingBatch.CODE_TIMEOUT));
+        assertEquals(1, snapshot.getLatency().getCount());
+        assertLatencyNear(3000, snapshot);
+        // 応答済みの要求を期限切れにしても何も起きない
+        mBackend.expireRanging(mCallback);
+        assertEquals(1, mFailures);
+    }
+
+    @Test
+    public void schedulerTimeoutsReachTheMetricsAndRecycleTheirCallbacks() {
+        BatchedRangingScheduler scheduler = new BatchedRangingScheduler.Builder(mBackend,
+                new RangingRateController(16), mFake, mCallback)
+                .setRequestTimeoutMillis(500)
+                .setBackToBack(true)
+                .build();
+        for (int peerId = 1; peerId <= 5; peerId++) {
+            scheduler.addPeer(peerId);
+        }
+        Set<RangingBackend.Callback> wrappers =
+                Collections.newSetFromMap(new IdentityHashMap<RangingBackend.Callback, Boolean>());
+        int timeouts = 0;
+        for (int i = 0; i < 20000 && timeouts < 100; i++) {
+            mFake.advance(100);
+            timeouts += scheduler.expireRequests(mFake.elapsedRealtimeMillis());
+            scheduler.rangeNext();
+            for (int p = 0; p < mFake.getPendingCount(); p++) {
+                wrappers.add(mFake.getPending(p).callback);
+            }
+        }
+        assertEquals(100, timeouts);
+        assertEquals(100, mFailures);
+        RangingMetricsSnapshot snapshot = mMetrics.snapshot(mFake.elapsedRealtimeMillis());
+        assertEquals(100, snapshot.getFailureCodeCount(RangingBatch.CODE_TIMEOUT));
+        assertEquals(100, snapshot.getLatency().getCount());
+        // 期限切れのたびにプールへ戻るので、ラッパーは使い回される
+        assertTrue("wrappers " + wrappers.size(), wrappers.size() <= 4);
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.wifirtt.position;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MultilaterationSolverTest {
+
+    private static final double EXACT_M = 1e-3;
+
+    // 10m 四方の部屋の四隅と、天井の 1 点 (3D では同一平面にならない)
+    private static final double[][] ROOM_2D = {{0, 0, 0}, {10, 0, 0}, {10, 10, 0}, {0, 10, 0}};
+    private static final double[][] ROOM_3D = {{0, 0, 0}, {10, 0, 0}, {0, 10, 0}, {5, 5, 3}};
+
+    private static double distance(double[] anchor, double x, double y, double z) {
+        double dx = anchor[0] - x;
+        double dy = anchor[1] - y;
+        double dz = anchor[2] - z;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /** Adds the ranges from {@code anchors} to the point, plus Gaussian noise of {@code sigma}. */
+    private static void addRanges(MultilaterationSolver solver, double[][] anchors, int count,
+                                  double x, double y, double z, double sigma, Random random) {
+        solver.reset();
+        for (int i = 0; i < count; i++) {
+            double noise = random == null ? 0 : random.nextGaussian() * sigma;
+            assertTrue(solver.addRange(anchors[i][0], anchors[i][1], anchors[i][2],
+                    distance(anchors[i], x, y, z) + noise, sigma));
+        }
+    }
+
+    private static void assertCleanFailure(MultilaterationSolver solver) {
+        assertFalse(solver.solve());
+        assertTrue(Double.isFinite(solver.getX()) && Double.isFinite(solver.getY())
+                && Double.isFinite(solver.getZ()));
+    }
+
+    @Test
+    public void solves2dExactlyWithThreeAnchors() {
+        MultilaterationSolver solver = new MultilaterationSolver(4, 2);
+        addRanges(solver, ROOM_2D, 3, 2.5, 7, 0, 0.1, null);
+        assertTrue(solver.solve());
+        assertEquals(2.5, solver.getX(), EXACT_M);
+        assertEquals(7, solver.getY(), EXACT_M);
+        assertEquals(0, solver.getZ(), 0);
+        assertEquals(0, solver.getResidualRms(), EXACT_M);
+    }
+
+    @Test
+    public void solves2dExactlyWithFourAnchors() {
+        MultilaterationSolver solver = new MultilaterationSolver(4, 2);
+        // 部屋の外の点でも収束する
+        double[][] points = {{5, 5}, {1, 9}, {9.5, 0.5}, {12, 4}, {-3, -2}};
+        for (double[] p : points) {
+            solver.clearInitialGuess();
+            addRanges(solver, ROOM_2D, 4, p[0], p[1], 0, 0.1, null);
+            assertTrue(solver.solve());
+            assertEquals(p[0], solver.getX(), EXACT_M);
+            assertEquals(p[1], solver.getY(), EXACT_M);
+        }
+    }
+
+    @Test
+    public void solves3dExactlyWithFourNonCoplanarAnchors() {
+        MultilaterationSolver solver = new MultilaterationSolver(4, 3);
+        assertEquals(4, solver.getMinAnchors());
+        addRanges(solver, ROOM_3D, 4, 3, 4, 1.2, 0.1, null);
+        assertTrue(solver.solve());
+        assertEquals(3, solver.getX(), EXACT_M);
+        assertEquals(4, solver.getY(), EXACT_M);
+        assertEquals(1.2, solver.getZ(), EXACT_M);
+    }
+
+    @Test
+    public void noisyRangesStayWithinTheErrorEstimate() {
+        MultilaterationSolver solver = new MultilaterationSolver(4, 2);
+        Random random = new Random(11);
+        double sigma = 0.15;
+        int trials = 500;
+        double errorSum = 0;
+        int within2Sigma = 0;
+        for (int t = 0; t < trials; t++) {
+            double x = 1 + random.nextDouble() * 8;
+            double y = 1 + random.nextDouble() * 8;
+            addRanges(solver, ROOM_2D, 4, x, y, 0, sigma, random);
+            assertTrue(solver.solve());
+            double error = Math.hypot(solver.getX() - x, solver.getY() - y);
+            errorSum += error;
+            if (error <= 2 * solver.getErrorEstimate()) {
+                within2Sigma++;
+            }
+            assertTrue("error " + error, error < 1.0);
+        }
+        // 4 つの距離から 2 次元を決めるので、平均誤差は距離の誤差と同程度
+        assertTrue("mean error " + errorSum / trials, errorSum / trials < sigma * 1.5);
+        assertTrue("within 2 sigma " + within2Sigma, within2Sigma > trials * 85 / 100);
+    }
+
+    @Test
+    public void noisy3dFixIsClose() {
+        MultilaterationSolver solver = new MultilaterationSolver(4, 3);
+        Random random = new Random(5);
+        double errorSum = 0;
+        for (int t = 0; t < 200; t++) {
+            addRanges(solver, ROOM_3D, 4, 4, 3, 1, 0.05, random);
+            assertTrue(solver.solve());
+            double dx = solver.getX() - 4;
+            double dy = solver.getY() - 3;
+            double dz = solver.getZ() - 1;
+            errorSum += Math.sqrt(dx * dx + dy * dy + dz * dz);
+        }
+        assertTrue("mean error " + errorSum / 200, errorSum / 200 < 0.3);
+    }
+
+    @Test
+    public void streamOfFixesStartsFromThePreviousOne() {
+        MultilaterationSolver solver = new MultilaterationSolver(4, 2);
+        addRanges(solver, ROOM_2D, 4, 2, 2, 0, 0.1, null);
+        assertTrue(solver.solve());
+        int first = solver.getIterations();
+        addRanges(solver, ROOM_2D, 4, 2.05, 2.05, 0, 0.1, null);
+        assertTrue(solver.solve());
+        assertTrue(solver.getIterations() + " vs " + first, solver.getIterations() <= first);
+        assertEquals(2.05, solver.getX(), EXACT_M);
+    }
+
+    @Test
+    public void collinearAnchorsFailCleanly() {
+        MultilaterationSolver solver = new MultilaterationSolver(4, 2);
+        double[][] line = {{0, 0, 0}, {5, 0, 0}, {10, 0, 0}, {15, 0, 0}};
+        addRanges(solver, line, 4, 4, 3, 0, 0.1, null);
+        assertCleanFailure(solver);
+        // 失敗の後でも、まともな配置ならまた解ける
+        addRanges(solver, ROOM_2D, 4, 4, 3, 0, 0.1, null);
+        assertTrue(solver.solve());
+        assertEquals(4, solver.getX(), EXACT_M);
+        assertEquals(3, solver.getY(), EXACT_M);
+    }
+
+    @Test
+    public void coplanarAnchorsFailCleanlyIn3d() {
+        MultilaterationSolver solver = new MultilaterationSolver(4, 3);
+        double[][] floor = {{0, 0, 0}, {10, 0, 0}, {10, 10, 0}, {0, 10, 0}};
+        addRanges(solver, floor, 4, 4, 3, 1.5, 0.1, null);
+        assertCleanFailure(solver);
+    }
+
+    @Test
+    public void coincidentAnchorsFailCleanly() {
+        MultilaterationSolver solver = new MultilaterationSolver(4, 2);
+        for (int i = 0; i < 3; i++) {
+            solver.addRange(2, 2, 0, 3, 0.1);
+        }
+        assertCleanFailure(solver);
+    }
+
+    @Test
+    public void tooFewRangesFail() {
+        MultilaterationSolver solver = new MultilaterationSolver(4, 3);
+        addRanges(solver, ROOM_3D, 3, 1, 1, 1, 0.1, null);
+        assertFalse(solver.solve());
+        assertTrue(solver.addRange(5, 5, 3, 1, 0.1));
+        assertFalse(solver.addRange(5, 5, 3, 1, 0.1)); // 満杯
+    }
+}
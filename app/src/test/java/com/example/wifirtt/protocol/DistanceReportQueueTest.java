@@ -0,0 +1,173 @@
+package com.example.wifirtt.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DistanceReportQueueTest {
+
+    private static final long MAX_DELAY_MS = 100;
+
+    /** One message handed to the sender, decoded. */
+    private static final class Sent {
+        final int mPeerId;
+        final int mSequence;
+        final DistanceReport mReport = new DistanceReport(DistanceReport.capacityFor(WireProtocol.DEFAULT_MAX_MESSAGE_LENGTH));
+
+        Sent(int peerId, int sequence, byte[] message, int length) {
+            mPeerId = peerId;
+            mSequence = sequence;
+            // 呼び出し後にバッファは使い回されるので、ここで読んでおく
+            assertTrue(mReport.decode(Arrays.copyOf(message, length), length));
+        }
+    }
+
+    private final List<Sent> mSent = new ArrayList<>();
+    private final DistanceReportQueue.Sender mSender = new DistanceReportQueue.Sender() {
+        @Override
+        public void send(int peerId, int sequence, byte[] message, int length) {
+            mSent.add(new Sent(peerId, sequence, message, length));
+        }
+    };
+    private DistanceReportQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new DistanceReportQueue(4, WireProtocol.DEFAULT_MAX_MESSAGE_LENGTH, MAX_DELAY_MS, mSender);
+    }
+
+    @Test
+    public void flushesOnceTheOldestEntryHasWaitedTheMaxDelay() {
+        assertTrue(mQueue.addPeer(1));
+        mQueue.add(1, 1000, 2000, 50, -50);
+        mQueue.add(1, 1060, 2010, 50, -50);
+        mQueue.flush(1099);
+        assertEquals(0, mSent.size());
+        mQueue.flush(1100);
+        assertEquals(1, mSent.size());
+        Sent sent = mSent.get(0);
+        assertEquals(1, sent.mPeerId);
+        assertEquals(0, sent.mSequence);
+        assertEquals(2, sent.mReport.size());
+        assertEquals(1060, sent.mReport.getTimestampMillis(1));
+        // 送った後は空なので、次のエントリが来るまで何も送らない
+        mQueue.flush(5000);
+        assertEquals(1, mSent.size());
+    }
+
+    @Test
+    public void fullReportsGoOutAtOnce() {
+        mQueue.addPeer(1);
+        int capacity = DistanceReport.capacityFor(WireProtocol.DEFAULT_MAX_MESSAGE_LENGTH);
+        for (int i = 0; i < capacity * 2 + 1; i++) {
+            mQueue.add(1, 1000 + i, i, 50, -50);
+        }
+        assertEquals(2, mSent.size());
+        assertEquals(capacity, mSent.get(1).mReport.size());
+        assertEquals(capacity, mSent.get(1).mReport.getDistanceMm(0));
+        // 16 ビットのずれに収まらないエントリが来たら、それまでの分を先に送る
+        mQueue.add(1, 1000 + capacity * 2 + 0x10000, 7, 50, -50);
+        assertEquals(3, mSent.size());
+        assertEquals(1, mSent.get(2).mReport.size());
+        assertEquals(2, mSent.get(2).mSequence);
+    }
+
+    @Test
+    public void everyPeerHasItsOwnSequence() {
+        mQueue.addPeer(1);
+        mQueue.addPeer(2);
+        long now = 0;
+        for (int round = 0; round < 3; round++) {
+            mQueue.add(1, now, 1000, 50, -50);
+            if (round != 1) {
+                mQueue.add(2, now, 2000, 50, -50);
+            }
+            now += MAX_DELAY_MS;
+            mQueue.flush(now);
+        }
+        int[] expectedPeers = {1, 2, 1, 1, 2};
+        int[] expectedSequences = {0, 0, 1, 2, 1};
+        assertEquals(expectedPeers.length, mSent.size());
+        for (int i = 0; i < mSent.size(); i++) {
+            assertEquals(expectedPeers[i], mSent.get(i).mPeerId);
+            assertEquals(expectedSequences[i], mSent.get(i).mSequence);
+            assertEquals(expectedSequences[i], mSent.get(i).mReport.getSequence());
+        }
+    }
+
+    @Test
+    public void sequenceWrapsAt16Bits() {
+        // 1 件しか入らない長さにして、追加のたびに送らせる
+        int length = DistanceReport.HEADER_SIZE + DistanceReport.ENTRY_SIZE + 4;
+        DistanceReportQueue queue = new DistanceReportQueue(1, length, MAX_DELAY_MS, new DistanceReportQueue.Sender() {
+            @Override
+            public void send(int peerId, int sequence, byte[] message, int messageLength) {
+                if (sequence >= 0xfffe || sequence <= 1) {
+                    mSent.add(new Sent(peerId, sequence, message, messageLength));
+                }
+            }
+        });
+        queue.addPeer(3);
+        for (int i = 0; i < 0x10000 + 2; i++) {
+            queue.add(3, i, i, 50, -50);
+        }
+        int[] expected = {0, 1, 0xfffe, 0xffff, 0, 1};
+        assertEquals(expected.length, mSent.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], mSent.get(i).mSequence);
+        }
+    }
+
+    @Test
+    public void removedPeersLoseTheirPendingEntriesAndRestartTheSequence() {
+        mQueue.addPeer(1);
+        mQueue.add(1, 0, 1000, 50, -50);
+        mQueue.flush(MAX_DELAY_MS);
+        mQueue.add(1, 200, 1000, 50, -50);
+        mQueue.removePeer(1);
+        assertFalse(mQueue.contains(1));
+        mQueue.add(1, 300, 1000, 50, -50); // 追加されていないピアは無視する
+        mQueue.flush(10000);
+        assertEquals(1, mSent.size());
+
+        mQueue.addPeer(1);
+        mQueue.add(1, 400, 1000, 50, -50);
+        mQueue.flush(10000);
+        assertEquals(2, mSent.size());
+        assertEquals(0, mSent.get(1).mSequence);
+        assertEquals(1, mSent.get(1).mReport.size());
+        assertEquals(400, mSent.get(1).mReport.getTimestampMillis(0));
+    }
+
+    @Test
+    public void reportsCarryTheSenderNodeId() {
+        mQueue.setSenderNodeId(0x1234);
+        mQueue.addPeer(1);
+        mQueue.add(1, 0, 1000, 50, -50);
+        mQueue.flush(MAX_DELAY_MS);
+        assertEquals(0x1234, mSent.get(0).mReport.getSenderNodeId());
+    }
+
+    @Test
+    public void addPeerFailsWhenFull() {
+        for (int peerId = 0; peerId < 4; peerId++) {
+            assertTrue(mQueue.addPeer(peerId));
+        }
+        assertTrue(mQueue.addPeer(2)); // 追加済み
+        assertFalse(mQueue.addPeer(9));
+        mQueue.clear();
+        assertTrue(mQueue.addPeer(9));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMessagesTooShortForOneEntry() {
+        new DistanceReportQueue(1, DistanceReport.HEADER_SIZE + DistanceReport.ENTRY_SIZE + 3, MAX_DELAY_MS, mSender);
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.wifirtt.protocol;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DistanceReportTest {
+
+    private static final int MAX = WireProtocol.DEFAULT_MAX_MESSAGE_LENGTH;
+    // 送信側の時刻は 32 ビットを超えても下位 32 ビットで送る
+    private static final long BASE_MILLIS = 0x8000_0000L + 123456;
+
+    private static DistanceReport report(int entries, int nodeId) {
+        DistanceReport report = new DistanceReport(DistanceReport.capacityFor(MAX));
+        report.clear(0x1_2345);
+        report.setSenderNodeId(nodeId);
+        for (int i = 0; i < entries; i++) {
+            assertTrue(report.add(BASE_MILLIS + i * 97L, 1000 * i - 500, 30 + i, -40 - i));
+        }
+        return report;
+    }
+
+    private static void assertSameEntries(DistanceReport expected, DistanceReport actual, int count) {
+        assertEquals(count, actual.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(expected.getTimestampMillis(i), actual.getTimestampMillis(i));
+            assertEquals(expected.getDistanceMm(i), actual.getDistanceMm(i));
+            assertEquals(expected.getDistanceStdDevMm(i), actual.getDistanceStdDevMm(i));
+            assertEquals(expected.getRssi(i), actual.getRssi(i));
+        }
+    }
+
+    @Test
+    public void roundTripsWithAndWithoutTheNodeId() {
+        byte[] out = new byte[MAX];
+        DistanceReport decoded = new DistanceReport(DistanceReport.capacityFor(MAX));
+        for (int entries : new int[]{0, 1, 5, DistanceReport.capacityFor(MAX)}) {
+            for (int nodeId : new int[]{0, -17}) {
+                DistanceReport report = report(entries, nodeId);
+                int length = report.encode(out, MAX);
+                assertEquals(DistanceReport.HEADER_SIZE + entries * DistanceReport.ENTRY_SIZE
+                        + (nodeId != 0 ? DistanceReport.NODE_ID_SIZE : 0), length);
+                assertTrue(length <= MAX);
+                assertEquals(WireProtocol.TYPE_DISTANCE_REPORT, WireProtocol.typeOf(out, length));
+                decoded.setSenderNodeId(55); // 前の値が残らないこと
+                assertTrue(decoded.decode(out, length));
+                assertEquals(0x2345, decoded.getSequence()); // 16 ビットで折り返す
+                assertEquals(nodeId, decoded.getSenderNodeId());
+                if (entries > 0) {
+                    assertSameEntries(report, decoded, entries);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fullReportFitsTheFrameworkLimit() {
+        assertEquals(26, DistanceReport.capacityFor(MAX));
+        DistanceReport report = report(26, 9);
+        assertFalse(report.add(BASE_MILLIS + 5000, 1, 1, 1)); // 満杯
+        byte[] out = new byte[MAX];
+        assertEquals(DistanceReport.HEADER_SIZE + 26 * DistanceReport.ENTRY_SIZE + 4, report.encode(out, MAX));
+
+        // 短い上限では入るだけのエントリを書き、ノード ID は入る場合だけ付ける
+        int length = report.encode(out, DistanceReport.HEADER_SIZE + 3 * DistanceReport.ENTRY_SIZE + 3);
+        DistanceReport decoded = new DistanceReport(26);
+        assertTrue(decoded.decode(out, length));
+        assertSameEntries(report, decoded, 2);
+        assertEquals(9, decoded.getSenderNodeId());
+        length = report.encode(out, DistanceReport.HEADER_SIZE + 3 * DistanceReport.ENTRY_SIZE);
+        assertTrue(decoded.decode(out, length));
+        assertEquals(2, decoded.size());
+        assertEquals(0, DistanceReport.capacityFor(DistanceReport.HEADER_SIZE + 12));
+    }
+
+    @Test
+    public void truncatedInputFails() {
+        byte[] out = new byte[MAX];
+        DistanceReport decoded = new DistanceReport(26);
+        for (int entries : new int[]{0, 3}) {
+            int length = report(entries, 0).encode(out, MAX);
+            for (int cut = 0; cut < length; cut++) {
+                decoded.decode(out, length);
+                assertFalse(entries + " cut at " + cut, decoded.decode(out, cut));
+                assertEquals(0, decoded.size());
+            }
+        }
+        // 末尾のノード ID は省略できるので、途中で切れていれば付いていないものとして読む
+        int length = report(3, 77).encode(out, MAX);
+        for (int cut = length - DistanceReport.NODE_ID_SIZE; cut < length; cut++) {
+            assertTrue(decoded.decode(out, cut));
+            assertEquals(3, decoded.size());
+            assertEquals(0, decoded.getSenderNodeId());
+        }
+        assertFalse(decoded.decode(null, 0));
+    }
+
+    @Test
+    public void countRunningPastTheEndFailsAndTrailingBytesAreIgnored() {
+        byte[] out = new byte[MAX];
+        DistanceReport report = report(3, 77);
+        int length = report.encode(out, MAX);
+        DistanceReport decoded = new DistanceReport(26);
+        out[DistanceReport.COUNT_OFFSET] = 4 + 1; // ノード ID の 4 バイトを足してもエントリが足りない
+        assertFalse(decoded.decode(out, length));
+        out[DistanceReport.COUNT_OFFSET] = 3;
+        // 同じバージョンで後ろに足された欄は読み飛ばす
+        Arrays.fill(out, length, length + 8, (byte) 0x33);
+        assertTrue(decoded.decode(out, length + 8));
+        assertSameEntries(report, decoded, 3);
+        assertEquals(77, decoded.getSenderNodeId());
+    }
+
+    @Test
+    public void smallerReceiverKeepsTheFirstEntries() {
+        byte[] out = new byte[MAX];
+        DistanceReport report = report(10, 3);
+        int length = report.encode(out, MAX);
+        DistanceReport decoded = new DistanceReport(4);
+        assertTrue(decoded.decode(out, length));
+        assertSameEntries(report, decoded, 4);
+        assertEquals(3, decoded.getSenderNodeId());
+    }
+
+    @Test
+    public void otherVersionsAndTypesAreRejected() {
+        byte[] out = new byte[MAX];
+        int length = report(2, 0).encode(out, MAX);
+        DistanceReport decoded = new DistanceReport(26);
+        out[WireProtocol.VERSION_OFFSET] = 0;
+        assertFalse(decoded.decode(out, length));
+        out[WireProtocol.VERSION_OFFSET] = WireProtocol.VERSION;
+        out[WireProtocol.TYPE_OFFSET] = WireProtocol.TYPE_PEER_INFO;
+        assertFalse(decoded.decode(out, length));
+        assertEquals(0, decoded.size());
+    }
+
+    @Test
+    public void entriesMustStayWithinTheOffsetRange() {
+        DistanceReport report = new DistanceReport(8);
+        report.clear(0);
+        assertTrue(report.add(1000, 1, 1, 1));
+        assertFalse(report.add(999, 1, 1, 1)); // 最初より前
+        assertTrue(report.add(1000 + 0xffff, 1, 1, 1));
+        assertFalse(report.add(1000 + 0x10000, 1, 1, 1)); // 16 ビットのずれに収まらない
+        assertEquals(2, report.size());
+    }
+
+    @Test
+    public void outOfRangeValuesSaturate() {
+        DistanceReport report = new DistanceReport(2);
+        report.clear(0);
+        report.add(0, -123456, 100000, -300);
+        report.add(1, Integer.MAX_VALUE, -5, 300);
+        byte[] out = new byte[MAX];
+        DistanceReport decoded = new DistanceReport(2);
+        assertTrue(decoded.decode(out, report.encode(out, MAX)));
+        assertEquals(-123456, decoded.getDistanceMm(0));
+        assertEquals(0xffff, decoded.getDistanceStdDevMm(0));
+        assertEquals(Byte.MIN_VALUE, decoded.getRssi(0));
+        assertEquals(Integer.MAX_VALUE, decoded.getDistanceMm(1));
+        assertEquals(0, decoded.getDistanceStdDevMm(1));
+        assertEquals(Byte.MAX_VALUE, decoded.getRssi(1));
+    }
+}
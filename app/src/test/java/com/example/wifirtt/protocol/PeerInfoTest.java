@@ -0,0 +1,181 @@
+package com.example.wifirtt.protocol;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PeerInfoTest {
+
+    private static final int MAX = WireProtocol.DEFAULT_MAX_MESSAGE_LENGTH;
+    private static final String[] NAMES = {null, "", "Pixel 8 Pro"};
+
+    /** A peer info for one combination of the optional fields: position 0 none, 1 2D, 2 3D. */
+    private static PeerInfo info(int position, String name, int nodeId) {
+        PeerInfo info = new PeerInfo()
+                .setCapabilities(PeerInfo.CAP_RTT_RESPONDER | PeerInfo.CAP_MESH)
+                .setCalibrationOffsetMm(-420)
+                .setName(name)
+                .setNodeId(nodeId);
+        if (position == 1) {
+            info.setPosition(1.25, -3.5);
+        } else if (position == 2) {
+            info.setPosition(1.25, -3.5, 2.001);
+        }
+        return info;
+    }
+
+    private static void assertSameInfo(String combination, PeerInfo expected, PeerInfo actual) {
+        assertEquals(combination, expected.getCapabilities(), actual.getCapabilities());
+        assertEquals(combination, expected.getCalibrationOffsetMm(), actual.getCalibrationOffsetMm());
+        assertEquals(combination, expected.hasPosition(), actual.hasPosition());
+        assertEquals(combination, expected.hasZ(), actual.hasZ());
+        assertEquals(combination, expected.getXM(), actual.getXM(), 0);
+        assertEquals(combination, expected.getYM(), actual.getYM(), 0);
+        assertEquals(combination, expected.getZM(), actual.getZM(), 0);
+        assertEquals(combination, expected.hasName(), actual.hasName());
+        assertEquals(combination, expected.getName(), actual.getName());
+        assertEquals(combination, expected.getNodeId(), actual.getNodeId());
+    }
+
+    private static void assertCleared(PeerInfo info) {
+        assertEquals(0, info.getCapabilities());
+        assertFalse(info.hasPosition());
+        assertFalse(info.hasName());
+        assertEquals(0, info.getNodeId());
+    }
+
+    @Test
+    public void everyFlagCombinationRoundTrips() {
+        byte[] out = new byte[MAX];
+        PeerInfo decoded = new PeerInfo();
+        for (int position = 0; position < 3; position++) {
+            for (String name : NAMES) {
+                for (int nodeId : new int[]{0, 0x8badf00d}) {
+                    String combination = position + "/" + name + "/" + nodeId;
+                    PeerInfo info = info(position, name, nodeId);
+                    int length = info.encode(out, MAX);
+                    int expectedLength = PeerInfo.FIXED_SIZE + (position == 0 ? 0 : position == 1 ? 8 : 12)
+                            + (name != null ? 1 + name.length() : 0) + (nodeId != 0 ? 4 : 0);
+                    assertEquals(combination, expectedLength, length);
+                    assertEquals(WireProtocol.TYPE_PEER_INFO, WireProtocol.typeOf(out, length));
+                    // 前の内容が残らないよう、別の組み合わせを読んだ後の同じインスタンスに読む
+                    assertTrue(combination, decoded.decode(out, length));
+                    assertSameInfo(combination, info, decoded);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void truncatedInputFailsAndClears() {
+        byte[] out = new byte[MAX];
+        PeerInfo decoded = new PeerInfo();
+        for (int position = 0; position < 3; position++) {
+            for (String name : NAMES) {
+                for (int nodeId : new int[]{0, 7}) {
+                    int length = info(position, name, nodeId).encode(out, MAX);
+                    // どこで切れても、フラグが示す欄が足りなければ読まない
+                    for (int cut = 0; cut < length; cut++) {
+                        decoded.decode(out, length);
+                        assertFalse(position + "/" + name + "/" + nodeId + " cut at " + cut, decoded.decode(out, cut));
+                        assertCleared(decoded);
+                    }
+                }
+            }
+        }
+        assertFalse(decoded.decode(null, 0));
+    }
+
+    @Test
+    public void nameLengthRunningPastTheEndFails() {
+        byte[] out = new byte[MAX];
+        int length = info(0, "abc", 0).encode(out, MAX);
+        out[PeerInfo.FIXED_SIZE] = 4; // 名前の長さが実際より 1 バイト長い
+        assertFalse(new PeerInfo().decode(out, length));
+        out[PeerInfo.FIXED_SIZE] = 2;
+        PeerInfo decoded = new PeerInfo();
+        assertTrue(decoded.decode(out, length)); // 後ろの余りは読み飛ばす
+        assertEquals("ab", decoded.getName());
+    }
+
+    @Test
+    public void appendedFieldsAndUnknownFlagsAreIgnored() {
+        // 同じバージョンの新しい送信側が欄やフラグを足しても、古い受信側は読める
+        byte[] out = new byte[MAX];
+        PeerInfo info = info(2, "x", 99);
+        int length = info.encode(out, MAX);
+        out[PeerInfo.FLAGS_OFFSET] |= (byte) 0x80;
+        Arrays.fill(out, length, length + 10, (byte) 0x5a);
+        PeerInfo decoded = new PeerInfo();
+        assertTrue(decoded.decode(out, length + 10));
+        assertSameInfo("extended", info, decoded);
+    }
+
+    @Test
+    public void otherVersionsAndTypesAreRejected() {
+        byte[] out = new byte[MAX];
+        int length = info(1, "a", 5).encode(out, MAX);
+        PeerInfo decoded = new PeerInfo();
+        out[WireProtocol.VERSION_OFFSET] = WireProtocol.VERSION + 1;
+        assertEquals(-1, WireProtocol.typeOf(out, length));
+        assertFalse(decoded.decode(out, length));
+        assertCleared(decoded);
+        out[WireProtocol.VERSION_OFFSET] = WireProtocol.VERSION;
+        out[WireProtocol.TYPE_OFFSET] = WireProtocol.TYPE_DISTANCE_REPORT;
+        assertFalse(decoded.decode(out, length));
+    }
+
+    @Test
+    public void longNamesAreCutToTheMessageLimit() {
+        // 3 バイト文字の名前は 255 バイトに収まるよう、文字の途中では切らずに詰める
+        char[] chars = new char[200];
+        Arrays.fill(chars, '測');
+        String name = new String(chars);
+        PeerInfo info = info(2, name, 1234);
+        byte[] encoded = info.encode(MAX);
+        int room = MAX - PeerInfo.FIXED_SIZE - 12 - 4 - 1;
+        assertEquals(PeerInfo.FIXED_SIZE + 12 + 1 + room / 3 * 3 + 4, encoded.length);
+        PeerInfo decoded = new PeerInfo();
+        assertTrue(decoded.decode(encoded, encoded.length));
+        assertEquals(name.substring(0, room / 3), decoded.getName());
+        assertEquals(1234, decoded.getNodeId());
+        assertEquals(2.001, decoded.getZM(), 0);
+
+        // 名前を入れる余地がなければ名前だけを落とす
+        byte[] out = new byte[PeerInfo.FIXED_SIZE + 12 + 4];
+        int length = info.encode(out, MAX);
+        assertEquals(out.length, length);
+        assertTrue(decoded.decode(out, length));
+        assertFalse(decoded.hasName());
+        assertEquals(1234, decoded.getNodeId());
+
+        // 名前を除いても入らなければ例外
+        try {
+            info.encode(new byte[MAX], PeerInfo.FIXED_SIZE + 12 + 3);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("needs 22 bytes"));
+        }
+    }
+
+    @Test
+    public void overLongValuesAreBoundedByTheirFields() {
+        PeerInfo info = new PeerInfo().setCalibrationOffsetMm(100000).setCapabilities(0x1ff);
+        assertEquals(Short.MAX_VALUE, info.getCalibrationOffsetMm());
+        assertEquals(0xff, info.getCapabilities());
+        byte[] name = new byte[300];
+        Arrays.fill(name, (byte) 'n');
+        info.setName(new String(name, StandardCharsets.UTF_8));
+        assertEquals(PeerInfo.MAX_NAME_LENGTH, info.getName().length());
+        assertEquals(Short.MIN_VALUE, info.setCalibrationOffsetMm(-100000).getCalibrationOffsetMm());
+        info.setName(null);
+        assertNull(info.getName());
+    }
+}
@@ -0,0 +1,226 @@
+package com.example.wifirtt.ranging;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchedRangingSchedulerTest {
+
+    private static final int MAX_PEERS_PER_REQUEST = 10;
+
+    private FakeRangingBackend mBackend;
+    private RangingRateController mRateController;
+    private int mResultCallbacks;
+    private int mFailureCallbacks;
+    private int mLastFailureCode;
+
+    private final RangingBackend.Callback mCallback = new RangingBackend.Callback() {
+        @Override
+        public void onRangingResults(RangingBatch batch) {
+            mResultCallbacks++;
+        }
+
+        @Override
+        public void onRangingFailure(int code) {
+            mFailureCallbacks++;
+            mLastFailureCode = code;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mBackend = new FakeRangingBackend(MAX_PEERS_PER_REQUEST);
+        mBackend.setNow(1000);
+        mRateController = new RangingRateController(64);
+    }
+
+    private BatchedRangingScheduler.Builder builder() {
+        return new BatchedRangingScheduler.Builder(mBackend, mRateController, mBackend, mCallback);
+    }
+
+    private static void addPeers(BatchedRangingScheduler scheduler, int count) {
+        for (int peerId = 1; peerId <= count; peerId++) {
+            assertTrue(scheduler.addPeer(peerId));
+        }
+    }
+
+    @Test
+    public void packsDuePeersIntoRequestsOfAtMostMaxPeers() {
+        BatchedRangingScheduler scheduler = builder().setMaxInFlight(4).build();
+        addPeers(scheduler, 25);
+        assertEquals(25, scheduler.rangeNext());
+        assertEquals(3, mBackend.getPendingCount());
+        assertEquals(10, mBackend.getPending(0).peerIds.length);
+        assertEquals(10, mBackend.getPending(1).peerIds.length);
+        assertEquals(5, mBackend.getPending(2).peerIds.length);
+        assertEquals(3, scheduler.getInFlightCount());
+    }
+
+    @Test
+    public void doesNotRequestPeersTwiceOrBeforeTheyAreDue() {
+        BatchedRangingScheduler scheduler = builder().setMaxInFlight(4).build();
+        addPeers(scheduler, 5);
+        assertFalse(scheduler.addPeer(3));
+        scheduler.rangeNext();
+        assertEquals(0, scheduler.rangeNext()); // 応答待ちのピアは出さない
+        mBackend.answerOldest(3000);
+        assertEquals(0, scheduler.rangeNext()); // 新しいピアの次の期限は最短間隔の後
+        mBackend.advance(RangingRateController.DEFAULT_MIN_INTERVAL_MS);
+        assertEquals(5, scheduler.rangeNext());
+    }
+
+    @Test
+    public void rotatesThroughPeersInRoundRobinOrder() {
+        BatchedRangingScheduler scheduler = builder().build();
+        addPeers(scheduler, 25);
+        Map<Integer, Integer> counts = new HashMap<>();
+        int previousLast = -1;
+        for (int round = 0; round < 5; round++) {
+            assertEquals(10, scheduler.rangeNext());
+            FakeRangingBackend.Request request = mBackend.answerOldest(3000);
+            if (previousLast >= 0) {
+                // 前の要求の最後のピアの次から始まる
+                assertEquals(previousLast % 25 + 1, request.peerIds[0]);
+            }
+            previousLast = request.peerIds[request.peerIds.length - 1];
+            for (int peerId : request.peerIds) {
+                Integer count = counts.get(peerId);
+                counts.put(peerId, count == null ? 1 : count + 1);
+            }
+            // 全員が再び期限を迎えるまで進める
+            mBackend.advance(RangingRateController.DEFAULT_MAX_INTERVAL_MS);
+        }
+        assertEquals(25, counts.size());
+        for (int count : counts.values()) {
+            assertEquals(2, count);
+        }
+    }
+
+    @Test
+    public void removingPeersKeepsTheRotation() {
+        BatchedRangingScheduler scheduler = builder().build();
+        addPeers(scheduler, 25);
+        scheduler.rangeNext();
+        mBackend.answerOldest(3000);
+        mBackend.advance(RangingRateController.DEFAULT_MAX_INTERVAL_MS);
+        assertTrue(scheduler.removePeer(4));
+        assertTrue(scheduler.removePeer(12));
+        assertFalse(scheduler.removePeer(12));
+        scheduler.rangeNext();
+        assertArrayEquals(new int[]{11, 13, 14, 15, 16, 17, 18, 19, 20, 21}, mBackend.getPending(0).peerIds);
+    }
+
+    @Test
+    public void capsRequestsInFlight() {
+        BatchedRangingScheduler scheduler = builder().setMaxInFlight(2).build();
+        addPeers(scheduler, 50);
+        assertEquals(20, scheduler.rangeNext());
+        assertEquals(2, mBackend.getPendingCount());
+        assertEquals(0, scheduler.rangeNext());
+        assertEquals(2, mBackend.getRequestCount());
+
+        mBackend.answerOldest(3000);
+        assertEquals(1, scheduler.getInFlightCount());
+        assertEquals(2, mBackend.getRequestCount()); // 連続モードでなければ次の tick を待つ
+        assertEquals(10, scheduler.rangeNext());
+        assertEquals(2, scheduler.getInFlightCount());
+        assertEquals(2, scheduler.getMaxInFlight());
+    }
+
+    @Test
+    public void backToBackSendsTheNextRequestFromTheCallback() {
+        BatchedRangingScheduler scheduler = builder().setBackToBack(true).build();
+        addPeers(scheduler, 30);
+        scheduler.rangeNext();
+        assertEquals(1, mBackend.getRequestCount());
+        mBackend.answerOldest(3000);
+        assertEquals(1, mResultCallbacks);
+        assertEquals(2, mBackend.getRequestCount());
+        assertEquals(1, scheduler.getInFlightCount());
+        assertEquals(11, mBackend.getPending(0).peerIds[0]);
+        mBackend.failOldest(RangingBatch.CODE_FAIL);
+        assertEquals(1, mFailureCallbacks);
+        assertEquals(3, mBackend.getRequestCount());
+        assertEquals(21, mBackend.getPending(0).peerIds[0]);
+    }
+
+    @Test
+    public void backToBackStopsWhenNoPeerIsDue() {
+        BatchedRangingScheduler scheduler = builder().setBackToBack(true).build();
+        addPeers(scheduler, 5);
+        scheduler.rangeNext();
+        mBackend.answerOldest(3000);
+        assertEquals(1, mBackend.getRequestCount());
+        assertEquals(0, scheduler.getInFlightCount());
+        assertEquals(RangingRateController.DEFAULT_MIN_INTERVAL_MS, scheduler.getNextDelayMillis());
+    }
+
+    @Test
+    public void expiresRequestsPastTheirDeadline() {
+        BatchedRangingScheduler scheduler = builder().setRequestTimeoutMillis(500).build();
+        addPeers(scheduler, 5);
+        scheduler.rangeNext();
+        assertEquals(500, scheduler.getNextDelayMillis());
+        mBackend.advance(499);
+        assertEquals(0, scheduler.expireRequests(mBackend.elapsedRealtimeMillis()));
+        mBackend.advance(1);
+        assertEquals(1, scheduler.expireRequests(mBackend.elapsedRealtimeMillis()));
+        assertEquals(1, mFailureCallbacks);
+        assertEquals(RangingBatch.CODE_TIMEOUT, mLastFailureCode);
+        assertEquals(0, scheduler.getInFlightCount());
+        assertEquals(0, mBackend.getPendingCount());
+    }
+
+    @Test
+    public void requestFailuresAreOnlyChargedToFailingPeers() {
+        RangingFailurePolicy policy = new RangingFailurePolicy.Builder(64)
+                .setFailureThreshold(2).setJitter(0).build();
+        BatchedRangingScheduler scheduler = builder().setFailurePolicy(policy).build();
+        addPeers(scheduler, 3);
+        scheduler.rangeNext();
+        mBackend.failOldest(RangingBatch.CODE_FAIL);
+        for (int peerId = 1; peerId <= 3; peerId++) {
+            assertEquals(0, policy.getConsecutiveFailures(peerId));
+        }
+        // ピア 2 だけが単独で失敗したことがある
+        policy.onFailure(2, RangingFailurePolicy.FAILURE_TRANSIENT, mBackend.elapsedRealtimeMillis());
+        mBackend.advance(RangingFailurePolicy.DEFAULT_BACKOFF_MAX_MS);
+        assertEquals(3, scheduler.rangeNext());
+        mBackend.failOldest(RangingBatch.CODE_TIMEOUT);
+        assertEquals(0, policy.getConsecutiveFailures(1));
+        assertEquals(RangingFailurePolicy.CIRCUIT_OPEN, policy.getCircuit(2));
+        assertEquals(0, policy.getConsecutiveFailures(3));
+        assertEquals(1, policy.getOpenCount());
+    }
+
+    @Test
+    public void singlePeerRequestFailuresAreCharged() {
+        RangingFailurePolicy policy = new RangingFailurePolicy.Builder(64).setJitter(0).build();
+        BatchedRangingScheduler scheduler = builder().setFailurePolicy(policy).build();
+        addPeers(scheduler, 1);
+        scheduler.rangeNext();
+        mBackend.failOldest(RangingBatch.CODE_FAIL);
+        assertEquals(1, policy.getConsecutiveFailures(1));
+    }
+
+    @Test
+    public void clearDropsOutstandingRequests() {
+        BatchedRangingScheduler scheduler = builder().setMaxInFlight(2).build();
+        addPeers(scheduler, 20);
+        scheduler.rangeNext();
+        scheduler.clear();
+        assertEquals(0, scheduler.getInFlightCount());
+        assertEquals(0, scheduler.getPeerCount());
+        assertEquals(0, mBackend.getPendingCount());
+        assertEquals(0, mFailureCallbacks);
+        addPeers(scheduler, 3);
+        assertEquals(3, scheduler.rangeNext());
+    }
+}
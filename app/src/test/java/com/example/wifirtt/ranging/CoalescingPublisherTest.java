@@ -0,0 +1,138 @@
+package com.example.wifirtt.ranging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingPublisherTest {
+
+    /** Holds scheduled frames until the test runs them, like a Choreographer that never ticks on its own. */
+    private static final class ManualFrameScheduler implements CoalescingPublisher.FrameScheduler {
+        private final List<Runnable> mPending = new ArrayList<>();
+        int mScheduledCount;
+
+        @Override
+        public synchronized void scheduleFrame(Runnable frame) {
+            mScheduledCount++;
+            mPending.add(frame);
+        }
+
+        synchronized int pendingCount() {
+            return mPending.size();
+        }
+
+        /** Runs the frames scheduled so far; frames scheduled while they run wait for the next call. */
+        void runFrame() {
+            List<Runnable> frames;
+            synchronized (this) {
+                frames = new ArrayList<>(mPending);
+                mPending.clear();
+            }
+            for (Runnable frame : frames) {
+                frame.run();
+            }
+        }
+    }
+
+    private final ManualFrameScheduler mScheduler = new ManualFrameScheduler();
+    private final List<String> mApplied = new ArrayList<>();
+    private final CoalescingPublisher<String> mPublisher = new CoalescingPublisher<>(mScheduler,
+            new CoalescingPublisher.Consumer<String>() {
+                @Override
+                public void apply(String value) {
+                    mApplied.add(value);
+                }
+            });
+
+    @Test
+    public void publishesBetweenFramesApplyOnlyTheNewest() {
+        mPublisher.publish("a");
+        mPublisher.publish("b");
+        mPublisher.publish("c");
+        assertEquals(1, mScheduler.mScheduledCount);
+        assertEquals(0, mApplied.size()); // フレームまでは何も渡さない
+        mScheduler.runFrame();
+        assertEquals(1, mApplied.size());
+        assertEquals("c", mApplied.get(0));
+        assertEquals(3, mPublisher.getPublishedCount());
+        assertEquals(1, mPublisher.getAppliedCount());
+        // 新しい値がなければ次のフレームは予約しない
+        assertEquals(0, mScheduler.pendingCount());
+        mPublisher.publish("d");
+        assertEquals(2, mScheduler.mScheduledCount);
+        mScheduler.runFrame();
+        assertEquals("d", mApplied.get(1));
+        assertEquals(4, mPublisher.getPublishedCount());
+        assertEquals(2, mPublisher.getAppliedCount());
+    }
+
+    @Test
+    public void publishDuringAFrameSchedulesAnother() {
+        final List<String> applied = new ArrayList<>();
+        final AtomicReference<CoalescingPublisher<String>> publisher = new AtomicReference<>();
+        publisher.set(new CoalescingPublisher<>(mScheduler, new CoalescingPublisher.Consumer<String>() {
+            @Override
+            public void apply(String value) {
+                applied.add(value);
+                if (value.equals("first")) {
+                    publisher.get().publish("during"); // 適用中に届いた値は取りこぼさない
+                }
+            }
+        }));
+        publisher.get().publish("first");
+        mScheduler.runFrame();
+        assertEquals(1, applied.size());
+        assertEquals(1, mScheduler.pendingCount());
+        assertEquals(2, mScheduler.mScheduledCount);
+        mScheduler.runFrame();
+        assertEquals("during", applied.get(1));
+        assertEquals(0, mScheduler.pendingCount());
+        assertEquals(2, publisher.get().getPublishedCount());
+        assertEquals(2, publisher.get().getAppliedCount());
+    }
+
+    @Test
+    public void concurrentPublishesEndWithTheNewestValue() throws Exception {
+        final int count = 100000;
+        final List<Integer> applied = new ArrayList<>();
+        final CoalescingPublisher<Integer> publisher = new CoalescingPublisher<>(mScheduler,
+                new CoalescingPublisher.Consumer<Integer>() {
+                    @Override
+                    public void apply(Integer value) {
+                        applied.add(value);
+                    }
+                });
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= count; i++) {
+                    publisher.publish(i);
+                }
+            }
+        });
+        producer.start();
+        while (producer.isAlive()) {
+            mScheduler.runFrame();
+        }
+        producer.join();
+        mScheduler.runFrame();
+        // 値は順に増え、最後に公開した値が必ず適用される
+        for (int i = 1; i < applied.size(); i++) {
+            assertTrue(applied.get(i - 1) < applied.get(i));
+        }
+        assertEquals(count, applied.get(applied.size() - 1).intValue());
+        assertEquals(count, publisher.getPublishedCount());
+        assertEquals(applied.size(), publisher.getAppliedCount());
+        assertEquals(0, mScheduler.pendingCount());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNull() {
+        mPublisher.publish(null);
+    }
+}
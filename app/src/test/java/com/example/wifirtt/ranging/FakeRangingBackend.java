@@ -0,0 +1,104 @@
+package com.example.wifirtt.ranging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link RangingBackend} that keeps every request until the test answers it, and doubles
+ * as the clock the scheduler reads.
+ */
+public final class FakeRangingBackend implements RangingBackend, RangingClock {
+
+    /** One request the backend has not answered yet. */
+    public static final class Request {
+        public final int[] peerIds;
+        public final Callback callback;
+
+        Request(int[] peerIds, Callback callback) {
+            this.peerIds = peerIds;
+            this.callback = callback;
+        }
+    }
+
+    private final int mMaxPeers;
+    private final List<Request> mPending = new ArrayList<>();
+    private final RangingBatch mBatch;
+    private int mRequestCount;
+    private long mNowMillis;
+
+    public FakeRangingBackend(int maxPeers) {
+        mMaxPeers = maxPeers;
+        mBatch = new RangingBatch(maxPeers);
+    }
+
+    public void setNow(long nowMillis) {
+        mNowMillis = nowMillis;
+    }
+
+    public void advance(long millis) {
+        mNowMillis += millis;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount;
+    }
+
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    public Request getPending(int index) {
+        return mPending.get(index);
+    }
+
+    /** Answers the oldest pending request with {@code distanceMm} for every peer. */
+    public Request answerOldest(int distanceMm) {
+        Request request = mPending.remove(0);
+        mBatch.clear();
+        for (int peerId : request.peerIds) {
+            mBatch.addSuccess(peerId, distanceMm, 100, -50, mNowMillis, 8, 8);
+        }
+        request.callback.onRangingResults(mBatch);
+        return request;
+    }
+
+    /** Fails the oldest pending request as a whole. */
+    public Request failOldest(int code) {
+        Request request = mPending.remove(0);
+        request.callback.onRangingFailure(code);
+        return request;
+    }
+
+    @Override
+    public int getMaxPeers() {
+        return mMaxPeers;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public void startRanging(int[] peerIds, int count, Callback callback) {
+        mRequestCount++;
+        mPending.add(new Request(Arrays.copyOf(peerIds, count), callback));
+    }
+
+    @Override
+    public void expireRanging(Callback callback) {
+        for (int i = 0; i < mPending.size(); i++) {
+            if (mPending.get(i).callback == callback) {
+                mPending.remove(i);
+                callback.onRangingFailure(RangingBatch.CODE_TIMEOUT);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public long elapsedRealtimeMillis() {
+        return mNowMillis;
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.wifirtt.ranging;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MeshSlotPlanTest {
+
+    private static final int PEER = 5;
+    private static final long TIMEOUT_MS = 3000;
+
+    private static int nextNodeId(Random random) {
+        int nodeId;
+        do {
+            nodeId = random.nextInt();
+        } while (nodeId == MeshSlotPlan.NO_NODE_ID);
+        return nodeId;
+    }
+
+    /** A remote node id whose pair with {@code localNodeId} the local side does not own. */
+    private static int unownedRemote(int localNodeId, Random random) {
+        int remote;
+        do {
+            remote = nextNodeId(random);
+        } while (remote == localNodeId || MeshSlotPlan.ownsPair(localNodeId, remote));
+        return remote;
+    }
+
+    @Test
+    public void exactlyOneSideOwnsEachPair() {
+        Random random = new Random(1);
+        int lowerOwns = 0;
+        int pairs = 10000;
+        for (int i = 0; i < pairs; i++) {
+            int a = nextNodeId(random);
+            int b = nextNodeId(random);
+            if (a == b) {
+                continue;
+            }
+            assertNotEquals(a + " / " + b, MeshSlotPlan.ownsPair(a, b), MeshSlotPlan.ownsPair(b, a));
+            if (MeshSlotPlan.ownsPair(Math.min(a, b), Math.max(a, b))) {
+                lowerOwns++;
+            }
+        }
+        // 小さい ID の側に偏らない
+        assertTrue("lower owns " + lowerOwns, lowerOwns > pairs * 45 / 100 && lowerOwns < pairs * 55 / 100);
+        // 相手に ID がないか同じ ID なら、どちらも自分で計測する
+        assertTrue(MeshSlotPlan.ownsPair(42, MeshSlotPlan.NO_NODE_ID));
+        assertTrue(MeshSlotPlan.ownsPair(42, 42));
+    }
+
+    @Test
+    public void bothSidesAgreeOnTheSlot() {
+        Random random = new Random(2);
+        int slotCount = MeshSlotPlan.DEFAULT_SLOT_COUNT;
+        int[] perSlot = new int[slotCount];
+        for (int i = 0; i < 10000; i++) {
+            int a = nextNodeId(random);
+            int b = nextNodeId(random);
+            int slot = MeshSlotPlan.pairSlot(a, b, slotCount);
+            assertEquals(slot, MeshSlotPlan.pairSlot(b, a, slotCount));
+            assertTrue(slot >= 0 && slot < slotCount);
+            perSlot[slot]++;
+        }
+        for (int count : perSlot) {
+            assertTrue("per slot " + count, count > 800 && count < 1200);
+        }
+
+        MeshSlotPlan local = new MeshSlotPlan(4, 1234);
+        MeshSlotPlan remote = new MeshSlotPlan(4, -99);
+        local.addPeer(PEER, -99, 0);
+        remote.addPeer(PEER + 1, 1234, 0);
+        assertEquals(local.getSlotOffsetMillis(PEER), remote.getSlotOffsetMillis(PEER + 1));
+        assertNotEquals(local.isOwned(PEER), remote.isOwned(PEER + 1));
+    }
+
+    @Test
+    public void silentPeersAreTakenOverAfterTheTimeout() {
+        int localNodeId = 1234;
+        MeshSlotPlan plan = new MeshSlotPlan(4, localNodeId);
+        int remote = unownedRemote(localNodeId, new Random(3));
+        int[] out = new int[4];
+        assertFalse(plan.addPeer(PEER, remote, 0));
+        assertEquals(0, plan.takeOverSilentPeers(TIMEOUT_MS - 1, TIMEOUT_MS, out));
+        // 共有が届けば待ち時間はそこから数え直す
+        plan.onShared(PEER, 2000);
+        assertEquals(0, plan.takeOverSilentPeers(2000 + TIMEOUT_MS - 1, TIMEOUT_MS, out));
+        assertFalse(plan.isOwned(PEER));
+        assertEquals(1, plan.takeOverSilentPeers(2000 + TIMEOUT_MS, TIMEOUT_MS, out));
+        assertEquals(PEER, out[0]);
+        assertTrue(plan.isOwned(PEER));
+        assertEquals(1, plan.getOwnedCount());
+        // 一度引き取ったピアは二度は返さず、同じ ID で登録し直しても引き取ったまま
+        assertEquals(0, plan.takeOverSilentPeers(100000, TIMEOUT_MS, out));
+        assertTrue(plan.addPeer(PEER, remote, 100000));
+    }
+
+    @Test
+    public void peersWithoutANodeIdAreOwnedAndNeverTakenOver() {
+        MeshSlotPlan plan = new MeshSlotPlan(2, 1234);
+        int[] out = new int[2];
+        assertTrue(plan.addPeer(PEER, MeshSlotPlan.NO_NODE_ID, 0));
+        assertEquals(0, plan.takeOverSilentPeers(100000, TIMEOUT_MS, out));
+        assertEquals(-1, plan.findPeer(MeshSlotPlan.NO_NODE_ID));
+        assertEquals(MeshSlotPlan.ownsPair(1234, 77), plan.addPeer(PEER + 1, 77, 0));
+        assertFalse(plan.addPeer(PEER + 2, 78, 0)); // 満杯
+        assertEquals(PEER + 1, plan.findPeer(77));
+    }
+}
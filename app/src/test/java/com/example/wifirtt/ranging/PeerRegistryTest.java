@@ -0,0 +1,75 @@
+package com.example.wifirtt.ranging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PeerRegistryTest {
+
+    private static final long TTL_MS = 30000;
+
+    private final PeerRegistry<String> mRegistry = new PeerRegistry<>(TTL_MS);
+    private final List<Integer> mEvicted = new ArrayList<>();
+
+    private final PeerRegistry.EvictionListener<String> mListener = new PeerRegistry.EvictionListener<String>() {
+        @Override
+        public void onPeerEvicted(PeerRegistry.Peer<String> peer) {
+            mEvicted.add(peer.getPeerId());
+        }
+    };
+
+    @Test
+    public void repeatedDiscoveryOnlyRefreshes() {
+        assertTrue(mRegistry.discover("a", new byte[]{1}, -1, 0));
+        assertFalse(mRegistry.discover("a", new byte[]{1}, 2500, 1000));
+        assertTrue(mRegistry.discover("a", new byte[]{2}, -1, 2000));
+        PeerRegistry.Peer<String> peer = mRegistry.get("a");
+        assertEquals(3, peer.getDiscoveryCount());
+        assertEquals(2500, peer.getDiscoveryDistanceMm());
+        assertEquals(2000, peer.getLastSeenMillis());
+        assertEquals(1, mRegistry.size());
+    }
+
+    @Test
+    public void evictsPeersPastTheTtl() {
+        mRegistry.discover("a", null, -1, 0);
+        mRegistry.discover("b", null, -1, 10000);
+        int a = mRegistry.get("a").getPeerId();
+        assertEquals(0, mRegistry.evictStale(TTL_MS, mListener));
+        assertEquals(1, mRegistry.evictStale(TTL_MS + 1, mListener));
+        assertEquals(1, mEvicted.size());
+        assertEquals(a, (int) mEvicted.get(0));
+        assertNull(mRegistry.get(a));
+        assertNotNull(mRegistry.get("b"));
+    }
+
+    @Test
+    public void retentionPolicyKeepsStalePeers() {
+        mRegistry.discover("a", null, -1, 0);
+        mRegistry.discover("b", null, -1, 0);
+        final int b = mRegistry.get("b").getPeerId();
+        // b の回路が開いている間は、期限の 2 倍まで残す
+        PeerRegistry.RetentionPolicy<String> retention = new PeerRegistry.RetentionPolicy<String>() {
+            @Override
+            public boolean shouldRetain(PeerRegistry.Peer<String> peer, long nowMillis) {
+                return peer.getPeerId() == b && nowMillis - peer.getLastSeenMillis() <= 2 * TTL_MS;
+            }
+        };
+        assertEquals(1, mRegistry.evictStale(TTL_MS + 1, retention, mListener));
+        assertNotNull(mRegistry.get(b));
+        assertEquals(1, mRegistry.evictStale(2 * TTL_MS + 1, retention, mListener));
+        assertEquals(0, mRegistry.size());
+        // 追い出された後に届いた結果は無視される
+        RangingBatch batch = new RangingBatch(1);
+        batch.addSuccess(b, 1000, 50, -50, 2 * TTL_MS + 2, 8, 8);
+        mRegistry.onRangingResults(batch);
+        assertEquals(0, mRegistry.size());
+    }
+}
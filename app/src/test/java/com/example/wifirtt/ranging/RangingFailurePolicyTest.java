@@ -0,0 +1,209 @@
+package com.example.wifirtt.ranging;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RangingFailurePolicyTest {
+
+    private static final int PEER = 4;
+    private static final long OPEN_MS = 1000;
+    private static final long UNSUPPORTED_OPEN_MS = 5000;
+    private static final long OPEN_MAX_MS = 8000;
+
+    private final List<String> mEvents = new ArrayList<>();
+    private final RangingFailurePolicy.Listener mListener = new RangingFailurePolicy.Listener() {
+        @Override
+        public void onCircuitOpened(int peerId, int failure, long openMillis) {
+            mEvents.add("open " + peerId + " " + failure + " " + openMillis);
+        }
+
+        @Override
+        public void onCircuitClosed(int peerId) {
+            mEvents.add("close " + peerId);
+        }
+    };
+    private RangingFailurePolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        // ジッターなしで、待ち時間をそのまま比べられるようにする
+        mPolicy = builder(2).setJitter(0).build();
+    }
+
+    private RangingFailurePolicy.Builder builder(int maxPeers) {
+        return new RangingFailurePolicy.Builder(maxPeers)
+                .setBackoff(100, 1000)
+                .setFailureThreshold(3)
+                .setOpenMillis(OPEN_MS, UNSUPPORTED_OPEN_MS, OPEN_MAX_MS)
+                .setListener(mListener);
+    }
+
+    private void assertEvents(String... expected) {
+        assertEquals(Arrays.asList(expected), mEvents);
+        mEvents.clear();
+    }
+
+    // しきい値まで失敗させて回路を開き、開いた時間を返す
+    private long open(int peerId, long nowMillis) {
+        mPolicy.onFailure(peerId, RangingFailurePolicy.FAILURE_TRANSIENT, nowMillis);
+        mPolicy.onFailure(peerId, RangingFailurePolicy.FAILURE_TRANSIENT, nowMillis);
+        return mPolicy.onFailure(peerId, RangingFailurePolicy.FAILURE_TRANSIENT, nowMillis);
+    }
+
+    @Test
+    public void classifiesStatusesAndCodes() {
+        assertEquals(RangingFailurePolicy.FAILURE_NONE,
+                RangingFailurePolicy.classifyStatus(RangingBatch.STATUS_SUCCESS));
+        assertEquals(RangingFailurePolicy.FAILURE_TRANSIENT,
+                RangingFailurePolicy.classifyStatus(RangingBatch.STATUS_FAIL));
+        assertEquals(RangingFailurePolicy.FAILURE_UNSUPPORTED,
+                RangingFailurePolicy.classifyStatus(RangingBatch.STATUS_RESPONDER_DOES_NOT_SUPPORT_IEEE80211MC));
+        assertEquals(RangingFailurePolicy.FAILURE_TRANSIENT, RangingFailurePolicy.classifyCode(RangingBatch.CODE_FAIL));
+        assertEquals(RangingFailurePolicy.FAILURE_TRANSIENT, RangingFailurePolicy.classifyCode(RangingBatch.CODE_TIMEOUT));
+        assertEquals(RangingFailurePolicy.FAILURE_UNAVAILABLE,
+                RangingFailurePolicy.classifyCode(RangingBatch.CODE_FAIL_RTT_NOT_AVAILABLE));
+    }
+
+    @Test
+    public void transientFailuresBackOffThenOpenTheCircuit() {
+        assertEquals(100, mPolicy.onFailure(PEER, RangingFailurePolicy.FAILURE_TRANSIENT, 0));
+        assertEquals(200, mPolicy.onFailure(PEER, RangingFailurePolicy.FAILURE_TRANSIENT, 100));
+        assertEquals(RangingFailurePolicy.CIRCUIT_CLOSED, mPolicy.getCircuit(PEER));
+        assertEvents();
+        assertEquals(OPEN_MS, mPolicy.onFailure(PEER, RangingFailurePolicy.FAILURE_TRANSIENT, 300));
+        assertEvents("open 4 1 1000");
+        assertEquals(RangingFailurePolicy.CIRCUIT_OPEN, mPolicy.getCircuit(PEER));
+        assertEquals(1, mPolicy.getOpenCount());
+        // 開く前に出した要求の失敗は数えず、残りの時間だけを返す
+        assertEquals(600, mPolicy.onFailure(PEER, RangingFailurePolicy.FAILURE_TRANSIENT, 700));
+        assertEquals(3, mPolicy.getConsecutiveFailures(PEER));
+        assertEvents();
+    }
+
+    @Test
+    public void successfulProbeClosesTheCircuit() {
+        open(PEER, 0);
+        mPolicy.onRequested(PEER, OPEN_MS - 1); // まだ開いている間の要求は探りではない
+        assertEquals(RangingFailurePolicy.CIRCUIT_OPEN, mPolicy.getCircuit(PEER));
+        mPolicy.onRequested(PEER, OPEN_MS);
+        assertEquals(RangingFailurePolicy.CIRCUIT_HALF_OPEN, mPolicy.getCircuit(PEER));
+        assertEquals(1, mPolicy.getOpenCount());
+        mPolicy.onSuccess(PEER);
+        assertEvents("open 4 1 1000", "close 4");
+        assertEquals(RangingFailurePolicy.CIRCUIT_CLOSED, mPolicy.getCircuit(PEER));
+        assertEquals(0, mPolicy.getOpenCount());
+        assertEquals(0, mPolicy.getConsecutiveFailures(PEER));
+        // 閉じた後は最初の失敗からやり直す
+        assertEquals(100, mPolicy.onFailure(PEER, RangingFailurePolicy.FAILURE_TRANSIENT, 2000));
+        mPolicy.onSuccess(PEER);
+        assertEvents(); // 開いていなかった回路の成功は報告しない
+    }
+
+    @Test
+    public void failedProbeReopensForTwiceAsLong() {
+        long now = open(PEER, 0);
+        long[] expected = {2000, 4000, OPEN_MAX_MS, OPEN_MAX_MS};
+        for (long openMillis : expected) {
+            mPolicy.onRequested(PEER, now);
+            assertEquals(openMillis, mPolicy.onFailure(PEER, RangingFailurePolicy.FAILURE_TRANSIENT, now));
+            assertEquals(RangingFailurePolicy.CIRCUIT_OPEN, mPolicy.getCircuit(PEER));
+            now += openMillis;
+        }
+        assertEvents("open 4 1 1000", "open 4 1 2000", "open 4 1 4000", "open 4 1 8000", "open 4 1 8000");
+        assertEquals(1, mPolicy.getOpenCount());
+    }
+
+    @Test
+    public void unsupportedResponderOpensAtOnce() {
+        int failure = RangingFailurePolicy.classifyStatus(RangingBatch.STATUS_RESPONDER_DOES_NOT_SUPPORT_IEEE80211MC);
+        assertEquals(UNSUPPORTED_OPEN_MS, mPolicy.onFailure(PEER, failure, 0));
+        assertEquals(RangingFailurePolicy.CIRCUIT_OPEN, mPolicy.getCircuit(PEER));
+        mPolicy.onRequested(PEER, UNSUPPORTED_OPEN_MS);
+        assertEquals(OPEN_MAX_MS, mPolicy.onFailure(PEER, failure, UNSUPPORTED_OPEN_MS));
+        assertEvents("open 4 2 5000", "open 4 2 8000");
+    }
+
+    @Test
+    public void unavailableRttPausesAllRangingWithItsOwnBackoff() {
+        assertEquals(Long.MIN_VALUE, mPolicy.getPausedUntilMillis());
+        assertFalse(mPolicy.isPaused(0));
+        int failure = RangingFailurePolicy.classifyCode(RangingBatch.CODE_FAIL_RTT_NOT_AVAILABLE);
+        assertEquals(100, mPolicy.onFailure(PEER, failure, 1000));
+        assertTrue(mPolicy.isPaused(1099));
+        assertFalse(mPolicy.isPaused(1100));
+        // ピアの責任ではないので、ピアの失敗としては数えない
+        assertEquals(0, mPolicy.getConsecutiveFailures(PEER));
+        assertEquals(RangingFailurePolicy.CIRCUIT_CLOSED, mPolicy.getCircuit(PEER));
+        assertEquals(200, mPolicy.onUnavailable(1100));
+        assertEquals(400, mPolicy.onUnavailable(1300));
+        assertEquals(1700, mPolicy.getPausedUntilMillis());
+        for (int i = 0; i < 10; i++) {
+            mPolicy.onUnavailable(2000);
+        }
+        assertEquals(3000, mPolicy.getPausedUntilMillis()); // 上限 1 秒
+        // どれか一つでも成功すればやり直す
+        mPolicy.onSuccess(PEER + 1);
+        assertEquals(100, mPolicy.onUnavailable(5000));
+        mPolicy.clear();
+        assertFalse(mPolicy.isPaused(5000));
+        assertEvents();
+    }
+
+    @Test
+    public void returnsMinusOneWhenNoSlotsAreLeft() {
+        assertEquals(100, mPolicy.onFailure(1, RangingFailurePolicy.FAILURE_TRANSIENT, 0));
+        assertEquals(100, mPolicy.onFailure(2, RangingFailurePolicy.FAILURE_TRANSIENT, 0));
+        assertEquals(-1, mPolicy.onFailure(3, RangingFailurePolicy.FAILURE_TRANSIENT, 0));
+        assertEquals(-1, mPolicy.onFailure(3, RangingFailurePolicy.FAILURE_UNSUPPORTED, 0));
+        assertEquals(RangingFailurePolicy.CIRCUIT_CLOSED, mPolicy.getCircuit(3));
+        // 成功したピアの枠は返される
+        mPolicy.onSuccess(1);
+        assertEquals(100, mPolicy.onFailure(3, RangingFailurePolicy.FAILURE_TRANSIENT, 0));
+        mPolicy.removePeer(2);
+        assertEquals(100, mPolicy.onFailure(1, RangingFailurePolicy.FAILURE_TRANSIENT, 0));
+    }
+
+    @Test
+    public void requestFailuresDoNotBlameHealthyPeers() {
+        assertEquals(-1, mPolicy.onRequestFailure(1, 3, 0));
+        assertEquals(0, mPolicy.getConsecutiveFailures(1));
+        // 1 人だけの要求なら、そのピアの失敗
+        assertEquals(100, mPolicy.onRequestFailure(2, 1, 0));
+        // 既に失敗しているピアは、まとめた要求の失敗でも数える
+        assertEquals(200, mPolicy.onRequestFailure(2, 3, 100));
+        assertEquals(2, mPolicy.getConsecutiveFailures(2));
+        assertEquals(-1, mPolicy.onRequestFailure(1, 3, 100));
+    }
+
+    @Test
+    public void removePeerClosesItsCircuitSilently() {
+        open(PEER, 0);
+        assertEquals(1, mPolicy.getOpenCount());
+        mPolicy.removePeer(PEER);
+        assertEquals(0, mPolicy.getOpenCount());
+        assertEquals(RangingFailurePolicy.CIRCUIT_CLOSED, mPolicy.getCircuit(PEER));
+        assertEvents("open 4 1 1000");
+    }
+
+    @Test
+    public void seededJitterIsReproducibleAndOnlyShortensWaits() {
+        RangingFailurePolicy first = builder(64).setJitter(0.5).setSeed(42).build();
+        RangingFailurePolicy second = builder(64).setJitter(0.5).setSeed(42).build();
+        boolean shortened = false;
+        for (int peerId = 0; peerId < 64; peerId++) {
+            long delay = first.onFailure(peerId, RangingFailurePolicy.FAILURE_TRANSIENT, 0);
+            assertEquals(delay, second.onFailure(peerId, RangingFailurePolicy.FAILURE_TRANSIENT, 0));
+            assertTrue(String.valueOf(delay), delay >= 50 && delay <= 100);
+            shortened |= delay < 100;
+        }
+        assertTrue(shortened);
+    }
+}
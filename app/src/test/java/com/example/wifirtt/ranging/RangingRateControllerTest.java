@@ -0,0 +1,218 @@
+package com.example.wifirtt.ranging;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the controller with synthetic distance traces: the peer is ranged at every
+ * deadline and answers with its true distance plus Gaussian noise from a fixed seed.
+ */
+public class RangingRateControllerTest {
+
+    private static final int PEER = 7;
+    private static final int NOISE_MM = 50;
+
+    private RangingRateController mController;
+    private Random mRandom;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mController = new RangingRateController(8);
+        mRandom = new Random(42);
+        mController.addPeer(PEER, 0);
+    }
+
+    /** True distance of the peer over time. */
+    private interface Trace {
+        double distanceMm(long timeMillis);
+    }
+
+    /** Moves at a constant speed from {@code startMm} at time 0. */
+    private static Trace linear(final double startMm, final double speedMmPerMs) {
+        return new Trace() {
+            @Override
+            public double distanceMm(long timeMillis) {
+                return startMm + speedMmPerMs * timeMillis;
+            }
+        };
+    }
+
+    /** The floor, give or take the noise in the speed estimate. */
+    private void assertNearFloor() {
+        long interval = mController.getInterval(PEER);
+        assertTrue("interval " + interval, interval >= RangingRateController.DEFAULT_MIN_INTERVAL_MS
+                && interval <= RangingRateController.DEFAULT_MIN_INTERVAL_MS * 3 / 2);
+    }
+
+    /** Ranges the peer at every deadline until {@code untilMillis}. */
+    private void drive(long untilMillis, Trace trace) {
+        while (true) {
+            mNow = mController.getDeadline(PEER);
+            if (mNow > untilMillis) {
+                return;
+            }
+            mController.onRequested(PEER, mNow);
+            int distanceMm = (int) Math.round(trace.distanceMm(mNow) + mRandom.nextGaussian() * NOISE_MM);
+            mController.onSuccess(PEER, mNow, distanceMm, NOISE_MM);
+        }
+    }
+
+    @Test
+    public void newPeerIsDueImmediately() {
+        assertTrue(mController.isDue(PEER, 0));
+        assertEquals(RangingRateController.DEFAULT_MIN_INTERVAL_MS, mController.getInterval(PEER));
+    }
+
+    @Test
+    public void approachingPeerIsRangedNearTheFloor() {
+        // 1 m/s で近づく: 100ms ごとに 100mm 動くので最短間隔の近くになる
+        drive(10000, linear(20000, -1.0));
+        assertNearFloor();
+    }
+
+    @Test
+    public void retreatingPeerIsRangedNearTheFloor() {
+        drive(10000, linear(1000, 1.0));
+        assertNearFloor();
+    }
+
+    @Test
+    public void fasterPeerDoesNotGoBelowTheFloor() {
+        drive(5000, linear(50000, -8.0));
+        assertEquals(RangingRateController.DEFAULT_MIN_INTERVAL_MS, mController.getInterval(PEER));
+    }
+
+    @Test
+    public void stationaryPeerBacksOffToTheCeiling() {
+        drive(60000, linear(3000, 0));
+        assertEquals(RangingRateController.DEFAULT_MAX_INTERVAL_MS, mController.getInterval(PEER));
+    }
+
+    @Test
+    public void slowPeerIsRangedInBetween() {
+        // 0.25 m/s なら 100mm 動くのに 400ms かかる
+        drive(60000, linear(3000, 0.25));
+        long interval = mController.getInterval(PEER);
+        assertTrue("interval " + interval, interval >= 250 && interval <= 700);
+    }
+
+    @Test
+    public void rateFollowsTheTrace() {
+        // 30 秒静止し、10 秒かけて 10m 近づき、また静止する
+        Trace trace = new Trace() {
+            @Override
+            public double distanceMm(long timeMillis) {
+                return 15000 - 1.0 * Math.max(0, Math.min(timeMillis - 30000, 10000));
+            }
+        };
+        drive(30000, trace);
+        assertEquals(RangingRateController.DEFAULT_MAX_INTERVAL_MS, mController.getInterval(PEER));
+        // 動き出してから数回の計測で最短間隔まで縮む
+        drive(35000, trace);
+        assertNearFloor();
+        drive(40000, trace);
+        assertNearFloor();
+        drive(70000, trace);
+        assertEquals(RangingRateController.DEFAULT_MAX_INTERVAL_MS, mController.getInterval(PEER));
+    }
+
+    @Test
+    public void failuresBackOffExponentiallyUpToTheCeiling() {
+        long[] expected = {200, 400, 800, 1600, 2000, 2000, 2000};
+        for (long interval : expected) {
+            mController.onFailure(PEER, mNow);
+            assertEquals(mNow + interval, mController.getDeadline(PEER));
+            mNow = mController.getDeadline(PEER);
+        }
+        mController.onSuccess(PEER, mNow, 3000, NOISE_MM);
+        assertEquals(RangingRateController.DEFAULT_MIN_INTERVAL_MS, mController.getInterval(PEER));
+    }
+
+    @Test
+    public void policyRetryDelayMayExceedTheCeiling() {
+        mController.onFailure(PEER, 1000, 60000);
+        assertEquals(61000, mController.getDeadline(PEER));
+        mController.onFailure(PEER, 1000, 0);
+        assertEquals(1000 + RangingRateController.DEFAULT_MIN_INTERVAL_MS, mController.getDeadline(PEER));
+    }
+
+    @Test
+    public void requestedPeerIsHeldUntilItsResult() {
+        mController.onRequested(PEER, 0);
+        assertFalse(mController.isDue(PEER, RangingRateController.DEFAULT_MAX_INTERVAL_MS - 1));
+        mController.onRequested(PEER, 0, 500);
+        assertTrue(mController.isDue(PEER, 500));
+    }
+
+    @Test
+    public void slotLockedDeadlinesFallOnSlotStarts() {
+        mController.setSlot(PEER, 1000, 300, 40);
+        assertEquals(300, mController.getDeadline(PEER));
+        drive(60000, linear(10000, -0.2));
+        for (int i = 0; i < 20; i++) {
+            mController.onSuccess(PEER, mNow + 40, 10000, NOISE_MM);
+            long deadline = mController.getDeadline(PEER);
+            assertEquals(300, deadline % 1000);
+            // 結果はスロット開始の少し後に届くが、次のサイクルのスロットには間に合う
+            assertTrue(deadline > mNow + 40 && deadline <= mNow + 40 + RangingRateController.DEFAULT_MAX_INTERVAL_MS);
+            mNow = deadline;
+        }
+    }
+
+    @Test
+    public void fastSlotLockedPeerIsRangedOncePerCycle() {
+        mController.setSlot(PEER, 1000, 300, 0);
+        long previous = -1;
+        for (int i = 0; i < 50; i++) {
+            mNow = mController.getDeadline(PEER);
+            if (previous >= 0) {
+                assertEquals(1000, mNow - previous);
+            }
+            previous = mNow;
+            mController.onRequested(PEER, mNow);
+            mController.onSuccess(PEER, mNow + 30, 20000 - i * 1000, NOISE_MM);
+        }
+    }
+
+    @Test
+    public void slowSlotLockedPeerWaitsWholeCycles() {
+        mController.setSlot(PEER, 500, 100, 0);
+        drive(60000, linear(3000, 0));
+        // 上限 2000ms 以下で最後のスロット開始 = 4 サイクルごと
+        long previous = mController.getDeadline(PEER);
+        mController.onSuccess(PEER, previous + 20, 3000, NOISE_MM);
+        assertEquals(previous + 2000, mController.getDeadline(PEER));
+    }
+
+    @Test
+    public void failureRetriesAreAlignedToTheSlot() {
+        mController.setSlot(PEER, 1000, 300, 0);
+        mController.onFailure(PEER, 320, 150);
+        assertEquals(1300, mController.getDeadline(PEER));
+    }
+
+    @Test
+    public void earliestDeadlineCoversAllPeers() {
+        mController.addPeer(8, 0);
+        mController.onRequested(PEER, 0, 700);
+        mController.onRequested(8, 0, 300);
+        assertEquals(300, mController.getEarliestDeadline());
+        mController.removePeer(8);
+        assertEquals(700, mController.getEarliestDeadline());
+        mController.clear();
+        assertEquals(Long.MAX_VALUE, mController.getEarliestDeadline());
+        assertEquals(Long.MAX_VALUE, mController.getDeadline(PEER));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidSlots() {
+        mController.setSlot(PEER, 1000, 1000, 0);
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.wifirtt.record;
+
+import com.example.wifirtt.ranging.RangingBatch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Writes captures to a temporary directory and reads them back. */
+public class RangingRecorderTest {
+
+    private static final String SESSION = "test";
+    private static final int RECORDS_PER_SEGMENT = 16;
+    private static final int PEERS = 4;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Records {@code count} results in batches of {@link #PEERS}, numbered from {@code next}:
+     * the distance is the running number and every fifth one is a failure.
+     */
+    private static int record(RangingRecorder recorder, int next, int count) {
+        RangingBatch batch = new RangingBatch(PEERS);
+        int end = next + count;
+        while (next < end) {
+            batch.clear();
+            for (int i = 0; i < PEERS && next < end; i++, next++) {
+                if (next % 5 == 4) {
+                    batch.addFailure(next % PEERS, RangingBatch.STATUS_FAIL, 1000L + next);
+                } else {
+                    batch.addSuccess(next % PEERS, next, 100, -50, 1000L + next, 8, 7);
+                }
+            }
+            recorder.record(batch);
+        }
+        return next;
+    }
+
+    /** Reads the capture and checks that it holds records {@code first} to {@code end - 1}. */
+    private static void assertRecords(RangingRecordReader reader, int first, int end) throws IOException {
+        for (int n = first; n < end; n++) {
+            assertTrue("record " + n, reader.next());
+            assertEquals(1000L + n, reader.getTimestampMillis());
+            assertEquals(n % PEERS, reader.getPeerId());
+            if (n % 5 == 4) {
+                assertEquals(RangingBatch.STATUS_FAIL, reader.getStatus());
+                assertEquals(0, reader.getDistanceMm());
+            } else {
+                assertEquals(RangingBatch.STATUS_SUCCESS, reader.getStatus());
+                assertEquals(n, reader.getDistanceMm());
+                assertEquals(100, reader.getDistanceStdDevMm());
+                assertEquals(-50, reader.getRssi());
+                assertEquals(8, reader.getNumAttemptedMeasurements());
+                assertEquals(7, reader.getNumSuccessfulMeasurements());
+            }
+        }
+        assertFalse(reader.next());
+    }
+
+    /** Header count of segment {@code index}, after checking its header. */
+    private int headerCount(int index) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment(index), "r")) {
+            byte[] header = new byte[RangingRecordFormat.HEADER_SIZE];
+            file.readFully(header);
+            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(index, buffer.getInt(RangingRecordFormat.HEADER_SEQUENCE));
+            return RangingRecordFormat.readHeaderCount(buffer, 0);
+        }
+    }
+
+    private File segment(int index) {
+        return RangingRecorder.segmentFile(mFolder.getRoot(), SESSION, index);
+    }
+
+    private static long segmentLength(int records) {
+        return RangingRecordFormat.HEADER_SIZE + (long) records * RangingRecordFormat.RECORD_SIZE;
+    }
+
+    @Test
+    public void readsEveryRecordBackAcrossSegments() throws Exception {
+        RangingRecorder recorder = new RangingRecorder(mFolder.getRoot(), SESSION, RECORDS_PER_SEGMENT, 10);
+        int next = 0;
+        while (next < 100) {
+            next = record(recorder, next, PEERS);
+            Thread.sleep(1); // 次のセグメントの用意はフラッシュスレッドに任せる
+        }
+        recorder.close();
+        assertEquals(100, recorder.getRecordCount());
+        assertEquals(0, recorder.getDroppedCount());
+
+        // 16 件ずつ 6 つが満杯で、最後の 4 件は 7 つ目に入り、その長さに切り詰められる
+        for (int i = 0; i < 6; i++) {
+            assertEquals(RECORDS_PER_SEGMENT, headerCount(i));
+            assertEquals(segmentLength(RECORDS_PER_SEGMENT), segment(i).length());
+        }
+        assertEquals(4, headerCount(6));
+        assertEquals(segmentLength(4), segment(6).length());
+        assertFalse(segment(7).exists());
+
+        try (RangingRecordReader reader = new RangingRecordReader(mFolder.getRoot(), SESSION)) {
+            assertRecords(reader, 0, 100);
+        }
+    }
+
+    @Test
+    public void backlogHoldsRecordsUntilTheNextSegmentIsMapped() throws Exception {
+        // 次のセグメントの名前でディレクトリを作っておき、割り当てを失敗させる
+        assertTrue(segment(1).mkdir());
+        RangingRecorder recorder = new RangingRecorder(mFolder.getRoot(), SESSION, RECORDS_PER_SEGMENT, 10);
+        // 満杯になった後の 16 件はバックログに入り、残り 3 件は捨てられる
+        record(recorder, 0, 2 * RECORDS_PER_SEGMENT + 3);
+        assertEquals(2 * RECORDS_PER_SEGMENT, recorder.getRecordCount());
+        assertEquals(3, recorder.getDroppedCount());
+
+        // 割り当てられるようになれば、close がバックログを書き出す
+        assertTrue(segment(1).delete());
+        recorder.close();
+        assertEquals(2 * RECORDS_PER_SEGMENT, recorder.getRecordCount());
+        assertEquals(RECORDS_PER_SEGMENT, headerCount(1));
+        assertEquals(segmentLength(RECORDS_PER_SEGMENT), segment(1).length());
+        try (RangingRecordReader reader = new RangingRecordReader(mFolder.getRoot(), SESSION)) {
+            assertRecords(reader, 0, 2 * RECORDS_PER_SEGMENT);
+        }
+    }
+
+    @Test
+    public void fullBacklogFillsTheNextSegmentWithoutOverrunningIt() throws Exception {
+        assertTrue(segment(1).mkdir());
+        RangingRecorder recorder = new RangingRecorder(mFolder.getRoot(), SESSION, RECORDS_PER_SEGMENT, 10);
+        // バックログはセグメントと同じ 16 件なので、切り替えた途端に次のセグメントも満杯になる
+        int next = record(recorder, 0, 2 * RECORDS_PER_SEGMENT);
+        assertTrue(segment(1).delete());
+        while (recorder.getRecordCount() < 3 * RECORDS_PER_SEGMENT) {
+            next = record(recorder, next, 1);
+            Thread.sleep(1);
+        }
+        recorder.close();
+        assertEquals(next, recorder.getRecordCount() + recorder.getDroppedCount());
+        assertEquals(RECORDS_PER_SEGMENT, headerCount(1));
+        assertEquals(RECORDS_PER_SEGMENT, headerCount(2));
+        try (RangingRecordReader reader = new RangingRecordReader(mFolder.getRoot(), SESSION)) {
+            int count = 0;
+            while (reader.next()) {
+                count++;
+            }
+            assertEquals(3 * RECORDS_PER_SEGMENT, count);
+        }
+    }
+
+    @Test
+    public void readsWhatACaptureInProgressHolds() throws Exception {
+        RangingRecorder recorder = new RangingRecorder(mFolder.getRoot(), SESSION, RECORDS_PER_SEGMENT, 10);
+        try {
+            record(recorder, 0, 10);
+            // 書き込み中のファイルは満杯の長さだが、ヘッダの件数までしか読まない
+            assertEquals(segmentLength(RECORDS_PER_SEGMENT), segment(0).length());
+            try (RangingRecordReader reader = new RangingRecordReader(segment(0))) {
+                assertRecords(reader, 0, 10);
+            }
+        } finally {
+            recorder.close();
+        }
+    }
+
+    @Test
+    public void readsTheWholeRecordsOfACutOffSegment() throws Exception {
+        RangingRecorder recorder = new RangingRecorder(mFolder.getRoot(), SESSION, RECORDS_PER_SEGMENT, 10);
+        record(recorder, 0, RECORDS_PER_SEGMENT + 10);
+        recorder.close();
+        // 件数は 10 のまま、7 件と半分のところで切れたファイル
+        try (RandomAccessFile file = new RandomAccessFile(segment(1), "rw")) {
+            file.setLength(segmentLength(7) + RangingRecordFormat.RECORD_SIZE / 2);
+        }
+        assertEquals(10, headerCount(1));
+        try (RangingRecordReader reader = new RangingRecordReader(mFolder.getRoot(), SESSION)) {
+            assertRecords(reader, 0, RECORDS_PER_SEGMENT + 7);
+        }
+    }
+
+    @Test
+    public void recordsAfterCloseAreDropped() throws Exception {
+        RangingRecorder recorder = new RangingRecorder(mFolder.getRoot(), SESSION, RECORDS_PER_SEGMENT, 10);
+        record(recorder, 0, 3);
+        recorder.close();
+        record(recorder, 3, 2);
+        assertEquals(3, recorder.getRecordCount());
+        assertEquals(2, recorder.getDroppedCount());
+        assertEquals(segmentLength(3), segment(0).length());
+        assertFalse(segment(1).exists());
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.wifirtt.zone;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProximityZoneEngineTest {
+
+    private static final int NEAR = 0;
+    private static final int MID = 1;
+    private static final int FAR = 2;
+    private static final int PEER = 7;
+
+    private final List<String> mEvents = new ArrayList<>();
+    private ProximityZoneEngine mEngine;
+
+    @Before
+    public void setUp() {
+        // near < 1.5m <= mid < 4m <= far < 10m、ヒステリシス 300mm、滞在 5 秒
+        mEngine = new ProximityZoneEngine.Builder(2)
+                .addZone("near", 1500)
+                .addZone("mid", 4000)
+                .addZone("far", 10000)
+                .setHysteresisMm(300)
+                .setDwellMillis(5000)
+                .build();
+        mEngine.addListener(new ProximityZoneEngine.Listener() {
+            @Override
+            public void onEnter(int peerId, int zone, long timestampMillis) {
+                mEvents.add("enter " + peerId + " " + mEngine.getZoneName(zone) + " @" + timestampMillis);
+            }
+
+            @Override
+            public void onExit(int peerId, int zone, long timestampMillis) {
+                mEvents.add("exit " + peerId + " " + mEngine.getZoneName(zone) + " @" + timestampMillis);
+            }
+
+            @Override
+            public void onDwell(int peerId, int zone, long dwellMillis, long timestampMillis) {
+                mEvents.add("dwell " + peerId + " " + mEngine.getZoneName(zone) + " " + dwellMillis
+                        + " @" + timestampMillis);
+            }
+        });
+    }
+
+    private void assertEvents(String... expected) {
+        assertEquals(Arrays.asList(expected), mEvents);
+        mEvents.clear();
+    }
+
+    @Test
+    public void noiseAroundABoundaryDoesNotFlap() {
+        mEngine.update(PEER, 1000, 0);
+        assertEvents("enter 7 near @0");
+        // 1.5m の境界を挟んで 1.2m から 1.8m の間で揺れても、1.8m に届くまでは near のまま
+        int[] noisy = {1400, 1700, 1250, 1799, 1550, 1200};
+        long t = 10;
+        for (int distanceMm : noisy) {
+            mEngine.update(PEER, distanceMm, t++);
+        }
+        assertEvents();
+        assertEquals(NEAR, mEngine.getZone(PEER));
+        mEngine.update(PEER, 1800, t++);
+        assertEvents("exit 7 near @16", "enter 7 mid @16");
+        // 戻るときは 1.2m を割るまで mid のまま
+        for (int distanceMm : noisy) {
+            mEngine.update(PEER, distanceMm, t++);
+        }
+        assertEvents();
+        assertEquals(MID, mEngine.getZone(PEER));
+        mEngine.update(PEER, 1199, t);
+        assertEvents("exit 7 mid @23", "enter 7 near @23");
+    }
+
+    @Test
+    public void jumpsAcrossSeveralZonesGoStraightToTheNewZone() {
+        mEngine.update(PEER, 6000, 0); // 最初の距離はヒステリシスなしで決める
+        assertEvents("enter 7 far @0");
+        mEngine.update(PEER, 800, 100);
+        assertEvents("exit 7 far @100", "enter 7 near @100");
+        mEngine.update(PEER, 20000, 200);
+        assertEvents("exit 7 near @200");
+        assertEquals(ProximityZoneEngine.OUTSIDE, mEngine.getZone(PEER));
+        mEngine.update(PEER, 10100, 300); // 外からは 9.7m を割るまで入らない
+        assertEvents();
+        mEngine.update(PEER, 3000, 400);
+        assertEvents("enter 7 mid @400");
+        mEngine.update(PEER, 9000, 500);
+        assertEvents("exit 7 mid @500", "enter 7 far @500");
+    }
+
+    @Test
+    public void dwellIsReportedOncePerVisit() {
+        mEngine.update(PEER, 2500, 1000);
+        mEngine.update(PEER, 2600, 5999);
+        assertEvents("enter 7 mid @1000");
+        mEngine.update(PEER, 2400, 6000);
+        mEngine.update(PEER, 2500, 9000);
+        mEngine.update(PEER, 2500, 60000);
+        assertEvents("dwell 7 mid 5000 @6000");
+        // 出て戻れば新しい訪問として数え直す
+        mEngine.update(PEER, 900, 61000);
+        mEngine.update(PEER, 2500, 62000);
+        mEngine.update(PEER, 2500, 67000);
+        mEngine.update(PEER, 2500, 68000);
+        assertEvents("exit 7 mid @61000", "enter 7 near @61000", "exit 7 near @62000", "enter 7 mid @62000",
+                "dwell 7 mid 5000 @67000");
+    }
+
+    @Test
+    public void pollReportsDwellWithoutNewDistances() {
+        mEngine.update(PEER, 1000, 0);
+        mEngine.update(PEER + 1, 20000, 0); // ゾーンの外にいるピアは滞在しない
+        mEngine.poll(4999);
+        assertEvents("enter 7 near @0");
+        mEngine.poll(7000);
+        mEngine.poll(8000);
+        mEngine.update(PEER, 1000, 9000);
+        assertEvents("dwell 7 near 7000 @7000");
+    }
+
+    @Test
+    public void removePeerReportsAnExit() {
+        mEngine.update(PEER, 3000, 0);
+        mEngine.update(PEER + 1, 20000, 0);
+        mEngine.removePeer(PEER, 500);
+        mEngine.removePeer(PEER + 1, 500); // ゾーンの外なら何も報告しない
+        mEngine.removePeer(99, 500);
+        assertEvents("enter 7 mid @0", "exit 7 mid @500");
+        assertEquals(ProximityZoneEngine.OUTSIDE, mEngine.getZone(PEER));
+        // 忘れた後の距離は最初の距離として扱う
+        mEngine.update(PEER, 3000, 1000);
+        mEngine.poll(5999);
+        assertEvents("enter 7 mid @1000");
+    }
+
+    @Test
+    public void clearForgetsPeersSilently() {
+        mEngine.update(PEER, 3000, 0);
+        mEngine.update(PEER + 1, 3000, 0);
+        assertFalse(mEngine.update(PEER + 2, 3000, 0)); // 2 人まで
+        mEngine.clear();
+        mEngine.poll(10000);
+        assertEvents("enter 7 mid @0", "enter 8 mid @0");
+        assertTrue(mEngine.update(PEER + 2, 3000, 20000));
+        assertEvents("enter 9 mid @20000");
+    }
+
+    @Test
+    public void maxDistanceIncludesTheHysteresis() {
+        assertEquals(10300, mEngine.getMaxDistanceMm());
+        assertEquals(3, mEngine.getZoneCount());
+        assertEquals("far", mEngine.getZoneName(FAR));
+        assertEquals("outside", mEngine.getZoneName(ProximityZoneEngine.OUTSIDE));
+    }
+
+    @Test
+    public void builderRejectsZonesNarrowerThanTwiceTheHysteresis() {
+        // 1m から 1.5m の帯は 0.5m。ヒステリシス 250mm ではどちらにも移れない帯になる
+        assertBuildFails(new ProximityZoneEngine.Builder(1).addZone("a", 1000).addZone("b", 1500).setHysteresisMm(250));
+        new ProximityZoneEngine.Builder(1).addZone("a", 1000).addZone("b", 1500).setHysteresisMm(249).build();
+        // 最も内側の帯は 0 から測る
+        assertBuildFails(new ProximityZoneEngine.Builder(1).addZone("a", 500).addZone("b", 5000).setHysteresisMm(250));
+        assertBuildFails(new ProximityZoneEngine.Builder(1));
+        try {
+            new ProximityZoneEngine.Builder(1).addZone("a", 1000).addZone("b", 1000);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new ProximityZoneEngine.Builder(1).setHysteresisMm(-1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static void assertBuildFails(ProximityZoneEngine.Builder builder) {
+        try {
+            builder.build();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.wifirtt.benchmark;
+
+import com.example.wifirtt.chart.DistanceChartFrame;
+import com.example.wifirtt.chart.DistanceTraceBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One frame of the distance chart with full traces: a new sample for every peer, then
+ * copying the visible window and laying it out. Must stay well under a 16ms frame and at
+ * 0 B/op in {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DistanceChartBenchmark {
+
+    private static final int TRACE_LENGTH = 4096;
+    private static final long WINDOW_MS = 20000;
+    private static final int CAPACITY = 201;
+
+    @Param({"20", "64"})
+    public int peers;
+
+    private DistanceTraceBuffer mBuffer;
+    private DistanceChartFrame mFrame;
+    private int[] mDistances;
+    private int mIndex;
+    private long mTimestamp;
+
+    @Setup
+    public void setUp() {
+        mBuffer = new DistanceTraceBuffer(peers, CAPACITY);
+        mFrame = new DistanceChartFrame(mBuffer, WINDOW_MS);
+        Random random = new Random(1);
+        mDistances = new int[TRACE_LENGTH];
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            mDistances[i] = 5000 + (int) (random.nextGaussian() * 150);
+        }
+        // 窓が埋まるまで 100ms 間隔で流し込んでおく
+        for (int i = 0; i < CAPACITY; i++) {
+            appendAll();
+        }
+    }
+
+    private void appendAll() {
+        mTimestamp += 100;
+        for (int peerId = 0; peerId < peers; peerId++) {
+            mBuffer.append(peerId, mTimestamp, mDistances[mIndex++ & (TRACE_LENGTH - 1)], 150);
+        }
+    }
+
+    @Benchmark
+    public float frame() {
+        appendAll();
+        mFrame.load(mBuffer);
+        mFrame.layout(0, 0, 1080, 600);
+        return mFrame.getSegments()[0];
+    }
+}
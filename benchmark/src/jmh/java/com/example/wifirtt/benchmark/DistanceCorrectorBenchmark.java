@@ -0,0 +1,43 @@
+package com.example.wifirtt.benchmark;
+
+import com.example.wifirtt.calibration.DistanceCorrector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/** Per-sample cost of the calibration correction in the result path. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DistanceCorrectorBenchmark {
+
+    @Param({"10", "64"})
+    public int peers;
+
+    private DistanceCorrector mCorrector;
+    private int mPeer;
+
+    @Setup
+    public void setUp() {
+        mCorrector = new DistanceCorrector(peers);
+        // 半分のピアだけに補正値を持たせ、素通りの経路も含めて測る
+        for (int i = 0; i < peers; i += 2) {
+            mCorrector.setCorrection(i, 250 + i, 1.03);
+        }
+    }
+
+    @Benchmark
+    public int correct() {
+        int peerId = mPeer;
+        mPeer = peerId + 1 == peers ? 0 : peerId + 1;
+        return mCorrector.correct(peerId, 5000 + peerId);
+    }
+}
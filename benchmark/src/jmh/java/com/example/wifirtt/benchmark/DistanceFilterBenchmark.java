@@ -0,0 +1,56 @@
+package com.example.wifirtt.benchmark;
+
+import com.example.wifirtt.filter.DistanceFilterBank;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of feeding one sample through the filter bank, cycling over all peers so that the
+ * per-peer state does not stay in L1.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DistanceFilterBenchmark {
+
+    private static final int TRACE_LENGTH = 4096;
+
+    @Param({"MEDIAN", "EWMA", "KALMAN"})
+    public DistanceFilterBank.Mode mode;
+
+    @Param({"10", "100", "1000"})
+    public int peers;
+
+    private DistanceFilterBank mFilter;
+    private int[] mDistances;
+    private int mIndex;
+    private long mTimestamp;
+
+    @Setup
+    public void setUp() {
+        mFilter = new DistanceFilterBank.Builder(peers).setMode(mode).build();
+        Random random = new Random(1);
+        mDistances = new int[TRACE_LENGTH];
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            mDistances[i] = 5000 + (int) (random.nextGaussian() * 150);
+        }
+    }
+
+    @Benchmark
+    public int update() {
+        int i = mIndex++;
+        int peerId = i % peers;
+        mFilter.update(peerId, mDistances[i & (TRACE_LENGTH - 1)], 150, -60, mTimestamp += 10);
+        return mFilter.getDistanceMm(peerId);
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.wifirtt.benchmark;
+
+import com.example.wifirtt.position.MultilaterationSolver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** One position fix from noisy ranges to anchors on the corners of a room. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MultilaterationBenchmark {
+
+    private static final int FIXES = 1024;
+
+    @Param({"2", "3"})
+    public int dimensions;
+
+    @Param({"4", "8"})
+    public int anchors;
+
+    private MultilaterationSolver mSolver;
+    private double[][] mAnchors;
+    private double[][] mRanges;
+    private int mFix;
+
+    @Setup
+    public void setUp() {
+        mSolver = new MultilaterationSolver(anchors, dimensions);
+        Random random = new Random(1);
+        mAnchors = new double[anchors][3];
+        for (int i = 0; i < anchors; i++) {
+            mAnchors[i][0] = (i & 1) * 10.0;
+            mAnchors[i][1] = ((i >> 1) & 1) * 8.0;
+            mAnchors[i][2] = dimensions == 3 ? ((i >> 2) & 1) * 3.0 + (i % 3) * 0.5 : 0;
+        }
+        mRanges = new double[FIXES][anchors];
+        for (int f = 0; f < FIXES; f++) {
+            double x = random.nextDouble() * 10;
+            double y = random.nextDouble() * 8;
+            double z = dimensions == 3 ? random.nextDouble() * 3 : 0;
+            for (int i = 0; i < anchors; i++) {
+                double dx = x - mAnchors[i][0];
+                double dy = y - mAnchors[i][1];
+                double dz = z - mAnchors[i][2];
+                mRanges[f][i] = Math.sqrt(dx * dx + dy * dy + dz * dz) + random.nextGaussian() * 0.1;
+            }
+        }
+    }
+
+    @Benchmark
+    public double solve() {
+        double[] ranges = mRanges[mFix];
+        mFix = (mFix + 1) & (FIXES - 1);
+        mSolver.reset();
+        for (int i = 0; i < anchors; i++) {
+            mSolver.addRange(mAnchors[i][0], mAnchors[i][1], mAnchors[i][2], ranges[i], 0.1);
+        }
+        return mSolver.solve() ? mSolver.getX() : Double.NaN;
+    }
+}
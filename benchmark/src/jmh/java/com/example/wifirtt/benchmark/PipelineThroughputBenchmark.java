@@ -0,0 +1,49 @@
+package com.example.wifirtt.benchmark;
+
+import com.example.wifirtt.sim.RangingSimulation;
+import com.example.wifirtt.sim.SimulatedPeerField;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end subscriber pipeline against the simulated peer field: how many seconds of
+ * virtual ranging the JVM can process per second of wall time as the peer count grows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PipelineThroughputBenchmark {
+
+    // アプリの計測ループと同じ最短間隔
+    private static final long MIN_TICK_MS = 50;
+    private static final long STEP_MS = 1000;
+
+    @Param({"10", "100", "1000"})
+    public int peers;
+
+    private RangingSimulation mSimulation;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        SimulatedPeerField field = new SimulatedPeerField.Builder(peers).build();
+        mSimulation = new RangingSimulation(field);
+        mSimulation.run(5000, MIN_TICK_MS); // 全ピアが発見されるまで進めておく
+    }
+
+    /** One simulated second per invocation. */
+    @Benchmark
+    public long simulateOneSecond() {
+        mSimulation.run(STEP_MS, MIN_TICK_MS);
+        return mSimulation.getSuccessCount();
+    }
+}
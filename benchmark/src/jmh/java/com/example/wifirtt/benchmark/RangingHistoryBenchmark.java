@@ -0,0 +1,74 @@
+package com.example.wifirtt.benchmark;
+
+import com.example.wifirtt.history.RangingHistory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending one sample to the history and querying the windowed aggregates of a peer, with
+ * the window kept full so every append also expires a sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RangingHistoryBenchmark {
+
+    private static final int TRACE_LENGTH = 4096;
+
+    @Param({"10", "64"})
+    public int peers;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    private RangingHistory mHistory;
+    private int[] mDistances;
+    private int mIndex;
+    private long mTimestamp;
+
+    @Setup
+    public void setUp() {
+        mHistory = new RangingHistory.Builder(peers).setCapacity(256).setWindowMillis(10000)
+                .setDirect(direct).build();
+        Random random = new Random(1);
+        mDistances = new int[TRACE_LENGTH];
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            mDistances[i] = 5000 + (int) (random.nextGaussian() * 150);
+        }
+        for (int i = 0; i < peers * 512; i++) {
+            append();
+        }
+    }
+
+    private int append() {
+        int i = mIndex++;
+        int peerId = i % peers;
+        // 16 回に 1 回は失敗として記録する
+        int status = (i & 15) == 0 ? 1 : 0;
+        mHistory.append(peerId, mTimestamp += 10, status, mDistances[i & (TRACE_LENGTH - 1)], 150, -60);
+        return peerId;
+    }
+
+    @Benchmark
+    public int appendOne() {
+        return append();
+    }
+
+    @Benchmark
+    public int queryWindow() {
+        int peerId = mIndex++ % peers;
+        return mHistory.getPercentileMm(peerId, mTimestamp, 50) + mHistory.getMinMm(peerId, mTimestamp)
+                + mHistory.getMaxMm(peerId, mTimestamp) + (int) mHistory.getMeanMm(peerId, mTimestamp)
+                + (int) (mHistory.getSuccessRatio(peerId, mTimestamp) * 100);
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.wifirtt.benchmark;
+
+import com.example.wifirtt.ranging.RangingBatch;
+import com.example.wifirtt.record.RangingRecordFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/** Encoding a full batch of ten results into the binary record format. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RecordEncodingBenchmark {
+
+    private static final int RECORDS = 4096;
+
+    private final RangingBatch mBatch = new RangingBatch(10);
+    private ByteBuffer mBuffer;
+    private int mRecord;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < 10; i++) {
+            if (i == 3) {
+                mBatch.addFailure(i, RangingBatch.STATUS_FAIL, 1000);
+            } else {
+                mBatch.addSuccess(i, 5000 + i, 120, -55 - i, 1000, 8, 7);
+            }
+        }
+        mBuffer = ByteBuffer.allocateDirect(RangingRecordFormat.HEADER_SIZE + RECORDS * RangingRecordFormat.RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Benchmark
+    public int encodeBatch() {
+        for (int i = 0; i < mBatch.size(); i++) {
+            RangingRecordFormat.writeRecord(mBuffer,
+                    RangingRecordFormat.HEADER_SIZE + mRecord * RangingRecordFormat.RECORD_SIZE, mBatch, i);
+            mRecord = (mRecord + 1) & (RECORDS - 1);
+        }
+        mBuffer.putInt(RangingRecordFormat.HEADER_COUNT, mRecord);
+        return mRecord;
+    }
+}
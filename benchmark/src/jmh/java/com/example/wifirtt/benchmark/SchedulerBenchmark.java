@@ -0,0 +1,90 @@
+package com.example.wifirtt.benchmark;
+
+import com.example.wifirtt.ranging.BatchedRangingScheduler;
+import com.example.wifirtt.ranging.RangingBackend;
+import com.example.wifirtt.ranging.RangingBatch;
+import com.example.wifirtt.ranging.RangingClock;
+import com.example.wifirtt.ranging.RangingRateController;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One full scheduling round: pick the due peers, send the request, and feed the results
+ * back through the rate controller. The backend answers synchronously so only the
+ * scheduling cost is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SchedulerBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int peers;
+
+    private long mNow;
+    private BatchedRangingScheduler mScheduler;
+
+    @Setup
+    public void setUp() {
+        final RangingBatch batch = new RangingBatch(10);
+        RangingBackend backend = new RangingBackend() {
+            @Override
+            public int getMaxPeers() {
+                return 10;
+            }
+
+            @Override
+            public boolean isAvailable() {
+                return true;
+            }
+
+            @Override
+            public void startRanging(int[] peerIds, int count, Callback callback) {
+                batch.clear();
+                for (int i = 0; i < count; i++) {
+                    batch.addSuccess(peerIds[i], 5000 + (int) (mNow & 0xff), 100, -60, mNow, 8, 8);
+                }
+                callback.onRangingResults(batch);
+            }
+
+            @Override
+            public void expireRanging(Callback callback) {
+                // 同期的に応答するので、期限切れになる要求はない
+            }
+        };
+        RangingClock clock = new RangingClock() {
+            @Override
+            public long elapsedRealtimeMillis() {
+                return mNow;
+            }
+        };
+        mScheduler = new BatchedRangingScheduler(backend, new RangingRateController(peers), clock,
+                new RangingBackend.Callback() {
+                    @Override
+                    public void onRangingResults(RangingBatch results) {
+                    }
+
+                    @Override
+                    public void onRangingFailure(int code) {
+                    }
+                });
+        for (int i = 1; i <= peers; i++) {
+            mScheduler.addPeer(i);
+        }
+    }
+
+    @Benchmark
+    public int rangeNext() {
+        mNow += 10;
+        return mScheduler.rangeNext();
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.wifirtt.benchmark;
+
+import com.example.wifirtt.ranging.RangingBatch;
+import com.example.wifirtt.record.RangingStreamClient;
+import com.example.wifirtt.record.RangingStreamServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost on the ranging thread of publishing a batch of ten results to the loopback stream
+ * while a client reads it. With {@code slowClient} the client stalls after every frame, so
+ * the server has to skip frames or aggregate instead of blocking the publisher.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StreamExportBenchmark {
+
+    @Param({"false", "true"})
+    public boolean slowClient;
+
+    private final RangingBatch mBatch = new RangingBatch(10);
+    private RangingStreamServer mServer;
+    private RangingStreamClient mClient;
+    private Thread mReader;
+    private long mNowMillis;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            mBatch.addSuccess(i, 5000 + i, 120, -55 - i, 1000, 8, 7);
+        }
+        mServer = new RangingStreamServer.Builder(0).start();
+        mClient = new RangingStreamClient("127.0.0.1", mServer.getPort());
+        mReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long frames = 0;
+                    while (mClient.next()) {
+                        if (slowClient && mClient.getFrameCount() != frames) {
+                            frames = mClient.getFrameCount();
+                            Thread.sleep(1);
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // 計測終了時の切断
+                }
+            }
+        }, "StreamExportBenchmarkReader");
+        mReader.setDaemon(true);
+        mReader.start();
+        while (mServer.getClientCount() == 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mServer.close();
+        mClient.close();
+        mReader.join(1000);
+    }
+
+    @Benchmark
+    public long publishBatch() {
+        // 10 バッチごとに 1 ms 進め、最大遅延でフレームが切られるようにする
+        mNowMillis++;
+        mServer.publish(mBatch, mNowMillis / 10);
+        return mServer.getRecordCount();
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.wifirtt.calibration;
+
+/**
+ * Accumulated samples of one device pair: the sums for a least-squares fit of
+ * {@code measured = scale * true + offset}, and error statistics per true-distance range,
+ * both before and after a correction. Instances are filled independently per capture
+ * segment and combined with {@link #merge}, so captures can be processed in parallel.
+ * Not thread-safe.
+ */
+public final class CalibrationStats {
+
+    /** Upper edges of the true-distance ranges errors are reported by, in millimetres. */
+    public static final int[] RANGE_EDGES_MM = {1000, 2000, 3000, 5000, 10000, Integer.MAX_VALUE};
+
+    /** Bias, RMSE and an absolute error histogram with 10 mm bins up to 5 m. */
+    public static final class ErrorStats {
+        public static final int BIN_MM = 10;
+        public static final int BINS = 500;
+
+        private long mCount;
+        private double mErrorSum;
+        private double mSquaredErrorSum;
+        // 最後のビンは 5 m 以上の誤差をまとめて数える
+        private final long[] mHistogram = new long[BINS + 1];
+
+        void add(double errorMm) {
+            mCount++;
+            mErrorSum += errorMm;
+            mSquaredErrorSum += errorMm * errorMm;
+            mHistogram[(int) Math.min(BINS, Math.abs(errorMm) / BIN_MM)]++;
+        }
+
+        void merge(ErrorStats other) {
+            mCount += other.mCount;
+            mErrorSum += other.mErrorSum;
+            mSquaredErrorSum += other.mSquaredErrorSum;
+            for (int i = 0; i < mHistogram.length; i++) {
+                mHistogram[i] += other.mHistogram[i];
+            }
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        /** Mean of measured minus true. */
+        public double getBiasMm() {
+            return mCount > 0 ? mErrorSum / mCount : 0;
+        }
+
+        public double getRmseMm() {
+            return mCount > 0 ? Math.sqrt(mSquaredErrorSum / mCount) : 0;
+        }
+
+        /**
+         * Returns the upper edge of the bin holding the {@code percentile}-th absolute error,
+         * or {@link Integer#MAX_VALUE} if it is beyond the histogram.
+         */
+        public int getAbsErrorPercentileMm(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100.0 * mCount);
+            long seen = 0;
+            for (int i = 0; i < BINS; i++) {
+                seen += mHistogram[i];
+                if (seen >= Math.max(1, rank)) {
+                    return (i + 1) * BIN_MM;
+                }
+            }
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private final String mLocalDevice;
+    private final String mRemoteDevice;
+
+    private long mCount;
+    private double mSumTrue;
+    private double mSumMeasured;
+    private double mSumTrueSquared;
+    private double mSumTrueMeasured;
+
+    private final ErrorStats[] mRaw = new ErrorStats[RANGE_EDGES_MM.length];
+    private final ErrorStats[] mCorrected = new ErrorStats[RANGE_EDGES_MM.length];
+
+    public CalibrationStats(String localDevice, String remoteDevice) {
+        mLocalDevice = localDevice;
+        mRemoteDevice = remoteDevice;
+        for (int i = 0; i < RANGE_EDGES_MM.length; i++) {
+            mRaw[i] = new ErrorStats();
+            mCorrected[i] = new ErrorStats();
+        }
+    }
+
+    public String getLocalDevice() {
+        return mLocalDevice;
+    }
+
+    public String getRemoteDevice() {
+        return mRemoteDevice;
+    }
+
+    public static int rangeOf(int trueMm) {
+        int range = 0;
+        while (trueMm >= RANGE_EDGES_MM[range]) {
+            range++;
+        }
+        return range;
+    }
+
+    public void addFitSample(int trueMm, int measuredMm) {
+        mCount++;
+        mSumTrue += trueMm;
+        mSumMeasured += measuredMm;
+        mSumTrueSquared += (double) trueMm * trueMm;
+        mSumTrueMeasured += (double) trueMm * measuredMm;
+    }
+
+    public void addErrorSample(int trueMm, int measuredMm, double correctedMm) {
+        int range = rangeOf(trueMm);
+        mRaw[range].add(measuredMm - trueMm);
+        mCorrected[range].add(correctedMm - trueMm);
+    }
+
+    public void merge(CalibrationStats other) {
+        mCount += other.mCount;
+        mSumTrue += other.mSumTrue;
+        mSumMeasured += other.mSumMeasured;
+        mSumTrueSquared += other.mSumTrueSquared;
+        mSumTrueMeasured += other.mSumTrueMeasured;
+        for (int i = 0; i < RANGE_EDGES_MM.length; i++) {
+            mRaw[i].merge(other.mRaw[i]);
+            mCorrected[i].merge(other.mCorrected[i]);
+        }
+    }
+
+    /** Samples added with {@link #addFitSample}. */
+    public long getFitCount() {
+        return mCount;
+    }
+
+    /**
+     * Fits {@code measured = scale * true + offset} by least squares. If every sample was
+     * taken at (nearly) the same true distance the scale cannot be told apart from the
+     * offset, so only the offset is fitted.
+     */
+    public CalibrationTable.Entry fit() {
+        if (mCount == 0) {
+            return null;
+        }
+        double meanTrue = mSumTrue / mCount;
+        double meanMeasured = mSumMeasured / mCount;
+        double varianceTrue = mSumTrueSquared / mCount - meanTrue * meanTrue;
+        double covariance = mSumTrueMeasured / mCount - meanTrue * meanMeasured;
+        double scale = 1;
+        // 真値の広がりが 10 cm 未満では傾きを推定しない
+        if (varianceTrue >= 100.0 * 100.0 && covariance > 0) {
+            scale = covariance / varianceTrue;
+        }
+        return new CalibrationTable.Entry(mLocalDevice, mRemoteDevice, meanMeasured - scale * meanTrue, scale);
+    }
+
+    /** Errors of the raw measurements in range {@code range} of {@link #RANGE_EDGES_MM}. */
+    public ErrorStats getRawErrors(int range) {
+        return mRaw[range];
+    }
+
+    /** Errors after the correction, in range {@code range} of {@link #RANGE_EDGES_MM}. */
+    public ErrorStats getCorrectedErrors(int range) {
+        return mCorrected[range];
+    }
+}
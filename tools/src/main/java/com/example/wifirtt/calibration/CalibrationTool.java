@@ -0,0 +1,269 @@
+package com.example.wifirtt.calibration;
+
+import com.example.wifirtt.ranging.RangingBatch;
+import com.example.wifirtt.record.RangingRecordReader;
+import com.example.wifirtt.record.RangingRecorder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fits per-device-pair corrections from labelled captures and reports the error before and
+ * after them, by true-distance range:
+ *
+ * <pre>
+ * ./gradlew :tools:calibrate --args='&lt;captureDir&gt; [&lt;calibration.txt&gt;]'
+ * </pre>
+ *
+ * Every session in {@code captureDir} that has a {@code <session>.labels} file (see
+ * {@link CaptureLabels}) is used; only successful results inside a truth interval count.
+ * The work is split by capture segment over a {@link ForkJoinPool}: each segment is
+ * streamed from its memory mapping into its own {@link CalibrationStats}, and the results
+ * are merged. The first pass fits the corrections, the second measures the errors with
+ * them applied. The table is written to the second argument if given.
+ */
+public final class CalibrationTool {
+
+    private static final double[] PERCENTILES = {50, 90, 95};
+
+    /** One capture segment and the labels of its session. */
+    public static final class Segment {
+        final File mFile;
+        final CaptureLabels mLabels;
+        final long mBaseMillis;
+
+        public Segment(File file, CaptureLabels labels, long baseMillis) {
+            mFile = file;
+            mLabels = labels;
+            mBaseMillis = baseMillis;
+        }
+    }
+
+    private final ForkJoinPool mPool;
+
+    public CalibrationTool(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /** Lists the segments of every labelled session in {@code directory}. */
+    public static List<Segment> findSegments(File directory, PrintStream log) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        for (String session : RangingRecordReader.listSessions(directory)) {
+            File labelsFile = CaptureLabels.labelsFile(directory, session);
+            if (!labelsFile.isFile()) {
+                log.println("Skipping " + session + ": no " + labelsFile.getName());
+                continue;
+            }
+            CaptureLabels labels = CaptureLabels.read(labelsFile);
+            long baseMillis;
+            try (RangingRecordReader reader = new RangingRecordReader(RangingRecorder.segmentFile(directory, session, 0))) {
+                if (!reader.next()) {
+                    log.println("Skipping " + session + ": empty capture");
+                    continue;
+                }
+                baseMillis = reader.getTimestampMillis();
+            }
+            for (int i = 0; ; i++) {
+                File file = RangingRecorder.segmentFile(directory, session, i);
+                if (!file.isFile()) {
+                    break;
+                }
+                segments.add(new Segment(file, labels, baseMillis));
+            }
+        }
+        return segments;
+    }
+
+    /** First pass: accumulates the fit sums of every device pair. */
+    public Map<String, CalibrationStats> fit(List<Segment> segments) {
+        return mPool.invoke(new SegmentTask(segments, 0, segments.size(), null));
+    }
+
+    /** Second pass: accumulates raw and corrected errors, using {@code table} for the corrections. */
+    public Map<String, CalibrationStats> evaluate(List<Segment> segments, CalibrationTable table) {
+        return mPool.invoke(new SegmentTask(segments, 0, segments.size(), table));
+    }
+
+    static String pairKey(String localDevice, String remoteDevice) {
+        return localDevice + '\t' + remoteDevice;
+    }
+
+    private static final class SegmentTask extends RecursiveTask<Map<String, CalibrationStats>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Segment> mSegments;
+        private final int mFrom;
+        private final int mTo;
+        private final CalibrationTable mTable;
+
+        SegmentTask(List<Segment> segments, int from, int to, CalibrationTable table) {
+            mSegments = segments;
+            mFrom = from;
+            mTo = to;
+            mTable = table;
+        }
+
+        @Override
+        protected Map<String, CalibrationStats> compute() {
+            if (mTo - mFrom <= 1) {
+                Map<String, CalibrationStats> stats = new HashMap<>();
+                if (mTo > mFrom) {
+                    try {
+                        accumulate(mSegments.get(mFrom), mTable, stats);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return stats;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            SegmentTask left = new SegmentTask(mSegments, mFrom, mid, mTable);
+            left.fork();
+            Map<String, CalibrationStats> right = new SegmentTask(mSegments, mid, mTo, mTable).compute();
+            return merge(left.join(), right);
+        }
+    }
+
+    static Map<String, CalibrationStats> merge(Map<String, CalibrationStats> into, Map<String, CalibrationStats> from) {
+        for (Map.Entry<String, CalibrationStats> entry : from.entrySet()) {
+            CalibrationStats stats = into.get(entry.getKey());
+            if (stats == null) {
+                into.put(entry.getKey(), entry.getValue());
+            } else {
+                stats.merge(entry.getValue());
+            }
+        }
+        return into;
+    }
+
+    /** Streams one segment into {@code stats}; fit sums if {@code table} is null, errors otherwise. */
+    static void accumulate(Segment segment, CalibrationTable table, Map<String, CalibrationStats> stats)
+            throws IOException {
+        CaptureLabels labels = segment.mLabels;
+        // ピアごとの組と補正値を覚えておき、レコードごとの検索と文字列連結を避ける
+        Map<Integer, CalibrationStats> statsByPeer = new HashMap<>();
+        Map<Integer, CalibrationTable.Entry> correctionByPeer = new HashMap<>();
+        try (RangingRecordReader reader = new RangingRecordReader(segment.mFile)) {
+            while (reader.next()) {
+                if (reader.getStatus() != RangingBatch.STATUS_SUCCESS) {
+                    continue;
+                }
+                int peerId = reader.getPeerId();
+                int trueMm = labels.getTrueDistanceMm(peerId, reader.getTimestampMillis() - segment.mBaseMillis);
+                if (trueMm < 0) {
+                    continue;
+                }
+                CalibrationStats pair = statsByPeer.get(peerId);
+                if (pair == null) {
+                    String remoteDevice = labels.getRemoteDevice(peerId);
+                    if (remoteDevice == null) {
+                        continue;
+                    }
+                    String key = pairKey(labels.getLocalDevice(), remoteDevice);
+                    pair = stats.get(key);
+                    if (pair == null) {
+                        pair = new CalibrationStats(labels.getLocalDevice(), remoteDevice);
+                        stats.put(key, pair);
+                    }
+                    statsByPeer.put(peerId, pair);
+                    if (table != null) {
+                        correctionByPeer.put(peerId, table.find(labels.getLocalDevice(), remoteDevice));
+                    }
+                }
+                int measuredMm = reader.getDistanceMm();
+                if (table == null) {
+                    pair.addFitSample(trueMm, measuredMm);
+                } else {
+                    CalibrationTable.Entry correction = correctionByPeer.get(peerId);
+                    pair.addErrorSample(trueMm, measuredMm,
+                            correction != null ? correction.correct(measuredMm) : measuredMm);
+                }
+            }
+        }
+    }
+
+    public static void report(Map<String, CalibrationStats> evaluated, CalibrationTable table, PrintStream out) {
+        for (CalibrationStats pair : new TreeMap<>(evaluated).values()) {
+            CalibrationTable.Entry entry = table.find(pair.getLocalDevice(), pair.getRemoteDevice());
+            out.println(String.format(Locale.US, "%s -> %s: offset %.1f mm, scale %.5f",
+                    pair.getLocalDevice(), pair.getRemoteDevice(),
+                    entry != null ? entry.getOffsetMm() : 0, entry != null ? entry.getScale() : 1));
+            out.println("                       |                raw                |             corrected");
+            out.println("  range        samples |    bias    rmse   p50   p90   p95 |    bias    rmse   p50   p90   p95");
+            long lower = 0;
+            for (int range = 0; range < CalibrationStats.RANGE_EDGES_MM.length; range++) {
+                int upper = CalibrationStats.RANGE_EDGES_MM[range];
+                CalibrationStats.ErrorStats raw = pair.getRawErrors(range);
+                CalibrationStats.ErrorStats corrected = pair.getCorrectedErrors(range);
+                String label = upper == Integer.MAX_VALUE
+                        ? String.format(Locale.US, ">=%.0fm", lower / 1000.0)
+                        : String.format(Locale.US, "%.0f-%.0fm", lower / 1000.0, upper / 1000.0);
+                lower = upper;
+                if (raw.getCount() == 0) {
+                    continue;
+                }
+                out.println(String.format(Locale.US, "  %-8s %11d | %s | %s", label, raw.getCount(),
+                        formatErrors(raw), formatErrors(corrected)));
+            }
+        }
+    }
+
+    private static String formatErrors(CalibrationStats.ErrorStats errors) {
+        StringBuilder sb = new StringBuilder(String.format(Locale.US, "%7.1f %7.1f",
+                errors.getBiasMm(), errors.getRmseMm()));
+        for (double percentile : PERCENTILES) {
+            int value = errors.getAbsErrorPercentileMm(percentile);
+            sb.append(value == Integer.MAX_VALUE ? "  >5m" : String.format(Locale.US, " %5d", value));
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: CalibrationTool <captureDir> [<calibration.txt>]");
+            System.exit(2);
+        }
+        List<Segment> segments = findSegments(new File(args[0]), System.err);
+        if (segments.isEmpty()) {
+            System.err.println("No labelled captures in " + args[0]);
+            System.exit(1);
+        }
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            CalibrationTool tool = new CalibrationTool(pool);
+            long start = System.nanoTime();
+            Map<String, CalibrationStats> fitted = tool.fit(segments);
+            List<CalibrationTable.Entry> entries = new ArrayList<>();
+            long samples = 0;
+            for (CalibrationStats pair : new TreeMap<>(fitted).values()) {
+                entries.add(pair.fit());
+                samples += pair.getFitCount();
+            }
+            CalibrationTable table = new CalibrationTable(entries);
+            report(tool.evaluate(segments, table), table, System.out);
+            System.err.println(String.format(Locale.US, "%d segments, %d labelled samples, %d pairs in %.1fs on %d threads",
+                    segments.size(), samples, entries.size(), (System.nanoTime() - start) / 1e9, pool.getParallelism()));
+            if (args.length > 1) {
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(args[1]), StandardCharsets.UTF_8)) {
+                    table.write(writer);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
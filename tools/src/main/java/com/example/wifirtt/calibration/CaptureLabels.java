@@ -0,0 +1,154 @@
+package com.example.wifirtt.calibration;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ground truth for one capture session, read from {@code <session>.labels} next to the
+ * capture segments. Lines starting with {@code #} are comments; the others are:
+ * <pre>
+ * local &lt;device&gt;                        the device that recorded the capture
+ * remote &lt;peerId|*&gt; &lt;device&gt;            the device behind a peer id, or behind every peer
+ * truth &lt;fromMs&gt; &lt;toMs&gt; &lt;metres&gt; [&lt;peerId&gt;] true distance during an interval
+ * </pre>
+ * Device names may contain spaces and must be the names the devices advertise. Truth
+ * intervals are in milliseconds since the first record of the capture and include
+ * {@code fromMs} but not {@code toMs}; an interval with a peer id overrides one without.
+ * Immutable.
+ */
+public final class CaptureLabels {
+
+    public static final String FILE_SUFFIX = ".labels";
+
+    private static final int ANY_PEER = -1;
+
+    private final String mLocalDevice;
+    private final String mDefaultRemoteDevice;
+    private final Map<Integer, String> mRemoteDevices;
+    // 区間は記述順に保持し、ピア指定のある区間を先に探す
+    private final long[] mFromMillis;
+    private final long[] mToMillis;
+    private final int[] mDistancesMm;
+    private final int[] mPeerIds;
+
+    private CaptureLabels(String localDevice, String defaultRemoteDevice, Map<Integer, String> remoteDevices,
+                          List<long[]> intervals) {
+        mLocalDevice = localDevice;
+        mDefaultRemoteDevice = defaultRemoteDevice;
+        mRemoteDevices = remoteDevices;
+        int n = intervals.size();
+        mFromMillis = new long[n];
+        mToMillis = new long[n];
+        mDistancesMm = new int[n];
+        mPeerIds = new int[n];
+        int next = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (long[] interval : intervals) {
+                if ((interval[3] != ANY_PEER) == (pass == 0)) {
+                    mFromMillis[next] = interval[0];
+                    mToMillis[next] = interval[1];
+                    mDistancesMm[next] = (int) interval[2];
+                    mPeerIds[next] = (int) interval[3];
+                    next++;
+                }
+            }
+        }
+    }
+
+    public static File labelsFile(File directory, String session) {
+        return new File(directory, session + FILE_SUFFIX);
+    }
+
+    public static CaptureLabels read(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return parse(reader);
+        } catch (IOException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    public static CaptureLabels parse(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        String localDevice = null;
+        String defaultRemoteDevice = null;
+        Map<Integer, String> remoteDevices = new HashMap<>();
+        List<long[]> intervals = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+", 3);
+            try {
+                if (fields[0].equals("local") && fields.length >= 2) {
+                    localDevice = line.substring("local".length()).trim();
+                } else if (fields[0].equals("remote") && fields.length == 3) {
+                    if (fields[1].equals(CalibrationTable.ANY)) {
+                        defaultRemoteDevice = fields[2];
+                    } else {
+                        remoteDevices.put(Integer.parseInt(fields[1]), fields[2]);
+                    }
+                } else if (fields[0].equals("truth")) {
+                    String[] values = line.split("\\s+");
+                    if (values.length != 4 && values.length != 5) {
+                        throw new IOException("Line " + lineNumber
+                                + ": expected truth <fromMs> <toMs> <metres> [<peerId>]: " + line);
+                    }
+                    long from = Long.parseLong(values[1]);
+                    long to = Long.parseLong(values[2]);
+                    long distanceMm = Math.round(Double.parseDouble(values[3]) * 1000);
+                    if (to <= from || distanceMm < 0) {
+                        throw new IOException("Line " + lineNumber + ": invalid interval: " + line);
+                    }
+                    intervals.add(new long[]{from, to, distanceMm,
+                            values.length == 5 ? Integer.parseInt(values[4]) : ANY_PEER});
+                } else {
+                    throw new IOException("Line " + lineNumber + ": unknown label: " + line);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + lineNumber + ": invalid number: " + line, e);
+            }
+        }
+        if (localDevice == null || localDevice.isEmpty()) {
+            throw new IOException("Missing 'local <device>' line");
+        }
+        return new CaptureLabels(localDevice, defaultRemoteDevice, remoteDevices, intervals);
+    }
+
+    public String getLocalDevice() {
+        return mLocalDevice;
+    }
+
+    /** Returns the device behind {@code peerId}, or null if the labels do not name it. */
+    public String getRemoteDevice(int peerId) {
+        String device = mRemoteDevices.get(peerId);
+        return device != null ? device : mDefaultRemoteDevice;
+    }
+
+    /**
+     * Returns the true distance to {@code peerId} at {@code relativeMillis} after the first
+     * record, or -1 if no interval covers it.
+     */
+    public int getTrueDistanceMm(int peerId, long relativeMillis) {
+        // 区間の数はせいぜい数十なので、線形探索で十分
+        for (int i = 0; i < mFromMillis.length; i++) {
+            if (relativeMillis >= mFromMillis[i] && relativeMillis < mToMillis[i]
+                    && (mPeerIds[i] == ANY_PEER || mPeerIds[i] == peerId)) {
+                return mDistancesMm[i];
+            }
+        }
+        return -1;
+    }
+}
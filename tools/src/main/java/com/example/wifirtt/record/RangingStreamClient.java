@@ -0,0 +1,173 @@
+package com.example.wifirtt.record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+
+/**
+ * Reads the live stream served by {@link RangingStreamServer} with blocking I/O, one frame
+ * at a time, and iterates its records the same way {@link RangingRecordReader} iterates a
+ * capture. Reading does not allocate unless a frame is larger than any before it.
+ *
+ * <pre>
+ * adb forward tcp:7878 tcp:7878
+ * ./gradlew :tools:streamClient --args='[host] [port]'
+ * </pre>
+ */
+public final class RangingStreamClient implements Closeable {
+
+    private final SocketChannel mChannel;
+    private ByteBuffer mFrame;
+    private int mFrameCount;
+    private int mRecordIndex;
+    private int mOffset;
+    private int mSequence;
+    private boolean mHasSequence;
+    private long mFrameTotal;
+    private long mMissedFrameCount;
+
+    public RangingStreamClient(String host, int port) throws IOException {
+        mChannel = SocketChannel.open(new InetSocketAddress(host, port));
+        mFrame = ByteBuffer.allocate(RangingRecordFormat.HEADER_SIZE
+                + RangingStreamServer.DEFAULT_RECORDS_PER_FRAME * RangingRecordFormat.RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Advances to the next record, waiting for the next frame if needed; false on disconnect. */
+    public boolean next() throws IOException {
+        while (mRecordIndex + 1 >= mFrameCount) {
+            if (!readFrame()) {
+                return false;
+            }
+        }
+        mRecordIndex++;
+        mOffset = RangingRecordFormat.HEADER_SIZE + mRecordIndex * RangingRecordFormat.RECORD_SIZE;
+        return true;
+    }
+
+    private boolean readFrame() throws IOException {
+        mFrameCount = 0;
+        mRecordIndex = -1;
+        mFrame.clear();
+        mFrame.limit(RangingRecordFormat.HEADER_SIZE);
+        if (!readFully()) {
+            return false;
+        }
+        int count;
+        try {
+            count = RangingRecordFormat.readHeaderCount(mFrame, 0);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt stream: " + e.getMessage(), e);
+        }
+        int length = RangingRecordFormat.HEADER_SIZE + count * RangingRecordFormat.RECORD_SIZE;
+        if (length > mFrame.capacity()) {
+            ByteBuffer frame = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            mFrame.flip();
+            frame.put(mFrame);
+            mFrame = frame;
+        }
+        mFrame.limit(length);
+        if (!readFully()) {
+            return false;
+        }
+        int sequence = mFrame.getInt(RangingRecordFormat.HEADER_SEQUENCE);
+        if (mHasSequence) {
+            // 送信側で飛ばされたフレームは連番の欠けとして現れる
+            mMissedFrameCount += sequence - mSequence - 1;
+        }
+        mSequence = sequence;
+        mHasSequence = true;
+        mFrameTotal++;
+        mFrameCount = count;
+        return true;
+    }
+
+    private boolean readFully() throws IOException {
+        while (mFrame.hasRemaining()) {
+            if (mChannel.read(mFrame) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Frames received so far. */
+    public long getFrameCount() {
+        return mFrameTotal;
+    }
+
+    /** Frames the server skipped for this client because it was reading too slowly. */
+    public long getMissedFrameCount() {
+        return mMissedFrameCount;
+    }
+
+    /** Sequence number of the frame holding the current record. */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public long getTimestampMillis() {
+        return mFrame.getLong(mOffset + RangingRecordFormat.TIMESTAMP);
+    }
+
+    public int getPeerId() {
+        return mFrame.getInt(mOffset + RangingRecordFormat.PEER_ID);
+    }
+
+    public int getStatus() {
+        return mFrame.get(mOffset + RangingRecordFormat.STATUS) & 0xff;
+    }
+
+    public int getDistanceMm() {
+        return mFrame.getInt(mOffset + RangingRecordFormat.DISTANCE_MM);
+    }
+
+    public int getDistanceStdDevMm() {
+        return mFrame.getInt(mOffset + RangingRecordFormat.DISTANCE_STDDEV_MM);
+    }
+
+    public int getRssi() {
+        return mFrame.getShort(mOffset + RangingRecordFormat.RSSI);
+    }
+
+    public int getNumAttemptedMeasurements() {
+        return mFrame.getShort(mOffset + RangingRecordFormat.ATTEMPTED);
+    }
+
+    public int getNumSuccessfulMeasurements() {
+        return mFrame.getShort(mOffset + RangingRecordFormat.SUCCESSFUL);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    /** Prints one line per record, and a rate summary every second on stderr. */
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : RangingStreamServer.DEFAULT_PORT;
+        try (RangingStreamClient client = new RangingStreamClient(host, port)) {
+            long windowStart = System.nanoTime();
+            long windowRecords = 0;
+            while (client.next()) {
+                System.out.println(String.format(Locale.US, "%d\t%d\t%d\t%d\t%d\t%d",
+                        client.getTimestampMillis(), client.getPeerId(), client.getStatus(),
+                        client.getDistanceMm(), client.getDistanceStdDevMm(), client.getRssi()));
+                windowRecords++;
+                long now = System.nanoTime();
+                if (now - windowStart >= 1000000000L) {
+                    System.err.println(String.format(Locale.US, "%.0f records/s, %d frames, %d missed",
+                            windowRecords * 1e9 / (now - windowStart), client.getFrameCount(),
+                            client.getMissedFrameCount()));
+                    windowStart = now;
+                    windowRecords = 0;
+                }
+            }
+        }
+    }
+}
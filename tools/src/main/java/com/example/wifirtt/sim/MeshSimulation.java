@@ -0,0 +1,423 @@
+package com.example.wifirtt.sim;
+
+import com.example.wifirtt.ranging.BatchedRangingScheduler;
+import com.example.wifirtt.ranging.MeshSlotPlan;
+import com.example.wifirtt.ranging.RangingBackend;
+import com.example.wifirtt.ranging.RangingBatch;
+import com.example.wifirtt.ranging.RangingClock;
+import com.example.wifirtt.ranging.RangingRateController;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Runs N devices in mesh mode against each other in virtual time: every device discovers
+ * every other one, plans its pairs with a {@link MeshSlotPlan} and ranges the pairs it owns
+ * through its own {@link RangingRateController} and {@link BatchedRangingScheduler}, the
+ * same way {@code MainActivity} does. Each device has its own clock offset, so slots are
+ * not aligned across devices. With sharing, owners pass every result to the other side
+ * after a message latency; without it, every device ranges every pair itself.
+ *
+ * <pre>
+ * ./gradlew :tools:simulateMesh --args='[nodes] [simulatedSeconds] [seed]'
+ * </pre>
+ *
+ * Reports radio load (requests and measurements per second), how often a request starts
+ * while another device has one in flight, and coverage: the fraction of ordered pairs
+ * whose distance is at most two cycles old, sampled every slot after the first cycles.
+ * Not thread-safe.
+ */
+public final class MeshSimulation {
+
+    private static final int MAX_PEERS_PER_REQUEST = 10;
+    private static final int MAX_PENDING_REQUESTS = 4;
+    private static final double AREA_RADIUS_M = 20;
+    private static final double NOISE_MM = 150;
+    private static final double DROPOUT_PROBABILITY = 0.05;
+    private static final long LATENCY_MS = 30;
+    private static final long LATENCY_JITTER_MS = 20;
+    private static final long DISCOVERY_SPREAD_MS = 500;
+    private static final long MESSAGE_LATENCY_MS = 20;
+    private static final double MESSAGE_LOSS_PROBABILITY = 0.02;
+    // 共有がこのサイクル数だけ途絶えたら、相手の担当ペアを引き取る
+    private static final int TAKEOVER_CYCLES = 3;
+
+    private final int mNodeCount;
+    private final boolean mSharing;
+    private final long mSlotMillis;
+    private final long mCycleMillis;
+    private final Random mRandom;
+    private final double[] mX;
+    private final double[] mY;
+    private final long[][] mDiscoverAt;
+    private final long[][] mPairMeasurements;
+    private final Node[] mNodes;
+
+    private long mNowMillis;
+    private int mUndiscovered;
+
+    private long mRequestCount;
+    private long mOverlappingRequestCount;
+    private long mMeasurementCount;
+    private long mShareCount;
+    private long mTakeOverCount;
+    private long mCoverageSamples;
+    private long mCoveredSamples;
+    private double mAgeSumMillis;
+
+    public MeshSimulation(int nodeCount, boolean sharing, long seed) {
+        this(nodeCount, sharing, seed, MeshSlotPlan.DEFAULT_SLOT_COUNT, MeshSlotPlan.DEFAULT_SLOT_MILLIS);
+    }
+
+    public MeshSimulation(int nodeCount, boolean sharing, long seed, int slotCount, long slotMillis) {
+        if (nodeCount < 2) {
+            throw new IllegalArgumentException("nodeCount must be at least 2: " + nodeCount);
+        }
+        mNodeCount = nodeCount;
+        mSharing = sharing;
+        mSlotMillis = slotMillis;
+        mCycleMillis = slotCount * slotMillis;
+        mRandom = new Random(seed);
+        mX = new double[nodeCount];
+        mY = new double[nodeCount];
+        mDiscoverAt = new long[nodeCount][nodeCount];
+        mPairMeasurements = new long[nodeCount][nodeCount];
+        mNodes = new Node[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            double r = AREA_RADIUS_M * Math.sqrt(mRandom.nextDouble());
+            double a = 2 * Math.PI * mRandom.nextDouble();
+            mX[i] = r * Math.cos(a);
+            mY[i] = r * Math.sin(a);
+            int nodeId;
+            do {
+                nodeId = mRandom.nextInt();
+            } while (nodeId == MeshSlotPlan.NO_NODE_ID);
+            long clockOffset = (long) (mRandom.nextDouble() * 1e9);
+            mNodes[i] = new Node(i, nodeId, clockOffset, slotCount, slotMillis);
+            for (int j = 0; j < nodeCount; j++) {
+                mDiscoverAt[i][j] = i == j ? Long.MAX_VALUE : (long) (mRandom.nextDouble() * DISCOVERY_SPREAD_MS);
+            }
+        }
+        mUndiscovered = nodeCount * (nodeCount - 1);
+    }
+
+    /** Peer ids on every device are {@code 1..nodeCount}, the index of the other device plus one. */
+    static int peerIdOf(int index) {
+        return index + 1;
+    }
+
+    /** Runs {@code durationMillis} of virtual time in 1 ms steps. */
+    public void run(long durationMillis) {
+        long end = mNowMillis + durationMillis;
+        long warmUp = DISCOVERY_SPREAD_MS + 2 * mCycleMillis;
+        for (; mNowMillis < end; mNowMillis++) {
+            if (mUndiscovered > 0) {
+                discover();
+            }
+            for (Node node : mNodes) {
+                node.deliverDue();
+            }
+            if (mSharing && mNowMillis % mCycleMillis == 0) {
+                for (Node node : mNodes) {
+                    node.takeOverSilentPeers();
+                }
+            }
+            for (Node node : mNodes) {
+                if (mNowMillis >= node.mNextWakeMillis) {
+                    node.mScheduler.rangeNext();
+                    node.mNextWakeMillis = mNowMillis + Math.max(1, node.mScheduler.getNextDelayMillis());
+                }
+            }
+            if (mNowMillis >= warmUp && mNowMillis % mSlotMillis == 0) {
+                sampleCoverage();
+            }
+        }
+    }
+
+    private void discover() {
+        for (int i = 0; i < mNodeCount; i++) {
+            for (int j = 0; j < mNodeCount; j++) {
+                if (mDiscoverAt[i][j] <= mNowMillis) {
+                    mDiscoverAt[i][j] = Long.MAX_VALUE;
+                    mUndiscovered--;
+                    mNodes[i].onDiscovered(j);
+                }
+            }
+        }
+    }
+
+    private void sampleCoverage() {
+        for (Node node : mNodes) {
+            for (int j = 0; j < mNodeCount; j++) {
+                if (j == node.mIndex) {
+                    continue;
+                }
+                long age = mNowMillis - node.mLastUpdateMillis[j];
+                mCoverageSamples++;
+                mAgeSumMillis += Math.min(age, 10 * mCycleMillis);
+                if (age <= 2 * mCycleMillis) {
+                    mCoveredSamples++;
+                }
+            }
+        }
+    }
+
+    private int trueDistanceMm(int a, int b) {
+        double dx = mX[a] - mX[b];
+        double dy = mY[a] - mY[b];
+        return (int) Math.round(Math.sqrt(dx * dx + dy * dy) * 1000);
+    }
+
+    private boolean anyOtherInFlight(Node self) {
+        for (Node node : mNodes) {
+            if (node != self && node.mPendingSize > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public long getMeasurementCount() {
+        return mMeasurementCount;
+    }
+
+    /** Successful results device {@code from} got for device {@code to} from its own requests. */
+    public long getMeasurementCount(int from, int to) {
+        return mPairMeasurements[from][to];
+    }
+
+    /** Requests that started while another device had a request in flight. */
+    public long getOverlappingRequestCount() {
+        return mOverlappingRequestCount;
+    }
+
+    public long getShareCount() {
+        return mShareCount;
+    }
+
+    public long getTakeOverCount() {
+        return mTakeOverCount;
+    }
+
+    /** Fraction of sampled ordered pairs whose distance was at most two cycles old. */
+    public double getCoverage() {
+        return mCoverageSamples > 0 ? (double) mCoveredSamples / mCoverageSamples : 0;
+    }
+
+    /** Mean age of the latest distance of an ordered pair, capped at ten cycles. */
+    public double getMeanAgeMillis() {
+        return mCoverageSamples > 0 ? mAgeSumMillis / mCoverageSamples : 0;
+    }
+
+    /** One device: its clock, plan, scheduling pipeline and the radio it ranges through. */
+    private final class Node implements RangingBackend, RangingClock {
+        final int mIndex;
+        final int mNodeId;
+        final long mClockOffsetMillis;
+        final MeshSlotPlan mPlan;
+        final RangingRateController mRateController;
+        final BatchedRangingScheduler mScheduler;
+        final long[] mLastUpdateMillis;
+        final int[] mTakenOver;
+        long mNextWakeMillis;
+
+        // 応答待ちのリクエスト (固定長のプール)
+        final long[] mPendingDue = new long[MAX_PENDING_REQUESTS];
+        final int[][] mPendingPeers = new int[MAX_PENDING_REQUESTS][MAX_PEERS_PER_REQUEST];
+        final int[] mPendingCounts = new int[MAX_PENDING_REQUESTS];
+        final Callback[] mPendingCallbacks = new Callback[MAX_PENDING_REQUESTS];
+        int mPendingSize;
+        final RangingBatch mBatch = new RangingBatch(MAX_PEERS_PER_REQUEST);
+
+        // 他のノードから共有された結果の受信待ち (送信元ごとに最新の 1 件)
+        final long[] mInboxDue;
+
+        Node(int index, int nodeId, long clockOffsetMillis, int slotCount, long slotMillis) {
+            mIndex = index;
+            mNodeId = nodeId;
+            mClockOffsetMillis = clockOffsetMillis;
+            mPlan = new MeshSlotPlan(mNodeCount + 1, nodeId, slotCount, slotMillis);
+            mRateController = new RangingRateController(mNodeCount + 1, RangingRateController.DEFAULT_MIN_INTERVAL_MS,
+                    mCycleMillis, RangingRateController.DEFAULT_TARGET_STEP_MM);
+            mScheduler = new BatchedRangingScheduler(this, mRateController, this, new Callback() {
+                @Override
+                public void onRangingResults(RangingBatch batch) {
+                    onResults(batch);
+                }
+
+                @Override
+                public void onRangingFailure(int code) {
+                    mNextWakeMillis = mNowMillis;
+                }
+            });
+            mLastUpdateMillis = new long[mNodeCount];
+            Arrays.fill(mLastUpdateMillis, Long.MIN_VALUE / 2);
+            mTakenOver = new int[mNodeCount];
+            mInboxDue = new long[mNodeCount];
+            Arrays.fill(mInboxDue, Long.MAX_VALUE);
+        }
+
+        void onDiscovered(int other) {
+            int peerId = peerIdOf(other);
+            long now = elapsedRealtimeMillis();
+            boolean owned = mPlan.addPeer(peerId, mNodes[other].mNodeId, now);
+            if (owned || !mSharing) {
+                schedule(peerId, now);
+            }
+        }
+
+        void schedule(int peerId, long now) {
+            mScheduler.addPeer(peerId);
+            mRateController.setSlot(peerId, mPlan.getCycleMillis(), mPlan.getSlotOffsetMillis(peerId), now);
+            mNextWakeMillis = mNowMillis;
+        }
+
+        void takeOverSilentPeers() {
+            long now = elapsedRealtimeMillis();
+            int count = mPlan.takeOverSilentPeers(now, TAKEOVER_CYCLES * mPlan.getCycleMillis(), mTakenOver);
+            for (int k = 0; k < count; k++) {
+                schedule(mTakenOver[k], now);
+            }
+            mTakeOverCount += count;
+        }
+
+        void onResults(RangingBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                if (!batch.isSuccess(i)) {
+                    continue;
+                }
+                int other = batch.getPeerId(i) - 1;
+                mLastUpdateMillis[other] = mNowMillis;
+                mMeasurementCount++;
+                mPairMeasurements[mIndex][other]++;
+                if (mSharing && mRandom.nextDouble() >= MESSAGE_LOSS_PROBABILITY) {
+                    // 相手の受信箱に入れる。未配達の古い結果は上書きする
+                    mNodes[other].mInboxDue[mIndex] = mNowMillis + MESSAGE_LATENCY_MS;
+                    mShareCount++;
+                }
+            }
+            mNextWakeMillis = mNowMillis;
+        }
+
+        void deliverDue() {
+            for (int from = 0; from < mNodeCount; from++) {
+                if (mInboxDue[from] <= mNowMillis) {
+                    mInboxDue[from] = Long.MAX_VALUE;
+                    mLastUpdateMillis[from] = mNowMillis;
+                    mPlan.onShared(peerIdOf(from), elapsedRealtimeMillis());
+                }
+            }
+            for (int p = 0; p < mPendingSize; ) {
+                if (mPendingDue[p] > mNowMillis) {
+                    p++;
+                    continue;
+                }
+                // SimulatedPeerField と同じく、末尾と入れ替えてから空いたスロットで応答する
+                Callback callback = mPendingCallbacks[p];
+                int last = --mPendingSize;
+                int[] peers = mPendingPeers[p];
+                int count = mPendingCounts[p];
+                mPendingPeers[p] = mPendingPeers[last];
+                mPendingPeers[last] = peers;
+                mPendingDue[p] = mPendingDue[last];
+                mPendingCounts[p] = mPendingCounts[last];
+                mPendingCounts[last] = count;
+                mPendingCallbacks[p] = mPendingCallbacks[last];
+                mPendingCallbacks[last] = null;
+                answer(peers, count, callback);
+            }
+        }
+
+        private void answer(int[] peers, int count, Callback callback) {
+            long now = elapsedRealtimeMillis();
+            mBatch.clear();
+            for (int k = 0; k < count; k++) {
+                int peerId = peers[k];
+                if (mRandom.nextDouble() < DROPOUT_PROBABILITY) {
+                    mBatch.addFailure(peerId, RangingBatch.STATUS_FAIL, now);
+                } else {
+                    int distanceMm = (int) Math.max(0,
+                            Math.round(trueDistanceMm(mIndex, peerId - 1) + mRandom.nextGaussian() * NOISE_MM));
+                    mBatch.addSuccess(peerId, distanceMm, (int) NOISE_MM, -60, now, 8, 8);
+                }
+            }
+            callback.onRangingResults(mBatch);
+        }
+
+        @Override
+        public long elapsedRealtimeMillis() {
+            return mNowMillis + mClockOffsetMillis;
+        }
+
+        @Override
+        public int getMaxPeers() {
+            return MAX_PEERS_PER_REQUEST;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public void startRanging(int[] peerIds, int count, Callback callback) {
+            mRequestCount++;
+            if (anyOtherInFlight(this)) {
+                mOverlappingRequestCount++;
+            }
+            if (mPendingSize == MAX_PENDING_REQUESTS) {
+                callback.onRangingFailure(RangingBatch.CODE_FAIL);
+                return;
+            }
+            int p = mPendingSize++;
+            int n = Math.min(count, MAX_PEERS_PER_REQUEST);
+            System.arraycopy(peerIds, 0, mPendingPeers[p], 0, n);
+            mPendingCounts[p] = n;
+            mPendingCallbacks[p] = callback;
+            mPendingDue[p] = mNowMillis + LATENCY_MS + (long) (mRandom.nextDouble() * LATENCY_JITTER_MS);
+        }
+
+        @Override
+        public void expireRanging(Callback callback) {
+            for (int p = 0; p < mPendingSize; p++) {
+                if (mPendingCallbacks[p] == callback) {
+                    int last = --mPendingSize;
+                    int[] peers = mPendingPeers[p];
+                    mPendingPeers[p] = mPendingPeers[last];
+                    mPendingPeers[last] = peers;
+                    mPendingDue[p] = mPendingDue[last];
+                    mPendingCounts[p] = mPendingCounts[last];
+                    mPendingCallbacks[p] = mPendingCallbacks[last];
+                    mPendingCallbacks[last] = null;
+                    callback.onRangingFailure(RangingBatch.CODE_TIMEOUT);
+                    return;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 60;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        for (boolean sharing : new boolean[]{false, true}) {
+            MeshSimulation simulation = new MeshSimulation(nodes, sharing, seed);
+            long start = System.nanoTime();
+            simulation.run(seconds * 1000);
+            double wallSeconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format(Locale.US,
+                    "nodes=%d sharing=%b simulated=%ds wall=%.2fs requests/s=%.1f measurements/s=%.1f"
+                            + " overlapping=%.1f%% shares=%d takeovers=%d coverage=%.2f%% meanAge=%.0fms",
+                    nodes, sharing, seconds, wallSeconds, simulation.getRequestCount() / (double) seconds,
+                    simulation.getMeasurementCount() / (double) seconds,
+                    100.0 * simulation.getOverlappingRequestCount() / Math.max(1, simulation.getRequestCount()),
+                    simulation.getShareCount(), simulation.getTakeOverCount(),
+                    100 * simulation.getCoverage(), simulation.getMeanAgeMillis()));
+        }
+    }
+}
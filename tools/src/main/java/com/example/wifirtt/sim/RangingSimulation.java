@@ -0,0 +1,171 @@
+package com.example.wifirtt.sim;
+
+import com.example.wifirtt.filter.DistanceFilterBank;
+import com.example.wifirtt.metrics.InstrumentedRangingBackend;
+import com.example.wifirtt.metrics.RangingMetrics;
+import com.example.wifirtt.metrics.RangingMetricsSnapshot;
+import com.example.wifirtt.ranging.BatchedRangingScheduler;
+import com.example.wifirtt.ranging.PeerDiscovery;
+import com.example.wifirtt.ranging.RangingBackend;
+import com.example.wifirtt.ranging.RangingBatch;
+import com.example.wifirtt.ranging.RangingFailurePolicy;
+import com.example.wifirtt.ranging.RangingRateController;
+
+import java.util.Locale;
+
+/**
+ * Runs the subscriber pipeline (discovery, scheduling, rate control, filtering) against a
+ * {@link SimulatedPeerField} in virtual time, the same way {@code MainActivity} drives it
+ * on a device, and reports throughput and accuracy. Usable from tests, benchmarks and the
+ * command line:
+ *
+ * <pre>
+ * ./gradlew :tools:simulate --args='[peers] [simulatedSeconds] [maxInFlight] [backToBack]
+ *     [unsupportedFraction] [failurePolicy]'
+ * </pre>
+ */
+public final class RangingSimulation {
+
+    private final SimulatedPeerField mField;
+    private final RangingRateController mRateController;
+    private final BatchedRangingScheduler mScheduler;
+    private final DistanceFilterBank mFilter;
+    private final RangingMetrics mMetrics;
+
+    private long mResultCount;
+    private long mSuccessCount;
+    private long mRequestFailureCount;
+    private double mAbsErrorSumMm;
+
+    public RangingSimulation(SimulatedPeerField field) {
+        this(field, new RangingRateController(field.getPeerCount()));
+    }
+
+    public RangingSimulation(SimulatedPeerField field, RangingRateController rateController) {
+        this(field, rateController, BatchedRangingScheduler.DEFAULT_MAX_IN_FLIGHT, false);
+    }
+
+    public RangingSimulation(SimulatedPeerField field, RangingRateController rateController,
+                             int maxInFlight, boolean backToBack) {
+        this(field, rateController, maxInFlight, backToBack, null);
+    }
+
+    public RangingSimulation(SimulatedPeerField field, RangingRateController rateController,
+                             int maxInFlight, boolean backToBack, RangingFailurePolicy failurePolicy) {
+        mField = field;
+        mRateController = rateController;
+        mFilter = new DistanceFilterBank.Builder(field.getPeerCount()).build();
+        mMetrics = new RangingMetrics(field.getPeerCount());
+        mScheduler = new BatchedRangingScheduler.Builder(new InstrumentedRangingBackend(field, mMetrics, field),
+                rateController, field, new RangingBackend.Callback() {
+            @Override
+            public void onRangingResults(RangingBatch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    mResultCount++;
+                    if (batch.isSuccess(i)) {
+                        int peerId = batch.getPeerId(i);
+                        if (mFilter.update(peerId, batch.getDistanceMm(i), batch.getDistanceStdDevMm(i),
+                                batch.getRssi(i), batch.getTimestampMillis(i))) {
+                            mAbsErrorSumMm += Math.abs(mFilter.getDistanceMm(peerId) - mField.getTrueDistanceMm(peerId));
+                        }
+                        mSuccessCount++;
+                    }
+                }
+            }
+
+            @Override
+            public void onRangingFailure(int code) {
+                mRequestFailureCount++;
+            }
+        }).setMaxInFlight(maxInFlight).setBackToBack(backToBack).setFailurePolicy(failurePolicy).build();
+        field.startDiscovery(new PeerDiscovery.Listener() {
+            @Override
+            public void onDiscoveryStarted() {
+            }
+
+            @Override
+            public void onPeerDiscovered(int peerId, byte[] serviceSpecificInfo, int distanceMm) {
+                mScheduler.addPeer(peerId);
+            }
+
+            @Override
+            public void onDiscoveryTerminated() {
+                mScheduler.clear();
+            }
+        });
+    }
+
+    public BatchedRangingScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    public DistanceFilterBank getFilter() {
+        return mFilter;
+    }
+
+    public RangingMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Runs until {@code durationMillis} of virtual time have passed. Like the ranging
+     * runnable, it sends a request whenever a peer is due and otherwise sleeps until the
+     * next deadline or callback, but never more often than {@code minTickMillis}.
+     */
+    public void run(long durationMillis, long minTickMillis) {
+        long end = mField.elapsedRealtimeMillis() + durationMillis;
+        while (mField.elapsedRealtimeMillis() < end) {
+            long now = mField.elapsedRealtimeMillis();
+            if (mScheduler.getPeerCount() > 0) {
+                mScheduler.rangeNext();
+            }
+            long nextTick = now + Math.max(minTickMillis, mScheduler.getNextDelayMillis());
+            mField.advanceTo(Math.min(end, Math.min(nextTick, Math.max(now + 1, mField.getNextEventMillis()))));
+        }
+    }
+
+    public long getResultCount() {
+        return mResultCount;
+    }
+
+    public long getSuccessCount() {
+        return mSuccessCount;
+    }
+
+    public long getRequestFailureCount() {
+        return mRequestFailureCount;
+    }
+
+    /** Mean absolute error of the filtered distances against the true distances. */
+    public double getMeanAbsErrorMm() {
+        return mSuccessCount > 0 ? mAbsErrorSumMm / mSuccessCount : 0;
+    }
+
+    public static void main(String[] args) {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 60;
+        int maxInFlight = args.length > 2 ? Integer.parseInt(args[2]) : BatchedRangingScheduler.DEFAULT_MAX_IN_FLIGHT;
+        boolean backToBack = args.length > 3 && Boolean.parseBoolean(args[3]);
+        double unsupportedFraction = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        RangingFailurePolicy failurePolicy = args.length > 5 && Boolean.parseBoolean(args[5])
+                ? new RangingFailurePolicy.Builder(peers).setSeed(1).build() : null;
+        SimulatedPeerField field = new SimulatedPeerField.Builder(peers)
+                .setUnsupportedFraction(unsupportedFraction)
+                .build();
+        RangingSimulation simulation = new RangingSimulation(field, new RangingRateController(peers),
+                maxInFlight, backToBack, failurePolicy);
+        // 最後の要約の毎秒サンプル数は、この開始時点からの仮想時間で割る
+        RangingMetricsSnapshot startSnapshot = simulation.getMetrics().snapshot(field.elapsedRealtimeMillis());
+        long start = System.nanoTime();
+        simulation.run(seconds * 1000, 1);
+        double wallSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.US,
+                "peers=%d simulated=%ds wall=%.3fs requests=%d results=%d successes=%d failures=%d"
+                        + " samples/simulated-s=%.1f samples/wall-s=%.0f meanAbsError=%.1fmm openCircuits=%d",
+                peers, seconds, wallSeconds, field.getRequestCount(), simulation.getResultCount(),
+                simulation.getSuccessCount(), simulation.getRequestFailureCount(),
+                simulation.getSuccessCount() / (double) seconds, simulation.getSuccessCount() / wallSeconds,
+                simulation.getMeanAbsErrorMm(), failurePolicy != null ? failurePolicy.getOpenCount() : 0));
+        System.out.println(simulation.getMetrics().snapshot(field.elapsedRealtimeMillis()).formatSummary(startSnapshot));
+    }
+}
@@ -0,0 +1,412 @@
+package com.example.wifirtt.sim;
+
+import com.example.wifirtt.ranging.PeerDiscovery;
+import com.example.wifirtt.ranging.RangingBackend;
+import com.example.wifirtt.ranging.RangingBatch;
+import com.example.wifirtt.ranging.RangingClock;
+
+import java.util.Random;
+
+/**
+ * A deterministic stand-in for Wi-Fi Aware discovery and RTT ranging: N peers move around
+ * the observer at the origin, and ranging requests are answered with noisy distances,
+ * dropouts, per-peer failure statuses and whole-request failures after a configurable
+ * callback latency.
+ *
+ * <p>Time is virtual. Nothing happens until {@link #advanceTo} is called; it moves the
+ * peers and delivers every discovery and ranging callback that has become due, on the
+ * calling thread. The field is also the {@link RangingClock} for everything it drives.
+ * After construction, ranging and delivery do not allocate.
+ *
+ * <p>Not thread-safe.
+ */
+public final class SimulatedPeerField implements RangingBackend, PeerDiscovery, RangingClock {
+
+    private final int mPeerCount;
+    private final int mMaxPeersPerRequest;
+    private final double mNoiseMm;
+    private final double mDropoutProbability;
+    private final double mRequestFailureProbability;
+    private final long mLatencyMillis;
+    private final long mLatencyJitterMillis;
+    private final long mDiscoveryIntervalMillis;
+    private final double mAreaRadiusM;
+    private final Random mRandom;
+
+    // ピアの位置 (m) と速度 (m/ms)
+    private final double[] mX;
+    private final double[] mY;
+    private final double[] mVx;
+    private final double[] mVy;
+    private final boolean[] mUnsupported;
+    private final byte[][] mServiceSpecificInfo;
+
+    // 応答待ちのリクエスト (固定長のプール)
+    private final long[] mPendingDue;
+    private final int[][] mPendingPeers;
+    private final int[] mPendingCounts;
+    private final Callback[] mPendingCallbacks;
+    private int mPendingSize;
+    private final RangingBatch mBatch;
+
+    private long mNowMillis;
+    private long mLastMoveMillis;
+    private PeerDiscovery.Listener mDiscoveryListener;
+    private boolean mDiscoveryStarted;
+    private int mDiscoveredCount;
+    private long mNextDiscoveryMillis;
+
+    private long mRequestCount;
+    private long mRejectedCount;
+    private long mSampleCount;
+
+    private SimulatedPeerField(Builder builder) {
+        mPeerCount = builder.mPeerCount;
+        mMaxPeersPerRequest = builder.mMaxPeersPerRequest;
+        mNoiseMm = builder.mNoiseMm;
+        mDropoutProbability = builder.mDropoutProbability;
+        mRequestFailureProbability = builder.mRequestFailureProbability;
+        mLatencyMillis = builder.mLatencyMillis;
+        mLatencyJitterMillis = builder.mLatencyJitterMillis;
+        mDiscoveryIntervalMillis = builder.mDiscoveryIntervalMillis;
+        mAreaRadiusM = builder.mAreaRadiusM;
+        mRandom = new Random(builder.mSeed);
+
+        mX = new double[mPeerCount];
+        mY = new double[mPeerCount];
+        mVx = new double[mPeerCount];
+        mVy = new double[mPeerCount];
+        mUnsupported = new boolean[mPeerCount];
+        mServiceSpecificInfo = new byte[mPeerCount][];
+        for (int i = 0; i < mPeerCount; i++) {
+            double r = mAreaRadiusM * Math.sqrt(mRandom.nextDouble());
+            double a = 2 * Math.PI * mRandom.nextDouble();
+            mX[i] = r * Math.cos(a);
+            mY[i] = r * Math.sin(a);
+            if (mRandom.nextDouble() < builder.mMovingFraction) {
+                double speed = builder.mMaxSpeedMps / 1000 * mRandom.nextDouble();
+                double heading = 2 * Math.PI * mRandom.nextDouble();
+                mVx[i] = speed * Math.cos(heading);
+                mVy[i] = speed * Math.sin(heading);
+            }
+            mUnsupported[i] = mRandom.nextDouble() < builder.mUnsupportedFraction;
+        }
+
+        int maxPending = builder.mMaxPendingRequests;
+        mPendingDue = new long[maxPending];
+        mPendingPeers = new int[maxPending][mMaxPeersPerRequest];
+        mPendingCounts = new int[maxPending];
+        mPendingCallbacks = new Callback[maxPending];
+        mBatch = new RangingBatch(mMaxPeersPerRequest);
+    }
+
+    /** Peer ids are {@code 1..getPeerCount()}. */
+    public int getPeerCount() {
+        return mPeerCount;
+    }
+
+    /** Sets the bytes peer {@code peerId} advertises when it is discovered. */
+    public void setServiceSpecificInfo(int peerId, byte[] serviceSpecificInfo) {
+        mServiceSpecificInfo[peerId - 1] = serviceSpecificInfo;
+    }
+
+    /** True distance from the observer to {@code peerId} right now, in millimetres. */
+    public int getTrueDistanceMm(int peerId) {
+        int i = peerId - 1;
+        return (int) Math.round(Math.sqrt(mX[i] * mX[i] + mY[i] * mY[i]) * 1000);
+    }
+
+    public long getRequestCount() {
+        return mRequestCount;
+    }
+
+    /** Requests answered with {@code onRangingFailure} because too many were in flight. */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    public int getPendingCount() {
+        return mPendingSize;
+    }
+
+    /** Earliest time at which {@link #advanceTo} would deliver something, or {@link Long#MAX_VALUE}. */
+    public long getNextEventMillis() {
+        long next = mDiscoveryStarted && mDiscoveredCount < mPeerCount ? mNextDiscoveryMillis : Long.MAX_VALUE;
+        for (int i = 0; i < mPendingSize; i++) {
+            next = Math.min(next, mPendingDue[i]);
+        }
+        return next;
+    }
+
+    @Override
+    public long elapsedRealtimeMillis() {
+        return mNowMillis;
+    }
+
+    /** Moves virtual time forward, delivering every callback that is due on the way. */
+    public void advanceTo(long nowMillis) {
+        while (true) {
+            long next = getNextEventMillis();
+            if (next > nowMillis) {
+                break;
+            }
+            setTime(Math.max(mNowMillis, next));
+            deliverDue();
+        }
+        setTime(Math.max(mNowMillis, nowMillis));
+    }
+
+    private void setTime(long nowMillis) {
+        mNowMillis = nowMillis;
+        long dt = mNowMillis - mLastMoveMillis;
+        if (dt <= 0) {
+            return;
+        }
+        mLastMoveMillis = mNowMillis;
+        for (int i = 0; i < mPeerCount; i++) {
+            mX[i] += mVx[i] * dt;
+            mY[i] += mVy[i] * dt;
+            // 範囲の外に出たら向きを反転させる
+            if (mX[i] * mX[i] + mY[i] * mY[i] > mAreaRadiusM * mAreaRadiusM) {
+                mVx[i] = -mVx[i];
+                mVy[i] = -mVy[i];
+            }
+        }
+    }
+
+    private void deliverDue() {
+        while (mDiscoveryStarted && mDiscoveredCount < mPeerCount && mNextDiscoveryMillis <= mNowMillis) {
+            int peerId = ++mDiscoveredCount;
+            mNextDiscoveryMillis += mDiscoveryIntervalMillis;
+            mDiscoveryListener.onPeerDiscovered(peerId, mServiceSpecificInfo[peerId - 1], -1);
+        }
+        for (int p = 0; p < mPendingSize; ) {
+            if (mPendingDue[p] > mNowMillis) {
+                p++;
+                continue;
+            }
+            // 末尾と入れ替えてから取り除き、空いた末尾のスロットで応答する。
+            // コールバック内の startRanging はそのスロットを再利用するが、結果はもう mBatch にある
+            Callback callback = mPendingCallbacks[p];
+            int last = --mPendingSize;
+            int[] peers = mPendingPeers[p];
+            int count = mPendingCounts[p];
+            mPendingPeers[p] = mPendingPeers[last];
+            mPendingPeers[last] = peers;
+            mPendingDue[p] = mPendingDue[last];
+            mPendingCounts[p] = mPendingCounts[last];
+            mPendingCounts[last] = count;
+            mPendingCallbacks[p] = mPendingCallbacks[last];
+            mPendingCallbacks[last] = null;
+            answer(last, callback);
+        }
+    }
+
+    private void answer(int pending, Callback callback) {
+        if (mRandom.nextDouble() < mRequestFailureProbability) {
+            callback.onRangingFailure(RangingBatch.CODE_FAIL);
+            return;
+        }
+        mBatch.clear();
+        int[] peers = mPendingPeers[pending];
+        for (int k = 0; k < mPendingCounts[pending]; k++) {
+            int peerId = peers[k];
+            int i = peerId - 1;
+            if (mUnsupported[i]) {
+                mBatch.addFailure(peerId, RangingBatch.STATUS_RESPONDER_DOES_NOT_SUPPORT_IEEE80211MC, mNowMillis);
+            } else if (mRandom.nextDouble() < mDropoutProbability) {
+                mBatch.addFailure(peerId, RangingBatch.STATUS_FAIL, mNowMillis);
+            } else {
+                double distanceM = Math.sqrt(mX[i] * mX[i] + mY[i] * mY[i]);
+                int distanceMm = (int) Math.max(0, Math.round(distanceM * 1000 + mRandom.nextGaussian() * mNoiseMm));
+                // 自由空間損失に近い形で RSSI を決める
+                int rssi = (int) Math.round(-40 - 20 * Math.log10(Math.max(0.1, distanceM)));
+                mBatch.addSuccess(peerId, distanceMm, (int) mNoiseMm, rssi, mNowMillis, 8, 8);
+                mSampleCount++;
+            }
+        }
+        callback.onRangingResults(mBatch);
+    }
+
+    // RangingBackend
+
+    @Override
+    public int getMaxPeers() {
+        return mMaxPeersPerRequest;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public void startRanging(int[] peerIds, int count, Callback callback) {
+        mRequestCount++;
+        if (mPendingSize == mPendingDue.length) {
+            mRejectedCount++;
+            callback.onRangingFailure(RangingBatch.CODE_FAIL);
+            return;
+        }
+        int p = mPendingSize++;
+        int n = Math.min(count, mMaxPeersPerRequest);
+        System.arraycopy(peerIds, 0, mPendingPeers[p], 0, n);
+        mPendingCounts[p] = n;
+        mPendingCallbacks[p] = callback;
+        long jitter = mLatencyJitterMillis > 0 ? (long) (mRandom.nextDouble() * mLatencyJitterMillis) : 0;
+        mPendingDue[p] = mNowMillis + mLatencyMillis + jitter;
+    }
+
+    @Override
+    public void expireRanging(Callback callback) {
+        for (int p = 0; p < mPendingSize; p++) {
+            if (mPendingCallbacks[p] == callback) {
+                int last = --mPendingSize;
+                int[] peers = mPendingPeers[p];
+                mPendingPeers[p] = mPendingPeers[last];
+                mPendingPeers[last] = peers;
+                mPendingDue[p] = mPendingDue[last];
+                mPendingCounts[p] = mPendingCounts[last];
+                mPendingCallbacks[p] = mPendingCallbacks[last];
+                mPendingCallbacks[last] = null;
+                callback.onRangingFailure(RangingBatch.CODE_TIMEOUT);
+                return;
+            }
+        }
+    }
+
+    // PeerDiscovery
+
+    @Override
+    public void startDiscovery(Listener listener) {
+        mDiscoveryListener = listener;
+        mDiscoveryStarted = true;
+        mDiscoveredCount = 0;
+        mNextDiscoveryMillis = mNowMillis;
+        listener.onDiscoveryStarted();
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mDiscoveryStarted;
+    }
+
+    @Override
+    public void stopDiscovery() {
+        if (mDiscoveryStarted) {
+            mDiscoveryStarted = false;
+            mDiscoveryListener.onDiscoveryTerminated();
+        }
+    }
+
+    public static final class Builder {
+        private final int mPeerCount;
+        private int mMaxPeersPerRequest = 10;
+        private double mAreaRadiusM = 20;
+        private double mMovingFraction = 0.5;
+        private double mMaxSpeedMps = 1.5;
+        private double mNoiseMm = 150;
+        private double mDropoutProbability = 0.05;
+        private double mUnsupportedFraction = 0;
+        private double mRequestFailureProbability = 0.01;
+        private long mLatencyMillis = 30;
+        private long mLatencyJitterMillis = 20;
+        private long mDiscoveryIntervalMillis = 5;
+        private int mMaxPendingRequests = 16;
+        private long mSeed = 1;
+
+        public Builder(int peerCount) {
+            if (peerCount <= 0) {
+                throw new IllegalArgumentException("peerCount must be positive: " + peerCount);
+            }
+            mPeerCount = peerCount;
+        }
+
+        /** Same role as {@code RangingRequest.getMaxPeers()}; 10 on current devices. */
+        public Builder setMaxPeersPerRequest(int maxPeers) {
+            mMaxPeersPerRequest = checkPositive(maxPeers, "maxPeers");
+            return this;
+        }
+
+        /** Peers start inside, and bounce off, a circle of this radius around the observer. */
+        public Builder setAreaRadiusM(double radiusM) {
+            mAreaRadiusM = radiusM;
+            return this;
+        }
+
+        public Builder setMotion(double movingFraction, double maxSpeedMps) {
+            mMovingFraction = checkProbability(movingFraction, "movingFraction");
+            mMaxSpeedMps = maxSpeedMps;
+            return this;
+        }
+
+        /** 1-sigma Gaussian noise added to every distance, also reported as its stddev. */
+        public Builder setNoiseMm(double noiseMm) {
+            mNoiseMm = noiseMm;
+            return this;
+        }
+
+        /** Probability that a single peer in a request comes back with {@code STATUS_FAIL}. */
+        public Builder setDropoutProbability(double probability) {
+            mDropoutProbability = checkProbability(probability, "dropout");
+            return this;
+        }
+
+        /** Fraction of peers that always answer {@code STATUS_RESPONDER_DOES_NOT_SUPPORT_IEEE80211MC}. */
+        public Builder setUnsupportedFraction(double fraction) {
+            mUnsupportedFraction = checkProbability(fraction, "unsupportedFraction");
+            return this;
+        }
+
+        /** Probability that a whole request ends in {@code onRangingFailure(CODE_FAIL)}. */
+        public Builder setRequestFailureProbability(double probability) {
+            mRequestFailureProbability = checkProbability(probability, "requestFailure");
+            return this;
+        }
+
+        public Builder setLatency(long latencyMillis, long jitterMillis) {
+            mLatencyMillis = latencyMillis;
+            mLatencyJitterMillis = jitterMillis;
+            return this;
+        }
+
+        /** Time between two peers being discovered after {@code startDiscovery}. */
+        public Builder setDiscoveryIntervalMillis(long intervalMillis) {
+            mDiscoveryIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        /** Requests beyond this many in flight fail immediately, like a busy framework. */
+        public Builder setMaxPendingRequests(int maxPending) {
+            mMaxPendingRequests = checkPositive(maxPending, "maxPending");
+            return this;
+        }
+
+        public Builder setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        public SimulatedPeerField build() {
+            return new SimulatedPeerField(this);
+        }
+
+        private static int checkPositive(int value, String name) {
+            if (value <= 0) {
+                throw new IllegalArgumentException(name + " must be positive: " + value);
+            }
+            return value;
+        }
+
+        private static double checkProbability(double value, String name) {
+            if (!(value >= 0 && value <= 1)) {
+                throw new IllegalArgumentException(name + " must be in [0, 1]: " + value);
+            }
+            return value;
+        }
+    }
+}
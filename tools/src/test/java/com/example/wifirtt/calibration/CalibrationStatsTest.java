@@ -0,0 +1,114 @@
+package com.example.wifirtt.calibration;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CalibrationStatsTest {
+
+    @Test
+    public void fitRecoversOffsetAndScale() {
+        CalibrationStats stats = new CalibrationStats("A", "B");
+        Random random = new Random(3);
+        for (int i = 0; i < 3000; i++) {
+            int trueMm = 500 + random.nextInt(15000);
+            // measured = 1.03 * true + 420 に 100mm のノイズ
+            stats.addFitSample(trueMm, (int) Math.round(1.03 * trueMm + 420 + random.nextGaussian() * 100));
+        }
+        CalibrationTable.Entry entry = stats.fit();
+        assertEquals("A", entry.getLocalDevice());
+        assertEquals("B", entry.getRemoteDevice());
+        assertEquals(420, entry.getOffsetMm(), 15);
+        assertEquals(1.03, entry.getScale(), 0.002);
+        assertEquals(3000, stats.getFitCount());
+    }
+
+    @Test
+    public void singleDistanceFitsOnlyTheOffset() {
+        CalibrationStats stats = new CalibrationStats("A", "B");
+        for (int i = 0; i < 100; i++) {
+            stats.addFitSample(3000, 3000 + 250 + (i % 2 == 0 ? 40 : -40));
+        }
+        CalibrationTable.Entry entry = stats.fit();
+        assertEquals(1, entry.getScale(), 0);
+        assertEquals(250, entry.getOffsetMm(), 1e-9);
+        assertNull(new CalibrationStats("A", "B").fit());
+    }
+
+    @Test
+    public void mergedStatsEqualOneAccumulation() {
+        CalibrationStats all = new CalibrationStats("A", "B");
+        CalibrationStats first = new CalibrationStats("A", "B");
+        CalibrationStats second = new CalibrationStats("A", "B");
+        Random random = new Random(5);
+        for (int i = 0; i < 1000; i++) {
+            int trueMm = random.nextInt(12000);
+            int measuredMm = trueMm + 300 + (int) (random.nextGaussian() * 200);
+            all.addFitSample(trueMm, measuredMm);
+            all.addErrorSample(trueMm, measuredMm, measuredMm - 300);
+            CalibrationStats part = i < 400 ? first : second;
+            part.addFitSample(trueMm, measuredMm);
+            part.addErrorSample(trueMm, measuredMm, measuredMm - 300);
+        }
+        first.merge(second);
+        assertEquals(all.getFitCount(), first.getFitCount());
+        assertEquals(all.fit().getOffsetMm(), first.fit().getOffsetMm(), 1e-6);
+        assertEquals(all.fit().getScale(), first.fit().getScale(), 1e-9);
+        for (int range = 0; range < CalibrationStats.RANGE_EDGES_MM.length; range++) {
+            CalibrationStats.ErrorStats expected = all.getRawErrors(range);
+            CalibrationStats.ErrorStats merged = first.getRawErrors(range);
+            assertEquals(expected.getCount(), merged.getCount());
+            assertEquals(expected.getBiasMm(), merged.getBiasMm(), 1e-6);
+            assertEquals(expected.getRmseMm(), merged.getRmseMm(), 1e-6);
+            assertEquals(expected.getAbsErrorPercentileMm(90), merged.getAbsErrorPercentileMm(90));
+            assertEquals(all.getCorrectedErrors(range).getRmseMm(), first.getCorrectedErrors(range).getRmseMm(), 1e-6);
+        }
+    }
+
+    @Test
+    public void errorsAreBucketedByTrueDistance() {
+        assertEquals(0, CalibrationStats.rangeOf(0));
+        assertEquals(0, CalibrationStats.rangeOf(999));
+        assertEquals(1, CalibrationStats.rangeOf(1000));
+        assertEquals(3, CalibrationStats.rangeOf(4999));
+        assertEquals(4, CalibrationStats.rangeOf(5000));
+        assertEquals(5, CalibrationStats.rangeOf(10000));
+        assertEquals(5, CalibrationStats.rangeOf(60000));
+
+        CalibrationStats stats = new CalibrationStats("A", "B");
+        stats.addErrorSample(1500, 1600, 1500);
+        stats.addErrorSample(4000, 3700, 4010);
+        CalibrationStats.ErrorStats near = stats.getRawErrors(1);
+        assertEquals(1, near.getCount());
+        assertEquals(100, near.getBiasMm(), 0);
+        assertEquals(0, stats.getCorrectedErrors(1).getRmseMm(), 0);
+        assertEquals(-300, stats.getRawErrors(3).getBiasMm(), 0);
+        assertEquals(10, stats.getCorrectedErrors(3).getBiasMm(), 0);
+        assertEquals(0, stats.getRawErrors(0).getCount());
+    }
+
+    @Test
+    public void rmseAndPercentilesOfKnownErrors() {
+        CalibrationStats stats = new CalibrationStats("A", "B");
+        int trueMm = 2500;
+        int[] errors = {5, -15, 25, 1000, 6000};
+        for (int error : errors) {
+            stats.addErrorSample(trueMm, trueMm + error, trueMm);
+        }
+        CalibrationStats.ErrorStats raw = stats.getRawErrors(CalibrationStats.rangeOf(trueMm));
+        assertEquals(5, raw.getCount());
+        assertEquals((5 - 15 + 25 + 1000 + 6000) / 5.0, raw.getBiasMm(), 1e-9);
+        assertEquals(Math.sqrt((25 + 225 + 625 + 1000000 + 36000000) / 5.0), raw.getRmseMm(), 1e-9);
+        // 百分位は誤差の絶対値が入る 10mm ビンの上端。5m を超えると MAX_VALUE
+        assertEquals(10, raw.getAbsErrorPercentileMm(0));
+        assertEquals(10, raw.getAbsErrorPercentileMm(20));
+        assertEquals(20, raw.getAbsErrorPercentileMm(40));
+        assertEquals(30, raw.getAbsErrorPercentileMm(50));
+        assertEquals(1010, raw.getAbsErrorPercentileMm(80));
+        assertEquals(Integer.MAX_VALUE, raw.getAbsErrorPercentileMm(90));
+        assertEquals(0, stats.getRawErrors(0).getAbsErrorPercentileMm(50));
+    }
+}
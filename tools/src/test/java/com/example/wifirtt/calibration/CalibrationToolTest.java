@@ -0,0 +1,172 @@
+package com.example.wifirtt.calibration;
+
+import com.example.wifirtt.ranging.RangingBatch;
+import com.example.wifirtt.record.RangingRecorder;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fits a synthetic capture whose two peers have a known bias and scale, and checks that the
+ * fit recovers them and that the corrected errors are centred on zero.
+ */
+public class CalibrationToolTest {
+
+    private static final String SESSION = "hallway";
+    private static final long BASE_MILLIS = 500000;
+    private static final long INTERVAL_MS = 50;
+    private static final long LABELLED_MS = 30000;
+    // peer 1 は measured = 1.02 * true + 350 (ノイズ 50mm)、peer 2 は 0.98 * true - 200 (ノイズなし)
+    private static final double NOISE_MM = 50;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final ForkJoinPool mPool = new ForkJoinPool(2);
+
+    @After
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    private static int trueMm(long relativeMillis) {
+        return relativeMillis < 10000 ? 1500 : relativeMillis < 20000 ? 4000 : 8000;
+    }
+
+    private void writeCapture(File directory) throws Exception {
+        Random random = new Random(9);
+        // 小さなセグメントにして、複数のセグメントを並列に処理させる
+        RangingRecorder recorder = new RangingRecorder(directory, SESSION, 256, 100);
+        RangingBatch batch = new RangingBatch(3);
+        // ラベルのない最後の 1 秒には、でたらめな距離を入れておく
+        for (long t = 0; t < LABELLED_MS + 1000; t += INTERVAL_MS) {
+            long now = BASE_MILLIS + t;
+            boolean labelled = t < LABELLED_MS;
+            int trueMm = labelled ? trueMm(t) : 0;
+            batch.clear();
+            batch.addSuccess(1, labelled
+                    ? (int) Math.round(1.02 * trueMm + 350 + random.nextGaussian() * NOISE_MM) : 90000,
+                    100, -55, now, 8, 8);
+            batch.addSuccess(2, labelled ? (int) Math.round(0.98 * trueMm - 200) : 90000, 100, -55, now, 8, 8);
+            batch.addFailure(1, RangingBatch.STATUS_FAIL, now); // 失敗は数えない
+            recorder.record(batch);
+            if (t % 1000 == 0) {
+                Thread.sleep(1); // 次のセグメントの用意はフラッシュスレッドに任せる
+            }
+        }
+        recorder.close();
+        assertEquals(0, recorder.getDroppedCount());
+
+        try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(CaptureLabels.labelsFile(directory, SESSION)), StandardCharsets.UTF_8)) {
+            writer.write("local A\nremote * B\nremote 2 C\n"
+                    + "truth 0 10000 1.5\ntruth 10000 20000 4\ntruth 20000 30000 8\n");
+        }
+    }
+
+    @Test
+    public void fitRecoversTheBiasAndScaleOfASyntheticCapture() throws Exception {
+        File directory = mFolder.getRoot();
+        writeCapture(directory);
+        // ラベルのないセッションは飛ばす
+        RangingRecorder unlabelled = new RangingRecorder(directory, "unlabelled", 16, 100);
+        unlabelled.close();
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        List<CalibrationTool.Segment> segments = CalibrationTool.findSegments(directory,
+                new PrintStream(log, true, "UTF-8"));
+        assertTrue(log.toString("UTF-8"), log.toString("UTF-8").contains("Skipping unlabelled"));
+        assertTrue("segments " + segments.size(), segments.size() > 4);
+
+        CalibrationTool tool = new CalibrationTool(mPool);
+        Map<String, CalibrationStats> fitted = tool.fit(segments);
+        assertEquals(2, fitted.size());
+        CalibrationStats ab = fitted.get(CalibrationTool.pairKey("A", "B"));
+        CalibrationStats ac = fitted.get(CalibrationTool.pairKey("A", "C"));
+        // 30 秒 / 50ms = 600 件ずつ。ラベルのない区間と失敗は入らない
+        assertEquals(LABELLED_MS / INTERVAL_MS, ab.getFitCount());
+        assertEquals(LABELLED_MS / INTERVAL_MS, ac.getFitCount());
+
+        CalibrationTable.Entry b = ab.fit();
+        CalibrationTable.Entry c = ac.fit();
+        assertEquals(350, b.getOffsetMm(), 15);
+        assertEquals(1.02, b.getScale(), 0.003);
+        assertEquals(-200, c.getOffsetMm(), 1);
+        assertEquals(0.98, c.getScale(), 0.0002);
+
+        List<CalibrationTable.Entry> entries = new ArrayList<>();
+        entries.add(b);
+        entries.add(c);
+        Map<String, CalibrationStats> evaluated = tool.evaluate(segments, new CalibrationTable(entries));
+        int[] trueDistances = {1500, 4000, 8000};
+        for (int trueMm : trueDistances) {
+            int range = CalibrationStats.rangeOf(trueMm);
+            CalibrationStats.ErrorStats rawB = evaluated.get(CalibrationTool.pairKey("A", "B")).getRawErrors(range);
+            CalibrationStats.ErrorStats fixedB = evaluated.get(CalibrationTool.pairKey("A", "B")).getCorrectedErrors(range);
+            CalibrationStats.ErrorStats rawC = evaluated.get(CalibrationTool.pairKey("A", "C")).getRawErrors(range);
+            CalibrationStats.ErrorStats fixedC = evaluated.get(CalibrationTool.pairKey("A", "C")).getCorrectedErrors(range);
+            String at = trueMm + "mm";
+            assertEquals(at, 200, rawB.getCount());
+            assertEquals(at, 0.02 * trueMm + 350, rawB.getBiasMm(), 15);
+            assertEquals(at, 0, fixedB.getBiasMm(), 15);
+            // 補正後に残るのはノイズだけ
+            assertEquals(at, NOISE_MM / 1.02, fixedB.getRmseMm(), 10);
+            assertTrue(at, fixedB.getAbsErrorPercentileMm(95) <= 2 * NOISE_MM + 20);
+            assertEquals(at, -0.02 * trueMm - 200, rawC.getBiasMm(), 1);
+            assertTrue(at + " " + fixedC.getRmseMm(), fixedC.getRmseMm() < 2);
+            assertEquals(at, 10, fixedC.getAbsErrorPercentileMm(95));
+        }
+    }
+
+    @Test
+    public void segmentsGiveTheSameFitInAnyGrouping() throws Exception {
+        File directory = mFolder.getRoot();
+        writeCapture(directory);
+        List<CalibrationTool.Segment> segments = CalibrationTool.findSegments(directory, new PrintStream(
+                new ByteArrayOutputStream(), true, "UTF-8"));
+        Map<String, CalibrationStats> parallel = new CalibrationTool(mPool).fit(segments);
+        // 1 スレッドで順に流しても同じ和になる
+        Map<String, CalibrationStats> serial = new HashMap<>();
+        for (CalibrationTool.Segment segment : segments) {
+            CalibrationTool.accumulate(segment, null, serial);
+        }
+        for (String key : serial.keySet()) {
+            CalibrationTable.Entry expected = serial.get(key).fit();
+            CalibrationTable.Entry actual = parallel.get(key).fit();
+            assertEquals(key, expected.getOffsetMm(), actual.getOffsetMm(), 1e-6);
+            assertEquals(key, expected.getScale(), actual.getScale(), 1e-9);
+        }
+        assertEquals(2, serial.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedLabelsFailTheSearch() throws Exception {
+        File directory = mFolder.getRoot();
+        writeCapture(directory);
+        try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(CaptureLabels.labelsFile(directory, SESSION)), StandardCharsets.UTF_8)) {
+            writer.write("remote * B\n");
+        }
+        CalibrationTool.findSegments(directory, new PrintStream(new ByteArrayOutputStream(), true, "UTF-8"));
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.wifirtt.calibration;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CaptureLabelsTest {
+
+    private static CaptureLabels parse(String text) throws IOException {
+        return CaptureLabels.parse(new StringReader(text));
+    }
+
+    private static void assertRejected(String text, String message) {
+        try {
+            parse(text);
+            fail(text);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void parsesDevicesAndIntervals() throws IOException {
+        CaptureLabels labels = parse("# hallway, phones at chest height\n"
+                + "local Pixel 8 Pro\n"
+                + "remote * Pixel 7\n"
+                + "remote 3 Galaxy S23 Ultra\n"
+                + "truth 0 10000 1.5\n"
+                + "\n"
+                + "truth 10000 20000 4\n"
+                + "truth 12000 14000 2.25 3\n");
+        assertEquals("Pixel 8 Pro", labels.getLocalDevice());
+        assertEquals("Galaxy S23 Ultra", labels.getRemoteDevice(3));
+        assertEquals("Pixel 7", labels.getRemoteDevice(4));
+
+        // 区間は開始を含み、終わりを含まない
+        assertEquals(1500, labels.getTrueDistanceMm(4, 0));
+        assertEquals(1500, labels.getTrueDistanceMm(4, 9999));
+        assertEquals(4000, labels.getTrueDistanceMm(4, 10000));
+        assertEquals(-1, labels.getTrueDistanceMm(4, 20000));
+        assertEquals(-1, labels.getTrueDistanceMm(4, -1));
+        // ピア指定のある区間は、後に書かれていても全体の区間より優先する
+        assertEquals(2250, labels.getTrueDistanceMm(3, 12000));
+        assertEquals(4000, labels.getTrueDistanceMm(4, 12000));
+        assertEquals(4000, labels.getTrueDistanceMm(3, 14000));
+    }
+
+    @Test
+    public void unnamedRemoteIsNull() throws IOException {
+        CaptureLabels labels = parse("local A\nremote 1 B\n");
+        assertEquals("B", labels.getRemoteDevice(1));
+        assertNull(labels.getRemoteDevice(2));
+        assertEquals(-1, labels.getTrueDistanceMm(1, 0));
+    }
+
+    @Test
+    public void rejectsMalformedLabels() {
+        assertRejected("remote * B\n", "Missing 'local <device>'");
+        assertRejected("local A\nwhere 1 2\n", "Line 2: unknown label");
+        assertRejected("local A\ntruth 0 1000\n", "Line 2: expected truth");
+        assertRejected("local A\ntruth 0 1000 1 2 3\n", "Line 2: expected truth");
+        assertRejected("local A\ntruth 1000 1000 1\n", "Line 2: invalid interval");
+        assertRejected("local A\ntruth 0 1000 -1\n", "Line 2: invalid interval");
+        assertRejected("local A\ntruth 0 1s 1\n", "Line 2: invalid number");
+        assertRejected("local A\nremote x B\n", "Line 2: invalid number");
+    }
+}
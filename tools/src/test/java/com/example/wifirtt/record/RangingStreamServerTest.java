@@ -0,0 +1,140 @@
+package com.example.wifirtt.record;
+
+import com.example.wifirtt.ranging.RangingBatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Runs the server and real clients over loopback. */
+public class RangingStreamServerTest {
+
+    private static final int PEERS = 8;
+
+    private RangingStreamServer mServer;
+
+    @After
+    public void tearDown() {
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    private void awaitClients(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mServer.getClientCount() != count) {
+            assertTrue("clients " + mServer.getClientCount(), System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /** Fills {@code batch} with records whose distance is their running index. */
+    private static int fill(RangingBatch batch, int next, long nowMillis) {
+        batch.clear();
+        for (int i = 0; i < batch.capacity(); i++, next++) {
+            batch.addSuccess(next % PEERS, next, 100, -50, nowMillis, 8, 8);
+        }
+        return next;
+    }
+
+    @Test(timeout = 20000)
+    public void deliversEveryRecordInOrder() throws Exception {
+        mServer = new RangingStreamServer.Builder(0).start();
+        final RangingStreamClient client = new RangingStreamClient("127.0.0.1", mServer.getPort());
+        awaitClients(1);
+
+        final int total = 4000;
+        final String[] failure = new String[1];
+        final int[] received = new int[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (received[0] < total && client.next()) {
+                        int expected = received[0]++;
+                        if (client.getDistanceMm() != expected || client.getPeerId() != expected % PEERS) {
+                            failure[0] = "record " + expected + ": got " + client.getDistanceMm()
+                                    + " from peer " + client.getPeerId();
+                            return;
+                        }
+                    }
+                } catch (IOException e) {
+                    failure[0] = e.toString();
+                }
+            }
+        });
+        reader.start();
+
+        // 2ms ごとに 8 件 = 毎秒 4000 件ほど
+        RangingBatch batch = new RangingBatch(PEERS);
+        int next = 0;
+        while (next < total) {
+            long now = System.currentTimeMillis();
+            next = fill(batch, next, now);
+            mServer.publish(batch, now);
+            Thread.sleep(2);
+        }
+        mServer.flush();
+        reader.join(10000);
+        client.close();
+        reader.join();
+
+        assertNull(failure[0]);
+        assertEquals(total, received[0]);
+        assertEquals(0, client.getMissedFrameCount());
+        assertEquals(mServer.getFrameCount(), client.getFrameCount());
+        assertEquals(total, mServer.getRecordCount());
+        assertEquals(0, mServer.getAggregatedCount());
+        assertEquals(0, mServer.getDroppedCount());
+        assertEquals(0, mServer.getSkippedFrameCount());
+    }
+
+    @Test(timeout = 30000)
+    public void stalledClientDoesNotBlockPublish() throws Exception {
+        // 枠もリングも最小にして、I/O スレッドが追いつけない状況を作る
+        int recordsPerFrame = PEERS / 2;
+        mServer = new RangingStreamServer.Builder(0)
+                .setRecordsPerFrame(recordsPerFrame)
+                .setRingFrames(1)
+                .setClientBufferBytes(RangingRecordFormat.HEADER_SIZE + recordsPerFrame * RangingRecordFormat.RECORD_SIZE)
+                .start();
+        // 読まないクライアント。受信バッファも小さくしてすぐ詰まるようにする
+        SocketChannel stalled = SocketChannel.open();
+        stalled.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        stalled.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), mServer.getPort()));
+        try {
+            awaitClients(1);
+            RangingBatch batch = new RangingBatch(PEERS);
+            long deadline = System.currentTimeMillis() + 20000;
+            long slowest = 0;
+            int next = 0;
+            while (mServer.getSkippedFrameCount() == 0 || mServer.getAggregatedCount() == 0
+                    || mServer.getDroppedCount() == 0) {
+                assertTrue("skipped " + mServer.getSkippedFrameCount() + ", aggregated "
+                        + mServer.getAggregatedCount() + ", dropped " + mServer.getDroppedCount(),
+                        System.currentTimeMillis() < deadline);
+                for (int i = 0; i < 1000; i++) {
+                    next = fill(batch, next, next);
+                    long start = System.nanoTime();
+                    mServer.publish(batch, next);
+                    slowest = Math.max(slowest, System.nanoTime() - start);
+                }
+            }
+            // GC などの揺らぎを見込んでも、送信待ちで止まることはない
+            assertTrue("slowest publish " + slowest / 1000000 + "ms", slowest < 200000000L);
+            assertEquals(1, mServer.getClientCount());
+            assertTrue(mServer.getRecordCount() < next);
+        } finally {
+            stalled.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.wifirtt.sim;
+
+import com.example.wifirtt.ranging.MeshSlotPlan;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class MeshSimulationTest {
+
+    @Test
+    public void sharingMeasuresEachPairOncePerCycleAndHalvesTheLoad() {
+        int nodes = 8;
+        // 発見に最大 0.5 秒かかるので、その後のサイクル数は 31
+        long durationMillis = 31500;
+        long cycles = (durationMillis - 500) / (MeshSlotPlan.DEFAULT_SLOT_COUNT * MeshSlotPlan.DEFAULT_SLOT_MILLIS);
+        MeshSimulation alone = new MeshSimulation(nodes, false, 3);
+        MeshSimulation shared = new MeshSimulation(nodes, true, 3);
+        alone.run(durationMillis);
+        shared.run(durationMillis);
+
+        int measuredByBoth = 0;
+        for (int a = 0; a < nodes; a++) {
+            for (int b = a + 1; b < nodes; b++) {
+                long ab = shared.getMeasurementCount(a, b);
+                long ba = shared.getMeasurementCount(b, a);
+                if (ab > 0 && ba > 0) {
+                    measuredByBoth++;
+                }
+                // 5% の失敗はあるが、サイクルに 1 回を超えることはない
+                String pair = a + "-" + b + ": " + ab + " + " + ba;
+                assertTrue(pair, ab + ba <= cycles + 1);
+                assertTrue(pair, ab + ba >= cycles * 8 / 10);
+                // 共有しなければ両側がそれぞれ計測する
+                assertTrue(pair, alone.getMeasurementCount(a, b) <= cycles + 1
+                        && alone.getMeasurementCount(b, a) <= cycles + 1);
+            }
+        }
+        // 両側で計測するのは、共有が途絶えて引き取ったペアだけ
+        assertTrue(measuredByBoth + " vs " + shared.getTakeOverCount(), measuredByBoth <= shared.getTakeOverCount());
+
+        double measurements = (double) shared.getMeasurementCount() / alone.getMeasurementCount();
+        double requests = (double) shared.getRequestCount() / alone.getRequestCount();
+        assertTrue("measurements " + measurements, measurements > 0.45 && measurements < 0.55);
+        assertTrue("requests " + requests, requests < 0.7);
+        assertTrue("coverage " + shared.getCoverage(), shared.getCoverage() > 0.98);
+        assertTrue("coverage " + alone.getCoverage(), alone.getCoverage() > 0.98);
+    }
+}